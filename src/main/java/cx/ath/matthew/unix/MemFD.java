@@ -0,0 +1,89 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Copyright (c) Matthew Johnson 2005
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * To Contact the author, please email src@matthew.ath.cx
+ *
+ */
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+
+/**
+ * Sealed in-memory files (memfd), for handing large blocks of data to
+ * another process by passing a file descriptor over a UnixSocket
+ * rather than writing the data through the socket.
+ * The file is sealed once written, so the receiver can rely on it not
+ * changing. Only available on Linux.
+ */
+public class MemFD
+{
+   static {
+       org.it4y.jni.JNILoader.loadLibrary("libunix-java");
+   }
+   private static native int native_create(String name, byte[] b, int off, int len) throws IOException;
+   private static native byte[] native_read(int fd) throws IOException;
+   private static native void native_close(int fd) throws IOException;
+
+   private MemFD() {}
+
+   /**
+    * Create a sealed in-memory file holding some data.
+    * @param name A name for the file, only used for debugging.
+    * @param b The buffer holding the data.
+    * @param off The offset of the data in b.
+    * @param len The length of the data.
+    * @return The file descriptor, which the caller must close.
+    */
+   public static int create(String name, byte[] b, int off, int len) throws IOException
+   {
+      if (off < 0 || len < 0 || off+len > b.length) throw new IndexOutOfBoundsException();
+      return native_create(name, b, off, len);
+   }
+   /**
+    * Create a sealed in-memory file holding some data.
+    * @param name A name for the file, only used for debugging.
+    * @param b The data.
+    * @return The file descriptor, which the caller must close.
+    */
+   public static int create(String name, byte[] b) throws IOException
+   {
+      return native_create(name, b, 0, b.length);
+   }
+   /**
+    * Read the whole of a sealed in-memory file.
+    * @param fd The file descriptor.
+    * @return The contents of the file.
+    * @throws UnixIOException If the file is not sealed against writing and shrinking.
+    */
+   public static byte[] read(int fd) throws IOException
+   {
+      return native_read(fd);
+   }
+   /**
+    * Close a file descriptor, such as one received over a UnixSocket.
+    */
+   public static void close(int fd) throws IOException
+   {
+      native_close(fd);
+   }
+}
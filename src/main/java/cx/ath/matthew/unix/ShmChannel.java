@@ -0,0 +1,250 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Copyright (c) Matthew Johnson 2005
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ * To Contact the author, please email src@matthew.ath.cx
+ *
+ */
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream connection between two processes on the same host through a
+ * pair of single producer, single consumer rings in a shared memory file,
+ * so data is copied straight into the other process rather than through
+ * the kernel.
+ * <p>
+ * The rings are set up over a connected UnixSocket, which then serves as
+ * a doorbell: a reader which finds its ring empty spins for a while, then
+ * asks to be woken and sleeps on the socket, and the writer sends it a
+ * byte. A writer which finds its ring full sleeps on the ring itself until
+ * the reader has made space. Only sleeping readers and writers cost a
+ * system call. The socket also tells each end when the other has gone
+ * away, even if it did not close the channel.
+ * <p>
+ * The rings are in an anonymous in-memory file, which the end calling
+ * accept creates and passes to the other end as a file descriptor, so no
+ * other process can open it. Each end checks the positions it finds in
+ * the shared memory before using them, and fails the channel if the other
+ * end has made them inconsistent.
+ * <p>
+ * One thread may read and another write at the same time. The shared
+ * memory is only available on Linux.
+ */
+public class ShmChannel
+{
+   static {
+       org.it4y.jni.JNILoader.loadLibrary("libunix-java");
+   }
+   /** The default capacity of each ring, in bytes. */
+   public static final int DEFAULT_CAPACITY = 1 << 20;
+   /** The system property setting how long readers spin before sleeping, in microseconds. */
+   public static final String SPIN_PROPERTY = "cx.ath.matthew.unix.shm.spin";
+   private static final int SPIN = Integer.getInteger(SPIN_PROPERTY, 50);
+
+   private static native int native_create(int capacity) throws IOException;
+   private static native long native_map(int fd, int capacity, boolean create, int[] mapped) throws IOException;
+   private static native int native_read(long base, int capacity, int ring, int sock, byte[] b, int off, int len, int spin) throws IOException;
+   private static native void native_write(long base, int capacity, int ring, int sock, byte[] b, int off, int len, int spin) throws IOException;
+   private static native void native_close(long base, int sock);
+   private static native void native_unmap(long base, int capacity) throws IOException;
+
+   /** The byte sent with the file descriptor of the rings. */
+   private static final int RINGS = 'S';
+   /** The byte which acknowledges that the rings have been mapped. */
+   private static final int ACK = '\n';
+
+   /**
+    * Create the rings and pass them to the other end of a socket, which
+    * must call connect with its end.
+    * @param sock The connected socket, which becomes the doorbell.
+    * @param capacity The size of each ring, a power of two.
+    */
+   public static ShmChannel accept(UnixSocket sock, int capacity) throws IOException
+   {
+      if (capacity < 4096 || 0 != (capacity & (capacity-1)))
+         throw new IllegalArgumentException("Capacity must be a power of two of at least 4096 bytes");
+      int fd = native_create(capacity);
+      long base;
+      try {
+         base = native_map(fd, capacity, true, new int[1]);
+      } catch (IOException IOe) {
+         MemFD.close(fd);
+         throw IOe;
+      }
+      try {
+         try {
+            ((USOutputStream) sock.getOutputStream()).write(new byte[][] { { RINGS } }, new int[] { fd });
+         } finally {
+            MemFD.close(fd);
+         }
+         if (ACK != sock.getInputStream().read())
+            throw new UnixIOException(0, "Peer failed to map shared memory");
+      } catch (IOException IOe) {
+         native_unmap(base, capacity);
+         throw IOe;
+      }
+      return new ShmChannel(sock, base, capacity, 0);
+   }
+   /**
+    * Map the rings which the other end of a socket created with accept.
+    * @param sock The connected socket, which becomes the doorbell.
+    */
+   public static ShmChannel connect(UnixSocket sock) throws IOException
+   {
+      USInputStream in = (USInputStream) sock.getInputStream();
+      boolean passfds = in.getPassFileDescriptors();
+      int[] fds;
+      int c;
+      in.setPassFileDescriptors(true);
+      try {
+         c = in.read();
+         fds = in.takeFileDescriptors(in.availableFileDescriptors());
+      } finally {
+         in.setPassFileDescriptors(passfds);
+      }
+      try {
+         if (-1 == c) throw new UnixIOException(0, "Peer closed the socket before sending the shared memory");
+         if (RINGS != c || 1 != fds.length) throw new UnixIOException(0, "Peer did not send the shared memory");
+         int[] mapped = new int[1];
+         long base = native_map(fds[0], 0, false, mapped);
+         try {
+            sock.getOutputStream().write(ACK);
+         } catch (IOException IOe) {
+            native_unmap(base, mapped[0]);
+            throw IOe;
+         }
+         return new ShmChannel(sock, base, mapped[0], 1);
+      } finally {
+         for (int fd: fds) MemFD.close(fd);
+      }
+   }
+
+   private final UnixSocket sock;
+   private final int fd;
+   private final long base;
+   /** The capacity of each ring, which is only read from the shared memory when it is mapped. */
+   private final int capacity;
+   private final int inRing;
+   private final int outRing;
+   private final InputStream in = new Input();
+   private final OutputStream out = new Output();
+   /** Guards unmapping against reads and writes still using the memory. */
+   private final Object lock = new Object();
+   private int users = 0;
+   private boolean closed = false;
+
+   private ShmChannel(UnixSocket sock, long base, int capacity, int outRing)
+   {
+      this.sock = sock;
+      this.fd = sock.getFD();
+      this.base = base;
+      this.capacity = capacity;
+      this.outRing = outRing;
+      this.inRing = 1 - outRing;
+   }
+
+   public InputStream getInputStream() { return in; }
+   public OutputStream getOutputStream() { return out; }
+   public boolean isClosed()
+   {
+      synchronized (lock) { return closed; }
+   }
+
+   /**
+    * Close both directions, waking any reads and writes, and unmap the rings.
+    * The other end reads what is left in its ring and then the end of the stream.
+    */
+   public void close() throws IOException
+   {
+      synchronized (lock) {
+         if (closed) return;
+         closed = true;
+         native_close(base, fd);
+         while (users > 0)
+            try { lock.wait(); } catch (InterruptedException Ie) {}
+         native_unmap(base, capacity);
+      }
+      sock.close();
+   }
+
+   private void enter() throws IOException
+   {
+      synchronized (lock) {
+         if (closed) throw new NotConnectedException();
+         users++;
+      }
+   }
+   private void exit()
+   {
+      synchronized (lock) {
+         if (0 == --users) lock.notifyAll();
+      }
+   }
+
+   private class Input extends InputStream
+   {
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         int rv = read(b, 0, 1);
+         return -1 == rv ? -1 : b[0] & 0xFF;
+      }
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (off < 0 || len < 0 || off+len > b.length) throw new IndexOutOfBoundsException();
+         if (0 == len) return 0;
+         synchronized (lock) {
+            if (closed) return -1;
+            users++;
+         }
+         try {
+            return native_read(base, capacity, inRing, fd, b, off, len, SPIN);
+         } finally {
+            exit();
+         }
+      }
+      public void close() throws IOException { ShmChannel.this.close(); }
+   }
+
+   private class Output extends OutputStream
+   {
+      public void write(int b) throws IOException
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         if (off < 0 || len < 0 || off+len > b.length) throw new IndexOutOfBoundsException();
+         enter();
+         try {
+            native_write(base, capacity, outRing, fd, b, off, len, SPIN);
+         } finally {
+            exit();
+         }
+      }
+      public void close() throws IOException { ShmChannel.this.close(); }
+   }
+}
@@ -28,11 +28,17 @@ package cx.ath.matthew.unix;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class USInputStream extends InputStream
 { 
    public static final int MSG_DONTWAIT = 0x40;
+   /** The most file descriptors which can be passed with one write. */
+   public static final int MAX_FDS = 253;
    private native int native_recv(int sock, byte[] b, int off, int len, int flags, int timeout) throws IOException;
+   private native int native_recv_fds(int sock, byte[] b, int off, int len, int flags, int timeout, int[] fds) throws IOException;
+   private native int native_recv_direct(int sock, ByteBuffer[] b, int[] off, int[] len, int n, int flags, int timeout, int[] fds) throws IOException;
    private int sock;
    boolean closed = false;
    private byte[] onebuf = new byte[1];
@@ -40,6 +46,13 @@ public class USInputStream extends InputStream
    private boolean blocking = true;
    private int flags = 0;
    private int timeout = 0;
+   private boolean passfds = false;
+   private int[] fdbuf = null;
+   private int[] fds = new int[0];
+   private int nfds = 0;
+   private ByteBuffer[] onebb = new ByteBuffer[1];
+   private int[] bboff = new int[1];
+   private int[] bblen = new int[1];
    public USInputStream(int sock, UnixSocket us)
    {
       this.sock = sock;
@@ -61,7 +74,12 @@ public class USInputStream extends InputStream
    public int read(byte[] b, int off, int len) throws IOException
    {
       if (closed) throw new NotConnectedException();
-      int count = native_recv(sock, b, off, len, flags, timeout);
+      int count;
+      if (passfds) {
+         count = native_recv_fds(sock, b, off, len, flags, timeout, fdbuf);
+         if (0 < fdbuf[0]) queueFileDescriptors();
+      } else
+         count = native_recv(sock, b, off, len, flags, timeout);
       /* Yes, I really want to do this. Recv returns 0 for 'connection shut down'.
        * read() returns -1 for 'end of stream.
        * Recv returns -1 for 'EAGAIN' (all other errors cause an exception to be raised)
@@ -71,6 +89,96 @@ public class USInputStream extends InputStream
       else if (-1 == count) return 0;
       else return count;
    }
+   /**
+    * Read into a direct buffer, from its position up to its limit.
+    * The bytes are received straight into the buffer without being copied.
+    * @return The number of bytes read, 0 if none were available, or -1 at the end of the stream.
+    */
+   public int read(ByteBuffer b) throws IOException
+   {
+      onebb[0] = b;
+      try { return (int) read(onebb); }
+      finally { onebb[0] = null; }
+   }
+   /**
+    * Read into several direct buffers in order with one system call,
+    * from the position up to the limit of each. The position of each
+    * buffer is advanced past the bytes read into it.
+    * @return The number of bytes read, 0 if none were available or the buffers are full,
+    *         or -1 at the end of the stream.
+    */
+   public long read(ByteBuffer[] b) throws IOException
+   {
+      if (closed) throw new NotConnectedException();
+      // one call only fills so many buffers, so start at the first with room
+      int start = 0;
+      while (start < b.length && !b[start].hasRemaining()) start++;
+      if (start == b.length) return 0;
+      if (0 < start) b = Arrays.copyOfRange(b, start, b.length);
+      int n = b.length;
+      if (bboff.length < n) {
+         bboff = new int[n];
+         bblen = new int[n];
+      }
+      for (int i = 0; i < n; i++) {
+         if (!b[i].isDirect()) throw new IllegalArgumentException("Buffers must be direct");
+         bboff[i] = b[i].position();
+         bblen[i] = b[i].remaining();
+      }
+      int count = native_recv_direct(sock, b, bboff, bblen, n, flags, timeout, passfds ? fdbuf : null);
+      if (passfds && 0 < fdbuf[0]) queueFileDescriptors();
+      // as for read(byte[], int, int), 0 is the end of the stream and -1 is no data
+      if (0 == count) return -1;
+      else if (-1 == count) return 0;
+      for (int i = 0, left = count; i < n && left > 0; i++) {
+         int r = Math.min(left, bblen[i]);
+         b[i].position(bboff[i]+r);
+         left -= r;
+      }
+      return count;
+   }
+   private void queueFileDescriptors()
+   {
+      int n = fdbuf[0];
+      if (nfds+n > fds.length) {
+         int[] temp = new int[Math.max(nfds+n, fds.length*2)];
+         System.arraycopy(fds, 0, temp, 0, nfds);
+         fds = temp;
+      }
+      System.arraycopy(fdbuf, 1, fds, nfds, n);
+      nfds += n;
+      fdbuf[0] = 0;
+   }
+   /**
+    * Enable receiving file descriptors sent with the data.
+    * Received file descriptors are queued in the order they arrive
+    * until they are taken with takeFileDescriptors.
+    */
+   public void setPassFileDescriptors(boolean enable)
+   {
+      if (enable && null == fdbuf) fdbuf = new int[MAX_FDS+1];
+      passfds = enable;
+   }
+   public boolean getPassFileDescriptors() { return passfds; }
+   /**
+    * Returns the number of received file descriptors which have not been taken yet.
+    */
+   public int availableFileDescriptors() { return nfds; }
+   /**
+    * Take the oldest received file descriptors from the queue.
+    * The caller owns them from then on and must close them.
+    * @param n The number of file descriptors to take.
+    * @return The file descriptors, or null if fewer than n have been received.
+    */
+   public int[] takeFileDescriptors(int n)
+   {
+      if (n > nfds) return null;
+      int[] rv = new int[n];
+      System.arraycopy(fds, 0, rv, 0, n);
+      System.arraycopy(fds, n, fds, 0, nfds-n);
+      nfds -= n;
+      return rv;
+   }
    public boolean isClosed() { return closed; }
    public UnixSocket getSocket() { return us; }
    public void setBlocking(boolean enable)
@@ -28,14 +28,21 @@ package cx.ath.matthew.unix;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class USOutputStream extends OutputStream
 {
    private native int native_send(int sock, byte[] b, int off, int len) throws IOException;
    private native int native_send(int sock, byte[][] b) throws IOException;
+   private native int native_send(int sock, byte[][] b, int[] len, int n) throws IOException;
+   private native int native_send_fds(int sock, byte[][] b, int[] fds) throws IOException;
+   private native int native_send_direct(int sock, ByteBuffer[] b, int[] off, int[] len, int n, int[] fds) throws IOException;
    private int sock;
    boolean closed = false;
    private byte[] onebuf = new byte[1];
+   private ByteBuffer[] onebb = new ByteBuffer[1];
+   private int[] bboff = new int[1];
+   private int[] bblen = new int[1];
    private UnixSocket us;
    public USOutputStream(int sock, UnixSocket us)
    {
@@ -54,10 +61,79 @@ public class USOutputStream extends OutputStream
 //      if (b == null) throw new NullPointerException();
       native_send(sock, b);
    }
+   /**
+    * Write the start of several buffers in order, with as few system calls as possible.
+    * @param b The buffers to write.
+    * @param len The number of bytes to write from the start of each buffer.
+    * @param n The number of buffers to write.
+    * @return The number of bytes written. This is less than asked for only if
+    * the socket failed part way, and the next write then throws the error.
+    */
+   public int write(byte[][] b, int[] len, int n) throws IOException
+   {
+      if (closed) throw new NotConnectedException();
+      return native_send(sock, b, len, n);
+   }
+   /**
+    * Write several buffers in order, passing file descriptors along with the first byte.
+    * The descriptors are duplicated into the receiving process; the caller
+    * still owns the ones passed in.
+    * @param b The buffers to write, ending at the first null element.
+    * @param fds The file descriptors to pass, at most USInputStream.MAX_FDS.
+    */
+   public void write(byte[][] b, int[] fds) throws IOException
+   {
+      if (closed) throw new NotConnectedException();
+      native_send_fds(sock, b, fds);
+   }
+   /**
+    * Write a direct buffer from its position up to its limit, straight
+    * from the buffer without copying it. The position is advanced to the limit.
+    */
+   public void write(ByteBuffer b) throws IOException
+   {
+      onebb[0] = b;
+      try { write(onebb, null); }
+      finally { onebb[0] = null; }
+   }
+   /**
+    * Write several direct buffers in order with as few system calls as possible,
+    * from the position up to the limit of each. The positions are advanced to the limits.
+    */
+   public void write(ByteBuffer[] b) throws IOException
+   {
+      write(b, null);
+   }
+   /**
+    * Write several direct buffers in order, passing file descriptors along with the first byte.
+    * @param b The buffers to write, from the position up to the limit of each.
+    * @param fds The file descriptors to pass, at most USInputStream.MAX_FDS, or null.
+    */
+   public void write(ByteBuffer[] b, int[] fds) throws IOException
+   {
+      if (closed) throw new NotConnectedException();
+      int n = b.length;
+      if (bboff.length < n) {
+         bboff = new int[n];
+         bblen = new int[n];
+      }
+      for (int i = 0; i < n; i++) {
+         if (!b[i].isDirect()) throw new IllegalArgumentException("Buffers must be direct");
+         bboff[i] = b[i].position();
+         bblen[i] = b[i].remaining();
+      }
+      native_send_direct(sock, b, bboff, bblen, n, fds);
+      for (int i = 0; i < n; i++)
+         b[i].position(b[i].limit());
+   }
    public void write(byte[] b, int off, int len) throws IOException
    {
       if (closed) throw new NotConnectedException();
-      native_send(sock, b, off, len);
+      while (len > 0) {
+         int rv = native_send(sock, b, off, len);
+         off += rv;
+         len -= rv;
+      }
    }
    public void write(int b) throws IOException
    {
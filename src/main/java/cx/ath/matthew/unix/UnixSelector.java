@@ -0,0 +1,279 @@
+/*
+ * Java Unix Sockets Library
+ *
+ * Copyright (c) Matthew Johnson 2005
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ * 
+ * To Contact the author, please email src@matthew.ath.cx
+ *
+ */
+package cx.ath.matthew.unix;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Waits for any of many UnixSockets and UnixServerSockets to be ready,
+ * so one thread can serve them all instead of one blocked thread each.
+ * Built on epoll, so only available on Linux.
+ * <p>
+ * Sockets are registered for reading, writing or both and the selector
+ * reports which of them are ready. Readiness is level-triggered: a socket
+ * is reported again by the next select until it has been read or written.
+ * A socket which has hung up or failed is reported as readable, so the
+ * read will see the end of the stream or the error. A server socket is
+ * readable when it has a connection to accept.
+ * <p>
+ * Keys may be registered, changed and cancelled from any thread, while
+ * another thread selects. Closing a socket cancels its keys before the
+ * file descriptor is closed, so a new socket given the same descriptor
+ * is never taken for the old one.
+ */
+public class UnixSelector
+{
+   static {
+       org.it4y.jni.JNILoader.loadLibrary("libunix-java");
+   }
+   /** Interest in or readiness for reading, or accepting on a server socket. */
+   public static final int OP_READ = 1;
+   /** Interest in or readiness for writing. */
+   public static final int OP_WRITE = 4;
+
+   private static final int MAX_EVENTS = 256;
+
+   private native void native_create(int[] fds) throws IOException;
+   private native void native_ctl(int epfd, int op, int fd, int ops) throws IOException;
+   private native int native_wait(int epfd, int wakefd, int[] events, int max, int timeout) throws IOException;
+   private native void native_wakeup(int wakefd) throws IOException;
+   private native void native_close(int epfd, int wakefd) throws IOException;
+
+   private static final int CTL_ADD = 0;
+   private static final int CTL_MOD = 1;
+   private static final int CTL_DEL = 2;
+
+   /**
+    * The registration of a socket with a selector.
+    */
+   public class Key
+   {
+      private final Object socket;
+      /** The keys of the socket, which it cancels when it is closed. */
+      private final List<Key> registered;
+      private final int fd;
+      private volatile int interest;
+      private int ready = 0;
+      private volatile Object attachment;
+      private volatile boolean valid = true;
+      private Key(Object socket, List<Key> registered, int fd, int interest, Object attachment)
+      {
+         this.socket = socket;
+         this.registered = registered;
+         this.fd = fd;
+         this.interest = interest;
+         this.attachment = attachment;
+      }
+      /** Returns the UnixSocket or UnixServerSocket this key is for. */
+      public Object socket() { return socket; }
+      public UnixSelector selector() { return UnixSelector.this; }
+      public int interestOps() { return interest; }
+      /**
+       * Change what the socket is selected for.
+       * @param ops OP_READ, OP_WRITE, both or 0 for neither.
+       */
+      public void interestOps(int ops) throws IOException
+      {
+         if (!valid) throw new NotConnectedException();
+         native_ctl(epfd, CTL_MOD, fd, ops);
+         interest = ops;
+      }
+      /** Returns what the socket was ready for at the last select which reported it. */
+      public int readyOps() { return ready; }
+      public boolean isReadable() { return 0 != (ready & OP_READ); }
+      public boolean isWritable() { return 0 != (ready & OP_WRITE); }
+      public Object attachment() { return attachment; }
+      public Object attach(Object o)
+      {
+         Object old = attachment;
+         attachment = o;
+         return old;
+      }
+      public boolean isValid() { return valid; }
+      /**
+       * Stop selecting the socket. The socket itself is left open.
+       */
+      public void cancel() throws IOException
+      {
+         synchronized (registered) {
+            registered.remove(this);
+            synchronized (keys) {
+               if (!valid) return;
+               valid = false;
+               keys.remove(fd);
+               native_ctl(epfd, CTL_DEL, fd, 0);
+            }
+         }
+      }
+   }
+
+   private final int epfd;
+   /** An eventfd, also registered with epoll, which wakeup writes to. */
+   private final int wakefd;
+   private final Map<Integer, Key> keys = new HashMap<Integer, Key>();
+   private final List<Key> selected = new ArrayList<Key>();
+   private final int[] events = new int[2*MAX_EVENTS];
+   private boolean closed = false;
+
+   /**
+    * Create a selector.
+    * @throws UnixIOException If epoll is not available.
+    */
+   public UnixSelector() throws IOException
+   {
+      int[] fds = new int[2];
+      native_create(fds);
+      epfd = fds[0];
+      wakefd = fds[1];
+   }
+   /**
+    * Register a connected socket.
+    * @param s The socket.
+    * @param ops OP_READ, OP_WRITE or both.
+    * @param attachment Any object to keep with the key, or null.
+    */
+   public Key register(UnixSocket s, int ops, Object attachment) throws IOException
+   {
+      synchronized (s.selectorKeys) {
+         if (!s.isConnected() || s.isClosed()) throw new NotConnectedException();
+         return register(s, s.selectorKeys, s.getFD(), ops, attachment);
+      }
+   }
+   /**
+    * Register a bound server socket, which is readable when there is a connection to accept.
+    * @param s The server socket.
+    * @param attachment Any object to keep with the key, or null.
+    */
+   public Key register(UnixServerSocket s, Object attachment) throws IOException
+   {
+      synchronized (s.selectorKeys) {
+         if (!s.isBound() || s.isClosed()) throw new NotConnectedException();
+         return register(s, s.selectorKeys, s.getFD(), OP_READ, attachment);
+      }
+   }
+   /**
+    * Called holding the lock on registered, which the socket also holds
+    * while it cancels its keys and closes.
+    */
+   private Key register(Object s, List<Key> registered, int fd, int ops, Object attachment) throws IOException
+   {
+      Key k = new Key(s, registered, fd, ops, attachment);
+      synchronized (keys) {
+         if (closed) throw new NotConnectedException();
+         // epoll fails with EEXIST if the socket is already registered
+         native_ctl(epfd, CTL_ADD, fd, ops);
+         keys.put(fd, k);
+      }
+      registered.add(k);
+      return k;
+   }
+   /**
+    * Cancel all the keys of a socket which is being closed. Called holding
+    * the lock on registered until the file descriptor is closed, so that no
+    * key can be registered for it in between.
+    */
+   static void cancelAll(List<Key> registered)
+   {
+      for (Key k: registered.toArray(new Key[registered.size()]))
+         try {
+            k.cancel();
+         } catch (IOException IOe) {
+            // the descriptor is about to be closed, which removes it from epoll anyway
+         }
+   }
+   /**
+    * Wait until at least one registered socket is ready or wakeup is called.
+    * @return The number of ready sockets, which may be 0.
+    */
+   public int select() throws IOException { return doSelect(-1); }
+   /**
+    * Wait up to timeout milliseconds until at least one registered socket is ready.
+    * @param timeout The timeout in milliseconds, or 0 to wait forever.
+    * @return The number of ready sockets, which may be 0.
+    */
+   public int select(int timeout) throws IOException { return doSelect(0 == timeout ? -1 : timeout); }
+   /**
+    * Find out which registered sockets are ready without waiting.
+    * @return The number of ready sockets.
+    */
+   public int selectNow() throws IOException { return doSelect(0); }
+   private synchronized int doSelect(int timeout) throws IOException
+   {
+      if (closed) throw new NotConnectedException();
+      selected.clear();
+      int n = native_wait(epfd, wakefd, events, MAX_EVENTS, timeout);
+      synchronized (keys) {
+         for (int i = 0; i < n; i++) {
+            Key k = keys.get(events[2*i]);
+            if (null == k) continue;
+            k.ready = events[2*i+1];
+            selected.add(k);
+         }
+      }
+      return selected.size();
+   }
+   /**
+    * Returns the keys reported ready by the last select.
+    * The list is only valid until the next select.
+    */
+   public List<Key> selectedKeys() { return selected; }
+   /**
+    * Make a select which is waiting, or the next one if none is, return straight away.
+    */
+   public void wakeup() throws IOException
+   {
+      native_wakeup(wakefd);
+   }
+   /**
+    * Close the selector. The registered sockets are left open.
+    */
+   public void close() throws IOException
+   {
+      Key[] ks;
+      synchronized (keys) {
+         if (closed) return;
+         closed = true;
+         ks = keys.values().toArray(new Key[keys.size()]);
+         for (Key k: ks)
+            k.valid = false;
+         keys.clear();
+      }
+      for (Key k: ks)
+         synchronized (k.registered) {
+            k.registered.remove(k);
+         }
+      wakeup();
+      synchronized (this) {
+         native_close(epfd, wakefd);
+      }
+   }
+   public boolean isClosed() { return closed; }
+}
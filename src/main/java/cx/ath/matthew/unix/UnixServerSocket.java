@@ -27,6 +27,8 @@
 package cx.ath.matthew.unix;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Represents a listening UNIX Socket.
@@ -79,7 +81,10 @@ public class UnixServerSocket
     */
    public synchronized void close() throws IOException
    {
-      native_close(sock);
+      synchronized (selectorKeys) {
+         UnixSelector.cancelAll(selectorKeys);
+         native_close(sock);
+      }
       sock = 0;
       closed = true;
       bound = false;
@@ -104,6 +109,10 @@ public class UnixServerSocket
    {
       bind(new UnixSocketAddress(address));
    }   
+   /** Returns the file descriptor of the socket, for UnixSelector. */
+   int getFD() { return sock; }
+   /** The keys registering this socket with selectors, cancelled before it is closed. */
+   final List<UnixSelector.Key> selectorKeys = new ArrayList<UnixSelector.Key>();
    /**
     * Return the address this socket is bound to.
     * @return The UnixSocketAddress if bound or null if unbound.
@@ -32,6 +32,8 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Represents a UnixSocket.
@@ -49,7 +51,7 @@ public class UnixSocket
    private native int native_getPID(int sock);
    private native int native_getUID(int sock);
    private native int native_getGID(int sock);
-   private native void native_send_creds(int sock, byte data) throws IOException;
+   private native void native_send_creds(int sock, byte[] data) throws IOException;
    private native byte native_recv_creds(int sock, int[] creds) throws IOException;
 
    private UnixSocketAddress address = null;
@@ -130,7 +132,10 @@ public class UnixSocket
    public synchronized void close() throws IOException
    {
       LOG.trace("Closing socket");
-      native_close(sock);
+      synchronized (selectorKeys) {
+         UnixSelector.cancelAll(selectorKeys);
+         native_close(sock);
+      }
       sock = 0;
       this.closed = true;
       this.connected = false;
@@ -153,6 +158,10 @@ public class UnixSocket
    {
       return os;
    }
+   /** Returns the file descriptor of the socket, for UnixSelector. */
+   int getFD() { return sock; }
+   /** The keys registering this socket with selectors, cancelled before it is closed. */
+   final List<UnixSelector.Key> selectorKeys = new ArrayList<UnixSelector.Key>();
    /**
     * Returns the address this socket is connected to.
     * Returns null if the socket is unconnected.
@@ -168,6 +177,16 @@ public class UnixSocket
     * @param data The byte of data to send.
     */
    public void sendCredentialByte(byte data) throws IOException
+   {
+      sendWithCredentials(new byte[] { data });
+   }
+   /**
+    * Send data with credentials, which go with the first byte of it.
+    * The data is written with one sendmsg unless the socket takes less.
+    * (Works on BSDs)
+    * @param data The data to send.
+    */
+   public void sendWithCredentials(byte[] data) throws IOException
    {
       if (!connected) throw new NotConnectedException();
       native_send_creds(sock, data);
@@ -323,6 +323,17 @@ public interface DBus extends DBusInterface
             super(message);
          }
       }
+      /**
+       * Thrown if a method call can't be run as the connection is out of resources
+       */
+      @SuppressWarnings("serial")
+      public class LimitsExceeded extends DBusExecutionException
+      {
+         public LimitsExceeded(String message)
+         {
+            super(message);
+         }
+      }
    }
    /**
     * Description of the interface or method, returned in the introspection data
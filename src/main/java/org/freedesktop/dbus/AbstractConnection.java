@@ -22,6 +22,10 @@ import java.lang.reflect.Type;
 import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static org.freedesktop.dbus.Gettext._;
@@ -82,7 +86,7 @@ public abstract class AbstractConnection
 
                // read from the wire
                try {
-                  // this blocks on outgoing being non-empty or a message being available.
+                  // this blocks until a message is available or the connection is closed.
                   m = readIncoming();
                   if (m != null) {
 
@@ -101,6 +105,8 @@ public abstract class AbstractConnection
                      m = null;
                   }
                } catch (Exception e) {
+                  // disconnect closes the transport to wake this thread up
+                  if (!_run) break;
                   logger.info("message read:", e);
                   if (e instanceof FatalException) {
                      disconnect();
@@ -180,37 +186,51 @@ public abstract class AbstractConnection
       }
       public void run()
       {
-         Message m = null;
+         Message[] batch = new Message[sendbatch];
 
          logger.info("Monitoring outbound queue");
-         // block on the outbound queue and send from it
+         // block on the outbound queue and send everything queued from it
          while (_run) {
+            int n = 0;
+            if (batch.length != sendbatch) batch = new Message[sendbatch];
             if (null != outgoing) synchronized (outgoing) {
                logger.debug("Blocking");
                while (outgoing.size() == 0 && _run) 
                   try { outgoing.wait(); } catch (InterruptedException Ie) {}
                logger.trace("Notified");
-               if (outgoing.size() > 0)
-                  m = outgoing.remove();
-               logger.debug("Got message: "+m);
+               n = outgoing.remove(batch, 0, batch.length);
+               long delay = senddelay;
+               if (n > 0 && n < batch.length && delay > 0) {
+                  long deadline = System.nanoTime() + delay * 1000;
+                  long left = delay * 1000;
+                  while (n < batch.length && left > 0 && _run) {
+                     try { outgoing.wait(left / 1000000, (int) (left % 1000000)); } catch (InterruptedException Ie) {}
+                     n += outgoing.remove(batch, n, batch.length-n);
+                     left = deadline - System.nanoTime();
+                  }
+               }
+               logger.debug("Got {} messages", n);
             }
-            if (null != m) 
-               sendMessage(m);
-            m = null;
+            if (1 == n)
+               sendMessage(batch[0]);
+            else if (n > 1)
+               sendMessages(batch, n);
+            if (n > 0) load.addAndGet(-n);
+            Arrays.fill(batch, 0, n, null);
          }
 
         logger.info("Flushing outbound queue and quitting");
          // flush the outbound queue before disconnect.
-         if (null != outgoing) do {
-				EfficientQueue ogq = outgoing;
+         if (null != outgoing) {
+            EfficientQueue ogq = outgoing;
             synchronized (ogq) {
-					outgoing = null;
-				}
-				if (!ogq.isEmpty())
-					m = ogq.remove(); 
-				else m = null;
-				sendMessage(m);
-         } while (null != m);
+               outgoing = null;
+            }
+            while (!ogq.isEmpty()) {
+               sendMessage(ogq.remove());
+               load.decrementAndGet();
+            }
+         }
 
          // close the underlying streams
       }
@@ -218,7 +238,10 @@ public abstract class AbstractConnection
    private final Logger logger=LoggerFactory.getLogger(AbstractConnection.class);
    /**
     * Timeout in us on checking the BUS for incoming messages and sending outgoing messages
+    * @deprecated Connections now block until a message arrives and are woken
+    * by disconnect, so this is no longer used.
     */
+   @Deprecated
    protected static final int TIMEOUT = 100000;
    /** Initial size of the pending calls map */
    private static final int PENDING_MAP_INITIAL_SIZE = 10;
@@ -238,10 +261,21 @@ public abstract class AbstractConnection
    protected Map<MethodCall, DBusAsyncReply<? extends Object>> pendingCallbackReplys;
    protected LinkedList<Runnable> runnables;
    protected LinkedList<_workerthread> workers;
+   /** Runs method calls, signal handlers and callbacks instead of the workers, or null. */
+   private volatile Executor executor;
    protected FallbackContainer fallbackcontainer;
-   protected boolean _run;
+   protected volatile boolean _run;
    EfficientQueue outgoing;
    LinkedList<Error> pendingErrors;
+   /**
+    * The messages queued to be sent plus the method calls waiting for replies,
+    * which DBusConnectionPool balances calls on.
+    */
+   final AtomicInteger load = new AtomicInteger();
+   /** The most messages the sender thread writes together. */
+   private volatile int sendbatch = 64;
+   /** How long the sender thread waits for more messages to fill a batch, in microseconds. */
+   private volatile long senddelay = 0;
    private static final Map<Thread,DBusCallInfo> infomap = new HashMap<Thread,DBusCallInfo>();
    protected _thread thread;
    protected _sender sender;
@@ -303,6 +337,10 @@ public abstract class AbstractConnection
                _workerthread t = workers.removeFirst();
                t.halt();
             }
+            // wake the halted workers so they see it
+            synchronized (runnables) {
+               runnables.notifyAll();
+            }
          } else if (workers.size() < newcount) {
             int n = newcount-workers.size();
             for (int i = 0; i < n; i++) {
@@ -313,11 +351,84 @@ public abstract class AbstractConnection
          }
       }
    }
+   /**
+    * Run method calls, signal handlers and callbacks with an executor
+    * instead of the worker threads of this connection, which are stopped.
+    * Each is a separate task, so an executor with more threads, or a thread
+    * per task, keeps methods which block from holding up the rest.
+    * The executor is not shut down when the connection is disconnected.
+    * @param executor The executor, or null to go back to the worker threads.
+    * @see DispatchExecutors
+    */
+   public void setExecutor(Executor executor)
+   {
+      Runnable[] queued = null;
+      synchronized (workers) {
+         synchronized (runnables) {
+            this.executor = executor;
+            if (null != executor) {
+               // anything the workers had not started yet goes to the executor
+               queued = runnables.toArray(new Runnable[runnables.size()]);
+               runnables.clear();
+            }
+         }
+         if (null != executor)
+            changeThreadCount((byte) 0);
+         else if (workers.isEmpty())
+            changeThreadCount(THREADCOUNT);
+      }
+      if (null != queued)
+         for (Runnable r: queued)
+            execute(executor, r);
+   }
+   /**
+    * Returns the executor set with setExecutor, or null if the worker threads are used.
+    */
+   public Executor getExecutor() { return executor; }
    private void addRunnable(Runnable r)
    {
+      Executor e;
       synchronized(runnables) {
-         runnables.add(r);
-         runnables.notifyAll();
+         e = executor;
+         if (null == e) {
+            runnables.add(r);
+            runnables.notifyAll();
+            return;
+         }
+      }
+      execute(e, r);
+   }
+   private void execute(Executor e, Runnable r)
+   {
+      try {
+         e.execute(r);
+      } catch (RejectedExecutionException REe) {
+         logger.error("Executor rejected a message handler", REe);
+         if (r instanceof _methodrunnable)
+            ((_methodrunnable) r).reject();
+      }
+   }
+   /**
+    * Runs a method call once. If the executor won't run it the caller
+    * is answered with an error rather than left waiting for a reply.
+    */
+   private abstract class _methodrunnable implements Runnable
+   {
+      final AtomicBoolean run = new AtomicBoolean();
+      final MethodCall m;
+      _methodrunnable(MethodCall m)
+      {
+         this.m = m;
+      }
+      void reject()
+      {
+         if (!run.compareAndSet(false, true)) return;
+         if (1 != (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED)) {
+            try {
+               queueOutgoing(new Error(m, new DBus.Error.LimitsExceeded(MessageFormat.format(_("No thread is available to run {0}.{1}"), new Object[] { m.getInterface(), m.getName() }))));
+            } catch (DBusException DBe) {}
+         }
+         m.release();
       }
    }
 
@@ -350,6 +461,28 @@ public abstract class AbstractConnection
       return info;
    }
 
+   /**
+    * Set how many messages the sending thread may write together.
+    * Messages queued while a batch is being written go out together in the
+    * next one, with as few system calls as the transport allows.
+    * Default is 64.
+    * @param maxmessages The most messages to write in one batch, 1 to write them one at a time.
+    */
+   public void setSendBatchSize(int maxmessages)
+   {
+      if (maxmessages < 1) throw new IllegalArgumentException(_("Batch size must be at least 1"));
+      sendbatch = maxmessages;
+   }
+   /**
+    * Set how long the sending thread may hold a message while it waits
+    * for more to fill a batch. This trades latency for fewer system calls
+    * when many small messages are sent. Default is 0, to send immediately.
+    * @param us The most time to wait, in microseconds.
+    */
+   public void setSendDelay(long us)
+   {
+      senddelay = us;
+   }
    /**
     * If set to true the bus will not hold a strong reference to exported objects.
     * If they go out of scope they will automatically be unexported from the bus.
@@ -437,17 +570,24 @@ public abstract class AbstractConnection
    */
    /** 
     * Send a signal.
+    * The signal is not changed by sending it, so it can be read or sent again afterwards.
     * @param signal The signal to send.
     */
    public void sendSignal(DBusSignal signal)
    {
+      signal.retain();
       queueOutgoing(signal);
    }
+   /**
+    * Queue a message to be sent. The caller's reference to the 
+    * message passes to the connection, which releases it once sent.
+    */
    void queueOutgoing(Message m)
    {
       synchronized (outgoing) {
 			if (null == outgoing) return;
          outgoing.add(m);
+         load.incrementAndGet();
          logger.debug("Notifying outgoing thread");
          outgoing.notifyAll();
       }
@@ -555,17 +695,21 @@ public abstract class AbstractConnection
       // stop the main thread
       _run = false;
 
-      // unblock the sending thread.
-      synchronized (outgoing) {
-         outgoing.notifyAll();
+      // unblock the sending thread, unless it has already flushed the queue and quit.
+      EfficientQueue ogq = outgoing;
+      if (null != ogq) synchronized (ogq) {
+         ogq.notifyAll();
       }
 
+      // closing the transport wakes up the main thread if it is blocked reading.
+
       // disconnect from the trasport layer
       try {
-         if (null != transport) {
-            transport.disconnect();
-				transport = null;
-			}
+         Transport t = transport;
+         if (null != t) {
+            transport = null;
+            t.disconnect();
+         }
       } catch (IOException IOe) {
          logger.debug("IOException",IOe);
       }
@@ -710,6 +854,7 @@ public abstract class AbstractConnection
             try {
                queueOutgoing(new Error(m, new DBus.Error.UnknownObject(m.getPath()+_(" is not an object provided by this process.")))); 
             } catch (DBusException DBe) {}
+            m.release();
             return;
          }
          if (logger.isTraceEnabled()) {
@@ -724,6 +869,7 @@ public abstract class AbstractConnection
             try {
                queueOutgoing(new Error(m, new DBus.Error.UnknownMethod(MessageFormat.format(_("The method `{0}.{1}' does not exist on this object."), new Object[] { m.getInterface(), m.getName() })))); 
             } catch (DBusException DBe) {}
+            m.release();
             return;
          }
          o = eo.object.get();
@@ -736,17 +882,15 @@ public abstract class AbstractConnection
       final DBusCallInfo info = new DBusCallInfo(m);
       final AbstractConnection conn = this;
       logger.trace("Adding Runnable for method {}",meth);
-      addRunnable(new Runnable() 
+      addRunnable(new _methodrunnable(m) 
       { 
-         private boolean run = false;
-         public synchronized void run() 
-         { 
-            if (run) return;
-            run = true;
+         public void run()
+         {
+            if (!run.compareAndSet(false, true)) return;
             logger.debug("Running method "+me+" for remote call");
             try {
                Type[] ts = me.getGenericParameterTypes();
-               m.setArgs(Marshalling.deSerializeParameters(m.getParameters(), ts, conn));
+               m.setArgs(Marshalling.deSerializeParameters(m.getParameters(ts), ts, conn));
                if (logger.isTraceEnabled()) {
                    logger.trace( "Deserialised "+Arrays.deepToString(m.getParameters())+" to types "+Arrays.deepToString(ts));
                }
@@ -755,6 +899,7 @@ public abstract class AbstractConnection
                try {
                   conn.queueOutgoing(new Error(m, new DBus.Error.UnknownMethod(_("Failure in de-serializing message: ")+e))); 
                } catch (DBusException DBe) {} 
+               m.release();
                return;
             }
 
@@ -800,6 +945,8 @@ public abstract class AbstractConnection
                   conn.queueOutgoing(new Error(m, new DBusExecutionException(MessageFormat.format(_("Error Executing Method {0}.{1}: {2}"), new Object[] { m.getInterface(), m.getName(), e.getMessage() })))); 
                } catch (DBusException DBe) {}
             } 
+            // the call has been answered, so its buffers can be recycled
+            m.release();
          }
       });
    }
@@ -823,16 +970,20 @@ public abstract class AbstractConnection
          t = handledSignals.get(new SignalTuple(s.getInterface(), s.getName(), s.getPath(), s.getSource()));
          if (null != t) v.addAll(t);
       }
-      if (0 == v.size()) return;
+      if (0 == v.size()) {
+         // nothing will read it, so its buffers can be recycled
+         s.release();
+         return;
+      }
+      // handlers may keep the signal, or the real signal made from it, so it is left to the garbage collector
       final AbstractConnection conn = this;
       for (final DBusSigHandler<? extends DBusSignal> h: v) {
          logger.trace( "Adding Runnable for signal {} with handler {}",s,h);
          addRunnable(new Runnable() { 
-            private boolean run = false;
-            public synchronized void run() 
+            private final AtomicBoolean run = new AtomicBoolean();
+            public void run()
             {
-               if (run) return;
-               run = true;
+               if (!run.compareAndSet(false, true)) return;
                try {
                   DBusSignal rs;
                   if (s instanceof DBusSignal.internalsig || s.getClass().equals(DBusSignal.class))
@@ -856,8 +1007,10 @@ public abstract class AbstractConnection
       MethodCall m = null;
       if (null == pendingCalls) return;
       synchronized (pendingCalls) {
-         if (pendingCalls.contains(err.getReplySerial()))
+         if (pendingCalls.contains(err.getReplySerial())) {
             m = pendingCalls.remove(err.getReplySerial());
+            load.decrementAndGet();
+         }
       }
       if (null != m) {
          m.setReply(err);
@@ -873,11 +1026,10 @@ public abstract class AbstractConnection
             final CallbackHandler fcbh = cbh;
              logger.trace( "Adding Error Runnable with callback handler {}",fcbh);
             addRunnable(new Runnable() { 
-               private boolean run = false;
-               public synchronized void run() 
+               private final AtomicBoolean run = new AtomicBoolean();
+               public void run()
                {
-                  if (run) return;
-                  run = true;
+                  if (!run.compareAndSet(false, true)) return;
                   try {
                      logger.trace("Running Error Callback for "+err);
                      DBusCallInfo info = new DBusCallInfo(err);
@@ -892,6 +1044,8 @@ public abstract class AbstractConnection
 
                   } catch (Exception e) {
                       logger.debug("exception", e);
+                  } finally {
+                     err.release();
                   }
                }
             });
@@ -909,8 +1063,10 @@ public abstract class AbstractConnection
       MethodCall m = null;
       if (null == pendingCalls) return;
       synchronized (pendingCalls) {
-         if (pendingCalls.contains(mr.getReplySerial()))
+         if (pendingCalls.contains(mr.getReplySerial())) {
             m = pendingCalls.remove(mr.getReplySerial());
+            load.decrementAndGet();
+         }
       }
       if (null != m) {
          m.setReply(mr);
@@ -928,11 +1084,10 @@ public abstract class AbstractConnection
             final DBusAsyncReply fasr = asr;
              logger.trace("Adding Runnable for method {}  with callback handler {}",fasr.getMethod(),fcbh);
             addRunnable(new Runnable() { 
-               private boolean run = false;
-               public synchronized void run() 
+               private final AtomicBoolean run = new AtomicBoolean();
+               public void run()
                {
-                  if (run) return;
-                  run = true;
+                  if (!run.compareAndSet(false, true)) return;
                   try {
                      logger.debug("Running Callback for "+mr);
                      DBusCallInfo info = new DBusCallInfo(mr);
@@ -940,73 +1095,135 @@ public abstract class AbstractConnection
                         infomap.put(Thread.currentThread(), info);
                      }
 
-                     fcbh.handle(RemoteInvocationHandler.convertRV(mr.getSig(), mr.getParameters(), fasr.getMethod(), fasr.getConnection()));
+                     fcbh.handle(RemoteInvocationHandler.convertRV(mr.getSig(), mr.getParameters(new Type[] { fasr.getMethod().getGenericReturnType() }), fasr.getMethod(), fasr.getConnection()));
                      synchronized (infomap) {
                         infomap.remove(Thread.currentThread());
                      }
 
                   } catch (Exception e) {
                      logger.debug("exception: ", e);
+                  } finally {
+                     mr.release();
                   }
                }
             });
          }
          
-      } else
+      } else {
          try {
             queueOutgoing(new Error(mr, new DBusExecutionException(_("Spurious reply. No message with the given serial id was awaiting a reply.")))); 
          } catch (DBusException DBe) {}
+         // nothing will read it, so recycle it and close any file descriptors it brought
+         mr.release();
+      }
    }
    protected void sendMessage(Message m)
    {
+      // disconnect drops the transport without waiting for this thread
+      Transport t = transport;
+      MessageWriter mout = null == t ? null : t.mout;
       try {
-			if (!connected) throw new NotConnected(_("Disconnected"));
-         if (m instanceof DBusSignal) 
-            ((DBusSignal) m).appendbody(this);
-
-         if (m instanceof MethodCall) {
-            if (0 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED))
-               if (null == pendingCalls) 
-                  ((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
-               else synchronized (pendingCalls) {
-                  pendingCalls.put(m.getSerial(),(MethodCall) m);
-               }
+         prepareMessage(m, t);
+         mout.writeMessage(m);
+      } catch (Exception e) {
+         failMessage(m, e, mout);
+         if (e instanceof IOException) disconnect();
+      } finally {
+         if (null != m) m.release();
+      }
+   }
+   /**
+    * Send several messages from the outbound queue in one batch.
+    * Messages which cannot be sent are dealt with as in sendMessage and the
+    * rest are written together.
+    */
+   private void sendMessages(Message[] ms, int n)
+   {
+      Transport t = transport;
+      MessageWriter mout = null == t ? null : t.mout;
+      int k = 0;
+      for (int i = 0; i < n; i++) {
+         try {
+            prepareMessage(ms[i], t);
+            ms[k++] = ms[i];
+         } catch (Exception e) {
+            failMessage(ms[i], e, mout);
+            ms[i].release();
          }
-
-         transport.mout.writeMessage(m);
-         
+      }
+      if (0 == k) return;
+      try {
+         mout.writeMessages(ms, k);
       } catch (Exception e) {
-         logger.debug("exception: ", e);
-         if (m instanceof MethodCall && e instanceof NotConnected) 
-            try {
-					((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
-            } catch (DBusException DBe) {}
-         if (m instanceof MethodCall && e instanceof DBusExecutionException) 
-            try {
-               ((MethodCall)m).setReply(new Error(m, e));
-            } catch (DBusException DBe) {}
-         else if (m instanceof MethodCall)
-            try {
-               logger.debug("Setting reply to {} as an error",m);
-               ((MethodCall)m).setReply(new Error(m, new DBusExecutionException(_("Message Failed to Send: ")+e.getMessage())));
-            } catch (DBusException DBe) {}
-         else if (m instanceof MethodReturn)
-            try {
-               transport.mout.writeMessage(new Error(m, e));
-            } catch(IOException IOe) {
-                logger.debug("IOException: ",IOe);
-            } catch(DBusException IOe) {
-                logger.debug("Dbus exception: ",IOe);
-            }
+         // the messages written before it failed have gone, and must not be answered again
+         for (int i = mout.written; i < k; i++)
+            failMessage(ms[i], e, mout);
          if (e instanceof IOException) disconnect();
+      } finally {
+         for (int i = 0; i < k; i++)
+            ms[i].release();
+      }
+   }
+   /**
+    * Finish a message and register it as awaiting a reply, before it is written.
+    */
+   private void prepareMessage(Message m, Transport t) throws DBusException
+   {
+      if (!connected || null == t) throw new NotConnected(_("Disconnected"));
+      if (m instanceof DBusSignal) 
+         ((DBusSignal) m).appendbody(this);
+
+      if (null != m.getFileDescriptors() && !t.isFileDescriptorSupported())
+         throw new MarshallingException(_("File descriptors cannot be passed over this connection"));
+
+      if (m instanceof MethodCall) {
+         if (0 == (m.getFlags() & Message.Flags.NO_REPLY_EXPECTED))
+            if (null == pendingCalls) 
+               ((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
+            else synchronized (pendingCalls) {
+               pendingCalls.put(m.getSerial(),(MethodCall) m);
+               load.incrementAndGet();
+            }
       }
    }
+   /**
+    * Deal with a message which could not be sent: method calls get an error
+    * as their reply and method returns are answered with an error instead.
+    * @param mout The writer the message was for, or null if the transport had gone.
+    */
+   private void failMessage(Message m, Exception e, MessageWriter mout)
+   {
+      logger.debug("exception: ", e);
+      if (m instanceof MethodCall && e instanceof NotConnected) 
+         try {
+            ((MethodCall) m).setReply(new Error("org.freedesktop.DBus.Local", "org.freedesktop.DBus.Local.Disconnected", 0, "s", new Object[] { _("Disconnected") }));
+         } catch (DBusException DBe) {}
+      if (m instanceof MethodCall && e instanceof DBusExecutionException) 
+         try {
+            ((MethodCall)m).setReply(new Error(m, e));
+         } catch (DBusException DBe) {}
+      else if (m instanceof MethodCall)
+         try {
+            logger.debug("Setting reply to {} as an error",m);
+            ((MethodCall)m).setReply(new Error(m, new DBusExecutionException(_("Message Failed to Send: ")+e.getMessage())));
+         } catch (DBusException DBe) {}
+      else if (m instanceof MethodReturn && null != mout)
+         try {
+            Message err = new Error(m, e);
+            mout.writeMessage(err);
+         } catch(IOException IOe) {
+             logger.debug("IOException: ",IOe);
+         } catch(DBusException IOe) {
+             logger.debug("Dbus exception: ",IOe);
+         }
+   }
    private Message readIncoming() throws DBusException 
    {
-      if (!connected) throw new NotConnected(_("No transport present"));
+      Transport t = transport;
+      if (!connected || null == t) throw new NotConnected(_("No transport present"));
       Message m = null;
       try {
-         m = transport.min.readMessage();
+         m = t.min.readMessage();
       } catch (IOException IOe) {
          throw new FatalDBusException(IOe.getMessage(),IOe);
       }
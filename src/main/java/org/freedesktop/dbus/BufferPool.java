@@ -0,0 +1,82 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+/**
+ * Provides a pool of byte arrays for message buffers, so that
+ * they can be recycled rather than garbage collected.
+ * Arrays are handed out in power-of-two size classes; requests
+ * larger than the largest class are allocated and dropped as normal.
+ */
+final class BufferPool
+{
+   /** The smallest size class is 2^MIN_SHIFT bytes. */
+   private static final int MIN_SHIFT = 6;
+   /** The largest size class is 2^MAX_SHIFT bytes. */
+   private static final int MAX_SHIFT = 20;
+   /** Upper bound on the bytes kept free in each size class. */
+   private static final int CLASS_BYTES = 1 << 22;
+   /** Upper bound on the number of arrays kept free in each size class. */
+   private static final int CLASS_COUNT = 256;
+
+   private static final byte[][][] free = new byte[MAX_SHIFT-MIN_SHIFT+1][][];
+   private static final int[] used = new int[MAX_SHIFT-MIN_SHIFT+1];
+   static {
+      for (int i = 0; i < free.length; i++)
+         free[i] = new byte[Math.max(2, Math.min(CLASS_COUNT, CLASS_BYTES >> (i+MIN_SHIFT)))][];
+   }
+
+   private BufferPool() {}
+
+   /**
+    * Returns the size class an array of the given length falls in, or -1 if it is too big.
+    */
+   private static int sizeClass(int size)
+   {
+      if (size <= (1 << MIN_SHIFT)) return 0;
+      int shift = 32 - Integer.numberOfLeadingZeros(size-1);
+      if (shift > MAX_SHIFT) return -1;
+      return shift - MIN_SHIFT;
+   }
+   /**
+    * Get an array of at least size bytes.
+    * The contents of the array are undefined.
+    */
+   static byte[] take(int size)
+   {
+      int c = sizeClass(size);
+      if (c < 0) return new byte[size];
+      byte[][] f = free[c];
+      synchronized (f) {
+         if (used[c] > 0) {
+            byte[] buf = f[--used[c]];
+            f[used[c]] = null;
+            return buf;
+         }
+      }
+      return new byte[1 << (c+MIN_SHIFT)];
+   }
+   /**
+    * Return an array to the pool. The caller must not use it afterwards.
+    * Arrays which are not the exact length of a size class are ignored.
+    */
+   static void give(byte[] buf)
+   {
+      if (null == buf) return;
+      int c = sizeClass(buf.length);
+      if (c < 0 || buf.length != (1 << (c+MIN_SHIFT))) return;
+      byte[][] f = free[c];
+      synchronized (f) {
+         if (used[c] < f.length)
+            f[used[c]++] = buf;
+      }
+   }
+}
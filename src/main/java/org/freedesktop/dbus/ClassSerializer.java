@@ -0,0 +1,229 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Marshalling metadata for Struct, Tuple and DBusSerializable classes.
+ * The fields, constructors and deserialize method of each class are
+ * looked up once and bound to method handles, so converting values
+ * does not go through reflection every time.
+ */
+final class ClassSerializer
+{
+   private static final Logger logger = LoggerFactory.getLogger(ClassSerializer.class);
+
+   private static final ConcurrentHashMap<Class<?>, ClassSerializer> cache = new ConcurrentHashMap<Class<?>, ClassSerializer>();
+   private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+   /** Primitive types in the order they can be widened to one another. */
+   private static final List<Class<?>> widening = Arrays.<Class<?>>asList(Byte.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE, Double.TYPE);
+
+   /**
+    * Returns the serializer for a class, creating it on first use.
+    */
+   static ClassSerializer get(Class<?> c)
+   {
+      ClassSerializer rv = cache.get(c);
+      if (null == rv) {
+         rv = new ClassSerializer(c);
+         ClassSerializer old = cache.putIfAbsent(c, rv);
+         if (null != old) rv = old;
+      }
+      return rv;
+   }
+
+   /** The generic types of the fields annotated with Position, in order. */
+   final Type[] types;
+   /** Reads each Position field, as (Object)Object. */
+   private final MethodHandle[] getters;
+   private final Class<?>[][] ctorparams;
+   /** Each constructor, as (Object[])Object. */
+   private final MethodHandle[] ctors;
+   /** The parameter types of the deserialize method, or null if there is none. */
+   final Class<?>[] deserializeParams;
+   /** The generic parameter types of the deserialize method, or null if there is none. */
+   final Type[] deserializeTypes;
+   /** The deserialize method, as (Object,Object[])Object. */
+   private final MethodHandle deserialize;
+   /** The zero-argument constructor, as ()Object. */
+   private final MethodHandle create;
+   private final String name;
+
+   private ClassSerializer(Class<?> c)
+   {
+      name = c.getName();
+      int n = 0;
+      Field[] fs = c.getDeclaredFields();
+      for (Field f: fs)
+         if (null != f.getAnnotation(Position.class)) n++;
+      types = new Type[n];
+      getters = new MethodHandle[n];
+      for (Field f: fs) {
+         Position p = f.getAnnotation(Position.class);
+         if (null == p || p.value() >= n) continue;
+         types[p.value()] = f.getGenericType();
+         getters[p.value()] = getter(f);
+      }
+
+      List<Class<?>[]> params = new ArrayList<Class<?>[]>();
+      List<MethodHandle> handles = new ArrayList<MethodHandle>();
+      MethodHandle nullary = null;
+      for (Constructor<?> con: c.getDeclaredConstructors()) {
+         Class<?>[] ps = con.getParameterTypes();
+         try {
+            accessible(con);
+            MethodHandle mh = lookup.unreflectConstructor(con).asFixedArity();
+            if (0 == ps.length)
+               nullary = mh.asType(MethodType.methodType(Object.class));
+            params.add(ps);
+            handles.add(mh.asType(MethodType.genericMethodType(ps.length)).asSpreader(Object[].class, ps.length));
+         } catch (IllegalAccessException IAe) {
+            logger.debug("Cannot access constructor {}: {}", con, IAe.getMessage());
+         }
+      }
+      ctorparams = params.toArray(new Class<?>[params.size()][]);
+      ctors = handles.toArray(new MethodHandle[handles.size()]);
+      create = nullary;
+
+      Method des = null;
+      if (DBusSerializable.class.isAssignableFrom(c))
+         for (Method m: c.getDeclaredMethods())
+            if (m.getName().equals("deserialize")) {
+               des = m;
+               break;
+            }
+      MethodHandle dh = null;
+      if (null != des) try {
+         accessible(des);
+         int len = des.getParameterTypes().length;
+         dh = lookup.unreflect(des).asFixedArity()
+            .asType(MethodType.genericMethodType(len+1))
+            .asSpreader(Object[].class, len);
+      } catch (IllegalAccessException IAe) {
+         logger.debug("Cannot access method {}: {}", des, IAe.getMessage());
+         des = null;
+      }
+      deserialize = dh;
+      deserializeParams = null == des ? null : des.getParameterTypes();
+      deserializeTypes = null == des ? null : des.getGenericParameterTypes();
+   }
+   private static void accessible(AccessibleObject o)
+   {
+      try {
+         o.setAccessible(true);
+      } catch (RuntimeException Re) {
+         // fall back to normal access checks
+         logger.trace("setAccessible failed: {}", Re.getMessage());
+      }
+   }
+   private static MethodHandle getter(Field f)
+   {
+      try {
+         accessible(f);
+         MethodHandle mh = lookup.unreflectGetter(f);
+         if (Modifier.isStatic(f.getModifiers()))
+            mh = MethodHandles.dropArguments(mh, 0, Object.class);
+         return mh.asType(MethodType.methodType(Object.class, Object.class));
+      } catch (IllegalAccessException IAe) {
+         logger.debug("Cannot access field {}: {}", f, IAe.getMessage());
+         return null;
+      }
+   }
+   /**
+    * Whether a value can be passed as a parameter of the given type.
+    */
+   private static boolean accepts(Class<?> p, Object arg)
+   {
+      if (!p.isPrimitive()) return null == arg || p.isInstance(arg);
+      if (null == arg) return false;
+      Class<?> a = ArrayFrob.wrapperToPrimitive.get(arg.getClass());
+      if (null == a) return false;
+      if (a.equals(p)) return true;
+      int from = widening.indexOf(a);
+      return from >= 0 && from < widening.indexOf(p);
+   }
+
+   /**
+    * Returns the values of the Position fields of an object, in order.
+    */
+   Object[] getParameters(Object o)
+   {
+      Object[] rv = new Object[getters.length];
+      for (int i = 0; i < getters.length; i++) {
+         if (null == getters[i]) continue;
+         try {
+            rv[i] = (Object) getters[i].invokeExact(o);
+         } catch (java.lang.Error e) {
+            throw e;
+         } catch (Throwable t) {
+            logger.debug("exception", t);
+         }
+      }
+      return rv;
+   }
+   /**
+    * Create an instance using the first constructor which accepts the given values.
+    * @return The new instance, or null if no constructor accepts them.
+    * @throws InvocationTargetException If the constructor throws.
+    */
+   Object construct(Object[] args) throws InvocationTargetException
+   {
+      for (int i = 0; i < ctors.length; i++) {
+         Class<?>[] ps = ctorparams[i];
+         if (ps.length != args.length) continue;
+         boolean match = true;
+         for (int j = 0; match && j < ps.length; j++)
+            match = accepts(ps[j], args[j]);
+         if (!match) continue;
+         try {
+            return (Object) ctors[i].invokeExact(args);
+         } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+         }
+      }
+      return null;
+   }
+   /**
+    * Create a DBusSerializable with its zero-argument constructor, then call its deserialize method.
+    * @param args The deserialized values to pass to deserialize.
+    * @return The new instance.
+    * @throws InstantiationException If there is no accessible zero-argument constructor.
+    * @throws InvocationTargetException If the constructor or deserialize throws.
+    */
+   Object deserialize(Object[] args) throws InstantiationException, InvocationTargetException
+   {
+      if (null == create) throw new InstantiationException(name);
+      try {
+         Object o = (Object) create.invokeExact();
+         Object ignored = (Object) deserialize.invokeExact(o, args);
+         return o;
+      } catch (Throwable t) {
+         throw new InvocationTargetException(t);
+      }
+   }
+}
@@ -11,11 +11,7 @@
 package org.freedesktop.dbus;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
-import java.lang.reflect.Field;
-import java.lang.reflect.Type;
 
 /**
  * This class is the super class of both Structs and Tuples 
@@ -23,45 +19,16 @@ import java.lang.reflect.Type;
  */
 abstract class Container
 {
-   private static Map<Type,Type[]> typecache = new HashMap<Type,Type[]>();
-   static void putTypeCache(Type k, Type[] v)
-   {
-      typecache.put(k, v);
-   }
-   static Type[] getTypeCache(Type k)
-   {
-      return typecache.get(k);
-   }
    private Object[] parameters = null;
    public Container() {}
-   private void setup()
-   {
-      Field[] fs = getClass().getDeclaredFields();
-      Object[] args = new Object[fs.length];
-
-      int diff = 0;
-      for (Field f : fs) {
-         Position p = f.getAnnotation(Position.class);
-         if (null == p) {
-            diff++;
-            continue;
-         }
-         try {
-            args[p.value()] = f.get(this);
-         } catch (IllegalAccessException IAe) {}
-      }
-         
-      this.parameters = new Object[args.length - diff];
-      System.arraycopy(args, 0, parameters, 0, parameters.length);
-   }
    /**
     * Returns the struct contents in order.
     * @throws DBusException If there is  a problem doing this.
     */
    public final Object[] getParameters()
    {
-      if (null != parameters) return parameters;
-      setup();
+      if (null == parameters)
+         parameters = ClassSerializer.get(getClass()).getParameters(this);
       return parameters;
    }
    /** Returns this struct as a string. */
@@ -69,11 +36,10 @@ abstract class Container
    public final String toString()
    {
       String s = getClass().getName()+"<";
-      if (null == parameters)
-         setup();
-      if (0 == parameters.length) 
+      Object[] ps = getParameters();
+      if (0 == ps.length) 
          return s+">";
-      for (Object o: parameters)
+      for (Object o: ps)
          s += o+", ";
       return s.replaceAll(", $", ">");
    }
@@ -17,6 +17,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -28,7 +29,7 @@ import static org.freedesktop.dbus.Gettext._;
  */
 public class DBusAsyncReply<ReturnType>
 {
-    private Logger logger= LoggerFactory.getLogger(DBusAsyncReply.class);
+    private static final Logger logger= LoggerFactory.getLogger(DBusAsyncReply.class);
 
    /**
     * Check if any of a set of asynchronous calls have had a reply.
@@ -64,7 +65,7 @@ public class DBusAsyncReply<ReturnType>
             error = ((Error) m).getException();
          else if (m instanceof MethodReturn) {
             try {
-               rval = (ReturnType) RemoteInvocationHandler.convertRV(m.getSig(), m.getParameters(), me, conn);
+               rval = (ReturnType) RemoteInvocationHandler.convertRV(m.getSig(), m.getParameters(new Type[] { me.getGenericReturnType() }), me, conn);
             } catch (DBusExecutionException DBEe) {
                error = DBEe;
             } catch (DBusException DBe) {
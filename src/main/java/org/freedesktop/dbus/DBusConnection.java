@@ -179,8 +179,10 @@ public class DBusConnection extends AbstractConnection
                   long[] set = pendingCalls.getKeys();
                   for (long l: set) if (-1 != l) {
                      MethodCall m = pendingCalls.remove(l);
-                     if (null != m)
+                     if (null != m) {
+                        load.decrementAndGet();
                         m.setReply(err);
+                     }
                   }
                }
                synchronized (pendingErrors) {
@@ -212,7 +214,14 @@ public class DBusConnection extends AbstractConnection
    private DBus _dbus;
 
    
-   private static final DBusIntrospectionParser introspectionParser = new DBusIntrospectionParser(); 
+   /**
+    * Holds the introspection parser, which is only set up the first time a
+    * dynamic proxy is made as finding an XML parser slows down startup.
+    */
+   private static class Introspection
+   {
+      static final DBusIntrospectionParser parser = new DBusIntrospectionParser();
+   }
    
    private static DBus2JavaMappingStrategy dbus2javaMapping = new DefaultDBus2JavaMappingStrategy();
    
@@ -249,6 +258,40 @@ public class DBusConnection extends AbstractConnection
     * @throws DBusException  If there is a problem connecting to the Bus.
     */
    public static DBusConnection getConnection(int bustype) throws DBusException
+   {
+      synchronized (conn) {
+         String s = getBusAddress(bustype);
+         DBusConnection c = conn.get(s);
+         logger.trace("Getting bus connection for {}:{}",s,c);
+         if (null != c) {
+            synchronized (c._reflock) { c._refcount++; }
+            return c;
+         }
+         else {
+            logger.debug("Creating new bus connection to: {}",s);
+            c = new DBusConnection(s);
+            conn.put(s, c);
+            return c;
+         }
+      }
+   }
+   /**
+    * Make a new connection to the BUS which is not shared with getConnection.
+    * It is closed by its first call to disconnect.
+    * @param address The address of the bus to connect to
+    * @throws DBusException  If there is a problem connecting to the Bus.
+    */
+   static DBusConnection newConnection(String address) throws DBusException
+   {
+      logger.debug("Creating new unshared bus connection to: {}",address);
+      return new DBusConnection(address);
+   }
+   /**
+    * Find the address of the SYSTEM or SESSION bus.
+    * @param bustype The Bus to find.
+    * @throws DBusException  If the address cannot be found.
+    */
+   static String getBusAddress(int bustype) throws DBusException
    {
       synchronized (conn) {
          String s = null;
@@ -295,18 +338,7 @@ public class DBusConnection extends AbstractConnection
             default:
                throw new DBusException(_("Invalid Bus Type: ")+bustype);
          }
-         DBusConnection c = conn.get(s);
-         logger.trace("Getting bus connection for {}:{}",s,c);
-         if (null != c) {
-            synchronized (c._reflock) { c._refcount++; }
-            return c;
-         }
-         else {
-            logger.debug("Creating new bus connection to: {}",s);
-            c = new DBusConnection(s);
-            conn.put(s, c);
-            return c;
-         }
+         return s;
       }
    }
    @SuppressWarnings("unchecked")
@@ -320,7 +352,7 @@ public class DBusConnection extends AbstractConnection
       }
    
       try {
-         transport = new Transport(addr, AbstractConnection.TIMEOUT);
+         transport = new Transport(addr);
 			connected = true;
       } catch (IOException IOe) {
          logger.debug("IOException: ", IOe);
@@ -360,7 +392,7 @@ public class DBusConnection extends AbstractConnection
          String data = intro.Introspect();
           logger.trace("Got introspection data: {}",data);
           
-          List<DBusIntrospectMember> ifaces = introspectionParser.parseIntrospectionData(data);
+          List<DBusIntrospectMember> ifaces = Introspection.parser.parseIntrospectionData(data);
           
           List<Class<? extends DBusInterface>> ifcs = new LinkedList<Class<? extends DBusInterface>>();
           
@@ -789,8 +821,10 @@ public class DBusConnection extends AbstractConnection
                      long[] set = pendingCalls.getKeys();
                      for (long l: set) if (-1 != l) {
                         MethodCall m = pendingCalls.remove(l);
-                        if (null != m)
+                        if (null != m) {
+                           load.decrementAndGet();
                            m.setReply(err);
+                        }
                      }
                      pendingCalls = null; 
                   }
@@ -799,7 +833,7 @@ public class DBusConnection extends AbstractConnection
                   }
                } catch (DBusException DBe) {}
 
-               conn.remove(addr);
+               if (this == conn.get(addr)) conn.remove(addr);
                super.disconnect();
             }
          }
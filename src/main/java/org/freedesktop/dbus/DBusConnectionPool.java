@@ -0,0 +1,284 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * A set of independent connections to one bus behind a single facade.
+ * <p>
+ * A DBusConnection sends and receives everything on one socket with one
+ * sender and one reader thread, which a busy client can saturate. A pool
+ * opens several connections to the same bus, each with its own threads,
+ * and spreads method calls made through its remote objects over them.
+ * </p>
+ * <p>
+ * Each member connection has its own unique name on the bus. So that
+ * signals, exported objects and bus names behave as they do on a single
+ * connection, they all go through one member, the primary connection.
+ * Calls on one remote object are not ordered with respect to each other
+ * when they are made from several threads.
+ * </p>
+ */
+public class DBusConnectionPool
+{
+   private static final Logger logger = LoggerFactory.getLogger(DBusConnectionPool.class);
+
+   /** How calls are spread over the connections of a pool. */
+   public enum Balance
+   {
+      /** Use each connection in turn. */
+      ROUND_ROBIN,
+      /** Use the connection with the fewest messages waiting to be sent and calls waiting for replies. */
+      LEAST_LOADED
+   }
+
+   private final DBusConnection[] members;
+   private final AtomicInteger next = new AtomicInteger();
+   private final Balance balance;
+
+   /**
+    * Connect a pool to the SYSTEM or SESSION bus.
+    * @param bustype The Bus to connect to.
+    * @param size The number of connections to make.
+    * @param balance How calls are spread over the connections.
+    * @see DBusConnection#SYSTEM
+    * @see DBusConnection#SESSION
+    * @throws DBusException  If there is a problem connecting to the Bus.
+    */
+   public DBusConnectionPool(int bustype, int size, Balance balance) throws DBusException
+   {
+      this(DBusConnection.getBusAddress(bustype), size, balance);
+   }
+   /**
+    * Connect a pool to a bus.
+    * @param address The address of the bus to connect to.
+    * @param size The number of connections to make.
+    * @param balance How calls are spread over the connections.
+    * @throws DBusException  If there is a problem connecting to the Bus.
+    */
+   public DBusConnectionPool(String address, int size, Balance balance) throws DBusException
+   {
+      if (size < 1) throw new DBusException(_("A connection pool needs at least one connection"));
+      this.balance = null == balance ? Balance.ROUND_ROBIN : balance;
+      members = new DBusConnection[size];
+      try {
+         for (int i = 0; i < size; i++)
+            members[i] = DBusConnection.newConnection(address);
+      } catch (DBusException DBe) {
+         for (DBusConnection c: members)
+            if (null != c) c.disconnect();
+         throw DBe;
+      }
+      logger.debug("Connected pool of {} to {}", size, address);
+   }
+
+   /** Returns the number of connections in the pool. */
+   public int size() { return members.length; }
+   /**
+    * Returns the connection which signals, exported objects and bus names use.
+    */
+   public DBusConnection getPrimaryConnection() { return members[0]; }
+   /**
+    * Returns the connection the next call should be made on.
+    */
+   public DBusConnection getConnection() { return members[choose()]; }
+
+   private int choose()
+   {
+      if (1 == members.length) return 0;
+      if (Balance.LEAST_LOADED == balance) {
+         int best = 0, min = Integer.MAX_VALUE;
+         for (int i = 0; i < members.length; i++) {
+            int load = members[i].load.get();
+            if (load < min) { min = load; best = i; }
+         }
+         return best;
+      }
+      return (next.getAndIncrement() & Integer.MAX_VALUE) % members.length;
+   }
+
+   /**
+    * Return a reference to a remote object whose method calls are spread
+    * over the connections of the pool.
+    * @param busname The bus name to connect to. Usually a well known bus name name in dot-notation (such as "org.freedesktop.local")
+    * or may be a DBus address such as ":1-16".
+    * @param objectpath The path on which the process is exporting the object.
+    * @param type The interface they are exporting it on. This type must have the same full class name and exposed method signatures
+    * as the interface the remote object is exporting.
+    * @return A reference to a remote object.
+    * @throws ClassCastException If type is not a sub-type of DBusInterface
+    * @throws DBusException If busname or objectpath are incorrectly formatted or type is not in a package.
+    */
+   @SuppressWarnings("unchecked")
+   public <I extends DBusInterface> I getRemoteObject(String busname, String objectpath, Class<I> type) throws DBusException
+   {
+      DBusInterface[] remotes = new DBusInterface[members.length];
+      for (int i = 0; i < members.length; i++)
+         remotes[i] = members[i].getRemoteObject(busname, objectpath, type);
+      return (I) Proxy.newProxyInstance(type.getClassLoader(),
+            new Class<?>[] { type }, new PooledInvocationHandler(remotes));
+   }
+
+   /**
+    * Call a method asynchronously on a remote object from getRemoteObject.
+    * @param object The remote object on which to call the method.
+    * @param m The name of the method on the interface to call.
+    * @param parameters The parameters to call the method with.
+    * @return A handle to the call.
+    */
+   public DBusAsyncReply<?> callMethodAsync(DBusInterface object, String m, Object... parameters)
+   {
+      int i = choose();
+      return members[i].callMethodAsync(unwrap(object, i), m, parameters);
+   }
+   /**
+    * Call a method on a remote object from getRemoteObject, with a callback for the reply.
+    * @param object The remote object on which to call the method.
+    * @param m The name of the method on the interface to call.
+    * @param callback The callback handler.
+    * @param parameters The parameters to call the method with.
+    */
+   public <A> void callWithCallback(DBusInterface object, String m, CallbackHandler<A> callback, Object... parameters)
+   {
+      int i = choose();
+      members[i].callWithCallback(unwrap(object, i), m, callback, parameters);
+   }
+   private DBusInterface unwrap(DBusInterface object, int i)
+   {
+      if (Proxy.isProxyClass(object.getClass())) {
+         InvocationHandler h = Proxy.getInvocationHandler(object);
+         if (h instanceof PooledInvocationHandler)
+            return ((PooledInvocationHandler) h).remotes[i];
+      }
+      return object;
+   }
+
+   /**
+    * Add a Signal Handler on the primary connection.
+    * @see DBusConnection#addSigHandler(Class, String, DBusSigHandler)
+    */
+   public <T extends DBusSignal> void addSigHandler(Class<T> type, DBusSigHandler<T> handler) throws DBusException
+   {
+      members[0].addSigHandler(type, handler);
+   }
+   /**
+    * Add a Signal Handler on the primary connection.
+    * @see DBusConnection#addSigHandler(Class, String, DBusSigHandler)
+    */
+   public <T extends DBusSignal> void addSigHandler(Class<T> type, String source, DBusSigHandler<T> handler) throws DBusException
+   {
+      members[0].addSigHandler(type, source, handler);
+   }
+   /**
+    * Remove a Signal Handler from the primary connection.
+    * @see DBusConnection#removeSigHandler(Class, String, DBusSigHandler)
+    */
+   public <T extends DBusSignal> void removeSigHandler(Class<T> type, DBusSigHandler<T> handler) throws DBusException
+   {
+      members[0].removeSigHandler(type, handler);
+   }
+   /**
+    * Remove a Signal Handler from the primary connection.
+    * @see DBusConnection#removeSigHandler(Class, String, DBusSigHandler)
+    */
+   public <T extends DBusSignal> void removeSigHandler(Class<T> type, String source, DBusSigHandler<T> handler) throws DBusException
+   {
+      members[0].removeSigHandler(type, source, handler);
+   }
+   /**
+    * Send a signal from the primary connection.
+    */
+   public void sendSignal(DBusSignal signal)
+   {
+      members[0].sendSignal(signal);
+   }
+   /**
+    * Export an object on the primary connection.
+    * @see AbstractConnection#exportObject(String, DBusInterface)
+    */
+   public void exportObject(String objectpath, DBusInterface object) throws DBusException
+   {
+      members[0].exportObject(objectpath, object);
+   }
+   /**
+    * Stop exporting an object from the primary connection.
+    */
+   public void unExportObject(String objectpath)
+   {
+      members[0].unExportObject(objectpath);
+   }
+   /**
+    * Request a bus name for the primary connection.
+    * @see DBusConnection#requestBusName(String)
+    */
+   public void requestBusName(String busname) throws DBusException
+   {
+      members[0].requestBusName(busname);
+   }
+   /**
+    * Release a bus name held by the primary connection.
+    */
+   public void releaseBusName(String busname) throws DBusException
+   {
+      members[0].releaseBusName(busname);
+   }
+   /**
+    * Returns the unique name of the primary connection.
+    */
+   public String getUniqueName()
+   {
+      return members[0].getUniqueName();
+   }
+
+   /**
+    * Disconnect all the connections of the pool.
+    */
+   public void disconnect()
+   {
+      for (DBusConnection c: members)
+         c.disconnect();
+   }
+
+   /** Passes each call on to the remote object of the connection chosen for it. */
+   private class PooledInvocationHandler implements InvocationHandler
+   {
+      final DBusInterface[] remotes;
+      PooledInvocationHandler(DBusInterface[] remotes)
+      {
+         this.remotes = remotes;
+      }
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+         if (method.getDeclaringClass().equals(Object.class)) {
+            if (method.getName().equals("equals"))
+               return null != args && proxy == args[0];
+            if (method.getName().equals("hashCode"))
+               return System.identityHashCode(proxy);
+         }
+         try {
+            return method.invoke(remotes[choose()], args);
+         } catch (InvocationTargetException ITe) {
+            throw ITe.getCause();
+         }
+      }
+   }
+}
@@ -20,16 +20,17 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.GenericDeclaration;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
+import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.freedesktop.dbus.Gettext._;
 
 public class DBusSignal extends Message
 {
-   private final Logger logger= LoggerFactory.getLogger(DBus.class);
+   private static final Logger logger= LoggerFactory.getLogger(DBus.class);
 
    DBusSignal() { }
    public DBusSignal(String source, String path, String iface, String member, String sig, Object... args) throws DBusException
@@ -38,34 +39,43 @@ public class DBusSignal extends Message
 
       if (null == path || null == member || null == iface)
          throw new MessageFormatException(_("Must specify object path, interface and signal name to Signals."));
-      headers.put(Message.HeaderField.PATH,path);
-      headers.put(Message.HeaderField.MEMBER,member);
-      headers.put(Message.HeaderField.INTERFACE,iface);
 
-      Vector<Object> hargs = new Vector<Object>();
-      hargs.add(new Object[] { Message.HeaderField.PATH, new Object[] { ArgumentType.OBJECT_PATH_STRING, path } });
-      hargs.add(new Object[] { Message.HeaderField.INTERFACE, new Object[] { ArgumentType.STRING_STRING, iface } });
-      hargs.add(new Object[] { Message.HeaderField.MEMBER, new Object[] { ArgumentType.STRING_STRING, member } });
-      
-      if (null != source) {
-         headers.put(Message.HeaderField.SENDER,source);
-         hargs.add(new Object[] { Message.HeaderField.SENDER, new Object[] { ArgumentType.STRING_STRING, source } });
-      }
- 
+      blen = reserveint(4);
+      int hlen = beginHeaderFields();
+      appendHeaderField(Message.HeaderField.PATH, ArgumentType.OBJECT_PATH, path);
+      appendHeaderField(Message.HeaderField.INTERFACE, ArgumentType.STRING, iface);
+      appendHeaderField(Message.HeaderField.MEMBER, ArgumentType.STRING, member);
+      if (null != source)
+         appendHeaderField(Message.HeaderField.SENDER, ArgumentType.STRING, source);
       if (null != sig) {
-         hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
-         headers.put(Message.HeaderField.SIGNATURE,sig);
+         appendHeaderField(Message.HeaderField.SIGNATURE, ArgumentType.SIGNATURE, sig);
          setArgs(args);
       }
-
-      blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", ++serial, hargs.toArray());
-      pad((byte)8);
+      endHeaderFields(hlen);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
+      bodydone = true;
+   }
+   /**
+    * Create a signal from a template, which only marshals the body.
+    */
+   DBusSignal(MessageTemplate t, Object... args) throws DBusException
+   {
+      super(Message.Endian.BIG, Message.MessageType.SIGNAL, (byte) 0, t.getBufferSize());
+
+      blen = appendHeader(t);
+      String sig = t.getSig();
+      long c = bytecounter;
+      if (null != sig) {
+         setArgs(args);
+         append(sig, args);
+      }
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
+      t.setBufferSize(getWireLength());
       bodydone = true;
    }
    static class internalsig extends DBusSignal
@@ -80,9 +90,13 @@ public class DBusSignal extends Message
    private static Map<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>> conCache = new HashMap<Class<? extends DBusSignal>, Constructor<? extends DBusSignal>>();
    private static Map<String, String> signames = new HashMap<String, String>();
    private static Map<String, String> intnames = new HashMap<String, String>();
+   /** The number of signal headers kept by templates. */
+   static final int TEMPLATE_CACHE_SIZE = 256;
+   /** The headers of signals sent, by class and object path, emptied when it is full. */
+   static final ConcurrentHashMap<Map.Entry<Class<? extends DBusSignal>, String>, MessageTemplate> templates = new ConcurrentHashMap<Map.Entry<Class<? extends DBusSignal>, String>, MessageTemplate>();
    private Class<? extends DBusSignal> c;
    private boolean bodydone = false;
-   private byte[] blen;
+   private int blen;
 
    static void addInterfaceMap(String java, String dbus)
    {
@@ -155,7 +169,7 @@ public class DBusSignal extends Message
 
       try {
          DBusSignal s;
-         Object[] args = Marshalling.deSerializeParameters(getParameters(), types, conn);
+         Object[] args = Marshalling.deSerializeParameters(getParameters(types), types, conn);
          if (null == args) s = con.newInstance(getPath());
          else {
             Object[] params = new Object[args.length + 1];
@@ -166,9 +180,7 @@ public class DBusSignal extends Message
             }
             s = con.newInstance(params);
          }
-         s.headers = headers;
-         s.wiredata = wiredata;
-         s.bytecounter = wiredata.length;
+         s.copyWireData(this);
          return s;
       } catch (Exception e) {
          logger.debug("exception:",e);
@@ -182,14 +194,30 @@ public class DBusSignal extends Message
     * @param args The parameters of the signal.
     * @throws DBusException This is thrown if the subclass is incorrectly defined.
     */
-   @SuppressWarnings("unchecked")
    protected DBusSignal(String objectpath, Object... args) throws DBusException
    {
       super(Message.Endian.BIG, Message.MessageType.SIGNAL, (byte) 0);
 
+      Class<? extends DBusSignal> tc = getClass();
+      Map.Entry<Class<? extends DBusSignal>, String> key = new AbstractMap.SimpleImmutableEntry<Class<? extends DBusSignal>, String>(tc, objectpath);
+      MessageTemplate t = templates.get(key);
+      if (null == t || (null == t.getSig()) != (0 == args.length)) {
+         t = createTemplate(tc, objectpath, args.length);
+         if (templates.size() >= TEMPLATE_CACHE_SIZE) templates.clear();
+         templates.put(key, t);
+      }
+      if (0 < args.length) setArgs(args);
+      blen = appendHeader(t);
+   }
+   /**
+    * Marshals the header for signals of a given class from a given path.
+    * @param nargs The number of parameters of the signal.
+    */
+   @SuppressWarnings("unchecked")
+   private static MessageTemplate createTemplate(Class<? extends DBusSignal> tc, String objectpath, int nargs) throws DBusException
+   {
       if (!objectpath.matches(AbstractConnection.OBJECT_REGEX)) throw new DBusException(_("Invalid object path: ")+objectpath);
 
-      Class<? extends DBusSignal> tc = getClass();
       String member;
       if (tc.isAnnotationPresent(DBusMemberName.class))
          member = tc.getAnnotation(DBusMemberName.class).value();
@@ -207,17 +235,8 @@ public class DBusSignal extends Message
          else
             iface = AbstractConnection.dollar_pattern.matcher(enc.getName()).replaceAll(".");
 
-      headers.put(Message.HeaderField.PATH,objectpath);
-      headers.put(Message.HeaderField.MEMBER,member);
-      headers.put(Message.HeaderField.INTERFACE,iface);
-
-      Vector<Object> hargs = new Vector<Object>();
-      hargs.add(new Object[] { Message.HeaderField.PATH, new Object[] { ArgumentType.OBJECT_PATH_STRING, objectpath } });
-      hargs.add(new Object[] { Message.HeaderField.INTERFACE, new Object[] { ArgumentType.STRING_STRING, iface } });
-      hargs.add(new Object[] { Message.HeaderField.MEMBER, new Object[] { ArgumentType.STRING_STRING, member } });
-
       String sig = null;
-      if (0 < args.length) {
+      if (0 < nargs) {
          try {
             Type[] types = typeCache.get(tc);
             if (null == types) {
@@ -233,19 +252,12 @@ public class DBusSignal extends Message
                typeCache.put(tc, types);
             }
             sig = Marshalling.getDBusType(types);
-            hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
-            headers.put(Message.HeaderField.SIGNATURE,sig);
-            setArgs(args);
          } catch (Exception e) {
             logger.debug("exception: ",e);
             throw new DBusException(_("Failed to add signal parameters: ")+e.getMessage(),e);
          }
       }
-
-      blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", ++serial, hargs.toArray());
-      pad((byte)8);
+      return MessageTemplate.signal(objectpath, iface, member, sig);
    }
    void appendbody(AbstractConnection conn) throws DBusException
    {
@@ -258,7 +270,8 @@ public class DBusSignal extends Message
 
       long c = bytecounter;
       if (null != args && 0 < args.length) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
       bodydone = true;
    }
 }
@@ -37,13 +37,15 @@ public final class DirectConnection extends AbstractConnection
    /**
     * Create a direct connection to another application.
     * @param address The address to connect to. This is a standard D-Bus address, except that the additional parameter 'listen=true' should be added in the application which is creating the socket.
+    * Applications on the same host may also use a shm address, with the same parameters as a unix address, to pass messages through shared memory once connected.
+    * Connections in the same JVM may use an inproc address with a name parameter, which hands messages over without a socket.
     */
    public DirectConnection(String address) throws DBusException
    {
       super(address);
 
       try {
-         transport = new Transport(addr, AbstractConnection.TIMEOUT);
+         transport = new Transport(addr);
 			connected = true;
       } catch (IOException IOe) {
          logger.debug("ioexception", IOe);
@@ -0,0 +1,101 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * Executors to run the method calls, signal handlers and callbacks of
+ * a connection, given to it with AbstractConnection.setExecutor.
+ * <p>
+ * By default each connection runs these on a handful of worker threads,
+ * so exported methods which block on I/O hold up everything else on the
+ * connection once they have them all.
+ * </p>
+ * <p>
+ * A work stealing pool spreads short handlers over all the processors and
+ * can be shared by many connections. A virtual thread per task lets any
+ * number of handlers block at once; virtual threads need Java 21 or later
+ * and are found by reflection as this library is built for older JDKs.
+ * The executors returned belong to the caller, who shuts them down when
+ * no connection uses them any more.
+ * </p>
+ */
+public final class DispatchExecutors
+{
+   private static final Logger logger = LoggerFactory.getLogger(DispatchExecutors.class);
+
+   private static final Method NEW_VIRTUAL;
+   static {
+      Method m = null;
+      try {
+         m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      } catch (NoSuchMethodException NSMe) {
+         logger.debug("Virtual threads are not available: {}", NSMe.toString());
+      }
+      NEW_VIRTUAL = m;
+   }
+
+   private DispatchExecutors() {}
+
+   /**
+    * Returns a work stealing pool with a thread for each processor.
+    */
+   public static ExecutorService newWorkStealingPool()
+   {
+      return newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+   }
+   /**
+    * Returns a work stealing pool which runs tasks in the order they are submitted
+    * where it can. Its threads are daemon threads and stop when they have been idle
+    * for a while.
+    * @param parallelism The number of threads to run tasks on.
+    */
+   public static ExecutorService newWorkStealingPool(int parallelism)
+   {
+      return new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+   }
+   /**
+    * Returns true if newVirtualThreadExecutor can be used.
+    */
+   public static boolean isVirtualThreadSupported()
+   {
+      return null != NEW_VIRTUAL;
+   }
+   /**
+    * Returns an executor which starts a new virtual thread for each task.
+    * @throws DBusException If virtual threads are not available.
+    */
+   public static ExecutorService newVirtualThreadExecutor() throws DBusException
+   {
+      if (null == NEW_VIRTUAL)
+         throw new DBusException(_("Virtual threads need Java 21 or later"));
+      try {
+         return (ExecutorService) NEW_VIRTUAL.invoke(null);
+      } catch (InvocationTargetException ITe) {
+         logger.debug("exception", ITe);
+         throw new DBusException(_("Virtual threads are not available: ")+ITe.getCause(), ITe);
+      } catch (IllegalAccessException IAe) {
+         logger.debug("exception", IAe);
+         throw new DBusException(_("Virtual threads are not available: ")+IAe.getMessage(), IAe);
+      }
+   }
+}
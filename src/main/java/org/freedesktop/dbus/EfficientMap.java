@@ -37,10 +37,8 @@ class EfficientMap
       System.arraycopy(oldkv,start,kv,0,oldkv.length-start);
       System.arraycopy(oldvv,start,vv,0,oldvv.length-start);
       // copy 0->end to the next part of the new vector
-      if (end != (oldkv.length-1)) {
-         System.arraycopy(oldkv,0,kv,oldkv.length-start,end+1);
-         System.arraycopy(oldvv,0,vv,oldvv.length-start,end+1);
-      }
+      System.arraycopy(oldkv,0,kv,oldkv.length-start,end);
+      System.arraycopy(oldvv,0,vv,oldvv.length-start,end);
       // reposition pointers
       start = 0;
       end = oldkv.length;
@@ -38,9 +38,7 @@ class EfficientQueue
       // copy start->length to the start of the new vector
       System.arraycopy(oldmv,start,mv,0,oldmv.length-start);
       // copy 0->end to the next part of the new vector
-      if (end != (oldmv.length-1)) {
-         System.arraycopy(oldmv,0,mv,oldmv.length-start,end+1);
-      }
+      System.arraycopy(oldmv,0,mv,oldmv.length-start,end);
       // reposition pointers
       start = 0;
       end = oldmv.length;
@@ -94,6 +92,21 @@ class EfficientQueue
       logger.debug("Dequeueing {}",m);
       return m;
    }
+   /**
+    * Removes up to max messages from the head of the queue into an array.
+    * @return The number of messages removed.
+    */
+   public int remove(Message[] ms, int off, int max)
+   {
+      int n = 0;
+      while (n < max && start != end) {
+         ms[off+n++] = mv[start];
+         mv[start] = null;
+         if (start == (mv.length-1)) start = 0; else start++;
+      }
+      if (n > 0) logger.debug("Dequeueing {} messages",n);
+      return n;
+   }
    public boolean isEmpty()
    {
       // check if find succeeds
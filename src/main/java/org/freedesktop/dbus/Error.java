@@ -18,7 +18,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
-import java.util.Vector;
 
 import static org.freedesktop.dbus.Gettext._;
 
@@ -27,7 +26,7 @@ import static org.freedesktop.dbus.Gettext._;
  */
 public class Error extends Message
 {
-   private final Logger logger= LoggerFactory.getLogger(Error.class);
+   private static final Logger logger= LoggerFactory.getLogger(Error.class);
    Error() { }
    public Error(String dest, String errorName, long replyserial, String sig, Object... args) throws DBusException
    {
@@ -39,37 +38,25 @@ public class Error extends Message
 
       if (null == errorName)
          throw new MessageFormatException(_("Must specify error name to Errors."));
-      headers.put(Message.HeaderField.REPLY_SERIAL,replyserial);
-      headers.put(Message.HeaderField.ERROR_NAME,errorName);
-      
-      Vector<Object> hargs = new Vector<Object>();
-      hargs.add(new Object[] { Message.HeaderField.ERROR_NAME, new Object[] { ArgumentType.STRING_STRING, errorName } });
-      hargs.add(new Object[] { Message.HeaderField.REPLY_SERIAL, new Object[] { ArgumentType.UINT32_STRING, replyserial } });
-            
-      if (null != source) {
-         headers.put(Message.HeaderField.SENDER,source);
-         hargs.add(new Object[] { Message.HeaderField.SENDER, new Object[] { ArgumentType.STRING_STRING, source } });
-      }
- 
-      if (null != dest) {
-         headers.put(Message.HeaderField.DESTINATION,dest);
-         hargs.add(new Object[] { Message.HeaderField.DESTINATION, new Object[] { ArgumentType.STRING_STRING, dest } });
-      }
 
+      int blen = reserveint(4);
+      int hlen = beginHeaderFields();
+      appendHeaderField(Message.HeaderField.ERROR_NAME, ArgumentType.STRING, errorName);
+      appendReplySerial(replyserial);
+      if (null != source)
+         appendHeaderField(Message.HeaderField.SENDER, ArgumentType.STRING, source);
+      if (null != dest)
+         appendHeaderField(Message.HeaderField.DESTINATION, ArgumentType.STRING, dest);
       if (null != sig) {
-         hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
-         headers.put(Message.HeaderField.SIGNATURE,sig);
+         appendHeaderField(Message.HeaderField.SIGNATURE, ArgumentType.SIGNATURE, sig);
          setArgs(args);
       }
-      
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
-      pad((byte)8);
+      endHeaderFields(hlen);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
    }
    public Error(String source, Message m, Throwable e)  throws DBusException
    {
@@ -0,0 +1,69 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import cx.ath.matthew.unix.MemFD;
+
+import java.io.IOException;
+
+/**
+ * A Unix file descriptor, the D-Bus UNIX_FD type.
+ * File descriptors can only be passed over unix socket connections
+ * which have agreed to pass them during authentication. The receiver
+ * gets its own copy of each descriptor, which it must close.
+ */
+public final class FileDescriptor
+{
+   private final int fd;
+   public FileDescriptor(int fd)
+   {
+      this.fd = fd;
+   }
+   /**
+    * Create a sealed in-memory file holding some data, to send large payloads
+    * as a file descriptor instead of through the bus.
+    * The descriptor must be closed once it has been sent.
+    */
+   public static FileDescriptor fromBytes(byte[] data) throws IOException
+   {
+      return new FileDescriptor(MemFD.create("dbus-java", data));
+   }
+   /**
+    * Read the whole of a sealed in-memory file created with fromBytes.
+    */
+   public byte[] toBytes() throws IOException
+   {
+      return MemFD.read(fd);
+   }
+   public int getIntFileDescriptor()
+   {
+      return fd;
+   }
+   public void close() throws IOException
+   {
+      MemFD.close(fd);
+   }
+   @Override
+   public String toString()
+   {
+      return "FileDescriptor("+fd+")";
+   }
+   @Override
+   public boolean equals(Object other)
+   {
+      return other instanceof FileDescriptor && fd == ((FileDescriptor) other).fd;
+   }
+   @Override
+   public int hashCode()
+   {
+      return fd;
+   }
+}
@@ -0,0 +1,264 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * A connection between two ends in the same JVM, which hands messages
+ * over through queues rather than writing them to a socket.
+ * <p>
+ * Each message sent is copied into a new received message for the other
+ * end, so neither end sees changes the other makes. The copy is made from
+ * the marshalled form, so the body is not framed or checked again, and the
+ * header strings of a message built by the sender are given to the copy so
+ * that the receiver does not decode them. Where the parameters of the
+ * message are all values which can't be changed and are of the types the
+ * receiver would decode them to, it is given those as well and never
+ * decodes the body; setting the system property {@value #SHARE_PROPERTY}
+ * to false turns this off.
+ * <p>
+ * Bus addresses select this transport with the type inproc and a name
+ * parameter, which must be unique in the JVM. There is no authentication
+ * and file descriptors can't be passed.
+ */
+public final class InprocChannel
+{
+   private static final Logger logger = LoggerFactory.getLogger(InprocChannel.class);
+
+   /** The system property which stops parameters being passed to the receiver. */
+   public static final String SHARE_PROPERTY = "org.freedesktop.dbus.inproc.share";
+   private static final boolean SHARE = !"false".equals(System.getProperty(SHARE_PROPERTY));
+
+   /** The listeners, by name. */
+   private static final Map<String, Listener> listeners = new HashMap<String, Listener>();
+
+   /**
+    * Start listening on a name, so that connect can be called with it.
+    * @param name The name of the address.
+    * @throws IOException If something is already listening on the name.
+    */
+   public static Listener listen(String name) throws IOException
+   {
+      synchronized (listeners) {
+         if (listeners.containsKey(name))
+            throw new IOException(MessageFormat.format(_("Already listening on in-process address {0}"), new Object[] { name }));
+         Listener l = new Listener(name);
+         listeners.put(name, l);
+         return l;
+      }
+   }
+   /**
+    * Connect to a name something is listening on.
+    * @param name The name of the address.
+    * @throws IOException If nothing is listening on the name.
+    */
+   public static InprocChannel connect(String name) throws IOException
+   {
+      Listener l;
+      synchronized (listeners) {
+         l = listeners.get(name);
+      }
+      if (null == l)
+         throw new IOException(MessageFormat.format(_("Nothing is listening on in-process address {0}"), new Object[] { name }));
+      InprocChannel client = new InprocChannel();
+      InprocChannel server = new InprocChannel();
+      client.peer = server;
+      server.peer = client;
+      l.offer(server);
+      logger.debug("Connected to in-process address {}", name);
+      return client;
+   }
+
+   /**
+    * Accepts connections made to a name.
+    */
+   public static final class Listener
+   {
+      private final String name;
+      private final LinkedList<InprocChannel> pending = new LinkedList<InprocChannel>();
+      private boolean closed = false;
+
+      private Listener(String name)
+      {
+         this.name = name;
+      }
+      /**
+       * Wait for the next connection.
+       * @throws IOException If the listener is closed.
+       */
+      public InprocChannel accept() throws IOException
+      {
+         synchronized (pending) {
+            while (pending.isEmpty()) {
+               if (closed) throw new EOFException(_("Listener closed"));
+               try {
+                  pending.wait();
+               } catch (InterruptedException Ie) {
+                  throw new InterruptedIOException();
+               }
+            }
+            return pending.removeFirst();
+         }
+      }
+      private void offer(InprocChannel c) throws IOException
+      {
+         synchronized (pending) {
+            if (closed)
+               throw new IOException(MessageFormat.format(_("Nothing is listening on in-process address {0}"), new Object[] { name }));
+            pending.add(c);
+            pending.notifyAll();
+         }
+      }
+      /**
+       * Stop listening, waking up any accept, and close the connections which
+       * have not been accepted.
+       */
+      public void close()
+      {
+         synchronized (listeners) {
+            if (this == listeners.get(name)) listeners.remove(name);
+         }
+         InprocChannel[] cs;
+         synchronized (pending) {
+            closed = true;
+            cs = pending.toArray(new InprocChannel[pending.size()]);
+            pending.clear();
+            pending.notifyAll();
+         }
+         for (InprocChannel c: cs)
+            c.close();
+      }
+   }
+
+   private InprocChannel peer;
+   /** Messages sent by the peer which have not been received. */
+   private final LinkedList<Message> queue = new LinkedList<Message>();
+   /** Set when this end is closed. */
+   private boolean closed = false;
+   /** Set when the peer is closed; what is in the queue can still be received. */
+   private boolean eof = false;
+
+   private InprocChannel() {}
+
+   /**
+    * Pass a copy of a message to the other end.
+    * @throws IOException If either end is closed, or the message has file descriptors.
+    */
+   public void send(Message m) throws IOException
+   {
+      synchronized (queue) {
+         if (closed || eof) throw new EOFException(_("Underlying transport returned EOF"));
+      }
+      Message copy;
+      try {
+         copy = copy(m);
+      } catch (DBusException DBe) {
+         logger.debug("Dbus : ",DBe);
+         throw new IOException(DBe.getMessage(), DBe);
+      }
+      if (!peer.deliver(copy)) {
+         copy.release();
+         throw new EOFException(_("Underlying transport returned EOF"));
+      }
+   }
+   private boolean deliver(Message m)
+   {
+      synchronized (queue) {
+         if (closed) return false;
+         queue.add(m);
+         queue.notify();
+         return true;
+      }
+   }
+   /**
+    * Wait for the next message from the other end.
+    * @throws EOFException If either end is closed, once the messages sent before have been received.
+    */
+   public Message receive() throws IOException
+   {
+      synchronized (queue) {
+         while (queue.isEmpty()) {
+            if (closed || eof) throw new EOFException(_("Underlying transport returned EOF"));
+            try {
+               queue.wait();
+            } catch (InterruptedException Ie) {
+               throw new InterruptedIOException();
+            }
+         }
+         return queue.removeFirst();
+      }
+   }
+   /**
+    * Close both ends, waking up receive on each. Messages this end has not received are dropped.
+    */
+   public void close()
+   {
+      Message[] dropped;
+      synchronized (queue) {
+         if (closed) return;
+         closed = true;
+         dropped = queue.toArray(new Message[queue.size()]);
+         queue.clear();
+         queue.notifyAll();
+      }
+      for (Message m: dropped)
+         m.release();
+      synchronized (peer.queue) {
+         peer.eof = true;
+         peer.queue.notifyAll();
+      }
+   }
+
+   /**
+    * Make a received message from the marshalled form of a message.
+    */
+   private static Message copy(Message m) throws IOException, DBusException
+   {
+      if (null != m.getFileDescriptors())
+         throw new IOException(_("File descriptors can only be passed over unix sockets"));
+      byte[] buf = m.getWireBuffer();
+      if (null == buf)
+         throw new IOException(_("Message has already been released."));
+      int len = m.getWireLength();
+      byte[] tail = m.getWireTail();
+      int taillen = null == tail ? 0 : m.getWireTailLength();
+      int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4)+7) & ~7);
+      byte[] header = Arrays.copyOf(buf, headerlen);
+      byte[] body = BufferPool.take(len-headerlen+taillen);
+      System.arraycopy(buf, headerlen, body, 0, len-headerlen);
+      if (null != tail)
+         System.arraycopy(tail, 0, body, len-headerlen, taillen);
+      Message rv = MessageReader.create(header, body);
+      rv.setHeaderStrings(m.getHeaderStrings());
+      if (SHARE && null == tail) {
+         // the sender built this message from its parameters, so only share them if they decode to themselves
+         Object[] args = m.getParameters();
+         String sig = rv.getSig();
+         if (null != args && null != sig && TypeCodec.isImmutable(sig, args))
+            rv.setArgs(args.clone());
+      }
+      return rv;
+   }
+}
@@ -18,6 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
 import java.util.*;
 
@@ -57,10 +58,15 @@ public final class Marshalling
     */
    public static String[] getDBusType(Type c) throws DBusException
    {
-      String[] cached = typeCache.get(c);
+      String[] cached;
+      synchronized (typeCache) {
+         cached = typeCache.get(c);
+      }
       if (null != cached) return cached;
       cached = getDBusType(c, false);
-      typeCache.put(c, cached);
+      synchronized (typeCache) {
+         typeCache.put(c, cached);
+      }
       return cached;
    }
    /**
@@ -76,12 +82,13 @@ public final class Marshalling
    {
       return recursiveGetDBusType(c, basic, 0);
    }
+   /** The buffers for each level of recursiveGetDBusType, which holds the class lock while it uses them. */
    private static StringBuffer[] out = new StringBuffer[10];
    @SuppressWarnings("unchecked")
-   public static String[] recursiveGetDBusType(Type c, boolean basic, int level) throws DBusException
+   public static synchronized String[] recursiveGetDBusType(Type c, boolean basic, int level) throws DBusException
    {
       if (out.length <= level) {
-         StringBuffer[] newout = new StringBuffer[out.length];
+         StringBuffer[] newout = new StringBuffer[level+1];
          System.arraycopy(out, 0, newout, 0, out.length);
          out = newout;
       }
@@ -92,7 +99,10 @@ public final class Marshalling
          throw new DBusException(c+_(" is not a basic type"));
 
       if (c instanceof TypeVariable) out[level].append((char) Message.ArgumentType.VARIANT);
-      else if (c instanceof GenericArrayType) {
+      else if (c instanceof Class && ByteBuffer.class.isAssignableFrom((Class<? extends Object>) c)) {
+         out[level].append((char) Message.ArgumentType.ARRAY);
+         out[level].append((char) Message.ArgumentType.BYTE);
+      } else if (c instanceof GenericArrayType) {
          out[level].append((char) Message.ArgumentType.ARRAY);
          String[] s = recursiveGetDBusType(((GenericArrayType) c).getGenericComponentType(), false, level+1);
          if (s.length != 1) throw new DBusException(_("Multi-valued array types not permitted"));
@@ -102,16 +112,11 @@ public final class Marshalling
             (c instanceof ParameterizedType &&
              DBusSerializable.class.isAssignableFrom((Class<? extends Object>) ((ParameterizedType) c).getRawType()))) {
          // it's a custom serializable type
-         Type[] newtypes = null;
-         if (c instanceof Class)  {
-            for (Method m: ((Class<? extends Object>) c).getDeclaredMethods()) 
-               if (m.getName().equals("deserialize")) 
-                  newtypes = m.getGenericParameterTypes();
-         }
+         Type[] newtypes;
+         if (c instanceof Class)
+            newtypes = ClassSerializer.get((Class<? extends Object>) c).deserializeTypes;
          else 
-            for (Method m: ((Class<? extends Object>) ((ParameterizedType) c).getRawType()).getDeclaredMethods()) 
-               if (m.getName().equals("deserialize")) 
-                  newtypes = m.getGenericParameterTypes();
+            newtypes = ClassSerializer.get((Class<? extends Object>) ((ParameterizedType) c).getRawType()).deserializeTypes;
 
          if (null == newtypes) throw new DBusException(_("Serializable classes must implement a deserialize method"));
 
@@ -192,6 +197,7 @@ public final class Marshalling
       else if (c.equals(Float.TYPE)) out[level].append((char) Message.ArgumentType.DOUBLE);
       else if (c.equals(String.class)) out[level].append((char) Message.ArgumentType.STRING);
       else if (c.equals(Variant.class)) out[level].append((char) Message.ArgumentType.VARIANT);
+      else if (c.equals(FileDescriptor.class)) out[level].append((char) Message.ArgumentType.UNIX_FD);
       else if (c instanceof Class && 
             DBusInterface.class.isAssignableFrom((Class<? extends Object>) c)) out[level].append((char) Message.ArgumentType.OBJECT_PATH);
       else if (c instanceof Class && 
@@ -211,17 +217,7 @@ public final class Marshalling
       } else if (c instanceof Class && 
             Struct.class.isAssignableFrom((Class<? extends Object>) c)) {
          out[level].append((char) Message.ArgumentType.STRUCT1);
-         Type[] ts = Container.getTypeCache(c);
-         if (null == ts) {
-            Field[] fs = ((Class<? extends Object>) c).getDeclaredFields();
-            ts = new Type[fs.length];
-            for (Field f : fs) {
-               Position p = f.getAnnotation(Position.class);
-               if (null == p) continue;
-               ts[p.value()] = f.getGenericType();
-           }
-            Container.putTypeCache(c, ts);
-         }
+         Type[] ts = ClassSerializer.get((Class<? extends Object>) c).types;
 
          for (Type t: ts)
             if (t != null)
@@ -280,6 +276,9 @@ public final class Marshalling
                case Message.ArgumentType.VARIANT:
                   rv.add(Variant.class);
                   break;
+               case Message.ArgumentType.UNIX_FD:
+                  rv.add(FileDescriptor.class);
+                  break;
                case Message.ArgumentType.BOOLEAN:
                   rv.add(Boolean.class);
                   break;
@@ -352,21 +351,20 @@ public final class Marshalling
          if (null == parameters[i]) continue;
 
          if (parameters[i] instanceof DBusSerializable) {
-            for (Method m: parameters[i].getClass().getDeclaredMethods()) 
-               if (m.getName().equals("deserialize")) {
-                  Type[] newtypes = m.getParameterTypes();
-                  Type[] expand = new Type[types.length + newtypes.length - 1];
-                  System.arraycopy(types, 0, expand, 0, i); 
-                  System.arraycopy(newtypes, 0, expand, i, newtypes.length); 
-                  System.arraycopy(types, i+1, expand, i+newtypes.length, types.length-i-1); 
-                  types = expand;
-                  Object[] newparams = ((DBusSerializable) parameters[i]).serialize();
-                  Object[] exparams = new Object[parameters.length + newparams.length - 1];
-                  System.arraycopy(parameters, 0, exparams, 0, i);
-                  System.arraycopy(newparams, 0, exparams, i, newparams.length);
-                  System.arraycopy(parameters, i+1, exparams, i+newparams.length, parameters.length-i-1);
-                  parameters = exparams;
-               }
+            Type[] newtypes = ClassSerializer.get(parameters[i].getClass()).deserializeParams;
+            if (null == newtypes)
+               throw new DBusException(_("Serializable classes must implement a deserialize method"));
+            Type[] expand = new Type[types.length + newtypes.length - 1];
+            System.arraycopy(types, 0, expand, 0, i); 
+            System.arraycopy(newtypes, 0, expand, i, newtypes.length); 
+            System.arraycopy(types, i+1, expand, i+newtypes.length, types.length-i-1); 
+            types = expand;
+            Object[] newparams = ((DBusSerializable) parameters[i]).serialize();
+            Object[] exparams = new Object[parameters.length + newparams.length - 1];
+            System.arraycopy(parameters, 0, exparams, 0, i);
+            System.arraycopy(newparams, 0, exparams, i, newparams.length);
+            System.arraycopy(parameters, i+1, exparams, i+newparams.length, parameters.length-i-1);
+            parameters = exparams;
             i--;
          } else if (parameters[i] instanceof Tuple) {
             Type[] newtypes = ((ParameterizedType) types[i]).getActualTypeArguments();
@@ -407,14 +405,22 @@ public final class Marshalling
          parameter = ((Variant)parameter).getValue();
       }
 
+      // byte arrays may be given or received as ByteBuffers
+      if (type.equals(ByteBuffer.class) && parameter instanceof byte[])
+         parameter = ByteBuffer.wrap((byte[]) parameter);
+      else if (type.equals(byte[].class) && parameter instanceof ByteBuffer) {
+         ByteBuffer bb = ((ByteBuffer) parameter).duplicate();
+         byte[] bs = new byte[bb.remaining()];
+         bb.get(bs);
+         parameter = bs;
+      }
+
       // Turn a signature into a Type[]
       if (type instanceof Class
             && ((Class) type).isArray()
             && ((Class) type).getComponentType().equals(Type.class)
             && parameter instanceof String) {
-         Vector<Type> rv = new Vector<Type>();
-         getJavaType((String) parameter, rv, -1);
-         parameter = rv.toArray(new Type[0]);
+         parameter = TypeCodec.getJavaTypes((String) parameter);
       }
 
       // its an object path, get/create the proxy
@@ -432,26 +438,12 @@ public final class Marshalling
             type instanceof Class &&
             Struct.class.isAssignableFrom((Class) type)) {
          logger.trace("Creating Struct {} from {}",type,parameter);
-         Type[] ts = Container.getTypeCache(type);
-         if (null == ts) {
-            Field[] fs = ((Class) type).getDeclaredFields();
-            ts = new Type[fs.length];
-            for (Field f : fs) {
-               Position p = f.getAnnotation(Position.class);
-               if (null == p) continue;
-               ts[p.value()] = f.getGenericType();
-           }
-            Container.putTypeCache(type, ts);
-         }
+         ClassSerializer cs = ClassSerializer.get((Class) type);
 
          // recurse over struct contents
-         parameter = deSerializeParameters((Object[]) parameter, ts, conn);
-         for (Constructor con: ((Class) type).getDeclaredConstructors()) {
-            try {
-               parameter = con.newInstance((Object[]) parameter);
-               break;
-            } catch (IllegalArgumentException IAe) {}
-         }
+         parameter = deSerializeParameters((Object[]) parameter, cs.types, conn);
+         Object struct = cs.construct((Object[]) parameter);
+         if (null != struct) parameter = struct;
       }
 
       // recurse over arrays
@@ -591,27 +583,24 @@ public final class Marshalling
                dsc = (Class<? extends DBusSerializable>) types[i];
             else
                dsc = (Class<? extends DBusSerializable>) ((ParameterizedType) types[i]).getRawType();
-            for (Method m: dsc.getDeclaredMethods()) 
-               if (m.getName().equals("deserialize")) {
-                  Type[] newtypes = m.getGenericParameterTypes();
-                  try {
-                     Object[] sub = new Object[newtypes.length];
-                     System.arraycopy(parameters, i, sub, 0, newtypes.length); 
-                     sub = deSerializeParameters(sub, newtypes, conn);
-                     DBusSerializable sz = dsc.newInstance();
-                     m.invoke(sz, sub);
-                     Object[] compress = new Object[parameters.length - newtypes.length + 1];
-                     System.arraycopy(parameters, 0, compress, 0, i);
-                     compress[i] = sz;
-                     System.arraycopy(parameters, i + newtypes.length, compress, i+1, parameters.length - i - newtypes.length);
-                     parameters = compress;
-                  } catch (ArrayIndexOutOfBoundsException AIOOBe) {
-                     logger.debug("exception", AIOOBe);
+            ClassSerializer cs = ClassSerializer.get(dsc);
+            Type[] newtypes = cs.deserializeTypes;
+            if (null != newtypes) try {
+               Object[] sub = new Object[newtypes.length];
+               System.arraycopy(parameters, i, sub, 0, newtypes.length); 
+               sub = deSerializeParameters(sub, newtypes, conn);
+               Object sz = cs.deserialize(sub);
+               Object[] compress = new Object[parameters.length - newtypes.length + 1];
+               System.arraycopy(parameters, 0, compress, 0, i);
+               compress[i] = sz;
+               System.arraycopy(parameters, i + newtypes.length, compress, i+1, parameters.length - i - newtypes.length);
+               parameters = compress;
+            } catch (ArrayIndexOutOfBoundsException AIOOBe) {
+               logger.debug("exception", AIOOBe);
 
-                     throw new DBusException(MessageFormat.format(_("Not enough elements to create custom object from serialized data ({0} < {1})."), 
-                                 new Object[] { parameters.length-i, newtypes.length }),AIOOBe);
-                  }
-               }
+               throw new DBusException(MessageFormat.format(_("Not enough elements to create custom object from serialized data ({0} < {1})."), 
+                           new Object[] { parameters.length-i, newtypes.length }),AIOOBe);
+            }
          } else
             parameters[i] = deSerializeParameter(parameters[i], types[i], conn);
       }
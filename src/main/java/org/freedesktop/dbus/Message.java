@@ -10,6 +10,7 @@
 */
 package org.freedesktop.dbus;
 
+import cx.ath.matthew.unix.MemFD;
 import cx.ath.matthew.utils.Hexdump;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.MarshallingException;
@@ -17,11 +18,16 @@ import org.freedesktop.dbus.exceptions.UnknownTypeCodeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.freedesktop.dbus.Gettext._;
 
@@ -31,7 +37,7 @@ import static org.freedesktop.dbus.Gettext._;
  */
 public abstract class Message
 {
-   private Logger logger= LoggerFactory.getLogger(Message.class);
+   private static final Logger logger= LoggerFactory.getLogger(Message.class);
    /** Defines constants representing the endianness of the message. */
    public static interface Endian {
       public static final byte BIG = 'B';
@@ -62,6 +68,7 @@ public abstract class Message
       public static final byte DESTINATION = 6;
       public static final byte SENDER = 7;
       public static final byte SIGNATURE = 8;
+      public static final byte UNIX_FDS = 9;
    }
    /** Defines constants for each argument type.
     * There are two constants for each argument type, 
@@ -80,6 +87,7 @@ public abstract class Message
       public static final String STRING_STRING="s";
       public static final String OBJECT_PATH_STRING="o";
       public static final String SIGNATURE_STRING="g";
+      public static final String UNIX_FD_STRING="h";
       public static final String ARRAY_STRING="a";
       public static final String VARIANT_STRING="v";
       public static final String STRUCT_STRING="r";
@@ -102,6 +110,7 @@ public abstract class Message
       public static final byte STRING='s';
       public static final byte OBJECT_PATH='o';
       public static final byte SIGNATURE='g';
+      public static final byte UNIX_FD='h';
       public static final byte ARRAY='a';
       public static final byte VARIANT='v';
       public static final byte STRUCT='r';
@@ -111,27 +120,37 @@ public abstract class Message
       public static final byte DICT_ENTRY1='{';
       public static final byte DICT_ENTRY2='}';
    }
-   /** Keep a static reference to each size of padding array to prevent allocation. */
-   private static byte[][] padding;
-   static {
-      padding = new byte[][] {
-         null,
-            new byte[1],
-            new byte[2],
-            new byte[3],
-            new byte[4],
-            new byte[5],
-            new byte[6],
-            new byte[7] };
-   }
-   /** Steps to increment the buffer array. */
-   private static final int BUFFERINCREMENT = 20;
+   /** Initial size of the marshalling buffer. */
+   private static final int BUFFERSIZE = 128;
+   private static final AtomicIntegerFieldUpdater<Message> refcounter = AtomicIntegerFieldUpdater.newUpdater(Message.class, "refcount");
 
    private boolean big;
-   protected byte[][] wiredata;
+   /** Contiguous buffer the message is marshalled into, taken from the BufferPool. */
+   private byte[] wirebuf;
+   /** Number of bytes of wirebuf in use. */
+   private int wireofs;
+   /** Trailing segment (the body of a received message) which is not copied into wirebuf. */
+   private byte[] wiretail;
+   /** Number of bytes of wiretail in use. */
+   private int wiretaillen;
+   /** Cached segments returned by getWireData(), reset whenever the message changes. */
+   private byte[][] wiredata;
    protected long bytecounter;
-   protected Map<Byte, Object> headers;
-   protected static long globalserial = 0;
+   /** Header fields; this is only built when all the fields are asked for, and only set once complete. */
+   protected volatile Map<Byte, Object> headers;
+   /** The fixed and variable header of a received message as it came off the wire. */
+   private byte[] header;
+   /** For each known header field of a received message, the offset of its variant in header, or 0. */
+   private int[] headerofs;
+   /**
+    * Header strings by field; for received messages these are the ones
+    * which have been decoded so far.
+    */
+   private String[] headervals;
+   /** The reply serial of a message built by this process, or 0. */
+   private long replyserial = 0;
+   /** Serials for messages built by this process, unique across all connections. */
+   private static final AtomicLong globalserial = new AtomicLong();
    protected long serial;
    protected byte type;
    protected byte flags;
@@ -139,10 +158,19 @@ public abstract class Message
    private Object[] args;
    private byte[] body;
    private long bodylen = 0;
-   private int preallocated = 0;
-   private int paofs = 0;
-   private byte[] pabuf;
-   private int bufferuse = 0;
+   /** References to the buffers of this message; they are returned to the pool at 0. */
+   private volatile int refcount = 1;
+   /** The message whose buffers this one shares, or null if it owns its own. */
+   private Message owner;
+   /** Set once slices of the body have been handed out, so it is never recycled. */
+   private boolean pinned = false;
+   /** File descriptors sent or received with the message. */
+   private int[] fds;
+   private int nfds = 0;
+   /** Set if the file descriptors were received, so are closed with the message unless handed out. */
+   private boolean fdsreceived = false;
+   /** Set once the received file descriptors have been handed out, after which the receiver closes them. */
+   private boolean fdstaken = false;
 
    /**
     * Returns the name of the given header field.
@@ -158,6 +186,7 @@ public abstract class Message
          case HeaderField.DESTINATION: return "Destination";
          case HeaderField.SENDER: return "Sender";
          case HeaderField.SIGNATURE: return "Signature";
+         case HeaderField.UNIX_FDS: return "Unix FDs";
          default: return "Invalid";
       }
    }
@@ -169,20 +198,28 @@ public abstract class Message
     * @param flags Any message flags.
     */
    protected Message(byte endian, byte type, byte flags) throws DBusException
+   {
+      this(endian, type, flags, BUFFERSIZE);
+   }
+   /**
+    * Create a message with a marshalling buffer of at least the given size.
+    */
+   Message(byte endian, byte type, byte flags, int size) throws DBusException
    {
       super();
-      wiredata = new byte[BUFFERINCREMENT][];
-      headers = new HashMap<Byte, Object>();
+      wirebuf = BufferPool.take(size);
       big = (Endian.BIG == endian);
-      bytecounter = 0;
-      synchronized (Message.class) {
-         serial = ++globalserial;
-      }
-      logger.debug("Creating message with serial {}",serial);
+      serial = globalserial.incrementAndGet();
+      if (logger.isDebugEnabled())
+         logger.debug("Creating message with serial {}",serial);
       this.type = type;
       this.flags = flags;
-      preallocate(4);
-      append("yyyy", endian, type, flags, Message.PROTOCOL);
+      wirebuf[0] = endian;
+      wirebuf[1] = type;
+      wirebuf[2] = flags;
+      wirebuf[3] = Message.PROTOCOL;
+      wireofs = 4;
+      bytecounter = 4;
    }
    /**
     * Create a blank message. Only to be used when calling populate.
@@ -190,108 +227,388 @@ public abstract class Message
    protected Message()
    {
       super();
-      wiredata = new byte[BUFFERINCREMENT][];
-      headers = new HashMap<Byte, Object>();
       bytecounter = 0;
    }
    /**
     * Create a message from wire-format data.
-    * @param msg D-Bus serialized data of type yyyuu
-    * @param headers D-Bus serialized data of type a(yv)
-    * @param body D-Bus serialized data of the signature defined in headers.
+    * The body array is owned by the message from now on and is
+    * returned to the BufferPool when the message is released.
+    * @param header D-Bus serialized data of type yyyuua(yv), padded to 8.
+    *               The message keeps this array as its header.
+    * @param body D-Bus serialized data of the signature defined in the header.
+    *             Only the length given in the header is used.
     */
-   @SuppressWarnings("unchecked")
-   void populate(byte[] msg, byte[] headers, byte[] body) throws DBusException
+   void populate(byte[] header, byte[] body) throws DBusException
    {
-      big = (msg[0] == Endian.BIG);
-      type = msg[1];
-      flags = msg[2];
-      protover = msg[3];
-      wiredata[0] = msg;
-      wiredata[1] = headers;
-      wiredata[2] = body;
+      big = (header[0] == Endian.BIG);
+      type = header[1];
+      flags = header[2];
+      protover = header[3];
+      bodylen = demarshallint(header, 4, 4);
+      serial = demarshallint(header, 8, 4);
+      int arraylen = (int) demarshallint(header, 12, 4);
+      this.header = header;
+      wirebuf = header;
+      wireofs = header.length;
+      wiretail = body;
+      wiretaillen = (int) bodylen;
+      wiredata = null;
       this.body = body;
-      bufferuse = 3;
-      bodylen = ((Number) extract(Message.ArgumentType.UINT32_STRING, msg, 4)[0]).longValue();
-      serial = ((Number) extract(Message.ArgumentType.UINT32_STRING, msg, 8)[0]).longValue();
-      bytecounter = msg.length+headers.length+body.length;
-      logger.debug("headers: {}",headers);
-      Object[] hs = extract("a(yv)", headers, 0);
-      if (logger.isDebugEnabled()) {
-          logger.debug("hs: ", Arrays.deepToString(hs));
-      }
-      for (Object o: (Vector<Object>) hs[0]) {
-         this.headers.put((Byte) ((Object[])o)[0], ((Variant<Object>)((Object[])o)[1]).getValue());
+      bytecounter = wireofs+bodylen;
+      indexHeader(16+arraylen);
+   }
+   /**
+    * Records where each known header field of a received message is, 
+    * without decoding any of them.
+    * @param end The offset of the end of the header field array.
+    */
+   private void indexHeader(int end) throws DBusException
+   {
+      if (end < 16 || end > header.length)
+         throw new MarshallingException(_("Header field array is longer than the header"));
+      int[] index = new int[HeaderField.UNIX_FDS+1];
+      int i = 16;
+      while (i < end) {
+         i = (i+7) & ~7;
+         // a field code and a signature of one type at least
+         if (i+4 > end) throw new MarshallingException(_("Malformed header field array"));
+         byte field = header[i];
+         int sigofs = i+1;
+         if (1 == header[sigofs] && field > 0 && field < index.length) {
+            index[field] = sigofs;
+            long v = sigofs+3;
+            switch (header[sigofs+1]) {
+               case ArgumentType.UINT32:
+                  v = ((v+3) & ~3) + 4;
+                  break;
+               case ArgumentType.STRING:
+               case ArgumentType.OBJECT_PATH:
+                  v = (v+3) & ~3;
+                  if (v+4 > end) throw new MarshallingException(_("Malformed header field array"));
+                  v += 4 + demarshallint(header, (int) v, 4) + 1;
+                  break;
+               case ArgumentType.SIGNATURE:
+                  if (v+1 > end) throw new MarshallingException(_("Malformed header field array"));
+                  v += 1 + (header[(int) v] & 0xFF) + 1;
+                  break;
+               default:
+                  v = -1;
+            }
+            if (v > end) throw new MarshallingException(_("Malformed header field array"));
+            if (v >= 0) {
+               i = (int) v;
+               continue;
+            }
+         }
+         // unknown fields or types are skipped by demarshalling them
+         int[] ofs = new int[] { 0, sigofs };
+         try {
+            extract(ArgumentType.VARIANT_STRING, header, ofs);
+         } catch (RuntimeException Re) {
+            logger.debug("Malformed header field: ", Re);
+            throw new MarshallingException(_("Malformed header field array"));
+         }
+         if (ofs[1] > end) throw new MarshallingException(_("Malformed header field array"));
+         i = ofs[1];
       }
+      headerofs = index;
+   }
+   /**
+    * Returns the offset in header of the value of a field of a received message,
+    * or 0 if the field is absent or not of the given type.
+    */
+   private int headerValue(byte field, byte type)
+   {
+      int sigofs = headerofs[field];
+      if (0 == sigofs || header[sigofs+1] != type) return 0;
+      return align(sigofs+3, type);
    }
    /**
-    * Create a buffer of num bytes.
-    * Data is copied to this rather than added to the buffer list.
+    * Returns a string, object path or signature header field as a String.
+    * For received messages this is decoded the first time it is asked for.
     */
-   private void preallocate(int num)
+   private String getHeaderString(byte field)
    {
-      preallocated = 0;
-      pabuf = new byte[num];
-      appendBytes(pabuf);
-      preallocated = num;
-      paofs = 0;
+      Map<Byte, Object> hs = headers;
+      if (null != hs) {
+         Object o = hs.get(field);
+         if (null == o) return null;
+         return o.toString();
+      }
+      if (null != headervals && null != headervals[field])
+         return headervals[field];
+      if (null == headerofs) return null;
+      int sigofs = headerofs[field];
+      if (0 == sigofs) return null;
+      String s;
+      int v = align(sigofs+3, header[sigofs+1]);
+      try {
+         switch (header[sigofs+1]) {
+            case ArgumentType.STRING:
+            case ArgumentType.OBJECT_PATH:
+               s = StringCache.get(header, v+4, (int) demarshallint(header, v, 4));
+               break;
+            case ArgumentType.SIGNATURE:
+               s = StringCache.get(header, v+1, header[v] & 0xFF);
+               break;
+            default:
+               Object o = getHeaders().get(field);
+               return null == o ? null : o.toString();
+         }
+      } catch (MarshallingException Me) {
+         logger.debug("Encoding: ",Me);
+         return null;
+      }
+      if (null == headervals) headervals = new String[headerofs.length];
+      headervals[field] = s;
+      return s;
    }
    /**
-    * Ensures there are enough free buffers.
-    * @param num number of free buffers to create.
+    * Returns all the header fields, collecting them into a map the first time.
     */
-   private void ensureBuffers(int num)
+   @SuppressWarnings("unchecked")
+   private Map<Byte, Object> getHeaders()
    {
-      int increase = num - wiredata.length + bufferuse;
-      if (increase > 0) {
-         if (increase < BUFFERINCREMENT) increase = BUFFERINCREMENT;
-         logger.debug("Resizing {}",bufferuse);
-         byte[][] temp = new byte[wiredata.length+increase][];
-         System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-         wiredata = temp;
+      Map<Byte, Object> hs = headers;
+      if (null != hs) return hs;
+      // filled in before it is set, as other threads may be reading the fields too;
+      // the sender of object paths is read from the header while decoding
+      hs = new HashMap<Byte, Object>();
+      if (null != header) try {
+         Object[] fields = extract("a(yv)", header, 12);
+         if (logger.isDebugEnabled()) {
+            logger.debug("hs: {}", Arrays.deepToString(fields));
+         }
+         for (Object o: (Vector<Object>) fields[0]) 
+            hs.put((Byte) ((Object[])o)[0], ((Variant<Object>)((Object[])o)[1]).getValue());
+      } catch (DBusException DBe) {
+         logger.debug("Dbus exception: ", DBe);
+      } else {
+         if (null != headervals)
+            for (byte f = 1; f < headervals.length; f++)
+               if (null != headervals[f]) hs.put(f, headervals[f]);
+         if (0 != replyserial) hs.put(HeaderField.REPLY_SERIAL, replyserial);
+         if (0 != nfds) hs.put(HeaderField.UNIX_FDS, new UInt32(nfds));
       }
+      headers = hs;
+      return hs;
+   }
+   /**
+    * Ensures there is room for num more bytes in the marshalling buffer,
+    * growing it if necessary.
+    */
+   void ensureCapacity(int num)
+   {
+      if (null != wiretail)
+         throw new IllegalStateException(_("Cannot append to a message after its body has been set."));
+      wiredata = null;
+      if (wireofs+num <= wirebuf.length) return;
+      int size = wirebuf.length << 1;
+      if (size < wireofs+num) size = wireofs+num;
+      logger.debug("Resizing {} to {}",wirebuf.length,size);
+      byte[] temp = BufferPool.take(size);
+      System.arraycopy(wirebuf, 0, temp, 0, wireofs);
+      BufferPool.give(wirebuf);
+      wirebuf = temp;
    }
    /**
-    * Appends a buffer to the buffer list.
+    * Appends a buffer to the message.
     */
    protected void appendBytes(byte[] buf) 
    {
       if (null == buf) return;
-      if (preallocated > 0) {
-         if (paofs+buf.length > pabuf.length)
-            throw new ArrayIndexOutOfBoundsException(MessageFormat.format(_("Array index out of bounds, paofs={0}, pabuf.length={1}, buf.length={2}."), new Object[] { paofs, pabuf.length, buf.length }));
-         System.arraycopy(buf, 0, pabuf, paofs, buf.length);
-         paofs += buf.length;
-         preallocated -= buf.length;
-      } else {
-         if (bufferuse == wiredata.length) {
-            logger.debug("Resizing {}",bufferuse);
-            byte[][] temp = new byte[wiredata.length+BUFFERINCREMENT][];
-            System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-            wiredata = temp;
-         }
-         wiredata[bufferuse++] = buf;
-         bytecounter += buf.length; 
+      appendBytes(buf, 0, buf.length);
+   }
+   /**
+    * Appends part of a buffer to the message.
+    */
+   protected void appendBytes(byte[] buf, int ofs, int len) 
+   {
+      ensureCapacity(len);
+      System.arraycopy(buf, ofs, wirebuf, wireofs, len);
+      wireofs += len;
+      bytecounter += len;
+   }
+   /**
+    * Appends a string as UTF-8, preceded by its length in bytes and followed
+    * by a nul, encoding it straight into the marshalling buffer.
+    * @param lengthwidth The width of the length, 4 for strings and object
+    *                    paths or 1 for signatures.
+    */
+   void appendString(String s, int lengthwidth) throws MarshallingException
+   {
+      int len = s.length();
+      ensureCapacity(lengthwidth+len+1);
+      byte[] buf = wirebuf;
+      int start = wireofs;
+      int p = start+lengthwidth;
+      int i = 0;
+      for (; i < len; i++) {
+         char c = s.charAt(i);
+         if (c >= 0x80 || 0 == c) break;
+         buf[p++] = (byte) c;
+      }
+      if (i < len) {
+         int more = Utf8.encodedLength(s, i);
+         // keep the bytes written so far if the buffer grows
+         wireofs = p;
+         ensureCapacity(more+1);
+         wireofs = start;
+         buf = wirebuf;
+         p = Utf8.encode(s, i, buf, p);
       }
+      int bytes = p-start-lengthwidth;
+      if (1 == lengthwidth) {
+         if (bytes > 255) throw new MarshallingException(_("Signatures may not be longer than 255 bytes."));
+         buf[start] = (byte) bytes;
+      } else
+         marshallint(bytes, buf, start, 4);
+      buf[p++] = 0;
+      bytecounter += p-start;
+      wireofs = p;
+   }
+   /**
+    * Appends the serial and starts the header field array of a message built
+    * by this process. Fields are then added with appendHeaderField and the
+    * array finished with endHeaderFields, which writes them straight into the
+    * marshalling buffer instead of going through append("ua(yv)", ...).
+    * @return The offset of the array length, to pass to endHeaderFields.
+    */
+   protected int beginHeaderFields()
+   {
+      appendint(serial, 4);
+      return reserveint(4);
+   }
+   /**
+    * Appends a string, object path or signature header field.
+    * @param type The D-Bus type of the value.
+    */
+   protected void appendHeaderField(byte field, byte type, String value) throws MarshallingException
+   {
+      appendFieldSignature(field, type);
+      appendString(value, ArgumentType.SIGNATURE == type ? 1 : 4);
+      if (null == headervals) headervals = new String[HeaderField.UNIX_FDS+1];
+      headervals[field] = value;
+   }
+   /**
+    * Appends the reply serial header field.
+    */
+   protected void appendReplySerial(long replyserial)
+   {
+      appendFieldSignature(HeaderField.REPLY_SERIAL, ArgumentType.UINT32);
+      appendint(replyserial, 4);
+      this.replyserial = replyserial;
+   }
+   /**
+    * Appends the field code and the signature of the variant for a header field.
+    * The field struct is 8-aligned, so the value which follows is 4-aligned.
+    */
+   private void appendFieldSignature(byte field, byte type)
+   {
+      pad((byte) 8);
+      ensureCapacity(4);
+      wirebuf[wireofs++] = field;
+      wirebuf[wireofs++] = 1;
+      wirebuf[wireofs++] = type;
+      wirebuf[wireofs++] = 0;
+      bytecounter += 4;
+   }
+   /**
+    * Copies the header of a template into a new message, in place of the
+    * body length, serial and header fields.
+    * @return The offset of the body length, to be filled in once the body is appended.
+    */
+   int appendHeader(MessageTemplate t)
+   {
+      byte[] h = t.header;
+      ensureCapacity(h.length-wireofs);
+      // the first four bytes hold the flags of this message
+      System.arraycopy(h, 4, wirebuf, 4, h.length-4);
+      wireofs = h.length;
+      bytecounter = h.length;
+      marshallint(serial, wirebuf, 8, 4);
+      headervals = t.fields;
+      return 4;
+   }
+   /**
+    * Returns the header strings of a message built by this process, by field.
+    */
+   String[] getHeaderStrings() { return headervals; }
+   /**
+    * Gives a received message the header strings of the message it was copied from,
+    * so they need not be decoded again.
+    */
+   void setHeaderStrings(String[] vals)
+   {
+      if (null != vals && null != headerofs) headervals = vals.clone();
    }
    /**
-    * Appends a byte to the buffer list.
+    * Writes the length of the header field array and pads to the start of the body.
+    * @param ofs The offset returned by beginHeaderFields.
+    */
+   protected void endHeaderFields(int ofs)
+   {
+      marshallint(bytecounter-ofs-4, ofs, 4);
+      pad((byte) 8);
+   }
+   /**
+    * Appends the remaining bytes of a buffer to the message,
+    * without changing its position.
+    */
+   void appendBytes(ByteBuffer buf)
+   {
+      int len = buf.remaining();
+      ensureCapacity(len);
+      buf.duplicate().get(wirebuf, wireofs, len);
+      wireofs += len;
+      bytecounter += len;
+   }
+   /**
+    * Appends a byte to the message.
     */
    protected void appendByte(byte b) 
    {
-      if (preallocated > 0) {
-         pabuf[paofs++] = b;
-         preallocated--;
-      } else {
-         if (bufferuse == wiredata.length) {
-            logger.debug("Resizing {}",bufferuse);
-            byte[][] temp = new byte[wiredata.length+BUFFERINCREMENT][];
-            System.arraycopy(wiredata, 0, temp, 0, wiredata.length);
-            wiredata = temp;
-         }
-         wiredata[bufferuse++] = new byte[] { b };
-         bytecounter++; 
-      }
+      ensureCapacity(1);
+      wirebuf[wireofs++] = b;
+      bytecounter++;
+   }
+   /**
+    * Appends a buffer to the end of the message without copying it.
+    * Nothing may be appended to the message after this.
+    */
+   private void appendTail(byte[] buf, int len)
+   {
+      ensureCapacity(0);
+      wiretail = buf;
+      wiretaillen = len;
+      bytecounter += len;
+   }
+   /**
+    * Reserves space in the message for an integer which is not yet known,
+    * such as a length. Fill it in later with marshallint(long, int, int).
+    * @param width The byte-width of the int.
+    * @return The offset into the message of the reserved space.
+    */
+   protected int reserveint(int width)
+   {
+      ensureCapacity(width);
+      int ofs = wireofs;
+      for (int i = 0; i < width; i++)
+         wirebuf[wireofs++] = 0;
+      bytecounter += width;
+      return ofs;
+   }
+   /**
+    * Marshalls an integer into space previously reserved with reserveint.
+    * Endianness is determined from the message.
+    * @param l The integer to marshall.
+    * @param ofs The offset returned by reserveint.
+    * @param width The byte-width of the int.
+    */
+   protected void marshallint(long l, int ofs, int width)
+   {
+      wiredata = null;
+      marshallint(l, wirebuf, ofs, width);
    }
    /**
     * Demarshalls an integer of a given width from a buffer.
@@ -349,9 +666,10 @@ public abstract class Message
     */
    public void appendint(long l, int width)
    { 
-      byte[] buf = new byte[width];
-      marshallint(l, buf, 0, width);
-      appendBytes(buf);
+      ensureCapacity(width);
+      marshallint(l, wirebuf, wireofs, width);
+      wireofs += width;
+      bytecounter += width;
    }
    /**
     * Marshalls an integer of a given width into a buffer.
@@ -396,10 +714,108 @@ public abstract class Message
          l >>= 8;
       }
    }
+   /**
+    * Returns the marshalled message. This is one contiguous buffer, 
+    * followed by the body as a second buffer for messages which were
+    * received or re-addressed with setSource.
+    */
    public byte[][] getWireData()
    {
+      if (null == wirebuf) return null;
+      if (null == wiredata) {
+         byte[] head = wirebuf;
+         if (wireofs != head.length)
+            head = Arrays.copyOf(head, wireofs);
+         if (null == wiretail)
+            wiredata = new byte[][] { head };
+         else if (wiretaillen != wiretail.length)
+            wiredata = new byte[][] { head, Arrays.copyOf(wiretail, wiretaillen) };
+         else
+            wiredata = new byte[][] { head, wiretail };
+      }
       return wiredata;
    }
+   /**
+    * Returns the buffer holding the start of the marshalled message,
+    * of which the first getWireLength() bytes are used. Unlike getWireData()
+    * this does not copy the buffer down to size.
+    */
+   byte[] getWireBuffer() { return wirebuf; }
+   /** Returns the number of bytes used in getWireBuffer(). */
+   int getWireLength() { return wireofs; }
+   /** Returns the body of a received message which follows getWireBuffer() on the wire, or null. */
+   byte[] getWireTail() { return wiretail; }
+   /** Returns the number of bytes used in getWireTail(). */
+   int getWireTailLength() { return wiretaillen; }
+   /**
+    * Shares the marshalled form and header fields of another message with this one.
+    * References to this message then count against m.
+    */
+   void copyWireData(Message m)
+   {
+      headers = m.headers;
+      header = m.header;
+      headerofs = m.headerofs;
+      headervals = m.headervals;
+      serial = m.serial;
+      replyserial = m.replyserial;
+      fds = m.fds;
+      nfds = m.nfds;
+      if (null == owner) BufferPool.give(wirebuf);
+      while (null != m.owner) m = m.owner;
+      owner = m;
+      wirebuf = m.wirebuf;
+      wireofs = m.wireofs;
+      wiretail = m.wiretail;
+      wiretaillen = m.wiretaillen;
+      wiredata = m.wiredata;
+      bytecounter = m.bytecounter;
+   }
+   /**
+    * Takes another reference to the buffers of this message.
+    * Each call must be matched by a call to release().
+    */
+   void retain()
+   {
+      if (null != owner) {
+         owner.retain();
+         return;
+      }
+      if (refcounter.getAndIncrement(this) <= 0) {
+         refcounter.decrementAndGet(this);
+         throw new IllegalStateException(_("Message has already been released."));
+      }
+   }
+   /**
+    * Gives up a reference to the buffers of this message.
+    * When the last reference is released the buffers are recycled, after which
+    * the message can no longer be sent and any parameters which have not been
+    * read yet are lost. Only messages the library never hands out are released;
+    * the rest are left to the garbage collector.
+    */
+   void release()
+   {
+      if (null != owner) {
+         owner.release();
+         return;
+      }
+      if (0 != refcounter.decrementAndGet(this)) return;
+      if (logger.isTraceEnabled())
+         logger.trace("Recycling buffers of message {}",serial);
+      closeFileDescriptors();
+      // the header of a received message stays readable
+      if (wirebuf != header) BufferPool.give(wirebuf);
+      if (!pinned) {
+         if (wiretail != body) BufferPool.give(wiretail);
+         BufferPool.give(body);
+      }
+      wirebuf = null;
+      wireofs = 0;
+      wiretail = null;
+      wiretaillen = 0;
+      wiredata = null;
+      body = null;
+   }
    /**
     * Formats the message in a human-readable format.
     */
@@ -415,6 +831,7 @@ public abstract class Message
       sb.append (' ');
       sb.append ('{');
       sb.append(' ');
+      Map<Byte, Object> headers = getHeaders();
       if (headers.size() == 0)
          sb.append('}');
       else {
@@ -473,240 +890,83 @@ public abstract class Message
     * @param type The field to return.
     * @return The value of the field or null if unset.
     */
-   public Object getHeader(byte type) { return headers.get(type); }
+   public Object getHeader(byte type)
+   {
+      if (null != headers || null == headerofs || type <= 0 || type >= headerofs.length)
+         return getHeaders().get(type);
+      int sigofs = headerofs[type];
+      if (0 == sigofs) return null;
+      switch (header[sigofs+1]) {
+         case ArgumentType.STRING:
+         case ArgumentType.SIGNATURE:
+            return getHeaderString(type);
+         case ArgumentType.OBJECT_PATH:
+            return new ObjectPath(getSource(), getHeaderString(type));
+         case ArgumentType.UINT32:
+            return new UInt32(demarshallint(header, headerValue(type, ArgumentType.UINT32), 4));
+         default:
+            return getHeaders().get(type);
+      }
+   }
    /**
-    * Appends a value to the message.
-    * The type of the value is read from a D-Bus signature and used to marshall 
-    * the value.
-    * @param sigb A buffer of the D-Bus signature.
-    * @param sigofs The offset into the signature corresponding to this value.
-    * @param data The value to marshall.
-    * @return The offset into the signature of the end of this value's type.
+    * Returns a view of part of a buffer in the byte order of this message.
     */
-   @SuppressWarnings("unchecked")
-   private int appendone(byte[] sigb, int sigofs, Object data) throws DBusException
+   private ByteBuffer order(byte[] buf, int ofs, int len)
    {
-      try {
-         int i = sigofs;
-         logger.debug("byteCounter: {}",bytecounter);
-         logger.debug("Appending type: {} value: {} ",((char)sigb[i]),data);
-
-         // pad to the alignment of this type.
-         pad(sigb[i]);
-         switch (sigb[i]) {
-            case ArgumentType.BYTE:
-               appendByte(((Number) data).byteValue());
-               break;
-            case ArgumentType.BOOLEAN:
-               appendint(((Boolean) data).booleanValue() ? 1 : 0, 4);
-               break;
-            case ArgumentType.DOUBLE:
-               long l = Double.doubleToLongBits(((Number) data).doubleValue());
-               appendint(l, 8);
-               break;
-            case ArgumentType.FLOAT:
-               int rf = Float.floatToIntBits(((Number) data).floatValue());
-               appendint(rf, 4);
-               break;
-            case ArgumentType.UINT32:
-               appendint(((Number) data).longValue(), 4);
-               break;
-            case ArgumentType.INT64:
-               appendint(((Number) data).longValue(), 8);
-               break;
-            case ArgumentType.UINT64:
-               if (big) {
-                  appendint(((UInt64) data).top(), 4);
-                  appendint(((UInt64) data).bottom(), 4);
-               } else {
-                  appendint(((UInt64) data).bottom(), 4);
-                  appendint(((UInt64) data).top(), 4);
-               }
-               break;
-            case ArgumentType.INT32:
-               appendint(((Number) data).intValue(), 4);
-               break;
-            case ArgumentType.UINT16:
-               appendint(((Number) data).intValue(), 2);
-               break;
-            case ArgumentType.INT16:
-               appendint(((Number) data).shortValue(), 2);
-               break;
-            case ArgumentType.STRING:
-            case ArgumentType.OBJECT_PATH:
-               // Strings are marshalled as a UInt32 with the length,
-               // followed by the String, followed by a null byte.
-               String payload = data.toString();
-               byte[] payloadbytes = null;
-               try {
-                  payloadbytes = payload.getBytes("UTF-8");
-               } catch (UnsupportedEncodingException UEe) {
-                  logger.debug("Encoding error:",UEe);
-                  throw new DBusException(_("System does not support UTF-8 encoding"),UEe);
-               }
-               logger.debug("Appending String of length {}",payloadbytes.length);
-               appendint(payloadbytes.length, 4);
-               appendBytes(payloadbytes);
-               appendBytes(padding[1]);
-               //pad(ArgumentType.STRING);? do we need this?
-               break;
-            case ArgumentType.SIGNATURE:
-               // Signatures are marshalled as a byte with the length,
-               // followed by the String, followed by a null byte.
-               // Signatures are generally short, so preallocate the array
-               // for the string, length and null byte.
-               if (data instanceof Type[])
-                  payload = Marshalling.getDBusType((Type[]) data);
-               else
-                  payload = (String) data;
-               byte[] pbytes = payload.getBytes();
-               preallocate(2+pbytes.length);
-               appendByte((byte) pbytes.length);
-               appendBytes(pbytes);
-               appendByte((byte) 0);
-               break;
-            case ArgumentType.ARRAY:
-               // Arrays are given as a UInt32 for the length in bytes,
-               // padding to the element alignment, then elements in
-               // order. The length is the length from the end of the
-               // initial padding to the end of the last element.
-               if (logger.isDebugEnabled() && data instanceof Object[]) {
-                     logger.debug("Appending array: {}",Arrays.deepToString((Object[])data));
-               }
-
-               byte[] alen = new byte[4];
-               appendBytes(alen);
-               pad(sigb[++i]);
-               long c = bytecounter;
-
-               // optimise primatives
-               if (data.getClass().isArray() && 
-                     data.getClass().getComponentType().isPrimitive()) {
-                  byte[] primbuf;
-                  int algn = getAlignment(sigb[i]);
-                  int len = Array.getLength(data);
-                  switch (sigb[i]) {
-                     case ArgumentType.BYTE:
-                        primbuf = (byte[]) data;
-                        break;
-                     case ArgumentType.INT16:
-                     case ArgumentType.INT32:
-                     case ArgumentType.INT64:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(Array.getLong(data, j), primbuf, k, algn);
-                        break;
-                     case ArgumentType.BOOLEAN:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(Array.getBoolean(data, j)?1:0, primbuf, k, algn);
-                        break;
-                     case ArgumentType.DOUBLE:
-                        primbuf = new byte[len*algn];
-                        if (data instanceof float[])
-                           for (int j = 0, k = 0; j < len; j++, k += algn)
-                              marshallint(Double.doubleToRawLongBits(((float[])data)[j]),
-                                    primbuf, k, algn);
-                        else
-                           for (int j = 0, k = 0; j < len; j++, k += algn)
-                              marshallint(Double.doubleToRawLongBits(((double[])data)[j]),
-                                    primbuf, k, algn);
-                        break;
-                     case ArgumentType.FLOAT:
-                        primbuf = new byte[len*algn];
-                        for (int j = 0, k = 0; j < len; j++, k += algn)
-                           marshallint(
-                                 Float.floatToRawIntBits(((float[])data)[j]),
-                                 primbuf, k, algn);
-                        break;
-                     default:
-                        throw new MarshallingException(_("Primative array being sent as non-primative array."));
-                  }
-                  appendBytes(primbuf);
-               } else if (data instanceof List) {
-                  Object[] contents = ((List) data).toArray();
-                  int diff = i;
-                  ensureBuffers(contents.length*4);
-                  for (Object o: contents) 
-                     diff = appendone(sigb, i, o);
-                  i = diff;
-               } else if (data instanceof Map) {
-                  int diff = i;
-                  ensureBuffers(((Map) data).size()*6);
-                  for (Map.Entry<Object,Object> o: ((Map<Object,Object>) data).entrySet())
-                     diff = appendone(sigb, i, o);
-                  if (i == diff) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-diff];
-                     System.arraycopy(sigb, diff, temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1);
-                     diff += temp4;
-                  }
-                  i = diff;
-               } else {
-                  Object[] contents = (Object[]) data;
-                  ensureBuffers(contents.length*4);
-                  int diff = i;
-                  for (Object o: contents) 
-                     diff = appendone(sigb, i, o);
-                  i = diff;
-               }
-               logger.debug( "start: {} end: {} length: {}",c,bytecounter,(bytecounter-c));
-               marshallint(bytecounter - c, alen, 0, 4);
-               break;
-            case ArgumentType.STRUCT1:
-               // Structs are aligned to 8 bytes
-               // and simply contain each element marshalled in order
-               Object[] contents;
-               if (data instanceof Container) 
-                  contents = ((Container) data).getParameters();
-               else
-                  contents = (Object[]) data;
-               ensureBuffers(contents.length*4);
-               int j = 0;
-               for (i++; sigb[i] != ArgumentType.STRUCT2; i++)
-                  i = appendone(sigb, i, contents[j++]);
-               break;
-            case ArgumentType.DICT_ENTRY1:
-               // Dict entries are the same as structs.
-               if (data instanceof Map.Entry) {
-                  i++;
-                  i = appendone(sigb, i, ((Map.Entry) data).getKey());
-                  i++;
-                  i = appendone(sigb, i, ((Map.Entry) data).getValue());
-                  i++;
-               } else {
-                  contents = (Object[]) data;
-                  j = 0;
-                  for (i++; sigb[i] != ArgumentType.DICT_ENTRY2; i++)
-                     i = appendone(sigb, i, contents[j++]);
-               }
-               break;
-            case ArgumentType.VARIANT:
-               // Variants are marshalled as a signature
-               // followed by the value.
-               if (data instanceof Variant) {
-                  Variant var = (Variant) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, var.getSig());
-                  appendone((var.getSig()).getBytes(), 0, var.getValue());
-               } else if (data instanceof Object[]) {
-                  contents = (Object[]) data;
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, contents[0]);
-                  appendone(((String) contents[0]).getBytes(), 0, contents[1]);
-               } else {
-                  String sig = Marshalling.getDBusType(data.getClass())[0];
-                  appendone(new byte[] {ArgumentType.SIGNATURE}, 0, sig);
-                  appendone((sig).getBytes(), 0, data);
-               }
-               break;
-         }
-         return i;
-      } catch (ClassCastException CCe) {
-         logger.debug("Class exception: ",CCe);
-         throw new MarshallingException(MessageFormat.format(_("Trying to marshall to unconvertable type (from {0} to {1})."), new Object[] { data.getClass().getName(), sigb[sigofs] }));
+      return ByteBuffer.wrap(buf, ofs, len).order(big ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+   }
+   /**
+    * Marshall a Java primitive array straight into the buffer.
+    * Arrays of the matching Java type are transferred in bulk through a
+    * ByteBuffer view; other primitive arrays are converted element by element.
+    * The length of the array and the padding must already have been appended.
+    * @param type The element type.
+    * @param data The primitive array.
+    */
+   void appendPrimitives(byte type, Object data) throws DBusException
+   {
+      int algn = getAlignment(type);
+      int len = Array.getLength(data);
+      ensureCapacity(len*algn);
+      byte[] primbuf = wirebuf;
+      int start = wireofs;
+      switch (type) {
+         case ArgumentType.BYTE:
+            System.arraycopy((byte[]) data, 0, primbuf, start, len);
+            break;
+         case ArgumentType.INT16:
+         case ArgumentType.INT32:
+         case ArgumentType.INT64:
+            if (2 == algn && data instanceof short[])
+               order(primbuf, start, len*algn).asShortBuffer().put((short[]) data);
+            else if (4 == algn && data instanceof int[])
+               order(primbuf, start, len*algn).asIntBuffer().put((int[]) data);
+            else if (8 == algn && data instanceof long[])
+               order(primbuf, start, len*algn).asLongBuffer().put((long[]) data);
+            else
+               for (int j = 0, k = start; j < len; j++, k += algn)
+                  marshallint(Array.getLong(data, j), primbuf, k, algn);
+            break;
+         case ArgumentType.BOOLEAN:
+            for (int j = 0, k = start; j < len; j++, k += algn)
+               marshallint(Array.getBoolean(data, j)?1:0, primbuf, k, algn);
+            break;
+         case ArgumentType.DOUBLE:
+            if (data instanceof float[])
+               for (int j = 0, k = start; j < len; j++, k += algn)
+                  marshallint(Double.doubleToRawLongBits(((float[])data)[j]),
+                        primbuf, k, algn);
+            else
+               order(primbuf, start, len*algn).asDoubleBuffer().put((double[]) data);
+            break;
+         case ArgumentType.FLOAT:
+            order(primbuf, start, len*algn).asFloatBuffer().put((float[]) data);
+            break;
+         default:
+            throw new MarshallingException(_("Primative array being sent as non-primative array."));
       }
+      wireofs += len*algn;
+      bytecounter += len*algn;
    }
    /**
     * Pad the message to the proper alignment for the given type.
@@ -715,16 +975,15 @@ public abstract class Message
    {
       logger.debug("padding for {}",(char)type);
       int a = getAlignment(type);
-      logger.trace("{} {} {} {}", preallocated, paofs, bytecounter, a);
-      int b = (int) ((bytecounter-preallocated)%a);
+      int b = (int) (bytecounter%a);
       if (0 == b) return;
       a = (a-b);
-      if (preallocated > 0) {
-         paofs += a;
-         preallocated -= a;
-      } else
-         appendBytes(padding[a]);
-      logger.trace("{} {} {} {}", preallocated, paofs, bytecounter, a);
+      ensureCapacity(a);
+      for (int i = 0; i < a; i++)
+         wirebuf[wireofs++] = 0;
+      bytecounter += a;
+      if (logger.isTraceEnabled())
+         logger.trace("{} {}", bytecounter, a);
    }
    /**
     * Return the alignment for a given type.
@@ -744,6 +1003,7 @@ public abstract class Message
          case ArgumentType.STRING:
          case ArgumentType.OBJECT_PATH:
          case ArgumentType.ARRAY:
+         case ArgumentType.UNIX_FD:
             return 4;
          case 8:
          case ArgumentType.INT64:
@@ -774,14 +1034,9 @@ public abstract class Message
       if (logger.isDebugEnabled()) {
           logger.debug("Appending sig:{} data: {}", sig, Arrays.deepToString(data));
       }
-      byte[] sigb = sig.getBytes();
-      int j = 0;
-      for (int i = 0; i < sigb.length; i++) {
-         if (logger.isTraceEnabled()) {
-             logger.debug("Appending item: {} {} {}", i, ((char) sigb[i]), j);
-         }
-         i = appendone(sigb, i, data[j++]);
-      }
+      TypeCodec[] codecs = TypeCodec.compile(sig);
+      for (int i = 0; i < codecs.length; i++)
+         codecs[i].append(this, data[i]);
    }
    /**
     * Align a counter to the given type.
@@ -797,223 +1052,52 @@ public abstract class Message
       return current+(a-(current%a));
    }
    /**
-    * Demarshall one value from a buffer.
-    * @param sigb A buffer of the D-Bus signature.
+    * Demarshall an array of primitives from a buffer into a Java primitive array.
+    * @param type The element type.
     * @param buf The buffer to demarshall from.
-    * @param ofs An array of two ints, the offset into the signature buffer 
-    *            and the offset into the data buffer. These values will be
-    *            updated to the start of the next value ofter demarshalling.
-    * @param contained converts nested arrays to Lists
-    * @return The demarshalled value.
+    * @param ofs ofs[1] is the offset of the first element, and is updated to the end of the array.
+    * @param length The number of elements.
+    * @return The demarshalled array.
     */
-   private Object extractone(byte[] sigb, byte[] buf, int[] ofs, boolean contained) throws DBusException
+   Object extractPrimitives(byte type, byte[] buf, int[] ofs, int length) throws DBusException
    {
-      logger.debug("Extracting type: {} from offset {}",((char)sigb[ofs[0]]),ofs[1]);
-      Object rv = null;
-      ofs[1] = align(ofs[1], sigb[ofs[0]]);
-      switch (sigb[ofs[0]]) {
+      int algn = getAlignment(type);
+      Object rv;
+      switch (type) {
          case ArgumentType.BYTE:
-            rv = buf[ofs[1]++];
-            break;
-         case ArgumentType.UINT32:
-            rv = new UInt32(demarshallint(buf, ofs[1], 4));
-            ofs[1] += 4;
-            break;
-         case ArgumentType.INT32:
-            rv = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
+            rv = new byte[length];
+            System.arraycopy(buf, ofs[1], rv, 0, length);
             break;
          case ArgumentType.INT16:
-            rv = (short) demarshallint(buf, ofs[1], 2);
-            ofs[1] += 2;
+            rv = new short[length];
+            order(buf, ofs[1], length*algn).asShortBuffer().get((short[]) rv);
             break;
-         case ArgumentType.UINT16:
-            rv = new UInt16((int) demarshallint(buf, ofs[1], 2));
-            ofs[1] += 2;
+         case ArgumentType.INT32:
+            rv = new int[length];
+            order(buf, ofs[1], length*algn).asIntBuffer().get((int[]) rv);
             break;
          case ArgumentType.INT64:
-            rv = demarshallint(buf, ofs[1], 8);
-            ofs[1] += 8;
-            break;
-         case ArgumentType.UINT64:
-            long top;
-            long bottom;
-            if (big) {
-               top = demarshallint(buf, ofs[1], 4);
-               ofs[1] += 4;
-               bottom = demarshallint(buf, ofs[1], 4);
-            } else {
-               bottom = demarshallint(buf, ofs[1], 4);
-               ofs[1] += 4;
-               top = demarshallint(buf, ofs[1], 4);
-            }
-            rv = new UInt64(top, bottom);
-            ofs[1] += 4;
-            break;
-         case ArgumentType.DOUBLE:
-            long l = demarshallint(buf, ofs[1], 8);
-            ofs[1] += 8;
-            rv = Double.longBitsToDouble(l);
-            break;
-         case ArgumentType.FLOAT:
-            int rf = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
-            rv = Float.intBitsToFloat(rf);
+            rv = new long[length];
+            order(buf, ofs[1], length*algn).asLongBuffer().get((long[]) rv);
             break;
          case ArgumentType.BOOLEAN:
-            rf = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
-            rv = (1==rf)?Boolean.TRUE:Boolean.FALSE;
-            break;
-         case ArgumentType.ARRAY:
-            long size = demarshallint(buf, ofs[1], 4);
-            logger.debug("Reading array of size: {}",size);
-            ofs[1] += 4;
-            byte algn = (byte) getAlignment(sigb[++ofs[0]]);
-            ofs[1] = align(ofs[1], sigb[ofs[0]]);
-            int length = (int) (size / algn);
-            if (length > DBusConnection.MAX_ARRAY_LENGTH)
-               throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
-            // optimise primatives
-            switch (sigb[ofs[0]]) {
-               case ArgumentType.BYTE:
-                  rv = new byte[length];
-                  System.arraycopy(buf, ofs[1], rv, 0, length);
-                  ofs[1] += size;
-                  break;
-               case ArgumentType.INT16:
-                  rv = new short[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((short[]) rv)[j] = (short) demarshallint(buf, ofs[1], algn);
-                  break;
-               case ArgumentType.INT32:
-                  rv = new int[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((int[]) rv)[j] = (int) demarshallint(buf, ofs[1], algn);
-                  break;
-               case ArgumentType.INT64:
-                  rv = new long[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((long[]) rv)[j] = demarshallint(buf, ofs[1], algn);
-                  break;
-               case ArgumentType.BOOLEAN:
-                  rv = new boolean[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((boolean[]) rv)[j] = (1 == demarshallint(buf, ofs[1], algn));
-                  break;
-               case ArgumentType.FLOAT:
-                  rv = new float[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((float[]) rv)[j] =
-                        Float.intBitsToFloat((int)demarshallint(buf, ofs[1], algn));
-                  break;
-               case ArgumentType.DOUBLE:
-                  rv = new double[length];
-                  for (int j = 0; j < length; j++, ofs[1] += algn) 
-                     ((double[]) rv)[j] =
-                        Double.longBitsToDouble(demarshallint(buf, ofs[1], algn));
-                  break;
-               case ArgumentType.DICT_ENTRY1:
-                  if (0 == size) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-ofs[0]];
-                     System.arraycopy(sigb, ofs[0], temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     // ofs[0] gets incremented anyway. Leave one character on the stack
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
-                     ofs[0] += temp4;
-                     logger.debug("Aligned type: {} {} {}",temp3,temp4,ofs[0]);
-                  }
-                  int ofssave = ofs[0];
-                  long end = ofs[1]+size;
-                  Vector<Object[]> entries = new Vector<Object[]>();
-                  while (ofs[1] < end) {
-                     ofs[0] = ofssave;
-                     entries.add((Object[]) extractone(sigb, buf, ofs, true));
-                  }
-                  rv = new DBusMap<Object, Object>(entries.toArray(new Object[0][]));
-                  break;
-               default:
-                  if (0 == size) {
-                     // advance the type parser even on 0-size arrays.
-                     Vector<Type> temp = new Vector<Type>();
-                     byte[] temp2 = new byte[sigb.length-ofs[0]];
-                     System.arraycopy(sigb, ofs[0], temp2, 0, temp2.length);
-                     String temp3 = new String(temp2);
-                     // ofs[0] gets incremented anyway. Leave one character on the stack
-                     int temp4 = Marshalling.getJavaType(temp3, temp, 1) - 1;
-                     ofs[0] += temp4;
-                     logger.debug("Aligned type: {} {} {}",temp3,temp4,ofs[0]);
-                  }
-                  ofssave = ofs[0];
-                  end = ofs[1]+size;
-                  Vector<Object> contents = new Vector<Object>();
-                  while (ofs[1] < end) {
-                     ofs[0] = ofssave;
-                     contents.add(extractone(sigb, buf, ofs, true));
-                  }
-                  rv = contents;
-            }
-            if (contained && !(rv instanceof List) && !(rv instanceof Map))
-               rv = ArrayFrob.listify(rv);
-            break;
-         case ArgumentType.STRUCT1:
-            Vector<Object> contents = new Vector<Object>();
-            while (sigb[++ofs[0]] != ArgumentType.STRUCT2)
-               contents.add(extractone(sigb, buf, ofs, true));
-            rv = contents.toArray();
-            break;
-         case ArgumentType.DICT_ENTRY1:
-            Object[] decontents = new Object[2];
-            if (logger.isDebugEnabled()) {
-                logger.debug("Extracting Dict Entry ({}) from: {}", Hexdump.toAscii(sigb, ofs[0], sigb.length - ofs[0]), Hexdump.toHex(buf, ofs[1], buf.length - ofs[1]));
-            }
-            ofs[0]++;
-            decontents[0] = extractone(sigb, buf, ofs, true);
-            ofs[0]++;
-            decontents[1] = extractone(sigb, buf, ofs, true);
-            ofs[0]++;
-            rv = decontents;
+            rv = new boolean[length];
+            IntBuffer ib = order(buf, ofs[1], length*algn).asIntBuffer();
+            for (int j = 0; j < length; j++) 
+               ((boolean[]) rv)[j] = (1 == ib.get(j));
             break;
-         case ArgumentType.VARIANT:
-            int[] newofs = new int[] { 0, ofs[1] };
-            String sig = (String) extract(ArgumentType.SIGNATURE_STRING, buf, newofs)[0];
-            newofs[0] = 0;
-            rv = new Variant<Object>(extract(sig, buf, newofs)[0] , sig);
-            ofs[1] = newofs[1];
-            break;
-         case ArgumentType.STRING:
-            length = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
-            try {
-               rv = new String(buf, ofs[1], length, "UTF-8");
-            } catch (UnsupportedEncodingException UEe) {
-               logger.debug("Encoding: ",UEe);
-               throw new DBusException(_("System does not support UTF-8 encoding"),UEe);
-            }
-            ofs[1] += length + 1;
-            break;
-         case ArgumentType.OBJECT_PATH:
-            length = (int) demarshallint(buf, ofs[1], 4);
-            ofs[1] += 4;
-            rv = new ObjectPath(getSource(), new String(buf, ofs[1], length));
-            ofs[1] += length + 1;
+         case ArgumentType.FLOAT:
+            rv = new float[length];
+            order(buf, ofs[1], length*algn).asFloatBuffer().get((float[]) rv);
             break;
-         case ArgumentType.SIGNATURE:
-            length = (buf[ofs[1]++] & 0xFF);
-            rv = new String(buf, ofs[1], length);
-            ofs[1] += length + 1;
+         case ArgumentType.DOUBLE:
+            rv = new double[length];
+            order(buf, ofs[1], length*algn).asDoubleBuffer().get((double[]) rv);
             break;
-         default: 
-            throw new UnknownTypeCodeException(sigb[ofs[0]]);
-      }
-      if (logger.isDebugEnabled()) {
-          if (rv instanceof Object[])
-              logger.debug("Extracted: {} (now at {})", Arrays.deepToString((Object[]) rv), ofs[1]);
-          else
-              logger.debug("Extracted: {} (now at {})", rv, ofs[1]);
+         default:
+            throw new UnknownTypeCodeException(type);
       }
+      ofs[1] += length*algn;
       return rv;
    }
    /** 
@@ -1037,53 +1121,58 @@ public abstract class Message
     * @return The demarshalled value(s).
     */
    public Object[] extract(String sig, byte[] buf, int[] ofs) throws DBusException
+   {
+      return extract(sig, buf, ofs, buf.length);
+   }
+   /**
+    * Demarshall values from a buffer which may be longer than them,
+    * such as a message body from the buffer pool.
+    * @param end The offset of the end of the values in the buffer.
+    * @throws MarshallingException If a value runs past the end.
+    */
+   Object[] extract(String sig, byte[] buf, int[] ofs, int end) throws DBusException
    {
       if (logger.isDebugEnabled()) {
           logger.debug("extract({},#{}, \\{{},{}\\})",sig,buf.length,ofs[0],ofs[1]);
           logger.debug("extract(" + sig + ",#" + buf.length + ", {" + ofs[0] + "," + ofs[1] + "}");
       }
-      Vector<Object> rv = new Vector<Object>();
-      byte[] sigb = sig.getBytes();
-      for (int[] i = ofs; i[0] < sigb.length; i[0]++) {
-         rv.add(extractone(sigb, buf, i, false));
-      }
-      return rv.toArray();
+      TypeCodec[] codecs = TypeCodec.compile(0 == ofs[0] ? sig : sig.substring(ofs[0]));
+      Object[] rv = new Object[codecs.length];
+      for (int i = 0; i < codecs.length; i++)
+         rv[i] = codecs[i].extract(this, buf, ofs, end, false);
+      ofs[0] = sig.length();
+      return rv;
    }
    /**
     * Returns the Bus ID that sent the message.
     */
-   public String getSource() { return (String) headers.get(HeaderField.SENDER); }
+   public String getSource() { return getHeaderString(HeaderField.SENDER); }
    /**
     * Returns the destination of the message.
     */
-   public String getDestination() { return (String) headers.get(HeaderField.DESTINATION); }
+   public String getDestination() { return getHeaderString(HeaderField.DESTINATION); }
    /**
     * Returns the interface of the message.
     */
-   public String getInterface() { return  (String) headers.get(HeaderField.INTERFACE); }
+   public String getInterface() { return getHeaderString(HeaderField.INTERFACE); }
    /**
     * Returns the object path of the message.
     */
-   public String getPath()
-   { 
-      Object o = headers.get(HeaderField.PATH);
-      if (null == o) return null;
-      return o.toString();
-   }
+   public String getPath() { return getHeaderString(HeaderField.PATH); }
    /**
     * Returns the member name or error name this message represents.
     */
    public String getName() 
    { 
       if (this instanceof Error)
-         return (String) headers.get(HeaderField.ERROR_NAME); 
+         return getHeaderString(HeaderField.ERROR_NAME); 
       else
-         return (String) headers.get(HeaderField.MEMBER); 
+         return getHeaderString(HeaderField.MEMBER); 
    }
    /**
     * Returns the dbus signature of the parameters.
     */
-   public String getSig() { return (String) headers.get(HeaderField.SIGNATURE); }
+   public String getSig() { return getHeaderString(HeaderField.SIGNATURE); }
    /**
     * Returns the message flags.
     */
@@ -1099,7 +1188,14 @@ public abstract class Message
     */
    public long getReplySerial() 
    { 
-      Number l = (Number) headers.get(HeaderField.REPLY_SERIAL); 
+      Map<Byte, Object> hs = headers;
+      if (null == hs) {
+         if (null == headerofs) return replyserial;
+         int v = headerValue(HeaderField.REPLY_SERIAL, ArgumentType.UINT32);
+         if (0 == v) return 0;
+         return demarshallint(header, v, 4);
+      }
+      Number l = (Number) hs.get(HeaderField.REPLY_SERIAL); 
       if (null == l) return 0;
       return l.longValue();
    }
@@ -1109,13 +1205,143 @@ public abstract class Message
    public Object[] getParameters() throws DBusException 
    { 
       if (null == args && null != body) {
-         String sig = (String) headers.get(HeaderField.SIGNATURE);
-         if (null != sig && 0 != body.length) {
-            args = extract(sig, body, 0);
+         String sig = getSig();
+         if (null != sig && 0 != bodylen) {
+            args = extract(sig, body, new int[] { 0, 0 }, (int) bodylen);
          } else args = new Object[0];
       }
       return args; 
    }
+   /**
+    * Returns the parameters of a received message for the given Java types.
+    * Where a top-level byte array is wanted as a ByteBuffer it is returned
+    * as a slice of the message body rather than copied, and the body is
+    * no longer recycled when the message is released.
+    * @param types The Java types the parameters will be converted to.
+    */
+   Object[] getParameters(Type[] types) throws DBusException
+   {
+      boolean slice = false;
+      if (null != types)
+         for (Type t: types)
+            if (ByteBuffer.class.equals(t)) slice = true;
+      String sig = getSig();
+      if (!slice || null != args || null == body || null == sig || 0 == bodylen)
+         return getParameters();
+      TypeCodec[] codecs = TypeCodec.compile(sig);
+      Object[] rv = new Object[codecs.length];
+      int[] ofs = new int[] { 0, 0 };
+      for (int i = 0; i < codecs.length; i++) {
+         if (i < types.length && ByteBuffer.class.equals(types[i])
+               && codecs[i] instanceof TypeCodec.ArrayCodec
+               && ArgumentType.BYTE == ((TypeCodec.ArrayCodec) codecs[i]).element.type)
+            rv[i] = ((TypeCodec.ArrayCodec) codecs[i]).slice(this, body, ofs, (int) bodylen);
+         else
+            rv[i] = codecs[i].extract(this, body, ofs, (int) bodylen, false);
+      }
+      return rv;
+   }
+   /**
+    * Marks the buffers of this message as referenced from outside,
+    * so that they are not recycled when it is released.
+    */
+   void pin()
+   {
+      if (null != owner) owner.pin();
+      else pinned = true;
+   }
+   /**
+    * Adds a file descriptor to be sent with this message.
+    * @return The index of the descriptor, which is what the body holds.
+    */
+   int addFileDescriptor(int fd)
+   {
+      if (null == fds) fds = new int[4];
+      else if (nfds == fds.length) fds = Arrays.copyOf(fds, nfds*2);
+      fds[nfds] = fd;
+      return nfds++;
+   }
+   /**
+    * Sets the file descriptors received with this message.
+    */
+   void setFileDescriptors(int[] fds)
+   {
+      this.fds = fds;
+      this.nfds = fds.length;
+      fdsreceived = true;
+   }
+   /**
+    * Closes the file descriptors received with this message if none of them
+    * were handed out, as nothing else will.
+    */
+   void closeFileDescriptors()
+   {
+      if (!fdsreceived || fdstaken) return;
+      fdstaken = true;
+      for (int i = 0; i < nfds; i++) {
+         try {
+            MemFD.close(fds[i]);
+         } catch (IOException IOe) {
+            logger.debug("Could not close received file descriptor: {}", IOe.toString());
+         }
+      }
+   }
+   /**
+    * Returns the file descriptors sent or received with this message,
+    * or null if there are none.
+    */
+   int[] getFileDescriptors()
+   {
+      if (0 == nfds) return null;
+      if (nfds != fds.length) fds = Arrays.copyOf(fds, nfds);
+      return fds;
+   }
+   /**
+    * Returns the file descriptor at an index given in the body.
+    */
+   FileDescriptor getFileDescriptor(int index) throws MarshallingException
+   {
+      if (index < 0 || index >= nfds)
+         throw new MarshallingException(MessageFormat.format(_("File descriptor index {0} out of range, {1} were received."), new Object[] { index, nfds }));
+      // the descriptors are the receiver's to close once it has been given one
+      if (null != owner) owner.fdstaken = true;
+      else fdstaken = true;
+      return new FileDescriptor(fds[index]);
+   }
+   /**
+    * Adds the UNIX_FDS header field if any file descriptors were appended to
+    * the body. Called once the body is complete, as that is when the count is
+    * known. Each header field is an 8-aligned struct, so adding one at the end
+    * of the header moves the body along by exactly 8 bytes and keeps it aligned.
+    */
+   protected void appendFileDescriptorCount()
+   {
+      if (0 == nfds) return;
+      int end = 16 + (int) demarshallint(wirebuf, 12, 4);
+      int start = align(end, (byte) 8);
+      ensureCapacity(8);
+      System.arraycopy(wirebuf, start, wirebuf, start+8, wireofs-start);
+      wirebuf[start] = HeaderField.UNIX_FDS;
+      wirebuf[start+1] = 1;
+      wirebuf[start+2] = ArgumentType.UINT32;
+      wirebuf[start+3] = 0;
+      marshallint(nfds, wirebuf, start+4, 4);
+      marshallint(start+8-16, wirebuf, 12, 4);
+      wireofs += 8;
+      bytecounter += 8;
+   }
+   /**
+    * Returns a cursor for reading the parameters of a received message one
+    * at a time, skipping those which are not wanted without demarshalling them.
+    * @return A reader positioned before the first parameter, or null if this
+    *         message was not received or has been released.
+    */
+   public MessageBodyReader getBodyReader()
+   {
+      if (null == body) return null;
+      String sig = getSig();
+      return new MessageBodyReader(this, body, 0, (int) bodylen, null == sig ? "" : sig);
+   }
    protected void setArgs(Object[] args) { this.args = args; }
    /**
     * Warning, do not use this method unless you really know what you are doing.
@@ -1123,10 +1349,16 @@ public abstract class Message
    public void setSource(String source) throws DBusException
    {
       if (null != body) {
-         wiredata = new byte[BUFFERINCREMENT][];
-         bufferuse = 0;
+         Map<Byte, Object> headers = getHeaders();
+         if (wirebuf != header) BufferPool.give(wirebuf);
+         header = null;
+         headerofs = null;
+         headervals = null;
+         wirebuf = BufferPool.take(BUFFERSIZE);
+         wireofs = 0;
+         wiretail = null;
+         wiredata = null;
          bytecounter = 0;
-         preallocate(12);
          append("yyyyuu", big ? Endian.BIG : Endian.LITTLE, type, flags, protover, bodylen, serial);
          headers.put(HeaderField.SENDER, source);
          Object[][] newhead = new Object[headers.size()][];
@@ -1139,7 +1371,7 @@ public abstract class Message
          }
          append("a(yv)", (Object) newhead);
          pad((byte) 8);
-         appendBytes(body);
+         appendTail(body, (int) bodylen);
       }
    }
 }
@@ -0,0 +1,459 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.Message.ArgumentType;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.freedesktop.dbus.exceptions.UnknownTypeCodeException;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * Reads the body of a received message one value at a time.
+ * <p>
+ * Values are read in signature order with the next methods, or passed
+ * over with skip(), which does not demarshall them. Skipping an array
+ * takes the same time however large it is. Containers can be read whole
+ * with next(), or entered with enterArray(), enterStruct(), enterDictEntry()
+ * or enterVariant() and their contents read in turn, after which exit()
+ * skips anything left and returns to the enclosing container.
+ * </p>
+ * <p>
+ * A reader is obtained from Message.getBodyReader() and is only valid
+ * until the message is released.
+ * </p>
+ */
+public class MessageBodyReader
+{
+   /** The position in an enclosing container, saved while a nested one is read. */
+   private static class Level
+   {
+      byte container;
+      byte[] sigb;
+      int sigstart;
+      int sigend;
+      int bufend;
+      int resume;
+   }
+
+   private final Message m;
+   private final byte[] buf;
+   /** The offset just after the body in buf. */
+   private final int bodyend;
+   private int ofs;
+   private byte[] sigb;
+   private int sigofs;
+   private int sigstart;
+   private int sigend;
+   private int bufend;
+   private byte container = 0;
+   private LinkedList<Level> levels = new LinkedList<Level>();
+
+   MessageBodyReader(Message m, byte[] buf, int ofs, int len, String sig)
+   {
+      this.m = m;
+      this.buf = buf;
+      this.bodyend = ofs+len;
+      this.ofs = ofs;
+      this.sigb = sig.getBytes();
+      this.sigofs = 0;
+      this.sigstart = 0;
+      this.sigend = sigb.length;
+   }
+
+   private static int align(int current, byte type)
+   {
+      int a = Message.getAlignment(type);
+      return (current + a - 1) / a * a;
+   }
+   /**
+    * Returns the offset in sig just after the single complete type starting at ofs.
+    */
+   private static int sigEnd(byte[] sig, int ofs)
+   {
+      switch (sig[ofs]) {
+         case ArgumentType.ARRAY:
+            return sigEnd(sig, ofs+1);
+         case ArgumentType.STRUCT1:
+         case ArgumentType.DICT_ENTRY1:
+            ofs++;
+            while (sig[ofs] != ArgumentType.STRUCT2 && sig[ofs] != ArgumentType.DICT_ENTRY2)
+               ofs = sigEnd(sig, ofs);
+            return ofs+1;
+         default:
+            return ofs+1;
+      }
+   }
+   /**
+    * In an array, start again at the element type for each element.
+    */
+   private void nextElement()
+   {
+      if (ArgumentType.ARRAY == container && sigofs >= sigend && ofs < bufend)
+         sigofs = sigstart;
+   }
+   /**
+    * Checks the next value is of the given type and moves to the start of it.
+    */
+   private void expect(byte type) throws DBusException
+   {
+      if (!hasNext()) throw new MarshallingException(_("No more values in message body."));
+      nextElement();
+      if (sigb[sigofs] != type)
+         throw new MarshallingException(MessageFormat.format(_("Expected a value of type {0} but found {1}."), new Object[] { (char) type, (char) sigb[sigofs] }));
+      ofs = align(ofs, type);
+      sigofs++;
+   }
+   /**
+    * Checks there are n more bytes in the body.
+    */
+   private void need(long n) throws DBusException
+   {
+      if (n < 0 || ofs+n > bodyend)
+         throw new MarshallingException(_("Message body is shorter than the values in it."));
+   }
+   /**
+    * Moves past one value without demarshalling it.
+    * @param sig The signature buffer containing the type of the value.
+    * @param si The offset of the type in sig.
+    * @return The offset in sig just after the type.
+    */
+   private int skipValue(byte[] sig, int si) throws DBusException
+   {
+      byte type = sig[si];
+      ofs = align(ofs, type);
+      switch (type) {
+         case ArgumentType.BYTE:
+            need(1);
+            ofs += 1;
+            return si+1;
+         case ArgumentType.INT16:
+         case ArgumentType.UINT16:
+            need(2);
+            ofs += 2;
+            return si+1;
+         case ArgumentType.BOOLEAN:
+         case ArgumentType.INT32:
+         case ArgumentType.UINT32:
+         case ArgumentType.FLOAT:
+         case ArgumentType.UNIX_FD:
+            need(4);
+            ofs += 4;
+            return si+1;
+         case ArgumentType.INT64:
+         case ArgumentType.UINT64:
+         case ArgumentType.DOUBLE:
+            need(8);
+            ofs += 8;
+            return si+1;
+         case ArgumentType.STRING:
+         case ArgumentType.OBJECT_PATH:
+            need(4);
+            long length = m.demarshallint(buf, ofs, 4);
+            need(4 + length + 1);
+            ofs += 4 + (int) length + 1;
+            return si+1;
+         case ArgumentType.SIGNATURE:
+            need(1);
+            need(2 + (buf[ofs] & 0xFF));
+            ofs += 2 + (buf[ofs] & 0xFF);
+            return si+1;
+         case ArgumentType.ARRAY:
+            need(4);
+            long size = m.demarshallint(buf, ofs, 4);
+            ofs = align(ofs+4, sig[si+1]);
+            need(size);
+            ofs += size;
+            return sigEnd(sig, si+1);
+         case ArgumentType.STRUCT1:
+         case ArgumentType.DICT_ENTRY1:
+            si++;
+            while (sig[si] != ArgumentType.STRUCT2 && sig[si] != ArgumentType.DICT_ENTRY2)
+               si = skipValue(sig, si);
+            return si+1;
+         case ArgumentType.VARIANT:
+            // the signature of the variant is read in place
+            need(1);
+            need(2 + (buf[ofs] & 0xFF));
+            int vsig = ofs+1;
+            ofs += 2 + (buf[ofs] & 0xFF);
+            skipValue(buf, vsig);
+            return si+1;
+         default:
+            throw new UnknownTypeCodeException(type);
+      }
+   }
+   private void push(byte type, byte[] sig, int start, int end, int resume)
+   {
+      Level l = new Level();
+      l.container = container;
+      l.sigb = sigb;
+      l.sigstart = sigstart;
+      l.sigend = sigend;
+      l.bufend = bufend;
+      l.resume = resume;
+      levels.addFirst(l);
+      container = type;
+      sigb = sig;
+      sigstart = start;
+      sigofs = start;
+      sigend = end;
+   }
+
+   /**
+    * Returns true if there is another value in the current container,
+    * or at the top level another parameter.
+    */
+   public boolean hasNext()
+   {
+      if (ArgumentType.ARRAY == container) return ofs < bufend;
+      return sigofs < sigend;
+   }
+   /**
+    * Returns the type code of the next value, as in Message.ArgumentType,
+    * or 0 if there are no more values.
+    */
+   public byte getType()
+   {
+      if (!hasNext()) return 0;
+      nextElement();
+      return sigb[sigofs];
+   }
+   /**
+    * Returns the full signature of the next value, or null if there are no more values.
+    */
+   public String getSignature()
+   {
+      if (!hasNext()) return null;
+      nextElement();
+      return new String(sigb, sigofs, sigEnd(sigb, sigofs)-sigofs);
+   }
+   /**
+    * Returns how deep in nested containers the reader is; 0 is the top level.
+    */
+   public int getDepth()
+   {
+      return levels.size();
+   }
+   /**
+    * Demarshalls the next value whatever its type,
+    * in the same form as a parameter from Message.getParameters().
+    */
+   public Object next() throws DBusException
+   {
+      if (!hasNext()) throw new MarshallingException(_("No more values in message body."));
+      nextElement();
+      int end = sigEnd(sigb, sigofs);
+      int[] o = new int[] { 0, ofs };
+      Object rv;
+      try {
+         rv = TypeCodec.compileOne(new String(sigb, sigofs, end-sigofs)).extract(m, buf, o, bodyend, false);
+      } catch (IndexOutOfBoundsException IOOBe) {
+         throw new MarshallingException(_("Message body is shorter than the values in it."));
+      }
+      sigofs = end;
+      ofs = o[1];
+      need(0);
+      return rv;
+   }
+   /**
+    * Moves past the next value without demarshalling it.
+    */
+   public void skip() throws DBusException
+   {
+      if (!hasNext()) throw new MarshallingException(_("No more values in message body."));
+      nextElement();
+      sigofs = skipValue(sigb, sigofs);
+   }
+   public byte nextByte() throws DBusException
+   {
+      expect(ArgumentType.BYTE);
+      need(1);
+      return buf[ofs++];
+   }
+   public boolean nextBoolean() throws DBusException
+   {
+      expect(ArgumentType.BOOLEAN);
+      need(4);
+      ofs += 4;
+      return 1 == m.demarshallint(buf, ofs-4, 4);
+   }
+   public short nextInt16() throws DBusException
+   {
+      expect(ArgumentType.INT16);
+      need(2);
+      ofs += 2;
+      return (short) m.demarshallint(buf, ofs-2, 2);
+   }
+   public int nextUInt16() throws DBusException
+   {
+      expect(ArgumentType.UINT16);
+      need(2);
+      ofs += 2;
+      return (int) m.demarshallint(buf, ofs-2, 2);
+   }
+   public int nextInt() throws DBusException
+   {
+      expect(ArgumentType.INT32);
+      need(4);
+      ofs += 4;
+      return (int) m.demarshallint(buf, ofs-4, 4);
+   }
+   public long nextUInt32() throws DBusException
+   {
+      expect(ArgumentType.UINT32);
+      need(4);
+      ofs += 4;
+      return m.demarshallint(buf, ofs-4, 4);
+   }
+   public long nextLong() throws DBusException
+   {
+      expect(ArgumentType.INT64);
+      need(8);
+      ofs += 8;
+      return m.demarshallint(buf, ofs-8, 8);
+   }
+   public UInt64 nextUInt64() throws DBusException
+   {
+      if (ArgumentType.UINT64 != getType()) expect(ArgumentType.UINT64);
+      return (UInt64) next();
+   }
+   public double nextDouble() throws DBusException
+   {
+      expect(ArgumentType.DOUBLE);
+      need(8);
+      ofs += 8;
+      return Double.longBitsToDouble(m.demarshallint(buf, ofs-8, 8));
+   }
+   public float nextFloat() throws DBusException
+   {
+      expect(ArgumentType.FLOAT);
+      need(4);
+      ofs += 4;
+      return Float.intBitsToFloat((int) m.demarshallint(buf, ofs-4, 4));
+   }
+   public FileDescriptor nextFileDescriptor() throws DBusException
+   {
+      expect(ArgumentType.UNIX_FD);
+      need(4);
+      ofs += 4;
+      return m.getFileDescriptor((int) m.demarshallint(buf, ofs-4, 4));
+   }
+   /**
+    * Reads the next value, which must be a string or an object path.
+    */
+   public String nextString() throws DBusException
+   {
+      boolean path = ArgumentType.OBJECT_PATH == getType();
+      expect(path ? ArgumentType.OBJECT_PATH : ArgumentType.STRING);
+      need(4);
+      long l = m.demarshallint(buf, ofs, 4);
+      need(4 + l + 1);
+      int length = (int) l;
+      String rv;
+      // object paths are interned like those in the header
+      if (path)
+         rv = StringCache.get(buf, ofs+4, length);
+      else
+         rv = Utf8.decode(buf, ofs+4, length);
+      ofs += 4 + length + 1;
+      return rv;
+   }
+   public String nextSignature() throws DBusException
+   {
+      expect(ArgumentType.SIGNATURE);
+      need(1);
+      int length = buf[ofs] & 0xFF;
+      need(2 + length);
+      String rv = StringCache.get(buf, ofs+1, length);
+      ofs += 2 + length;
+      return rv;
+   }
+   /**
+    * Enters the array which is the next value. Its elements are then
+    * read in turn until hasNext() returns false.
+    * @return The length of the array contents in bytes.
+    */
+   public int enterArray() throws DBusException
+   {
+      expect(ArgumentType.ARRAY);
+      need(4);
+      long size = m.demarshallint(buf, ofs, 4);
+      if (size / Message.getAlignment(sigb[sigofs]) > DBusConnection.MAX_ARRAY_LENGTH)
+         throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
+      ofs = align(ofs+4, sigb[sigofs]);
+      need(size);
+      int end = sigEnd(sigb, sigofs);
+      push(ArgumentType.ARRAY, sigb, sigofs, end, end);
+      bufend = ofs + (int) size;
+      return (int) size;
+   }
+   /**
+    * Enters the struct which is the next value. Its members are then
+    * read in turn until hasNext() returns false.
+    */
+   public void enterStruct() throws DBusException
+   {
+      expect(ArgumentType.STRUCT1);
+      int end = sigEnd(sigb, sigofs-1);
+      push(ArgumentType.STRUCT1, sigb, sigofs, end-1, end);
+   }
+   /**
+    * Enters the dict entry which is the next value, normally an element
+    * of an array entered with enterArray(). The key and then the value
+    * can then be read.
+    */
+   public void enterDictEntry() throws DBusException
+   {
+      expect(ArgumentType.DICT_ENTRY1);
+      int end = sigEnd(sigb, sigofs-1);
+      push(ArgumentType.DICT_ENTRY1, sigb, sigofs, end-1, end);
+   }
+   /**
+    * Enters the variant which is the next value. Its contents can
+    * then be read as a single value, with getSignature() giving its type.
+    */
+   public void enterVariant() throws DBusException
+   {
+      expect(ArgumentType.VARIANT);
+      need(1);
+      int length = buf[ofs] & 0xFF;
+      need(2 + length);
+      byte[] vsig = Arrays.copyOfRange(buf, ofs+1, ofs+1+length);
+      ofs += 2 + length;
+      push(ArgumentType.VARIANT, vsig, 0, vsig.length, sigofs);
+   }
+   /**
+    * Skips the rest of the current container and returns to the enclosing one,
+    * positioned after the container.
+    */
+   public void exit() throws DBusException
+   {
+      if (0 == container) throw new MarshallingException(_("Not in a container."));
+      if (ArgumentType.ARRAY == container)
+         ofs = bufend;
+      else
+         while (sigofs < sigend)
+            sigofs = skipValue(sigb, sigofs);
+      Level l = levels.removeFirst();
+      container = l.container;
+      sigb = l.sigb;
+      sigstart = l.sigstart;
+      sigend = l.sigend;
+      bufend = l.bufend;
+      sigofs = l.resume;
+   }
+}
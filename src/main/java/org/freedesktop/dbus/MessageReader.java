@@ -10,14 +10,16 @@
 */
 package org.freedesktop.dbus;
 
+import cx.ath.matthew.unix.MemFD;
+import cx.ath.matthew.unix.USInputStream;
 import cx.ath.matthew.utils.Hexdump;
 import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
 import org.freedesktop.dbus.exceptions.MessageProtocolVersionException;
 import org.freedesktop.dbus.exceptions.MessageTypeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,114 +28,252 @@ import java.text.MessageFormat;
 
 import static org.freedesktop.dbus.Gettext._;
 
+/**
+ * Reads messages from a stream. Bytes are read ahead into a receive buffer
+ * as many at a time as the stream has, and every complete message in the
+ * buffer is sliced out of it before the stream is read again, so a burst
+ * of small messages costs one read rather than several per message.
+ * A partial message is tracked by the state of the decoder and finished
+ * off by later calls.
+ */
 public final class MessageReader
 {
    private final Logger logger= LoggerFactory.getLogger(MessageReader.class);
 
+   /** The initial size of the receive buffer. */
+   private static final int RECV_BUFFER = 16384;
+   /** The longest header field array a message may have. */
+   private static final int MAX_HEADER = 1 << 26;
+   /** The longest body a message may have. */
+   private static final int MAX_BODY = 1 << 27;
+
+   /** Waiting for the fixed header and the length of the header fields. */
+   private static final int STATE_FIXED = 0;
+   /** Waiting for the rest of the header fields. */
+   private static final int STATE_HEADER = 1;
+   /** Filling in the body. */
+   private static final int STATE_BODY = 2;
+
    private InputStream in;
-   private byte[] buf = null;
-   private byte[] tbuf = null;
+   /** The socket stream, which queues file descriptors received with messages, or null. */
+   private USInputStream unix;
+   /** Bytes read from the stream which have not been decoded, from rpos up to rend. */
+   private byte[] rbuf = new byte[RECV_BUFFER];
+   private int rpos = 0;
+   private int rend = 0;
+   private int state = STATE_FIXED;
+   /** The length of the header of the current message, including the fixed part and padding. */
+   private int headerlen;
    private byte[] header = null;
+   /** The body of the current message, from the pool, and how much of it has been filled in. */
    private byte[] body = null;
-   private int[] len = new int[4];
+   private int bodylen;
+   private int bodypos;
+   /** The in-process channel messages are taken from instead of a stream, or null. */
+   private InprocChannel inproc;
    public MessageReader(InputStream in)
    {
-      this.in = new BufferedInputStream(in);
+      this.in = in;
+      if (in instanceof USInputStream)
+         this.unix = (USInputStream) in;
+   }
+   /**
+    * Receive messages from an in-process channel, which passes them whole.
+    */
+   public MessageReader(InprocChannel channel)
+   {
+      this.inproc = channel;
    }
+   /**
+    * Read the next message.
+    * @return The message, or null if a whole message could not be read
+    * without blocking or before the stream timed out. The partial
+    * message is kept and finished by the next call.
+    */
    public Message readMessage() throws IOException, DBusException
    {
-      int rv;
-      /* Read the 12 byte fixed header, retrying as neccessary */
-      if (null == buf) { buf = new byte[12]; len[0] = 0; }
-      if (len[0] < 12) {
-         try { rv = in.read(buf, len[0], 12-len[0]); }
-         catch (SocketTimeoutException STe) {
-             logger.debug("Timeout: ",STe);
-             return null;
+      if (null != inproc) {
+         Message m = inproc.receive();
+         logger.debug("=> {}",m);
+         return m;
+      }
+      while (true) {
+         switch (state) {
+            case STATE_FIXED:
+               if (rend-rpos < 16) break;
+               beginMessage();
+               continue;
+            case STATE_HEADER:
+               if (rend-rpos < headerlen) break;
+               header = new byte[headerlen];
+               System.arraycopy(rbuf, rpos, header, 0, headerlen);
+               rpos += headerlen;
+               body = BufferPool.take(bodylen);
+               bodypos = 0;
+               state = STATE_BODY;
+               continue;
+            case STATE_BODY:
+               int n = Math.min(bodylen-bodypos, rend-rpos);
+               System.arraycopy(rbuf, rpos, body, bodypos, n);
+               rpos += n;
+               bodypos += n;
+               if (bodypos == bodylen) return endMessage();
+               // a body bigger than the receive buffer is read straight into place
+               if (bodylen-bodypos >= rbuf.length) {
+                  n = recv(body, bodypos, bodylen-bodypos);
+                  if (n <= 0) return null;
+                  bodypos += n;
+                  if (bodypos == bodylen) return endMessage();
+                  continue;
+               }
+               break;
          }
-         if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[0] += rv;
+         if (fill() <= 0) return null;
       }
-      if (len[0] == 0) return null;
-      if (len[0] < 12) {
-         logger.debug("Only got "+len[0]+" of 12 bytes of header");
-         return null;
+   }
+   /**
+    * Parse the fixed header of the next message and get ready to read the rest of it.
+    */
+   private void beginMessage() throws IOException, DBusException
+   {
+      byte endian = rbuf[rpos];
+      if (Message.Endian.LITTLE != endian && Message.Endian.BIG != endian) {
+         // the lengths can't be read, so neither can the rest of the stream
+         rpos = rend = 0;
+         throw new MarshallingException(MessageFormat.format(_("Unknown byte order {0}"), new Object[] { endian }));
       }
-
-      /* Parse the details from the header */
-      byte endian = buf[0];
-      byte type = buf[1];
-      byte protover = buf[3];
+      byte protover = rbuf[rpos+3];
       if (protover > Message.PROTOCOL) {
-         buf = null;
+         // the rest of the stream can't be trusted to be framed the same way
+         rpos = rend = 0;
          throw new MessageProtocolVersionException(MessageFormat.format(_("Protocol version {0} is unsupported"), new Object[] { protover }));
       }
-
-      /* Read the length of the variable header */
-      if (null == tbuf) { tbuf = new byte[4]; len[1] = 0; }
-      if (len[1] < 4) {
-         try { rv = in.read(tbuf, len[1], 4-len[1]); }
-         catch (SocketTimeoutException STe) {
-             logger.debug("Timeout: ",STe);
-             return null;
-         }
-         if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[1] += rv;
+      long blen = Message.demarshallint(rbuf, rpos+4, endian, 4);
+      long hlen = Message.demarshallint(rbuf, rpos+12, endian, 4);
+      if (blen > MAX_BODY || hlen > MAX_HEADER) {
+         rpos = rend = 0;
+         throw new MarshallingException(MessageFormat.format(_("Message of {0} bytes is too long"), new Object[] { blen+hlen }));
       }
-      if (len[1] < 4) {
-         logger.debug("Only got "+len[1]+" of 4 bytes of header");
-         return null;
+      bodylen = (int) blen;
+      headerlen = 16 + (int) ((hlen+7) & ~7);
+      if (headerlen > rbuf.length) {
+         byte[] b = new byte[Integer.highestOneBit(headerlen-1) << 1];
+         System.arraycopy(rbuf, rpos, b, 0, rend-rpos);
+         rend -= rpos;
+         rpos = 0;
+         rbuf = b;
       }
+      state = STATE_HEADER;
+   }
+   /**
+    * Turn the header and body read so far into a message.
+    */
+   private Message endMessage() throws IOException, DBusException
+   {
+      byte[] h = header;
+      byte[] b = body;
+      header = null;
+      body = null;
+      state = STATE_FIXED;
 
-      /* Parse the variable header length */
-      int headerlen = 0;
-      if (null == header) {
-         headerlen = (int) Message.demarshallint(tbuf, 0, endian, 4);
-         if (0 != headerlen % 8)
-            headerlen += 8-(headerlen%8);
-      } else
-         headerlen = header.length-8;
-
-      /* Read the variable header */
-      if (null == header) {
-         header = new byte[headerlen+8]; 
-         System.arraycopy(tbuf, 0, header, 0, 4);
-         len[2] = 0; 
+      if (logger.isDebugEnabled()) {
+         logger.debug("{}", Hexdump.format(h));
+         logger.debug("{}", Hexdump.toHex(b, 0, bodylen));
       }
-      if (len[2] < headerlen) {
-         try { rv = in.read(header, 8+len[2], headerlen-len[2]); }
-         catch (SocketTimeoutException STe) {
-             logger.debug("Timeout: ",STe);
-             return null;
-         }
-         if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[2] += rv;
+      Message m;
+      try {
+         m = create(h, b);
+      } catch (DBusException DBe) {
+         logger.debug("Dbus : ",DBe);
+         dropFileDescriptors(countFileDescriptors(h));
+         throw DBe;
+      } catch (RuntimeException Re) {
+         logger.debug("Runtime: ",Re);
+         dropFileDescriptors(countFileDescriptors(h));
+         throw Re;
       }
-      if (len[2] < headerlen) {
-         logger.debug("Only got "+len[2]+" of "+headerlen+" bytes of header");
-         return null;
+      Object nfds = m.getHeader(Message.HeaderField.UNIX_FDS);
+      if (null != nfds) {
+         int n = ((Number) nfds).intValue();
+         int[] fds = null == unix ? null : unix.takeFileDescriptors(n);
+         if (null == fds) {
+            // some were lost on the way, and the rest must not be taken by the next message
+            dropFileDescriptors(n);
+            m.release();
+            throw new MarshallingException(MessageFormat.format(_("Message should have {0} file descriptors which were not received"), new Object[] { n }));
+         }
+         m.setFileDescriptors(fds);
       }
-
-      /* Read the body */
-      int bodylen = 0;
-      if (null == body) bodylen = (int) Message.demarshallint(buf, 4, endian, 4);
-      if (null == body) { body=new byte[bodylen]; len[3] = 0; }
-      if (len[3] < body.length) {
-         try { rv = in.read(body, len[3], body.length-len[3]); }
-         catch (SocketTimeoutException STe) {
-             logger.debug("Timeout: ",STe);
-             return null;
+      logger.debug("=> {}",m);
+      return m;
+   }
+   /**
+    * Close file descriptors received with a message which is being dropped.
+    * @param n The number the message has, or -1 if that is not known, in
+    * which case all of those received so far are closed.
+    */
+   private void dropFileDescriptors(int n)
+   {
+      if (null == unix) return;
+      int available = unix.availableFileDescriptors();
+      if (n < 0 || n > available) n = available;
+      if (0 == n) return;
+      for (int fd: unix.takeFileDescriptors(n)) {
+         try {
+            MemFD.close(fd);
+         } catch (IOException IOe) {
+            logger.debug("Could not close received file descriptor: {}", IOe.toString());
          }
-         if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
-         len[3] += rv;
       }
-      if (len[3] < body.length) {
-         logger.debug("Only got "+len[3]+" of "+body.length+" bytes of body");
-         return null;
+   }
+   /**
+    * Find the number of file descriptors in the header of a message which could not be made.
+    * Only the string, signature and uint32 values of the standard header fields are understood.
+    * @return The number, or -1 if the header can't be read that far.
+    */
+   static int countFileDescriptors(byte[] h)
+   {
+      if (h.length < 16) return -1;
+      byte endian = h[0];
+      if (Message.Endian.LITTLE != endian && Message.Endian.BIG != endian) return -1;
+      long end = 16 + Message.demarshallint(h, 12, endian, 4);
+      if (end > h.length) return -1;
+      int i = 16;
+      while (i < end) {
+         // each field is a byte code and a single type signature, then the value
+         if (i+5 > end || 1 != h[i+1] || 0 != h[i+3]) return -1;
+         long v = i+4;
+         if (Message.ArgumentType.SIGNATURE != h[i+2] && v+4 > end) return -1;
+         switch (h[i+2]) {
+            case Message.ArgumentType.UINT32:
+               if (Message.HeaderField.UNIX_FDS == h[i])
+                  return (int) Math.min(Message.demarshallint(h, (int) v, endian, 4), USInputStream.MAX_FDS);
+               v += 4;
+               break;
+            case Message.ArgumentType.STRING:
+            case Message.ArgumentType.OBJECT_PATH:
+               v += 4 + Message.demarshallint(h, (int) v, endian, 4) + 1;
+               break;
+            case Message.ArgumentType.SIGNATURE:
+               v += 1 + (h[(int) v] & 0xFF) + 1;
+               break;
+            default:
+               return -1;
+         }
+         if (v > end) return -1;
+         i = (int) ((v+7) & ~7);
       }
-
+      return 0;
+   }
+   /**
+    * Make a received message of the type given in its header.
+    * @param h The header, which the message keeps.
+    * @param b The body, from the BufferPool, which is returned to it if the message can't be made.
+    */
+   static Message create(byte[] h, byte[] b) throws IOException, DBusException
+   {
       Message m;
-      switch (type) {
+      switch (h[1]) {
          case Message.MessageType.METHOD_CALL:
             m = new MethodCall();
             break;
@@ -147,42 +287,54 @@ public final class MessageReader
             m = new Error();
             break;
          default:
-            throw new MessageTypeException(MessageFormat.format(_("Message type {0} unsupported"), new Object[] {type}));
-      }
-      if (logger.isDebugEnabled()) {
-         logger.debug("{}", Hexdump.format(buf));
-         logger.debug("{}", Hexdump.format(tbuf));
-         logger.debug("{}", Hexdump.format(header));
-         logger.debug("{}", Hexdump.format(body));
+            BufferPool.give(b);
+            throw new MessageTypeException(MessageFormat.format(_("Message type {0} unsupported"), new Object[] {h[1]}));
       }
       try {
-         m.populate(buf, header, body);
+         m.populate(h, b);
       } catch (DBusException DBe) {
-         logger.debug("Dbus : ",DBe);
-         buf = null;
-         tbuf = null;
-         body = null;
-         header = null;
+         BufferPool.give(b);
          throw DBe;
       } catch (RuntimeException Re) {
-         logger.debug("Runtime: ",Re);
-         buf = null;
-         tbuf = null;
-         body = null;
-         header = null;
+         BufferPool.give(b);
          throw Re;
       }
-      logger.debug("=> {}",m);
-      buf = null;
-      tbuf = null;
-      body = null;
-      header = null;
       return m;
    }
+   /**
+    * Read as much as the stream has into the free end of the receive buffer,
+    * first moving any undecoded bytes to the start of it.
+    * @return The number of bytes read, or 0 if there were none before a timeout.
+    */
+   private int fill() throws IOException
+   {
+      if (rpos == rend)
+         rpos = rend = 0;
+      else if (rpos > 0) {
+         System.arraycopy(rbuf, rpos, rbuf, 0, rend-rpos);
+         rend -= rpos;
+         rpos = 0;
+      }
+      int rv = recv(rbuf, rend, rbuf.length-rend);
+      if (rv > 0) rend += rv;
+      return rv;
+   }
+   private int recv(byte[] b, int off, int len) throws IOException
+   {
+      int rv;
+      try { rv = in.read(b, off, len); }
+      catch (SocketTimeoutException STe) {
+         logger.debug("Timeout: ",STe);
+         return 0;
+      }
+      if (-1 == rv) throw new EOFException(_("Underlying transport returned EOF"));
+      return rv;
+   }
 
    public void close() throws IOException
    {
       logger.debug("Closing Message Reader");
-      in.close();
+      if (null != inproc) inproc.close();
+      else in.close();
    }
 }
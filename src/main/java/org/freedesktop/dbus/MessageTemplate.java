@@ -0,0 +1,133 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MessageFormatException;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * A method call or signal header which is marshalled once and then copied
+ * into each message sent with it. Only the serial, flags and body length
+ * differ between the messages, so they are patched in and just the body is
+ * marshalled per message. Templates are immutable and can be shared between
+ * threads and connections.
+ * <p>
+ * Proxies returned by getRemoteObject use templates for their methods
+ * without having to ask for them.
+ */
+public final class MessageTemplate
+{
+   /** Marshals the fixed header and the header fields of a template. */
+   private static final class Prototype extends Message
+   {
+      Prototype(byte type, String dest, String path, String iface, String member, String sig) throws DBusException
+      {
+         super(Message.Endian.BIG, type, (byte) 0);
+         reserveint(4);
+         int hlen = beginHeaderFields();
+         appendHeaderField(Message.HeaderField.PATH, ArgumentType.OBJECT_PATH, path);
+         if (null != dest)
+            appendHeaderField(Message.HeaderField.DESTINATION, ArgumentType.STRING, dest);
+         if (null != iface)
+            appendHeaderField(Message.HeaderField.INTERFACE, ArgumentType.STRING, iface);
+         appendHeaderField(Message.HeaderField.MEMBER, ArgumentType.STRING, member);
+         if (null != sig)
+            appendHeaderField(Message.HeaderField.SIGNATURE, ArgumentType.SIGNATURE, sig);
+         endHeaderFields(hlen);
+      }
+   }
+
+   /**
+    * Create a template for method calls.
+    * @param dest The bus name to call, or null for peer to peer connections.
+    * @param path The object path to call.
+    * @param iface The interface of the method, or null.
+    * @param member The name of the method.
+    * @param sig The signature of the parameters, or null if there are none.
+    */
+   public static MessageTemplate methodCall(String dest, String path, String iface, String member, String sig) throws DBusException
+   {
+      if (null == member || null == path)
+         throw new MessageFormatException(_("Must specify destination, path and function name to MethodCalls."));
+      return new MessageTemplate(Message.MessageType.METHOD_CALL, dest, path, iface, member, sig);
+   }
+   /**
+    * Create a template for signals.
+    * @param path The object path the signal is emitted from.
+    * @param iface The interface of the signal.
+    * @param member The name of the signal.
+    * @param sig The signature of the parameters, or null if there are none.
+    */
+   public static MessageTemplate signal(String path, String iface, String member, String sig) throws DBusException
+   {
+      if (null == path || null == member || null == iface)
+         throw new MessageFormatException(_("Must specify object path, interface and signal name to Signals."));
+      return new MessageTemplate(Message.MessageType.SIGNAL, null, path, iface, member, sig);
+   }
+
+   private final byte type;
+   private final String path;
+   private final String sig;
+   /** The marshalled header, up to the start of the body. */
+   final byte[] header;
+   /** The header strings by field, shared by the messages built from this template. */
+   final String[] fields;
+   /**
+    * The length of the last message built from this template, used to size
+    * the buffer of the next one. Races only affect the size chosen.
+    */
+   private int size;
+
+   private MessageTemplate(byte type, String dest, String path, String iface, String member, String sig) throws DBusException
+   {
+      this.type = type;
+      this.path = path;
+      this.sig = sig;
+      Message m = new Prototype(type, dest, path, iface, member, sig);
+      header = new byte[m.getWireLength()];
+      System.arraycopy(m.getWireBuffer(), 0, header, 0, header.length);
+      fields = m.getHeaderStrings();
+      m.release();
+      size = header.length;
+   }
+
+   /**
+    * Create a method call from this template.
+    * @param flags Any message flags.
+    * @param args The parameters, matching the signature of the template.
+    */
+   public MethodCall newMethodCall(byte flags, Object... args) throws DBusException
+   {
+      if (Message.MessageType.METHOD_CALL != type)
+         throw new MessageFormatException(_("This template is not for method calls."));
+      return new MethodCall(this, flags, args);
+   }
+   /**
+    * Create a signal from this template.
+    * @param args The parameters, matching the signature of the template.
+    */
+   public DBusSignal newSignal(Object... args) throws DBusException
+   {
+      if (Message.MessageType.SIGNAL != type)
+         throw new MessageFormatException(_("This template is not for signals."));
+      return new DBusSignal(this, args);
+   }
+   /** Returns the object path of the messages. */
+   public String getPath() { return path; }
+   /** Returns the signature of the parameters, or null if there are none. */
+   public String getSig() { return sig; }
+   /** Returns the buffer size to start a new message with. */
+   int getBufferSize() { return size; }
+   /** Records the length of a message built from this template. */
+   void setBufferSize(int size) { this.size = size; }
+}
@@ -18,6 +18,9 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.freedesktop.dbus.Gettext._;
 
 public final class MessageWriter
 {
@@ -36,34 +39,176 @@ public final class MessageWriter
 		if (!this.isunix)
 			this.out = new BufferedOutputStream(this.out);
    }
-   public void writeMessage(Message m) throws IOException
+   /** The in-process channel messages are passed to instead of a stream, or null. */
+   private InprocChannel inproc;
+   /**
+    * Pass messages to an in-process channel, which copies them without writing them out.
+    */
+   public MessageWriter(InprocChannel channel)
+   {
+      this.inproc = channel;
+   }
+   /** Buffers of a batch of messages waiting to be written to a unix socket. */
+   private byte[][] segments = new byte[16][];
+   /** The number of bytes to write from each of segments. */
+   private int[] lengths = new int[16];
+   /** The number of messages of the batch written in full once each of segments is. */
+   private int[] ends = new int[16];
+   private int nsegments = 0;
+   /**
+    * The number of messages the last call to writeMessages wrote in full,
+    * which is all of them unless it threw.
+    */
+   int written;
+
+   public synchronized void writeMessage(Message m) throws IOException
    {
       logger.debug("<= {}",m);
       if (null == m) return;
-      if (null == m.getWireData()) {
+      byte[] buf = m.getWireBuffer();
+      if (null == buf) {
          logger.warn("Message {} wire-data was null!",m);
          return;
       }
-      if (isunix) {
-          logger.debug("Writing all {} buffers simultaneously to Unix Socket",m.getWireData().length);
-          if (logger.isTraceEnabled()) {
-                for (byte[] buf: m.getWireData())
-                   logger.trace( "( {} ): {}",buf,(null==buf? "": Hexdump.format(buf)));
-          }
+      if (null != inproc) {
+         inproc.send(m);
+         return;
+      }
+      byte[] tail = m.getWireTail();
+      trace(m);
+      int[] fds = m.getFileDescriptors();
+      if (null != fds) {
+         if (!isunix) throw new IOException(_("File descriptors can only be passed over unix sockets"));
+         logger.debug("Writing {} file descriptors with message to Unix Socket", fds.length);
+         ((USOutputStream) out).write(m.getWireData(), fds);
+      } else if (isunix && null != tail) {
+         logger.debug("Writing all buffers simultaneously to Unix Socket");
          ((USOutputStream) out).write(m.getWireData());
-      } else
-         for (byte[] buf: m.getWireData()) {
-            if (logger.isTraceEnabled()) {
-                logger.trace("( {} ): {}",buf,(null == buf ? "" : Hexdump.format(buf)));
+      } else {
+         out.write(buf, 0, m.getWireLength());
+         if (null != tail)
+            out.write(tail, 0, m.getWireTailLength());
+      }
+      out.flush();
+   }
+   /**
+    * Write several messages with as few system calls as possible.
+    * On unix sockets the messages go out in vectored writes straight from
+    * their buffers, except those carrying file descriptors which are sent
+    * on their own; other streams are flushed once after the last message.
+    * @param ms The messages to write.
+    * @param n The number of messages to write from the start of ms.
+    */
+   public synchronized void writeMessages(Message[] ms, int n) throws IOException
+   {
+      written = 0;
+      if (null != inproc) {
+         for (int i = 0; i < n; i++) {
+            logger.debug("<= {}",ms[i]);
+            if (null == ms[i].getWireBuffer())
+               logger.warn("Message {} wire-data was null!",ms[i]);
+            else
+               inproc.send(ms[i]);
+            written = i+1;
+         }
+         return;
+      }
+      if (!isunix) {
+         for (int i = 0; i < n; i++) {
+            Message m = ms[i];
+            logger.debug("<= {}",m);
+            if (null == m.getWireBuffer()) {
+               logger.warn("Message {} wire-data was null!",m);
+               continue;
             }
-            if (null == buf) break;
-            out.write(buf);
+            if (null != m.getFileDescriptors())
+               throw new IOException(_("File descriptors can only be passed over unix sockets"));
+            trace(m);
+            out.write(m.getWireBuffer(), 0, m.getWireLength());
+            if (null != m.getWireTail())
+               out.write(m.getWireTail(), 0, m.getWireTailLength());
          }
-      out.flush();
+         // the stream buffers, so nothing is known to be written until it is flushed
+         out.flush();
+         written = n;
+         return;
+      }
+      USOutputStream us = (USOutputStream) out;
+      try {
+         for (int i = 0; i < n; i++) {
+            Message m = ms[i];
+            logger.debug("<= {}",m);
+            if (null == m.getWireBuffer()) {
+               logger.warn("Message {} wire-data was null!",m);
+               continue;
+            }
+            trace(m);
+            int[] fds = m.getFileDescriptors();
+            if (null != fds) {
+               // the descriptors must arrive with the first byte of their message
+               flushSegments(us);
+               logger.debug("Writing {} file descriptors with message to Unix Socket", fds.length);
+               us.write(m.getWireData(), fds);
+               written = i+1;
+               continue;
+            }
+            byte[] tail = m.getWireTail();
+            addSegment(m.getWireBuffer(), m.getWireLength(), null == tail ? i+1 : i);
+            if (null != tail)
+               addSegment(tail, m.getWireTailLength(), i+1);
+         }
+         flushSegments(us);
+         written = n;
+      } finally {
+         Arrays.fill(segments, 0, nsegments, null);
+         nsegments = 0;
+      }
+   }
+   private void addSegment(byte[] buf, int len, int end)
+   {
+      if (nsegments == segments.length) {
+         segments = Arrays.copyOf(segments, nsegments*2);
+         lengths = Arrays.copyOf(lengths, nsegments*2);
+         ends = Arrays.copyOf(ends, nsegments*2);
+      }
+      segments[nsegments] = buf;
+      ends[nsegments] = end;
+      lengths[nsegments++] = len;
+   }
+   private void flushSegments(USOutputStream us) throws IOException
+   {
+      if (0 == nsegments) return;
+      if (logger.isDebugEnabled())
+         logger.debug("Writing {} buffers to Unix Socket", nsegments);
+      int sent = us.write(segments, lengths, nsegments);
+      int i = 0;
+      for (; i < nsegments && sent >= lengths[i]; i++) {
+         sent -= lengths[i];
+         written = ends[i];
+      }
+      // the socket failed part way, so the rest is written on its own, which either finishes it or throws why
+      for (; i < nsegments; i++) {
+         us.write(segments[i], sent, lengths[i]-sent);
+         sent = 0;
+         written = ends[i];
+      }
+      Arrays.fill(segments, 0, nsegments, null);
+      nsegments = 0;
+   }
+   private void trace(Message m)
+   {
+      if (logger.isTraceEnabled()) {
+         byte[] buf = m.getWireBuffer();
+         byte[] tail = m.getWireTail();
+         logger.trace("( {} ): {}",buf,Hexdump.toHex(buf, 0, m.getWireLength()));
+         if (null != tail)
+            logger.trace("( {} ): {}",tail,Hexdump.toHex(tail, 0, m.getWireTailLength()));
+      }
    }
    public void close() throws IOException
    {
       logger.info("Closing Message Writer");
-      out.close();
+      if (null != inproc) inproc.close();
+      else out.close();
    }
 }
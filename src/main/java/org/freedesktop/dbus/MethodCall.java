@@ -10,19 +10,17 @@
 */
 package org.freedesktop.dbus;
 
-import cx.ath.matthew.utils.Hexdump;
 import org.freedesktop.dbus.exceptions.DBusException;
 import org.freedesktop.dbus.exceptions.MessageFormatException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Vector;
 
 import static org.freedesktop.dbus.Gettext._;
 
 public class MethodCall extends Message
 {
-   private final Logger logger= LoggerFactory.getLogger(MethodCall.class);
+   private static final Logger logger= LoggerFactory.getLogger(MethodCall.class);
 
    MethodCall() { }
    public MethodCall(String dest, String path, String iface, String member, byte flags, String sig, Object... args) throws DBusException
@@ -35,51 +33,52 @@ public class MethodCall extends Message
 
       if (null == member || null == path)
          throw new MessageFormatException(_("Must specify destination, path and function name to MethodCalls."));
-      headers.put(Message.HeaderField.PATH,path);
-      headers.put(Message.HeaderField.MEMBER,member);
-
-      Vector<Object> hargs = new Vector<Object>();
-
-      hargs.add(new Object[] { Message.HeaderField.PATH, new Object[] { ArgumentType.OBJECT_PATH_STRING, path } });
-      
-      if (null != source) {
-         headers.put(Message.HeaderField.SENDER,source);
-         hargs.add(new Object[] { Message.HeaderField.SENDER, new Object[] { ArgumentType.STRING_STRING, source } });
-      }
-      
-      if (null != dest) {
-         headers.put(Message.HeaderField.DESTINATION,dest);
-         hargs.add(new Object[] { Message.HeaderField.DESTINATION, new Object[] { ArgumentType.STRING_STRING, dest } });
-      }
-      
-      if (null != iface) {
-         hargs.add(new Object[] { Message.HeaderField.INTERFACE, new Object[] { ArgumentType.STRING_STRING, iface } });
-         headers.put(Message.HeaderField.INTERFACE,iface);
-      }
-      
-      hargs.add(new Object[] { Message.HeaderField.MEMBER, new Object[] { ArgumentType. STRING_STRING, member } });
 
+      int blen = reserveint(4);
+      int hlen = beginHeaderFields();
+      appendHeaderField(Message.HeaderField.PATH, ArgumentType.OBJECT_PATH, path);
+      if (null != source)
+         appendHeaderField(Message.HeaderField.SENDER, ArgumentType.STRING, source);
+      if (null != dest)
+         appendHeaderField(Message.HeaderField.DESTINATION, ArgumentType.STRING, dest);
+      if (null != iface)
+         appendHeaderField(Message.HeaderField.INTERFACE, ArgumentType.STRING, iface);
+      appendHeaderField(Message.HeaderField.MEMBER, ArgumentType.STRING, member);
       if (null != sig) {
          logger.debug("Appending arguments with signature: {}",sig);
-         hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
-         headers.put(Message.HeaderField.SIGNATURE,sig);
+         appendHeaderField(Message.HeaderField.SIGNATURE, ArgumentType.SIGNATURE, sig);
          setArgs(args);
       }
-
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
-      pad((byte)8);
+      endHeaderFields(hlen);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
       if (logger.isTraceEnabled()) {
           logger.trace("Appended body, type: {} start: {} end: {} size: {}",sig,c,bytecounter,(bytecounter - c));
       }
-      marshallint(bytecounter-c, blen, 0, 4);
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
       if (logger.isTraceEnabled()) {
-          logger.trace("marshalled size ({}): {}" ,blen,Hexdump.format(blen));
+          logger.trace("marshalled size ({}) at offset {}" ,(bytecounter - c),blen);
+      }
+   }
+   /**
+    * Create a method call from a template, which only marshals the body.
+    */
+   MethodCall(MessageTemplate t, byte flags, Object... args) throws DBusException
+   {
+      super(Message.Endian.BIG, Message.MessageType.METHOD_CALL, flags, t.getBufferSize());
+
+      int blen = appendHeader(t);
+      String sig = t.getSig();
+      long c = bytecounter;
+      if (null != sig) {
+         setArgs(args);
+         append(sig, args);
       }
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
+      t.setBufferSize(getWireLength());
    }
    private static long REPLY_WAIT_TIMEOUT = 20000;
    /**
@@ -10,7 +10,6 @@
 */
 package org.freedesktop.dbus;
 
-import java.util.Vector;
 import org.freedesktop.dbus.exceptions.DBusException;
 
 public class MethodReturn extends Message
@@ -24,35 +23,23 @@ public class MethodReturn extends Message
    {
       super(Message.Endian.BIG, Message.MessageType.METHOD_RETURN, (byte) 0);
 
-      headers.put(Message.HeaderField.REPLY_SERIAL,replyserial);
-
-      Vector<Object> hargs = new Vector<Object>();
-      hargs.add(new Object[] { Message.HeaderField.REPLY_SERIAL, new Object[] { ArgumentType.UINT32_STRING, replyserial } });
-      
-      if (null != source) {
-         headers.put(Message.HeaderField.SENDER,source);
-         hargs.add(new Object[] { Message.HeaderField.SENDER, new Object[] { ArgumentType.STRING_STRING, source } });
-      }
- 
-      if (null != dest) {
-         headers.put(Message.HeaderField.DESTINATION,dest);
-         hargs.add(new Object[] { Message.HeaderField.DESTINATION, new Object[] { ArgumentType.STRING_STRING, dest } });
-      }
-
+      int blen = reserveint(4);
+      int hlen = beginHeaderFields();
+      appendReplySerial(replyserial);
+      if (null != source)
+         appendHeaderField(Message.HeaderField.SENDER, ArgumentType.STRING, source);
+      if (null != dest)
+         appendHeaderField(Message.HeaderField.DESTINATION, ArgumentType.STRING, dest);
       if (null != sig) {
-         hargs.add(new Object[] { Message.HeaderField.SIGNATURE, new Object[] { ArgumentType.SIGNATURE_STRING, sig } });
-         headers.put(Message.HeaderField.SIGNATURE,sig);
+         appendHeaderField(Message.HeaderField.SIGNATURE, ArgumentType.SIGNATURE, sig);
          setArgs(args);
       }
-
-      byte[] blen = new byte[4];
-      appendBytes(blen);
-      append("ua(yv)", serial, hargs.toArray());
-      pad((byte)8);
+      endHeaderFields(hlen);
 
       long c = bytecounter;
       if (null != sig) append(sig, args);
-      marshallint(bytecounter-c, blen, 0, 4);
+      marshallint(bytecounter-c, blen, 4);
+      appendFileDescriptorCount();
    }
    public MethodReturn(MethodCall mc, String sig, Object... args) throws DBusException
    {
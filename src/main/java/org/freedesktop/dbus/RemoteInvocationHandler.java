@@ -62,22 +62,27 @@ final class RemoteInvocationHandler implements InvocationHandler
             if (!Tuple.class.isAssignableFrom(c))
                throw new DBusExecutionException(_("Wrong return type (not expecting Tuple)"));
             
-            Constructor<? extends Object> cons = c.getConstructors()[0];
+            Object rv;
             try {
-               return cons.newInstance(rp);
+               rv = ClassSerializer.get(c).construct(rp);
             } catch (Exception e) {
                logger.debug("Flushing outbound queue and quitting");
                throw new DBusException(e.getMessage(),e);
             }
+            if (null == rv)
+               throw new DBusExecutionException(_("Wrong return type (no Tuple constructor matches the returned values)"));
+            return rv;
       }
    }
    @SuppressWarnings("unchecked")
    public static Object executeRemoteMethod(RemoteObject ro, Method m, AbstractConnection conn, int syncmethod, CallbackHandler callback, Object... args) throws DBusExecutionException
    {
+      // the header of calls to each method is only marshalled once per remote object
+      MessageTemplate template = ro.templates.get(m);
       Type[] ts = m.getGenericParameterTypes();
       String sig = null;
       if (ts.length > 0) try {
-         sig = Marshalling.getDBusType(ts);
+         if (null == template) sig = Marshalling.getDBusType(ts);
          args = Marshalling.convertParameters(args, ts, conn);
       } catch (DBusException DBe) {
          throw new DBusExecutionException(_("Failed to construct D-Bus type: ")+DBe.getMessage(),DBe);
@@ -88,22 +93,26 @@ final class RemoteInvocationHandler implements InvocationHandler
       if (syncmethod == CALL_TYPE_ASYNC) flags |= Message.Flags.ASYNC;
       if (m.isAnnotationPresent(DBus.Method.NoReply.class)) flags |= Message.Flags.NO_REPLY_EXPECTED;
       try {
-         String name;
-         
-         //TODO: this bellongs to mappins logic
-         if (m.isAnnotationPresent(DBusMemberName.class))
-            name = m.getAnnotation(DBusMemberName.class).value();
-         else
-            name = m.getName();
-         
-         if (null == ro.ifaces)  //TODO: not sure when this happens !?
-            call = new MethodCall(ro.busname, ro.objectpath, null, name,flags, sig, args);
-         else {
-             Class<?> ifc = m.getDeclaringClass();
-             //TODO: not sure if this class is the best to have this ...
-             String ifacename = DBusConnection.getDBus2JavaMappingStrategy().javaClass2DBusName(ifc);
-             call = new MethodCall(ro.busname, ro.objectpath, ifacename, name, flags, sig, args);
+         if (null == template) {
+            String name;
+
+            //TODO: this bellongs to mappins logic
+            if (m.isAnnotationPresent(DBusMemberName.class))
+               name = m.getAnnotation(DBusMemberName.class).value();
+            else
+               name = m.getName();
+
+            if (null == ro.ifaces)  //TODO: not sure when this happens !?
+               template = MessageTemplate.methodCall(ro.busname, ro.objectpath, null, name, sig);
+            else {
+                Class<?> ifc = m.getDeclaringClass();
+                //TODO: not sure if this class is the best to have this ...
+                String ifacename = DBusConnection.getDBus2JavaMappingStrategy().javaClass2DBusName(ifc);
+                template = MessageTemplate.methodCall(ro.busname, ro.objectpath, ifacename, name, sig);
+            }
+            ro.templates.put(m, template);
          }
+         call = template.newMethodCall(flags, args);
       } catch (DBusException DBe) {
          logger.debug("Dbus exception: ", DBe);
          throw new DBusExecutionException(_("Failed to construct outgoing method call: ")+DBe.getMessage(),DBe);
@@ -133,14 +142,17 @@ final class RemoteInvocationHandler implements InvocationHandler
       Message reply = call.getReply();
       if (null == reply) throw new DBus.Error.NoReply(_("No reply within specified time"));
                
-      if (reply instanceof Error)
-         ((Error) reply).throwException();
-
+      // only the return value leaves here, so the reply's buffers can be recycled once it is read
       try {
-         return convertRV(reply.getSig(), reply.getParameters(), m, conn);
+         if (reply instanceof Error)
+            ((Error) reply).throwException();
+
+         return convertRV(reply.getSig(), reply.getParameters(new Type[] { m.getGenericReturnType() }), m, conn);
       } catch (DBusException e) {
          logger.debug("Dbus exception:", e);
          throw new DBusExecutionException(e.getMessage(),e);
+      } finally {
+         reply.release();
       }
    }
 
@@ -14,6 +14,7 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 final class RemoteObject
 {
@@ -21,6 +22,8 @@ final class RemoteObject
    String objectpath;
    Class<? extends DBusInterface>[] ifaces;
    boolean autostart;
+   /** The headers of calls to each method of this object. */
+   final ConcurrentHashMap<Method, MessageTemplate> templates = new ConcurrentHashMap<Method, MessageTemplate>();
    public RemoteObject(String busname, String objectpath, Class<? extends DBusInterface>[] ifaces, boolean autostart)
    {
       this.busname = busname;
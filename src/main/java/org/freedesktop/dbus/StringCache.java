@@ -0,0 +1,81 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.freedesktop.dbus.exceptions.MarshallingException;
+
+/**
+ * Interns strings decoded from messages, keyed on their UTF-8 bytes.
+ * Bus names, object paths, interfaces, members and signatures come from
+ * a small set which repeats in almost every message, so decoding them
+ * through this cache returns the same String instance each time instead
+ * of allocating a new one, and map lookups keyed on them compare by
+ * identity and reuse the cached hash code.
+ * The cache is a fixed size table where a new string replaces whatever
+ * was in its slot, so it never grows and needs no locking.
+ */
+final class StringCache
+{
+   /** The number of slots, a power of two. */
+   private static final int SIZE = 1024;
+   /** Longer strings are decoded without being cached. */
+   private static final int MAX_LENGTH = 256;
+
+   /**
+    * Entries are immutable, so they can be published through the
+    * table without synchronization.
+    */
+   private static final class Entry
+   {
+      final byte[] bytes;
+      final int hash;
+      final String value;
+      Entry(byte[] bytes, int hash, String value)
+      {
+         this.bytes = bytes;
+         this.hash = hash;
+         this.value = value;
+      }
+   }
+
+   private static final Entry[] table = new Entry[SIZE];
+
+   private StringCache() {}
+
+   /**
+    * Decode UTF-8 bytes to a String, returning a cached instance if
+    * the same bytes were decoded recently.
+    * @throws MarshallingException If the bytes are not valid UTF-8.
+    */
+   static String get(byte[] buf, int ofs, int len) throws MarshallingException
+   {
+      if (len > MAX_LENGTH) return Utf8.decode(buf, ofs, len);
+      int h = 1;
+      for (int i = ofs; i < ofs+len; i++)
+         h = 31*h + buf[i];
+      int slot = (h ^ (h >>> 16)) & (SIZE-1);
+      Entry e = table[slot];
+      if (null != e && e.hash == h && matches(e.bytes, buf, ofs, len))
+         return e.value;
+      String s = Utf8.decode(buf, ofs, len);
+      byte[] bytes = new byte[len];
+      System.arraycopy(buf, ofs, bytes, 0, len);
+      table[slot] = new Entry(bytes, h, s);
+      return s;
+   }
+   private static boolean matches(byte[] a, byte[] buf, int ofs, int len)
+   {
+      if (a.length != len) return false;
+      for (int i = 0; i < len; i++)
+         if (a[i] != buf[ofs+i]) return false;
+      return true;
+   }
+}
@@ -10,6 +10,8 @@
 */
 package org.freedesktop.dbus;
 
+import cx.ath.matthew.unix.ShmChannel;
+import cx.ath.matthew.unix.USInputStream;
 import cx.ath.matthew.unix.UnixServerSocket;
 import cx.ath.matthew.unix.UnixSocket;
 import cx.ath.matthew.unix.UnixSocketAddress;
@@ -22,11 +24,15 @@ import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.attribute.UserPrincipal;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.Collator;
 import java.text.ParseException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
 
@@ -86,7 +92,11 @@ public final class Transport
                command = COMMAND_CANCEL;
             } else if (0 == col.compare(ss[0], "ERROR")) {
                command = COMMAND_ERROR;
-               data = ss[1];
+               if (ss.length > 1) data = ss[1];
+            } else if (0 == col.compare(ss[0], "NEGOTIATE_UNIX_FD")) {
+               command = COMMAND_NEGOTIATE_UNIX_FD;
+            } else if (0 == col.compare(ss[0], "AGREE_UNIX_FD")) {
+               command = COMMAND_AGREE_UNIX_FD;
             } else {
                throw new IOException(_("Invalid Command ")+ss[0]);
             }
@@ -115,26 +125,64 @@ public final class Transport
 		public static final int COOKIE_TIMEOUT = 240;
       public static final String COOKIE_CONTEXT = "org_freedesktop_java";
 
-      private String findCookie(String context, String ID) throws IOException
+      /** A keyring file as last read, with its modification time and length. */
+      private static class Keyring
       {
-         String homedir = System.getProperty("user.home");
-         File f = new File(homedir+"/.dbus-keyrings/"+context);
+         final long modified;
+         final long length;
+         final Vector<String[]> lines;
+         Keyring(long modified, long length, Vector<String[]> lines)
+         {
+            this.modified = modified;
+            this.length = length;
+            this.lines = lines;
+         }
+      }
+      /** Keyrings by file, re-read when the file changes or a cookie is missing. */
+      private static final Map<File,Keyring> keyrings = new HashMap<File,Keyring>();
+      private static Keyring readKeyring(File f) throws IOException
+      {
+         long modified = f.lastModified();
+         long length = f.length();
+         Vector<String[]> lines = new Vector<String[]>();
          BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f)));
-         String s = null;
-         String cookie = null;
+         try {
+            String s = null;
+            while (null != (s = r.readLine()))
+               lines.add(s.split(" "));
+         } finally {
+            r.close();
+         }
+         return new Keyring(modified, length, lines);
+      }
+      private static String findCookie(Keyring k, String ID)
+      {
 			long now = System.currentTimeMillis()/1000;
-			while (null != (s = r.readLine())) {
-				String[] line = s.split(" ");
+         for (String[] line: k.lines) {
 				long timestamp = Long.parseLong(line[1]);
 				if (line[0].equals(ID) && (! (timestamp < 0 ||
 								(now + MAX_TIME_TRAVEL_SECONDS) < timestamp ||
 								(now - EXPIRE_KEYS_TIMEOUT_SECONDS) > timestamp))) {
-					cookie = line[2];
-					break;
+					return line[2];
 				}
 			}
-			r.close();
-         return cookie;
+         return null;
+      }
+      private String findCookie(String context, String ID) throws IOException
+      {
+         String homedir = System.getProperty("user.home");
+         File f = new File(homedir+"/.dbus-keyrings/"+context);
+         synchronized (keyrings) {
+            Keyring k = keyrings.get(f);
+            if (null != k && k.modified == f.lastModified() && k.length == f.length()) {
+               String cookie = findCookie(k, ID);
+               // the modification time may be too coarse to see a new cookie
+               if (null != cookie) return cookie;
+            }
+            k = readKeyring(f);
+            keyrings.put(f, k);
+            return findCookie(k, ID);
+         }
       }
       private void addCookie(String context, String ID, long timestamp, String cookie) throws IOException
       {
@@ -183,6 +231,7 @@ public final class Transport
 
          // remove lock
          lock.delete();
+         synchronized (keyrings) { keyrings.remove(cookiefile); }
       }
       /**
        * Takes the string, encodes it as hex and then turns it into a string again.
@@ -257,6 +306,8 @@ public final class Transport
       public static final int COMMAND_BEGIN=5;
       public static final int COMMAND_CANCEL=6;
       public static final int COMMAND_ERROR=7;
+      public static final int COMMAND_NEGOTIATE_UNIX_FD=8;
+      public static final int COMMAND_AGREE_UNIX_FD=9;
       
       public static final int INITIAL_STATE=0;
       public static final int WAIT_DATA=1;
@@ -266,6 +317,8 @@ public final class Transport
       public static final int WAIT_BEGIN=5;
       public static final int AUTHENTICATED=6;
       public static final int FAILED=7;
+      public static final int WAIT_AGREE=8;
+      public static final int WAIT_PIPELINED=9;
 
       public static final int OK=1;
       public static final int CONTINUE=2;
@@ -323,6 +376,12 @@ public final class Transport
             case COMMAND_ERROR:
                sb.append("ERROR");
                break;
+            case COMMAND_NEGOTIATE_UNIX_FD:
+               sb.append("NEGOTIATE_UNIX_FD");
+               break;
+            case COMMAND_AGREE_UNIX_FD:
+               sb.append("AGREE_UNIX_FD");
+               break;
             default:
                return;
          }
@@ -380,6 +439,9 @@ public final class Transport
       }
       public String challenge = "";
       public String cookie = "";
+      /** The last cookie this process added to the keyring, reused for a while by new connections. */
+      private static long recentCookieId;
+      private static String recentCookie;
       public int do_response(int auth, String Uid, String kernelUid, Command c)
       {
          MessageDigest md = null;
@@ -395,23 +457,43 @@ public final class Transport
                   case AUTH_ANON:
                      return OK;
                   case AUTH_EXTERNAL:
-                     if (0 == col.compare(Uid, c.getData()) &&
-                        (null == kernelUid || 0 == col.compare(Uid, kernelUid)))
+                     // without credentials from the kernel the claimed uid can't be trusted
+                     if (null != kernelUid && 0 == col.compare(Uid, c.getData()) &&
+                        0 == col.compare(Uid, kernelUid))
                         return OK;
                      else
-                        return ERROR;
+                        return REJECT;
                   case AUTH_SHA:
                      String context = COOKIE_CONTEXT;
-                     long id = System.currentTimeMillis();
+                     long now = System.currentTimeMillis();
                      byte[] buf = new byte[8];
-                     Message.marshallintBig(id, buf, 0, 8);
+                     Message.marshallintBig(now, buf, 0, 8);
                      challenge = stupidlyEncode(md.digest(buf));
-                     Random r = new Random();
-                     r.nextBytes(buf);
-                     cookie = stupidlyEncode(md.digest(buf));
-                     try { addCookie(context, ""+id, id/1000, cookie);
-                     } catch (IOException IOe) {
-                        logger.debug("IOexception: ", IOe);
+                     long id;
+                     synchronized (SASL.class) {
+                        id = recentCookieId;
+                        cookie = recentCookie;
+                        // reuse a recent cookie while it is still in the keyring
+                        if (null != cookie && (now - id) / 1000 >= NEW_KEY_TIMEOUT_SECONDS)
+                           cookie = null;
+                        if (null != cookie) try {
+                           if (!cookie.equals(findCookie(context, ""+id)))
+                              cookie = null;
+                        } catch (IOException IOe) {
+                           cookie = null;
+                        }
+                        if (null == cookie) {
+                           id = now;
+                           Random r = new Random();
+                           r.nextBytes(buf);
+                           cookie = stupidlyEncode(md.digest(buf));
+                           try { addCookie(context, ""+id, id/1000, cookie);
+                           } catch (IOException IOe) {
+                              logger.debug("IOexception: ", IOe);
+                           }
+                           recentCookieId = id;
+                           recentCookie = cookie;
+                        }
                      }
                      logger.debug("Sending challenge: "+context+' '+id+' '+challenge);
                      c.setResponse(stupidlyEncode(context+' '+id+' '+challenge));
@@ -457,15 +539,66 @@ public final class Transport
                return new String[] { };
          }
       }
+      private boolean unixfd = false;
+      private UserPrincipal peerUser = null;
+      /**
+       * Returns true if both ends agreed to pass file descriptors during auth.
+       */
+      public boolean isUnixFdAgreed() { return unixfd; }
+      /**
+       * Set the user at the other end of a socket with no UnixSocket to ask,
+       * so that servers can check EXTERNAL auth. Without it, or a UnixSocket
+       * which passes credentials, EXTERNAL auth is rejected.
+       */
+      void setPeerUser(UserPrincipal user) { peerUser = user; }
+      /**
+       * Returns true if a user is the one this process runs as. Users of the
+       * default file system are equal when their numeric uids are.
+       */
+      private boolean isCurrentUser(UserPrincipal user, String username)
+      {
+         try {
+            return user.equals(FileSystems.getDefault().getUserPrincipalLookupService().lookupPrincipalByName(username));
+         } catch (IOException IOe) {
+            logger.debug("Could not look up user {}: {}", username, IOe.toString());
+            return false;
+         }
+      }
+      /**
+       * Once authenticated, a client which can pass file descriptors
+       * asks to before starting the message stream.
+       */
+      private int negotiate(OutputStream out, boolean unixfds) throws IOException
+      {
+         if (!unixfds) {
+            send(out, COMMAND_BEGIN);
+            return AUTHENTICATED;
+         }
+         send(out, COMMAND_NEGOTIATE_UNIX_FD);
+         return WAIT_AGREE;
+      }
+      /**
+       * performs SASL auth on the given streams, without passing file descriptors.
+       * Mode selects whether to run as a SASL server or client.
+       * Types is a bitmask of the available auth types.
+       * Returns true if the auth was successful and false if it failed.
+       */
+      public boolean auth(int mode, int types, String guid, OutputStream out, InputStream in, UnixSocket us) throws IOException
+      {
+         return auth(mode, types, guid, out, in, us, false);
+      }
       /**
        * performs SASL auth on the given streams.
        * Mode selects whether to run as a SASL server or client.
        * Types is a bitmask of the available auth types.
+       * Unixfds selects whether to ask for or agree to passing file descriptors,
+       * which needs a UnixSocket and a caller which will receive them.
        * Returns true if the auth was successful and false if it failed.
        */
       @SuppressWarnings("unchecked")
-      public boolean auth(int mode, int types, String guid, OutputStream out, InputStream in, UnixSocket us) throws IOException
+      public boolean auth(int mode, int types, String guid, OutputStream out, InputStream in, UnixSocket us, boolean unixfds) throws IOException
       {
+         unixfds = unixfds && null != us;
          String username = System.getProperty("user.name");
          String Uid = null;
          String kernelUid = null;
@@ -482,6 +615,7 @@ public final class Transport
          int failed = 0;
          int current = 0;
          int state = INITIAL_STATE;
+         boolean begun = false;
 
          while (state != AUTHENTICATED && state != FAILED) {
             logger.trace("AUTH state: "+state);
@@ -489,12 +623,36 @@ public final class Transport
                case MODE_CLIENT:
                   switch (state) {
                      case INITIAL_STATE:
+                        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+                        lines.write(0);
+                        if (0 != (types & AUTH_EXTERNAL)) {
+                           // send everything up to BEGIN at once rather than waiting for each reply
+                           send(lines, COMMAND_AUTH, "EXTERNAL", Uid);
+                           if (unixfds)
+                              send(lines, COMMAND_NEGOTIATE_UNIX_FD);
+                           send(lines, COMMAND_BEGIN);
+                           current = AUTH_EXTERNAL;
+                           state = WAIT_PIPELINED;
+                        } else {
+                           send(lines, COMMAND_AUTH);
+                           state = WAIT_DATA;
+                        }
+                        // the nul byte carries the credentials, and the lines go in the same write
                         if (null == us)
-                           out.write(new byte[] { 0 });
-                        else 
-                           us.sendCredentialByte((byte) 0);
-                        send(out, COMMAND_AUTH);
-                        state = WAIT_DATA;
+                           out.write(lines.toByteArray());
+                        else
+                           us.sendWithCredentials(lines.toByteArray());
+                        break;
+                     case WAIT_PIPELINED:
+                        c = receive(in);
+                        if (COMMAND_OK == c.getCommand()) {
+                           begun = true;
+                           state = unixfds ? WAIT_AGREE : AUTHENTICATED;
+                        } else {
+                           // the server has had our BEGIN, so there is no going back
+                           logger.debug("Pipelined EXTERNAL auth failed: "+c);
+                           state = FAILED;
+                        }
                         break;
                      case WAIT_DATA:
                      c = receive(in);
@@ -533,8 +691,7 @@ public final class Transport
                            state = WAIT_REJECT;
                            break;
                         case COMMAND_OK:
-                           send(out, COMMAND_BEGIN);
-                           state = AUTHENTICATED;
+                           state = negotiate(out, unixfds);
                            break;
                         default:
                            send(out, COMMAND_ERROR, "Got invalid command");
@@ -545,8 +702,7 @@ public final class Transport
                      c = receive(in);
                         switch (c.getCommand()) {
                            case COMMAND_OK:
-                              send(out, COMMAND_BEGIN);
-                              state = AUTHENTICATED;
+                              state = negotiate(out, unixfds);
                               break;
                            case COMMAND_ERROR:
                            case COMMAND_DATA:
@@ -574,6 +730,14 @@ public final class Transport
                               break;
                         }
                         break;
+                     case WAIT_AGREE:
+                        c = receive(in);
+                        // anything but agreement means no file descriptors
+                        unixfd = COMMAND_AGREE_UNIX_FD == c.getCommand();
+                        if (!begun)
+                           send(out, COMMAND_BEGIN);
+                        state = AUTHENTICATED;
+                        break;
                      case WAIT_REJECT:
                         c = receive(in);
                         switch (c.getCommand()) {
@@ -607,6 +771,8 @@ public final class Transport
                         byte[] buf = new byte[1];
                         if (null == us) {
                            in.read(buf);
+                           if (null != peerUser && isCurrentUser(peerUser, username))
+                              kernelUid = Uid;
                         } else {
                            buf[0] = us.recvCredentialByte();
                            int kuid = us.getPeerUID();
@@ -620,7 +786,7 @@ public final class Transport
                         c = receive(in);
                         switch (c.getCommand()) {
                            case COMMAND_AUTH:
-                              if (null == c.getData()) {
+                              if (null == c.getData() || 0 == (c.getMechs() & types)) {
                                  send(out, COMMAND_REJECTED, getTypes(types));
                               } else {
                                  switch (do_response(current, Uid, kernelUid, c)) {
@@ -696,6 +862,13 @@ public final class Transport
                            case COMMAND_BEGIN:
                               state = AUTHENTICATED;
                               break;
+                           case COMMAND_NEGOTIATE_UNIX_FD:
+                              if (unixfds) {
+                                 send(out, COMMAND_AGREE_UNIX_FD);
+                                 unixfd = true;
+                              } else
+                                 send(out, COMMAND_ERROR, "File descriptors can't be passed on this connection");
+                              break;
                            default:
                               send(out, COMMAND_ERROR, "Got invalid command");
                               break;
@@ -715,6 +888,7 @@ public final class Transport
    }
    public MessageReader min;
    public MessageWriter mout;
+   private boolean unixfd = false;
    public Transport() {}
    public static String genGUID()
    {
@@ -751,13 +925,47 @@ public final class Transport
    public void connect(BusAddress address, int timeout) throws IOException
    {
       logger.info("Connecting to {}",address);
+      if ("inproc".equals(address.getType())) {
+         // messages are handed over whole to the other end, which is trusted as it is in this JVM
+         String name = address.getParameter("name");
+         if (null == name)
+            throw new IOException(_("In-process addresses must have a name"));
+         InprocChannel ic;
+         if (null != address.getParameter("listen")) {
+            InprocChannel.Listener l = InprocChannel.listen(name);
+            try {
+               ic = l.accept();
+            } finally {
+               l.close();
+            }
+         } else
+            ic = InprocChannel.connect(name);
+         mout = new MessageWriter(ic);
+         min = new MessageReader(ic);
+         return;
+      }
       OutputStream out = null;
       InputStream in = null;
       UnixSocket us = null;
+      UnixChannel uc = null;
+      ShmChannel shm = null;
       Socket s = null;
       int mode = 0;
       int types = 0;
-      if ("unix".equals(address.getType())) {
+      if ("unix".equals(address.getType()) && UnixChannel.isSelected(address)) {
+         types = SASL.AUTH_EXTERNAL;
+         if (null == address.getParameter("path"))
+            throw new IOException(_("Unix domain socket channels can only use path addresses"));
+         if (null != address.getParameter("listen")) {
+            mode = SASL.MODE_SERVER;
+            uc = UnixChannel.accept(address.getParameter("path"));
+         } else {
+            mode = SASL.MODE_CLIENT;
+            uc = UnixChannel.connect(address.getParameter("path"));
+         }
+         in = uc.getInputStream();
+         out = uc.getOutputStream();
+      } else if ("unix".equals(address.getType()) || "shm".equals(address.getType())) {
          types = SASL.AUTH_EXTERNAL;
          if (null != address.getParameter("listen")) {
             mode = SASL.MODE_SERVER;
@@ -796,17 +1004,40 @@ public final class Transport
          throw new IOException(_("unknown address type ")+address.getType());
       }
       
-      if (!(new SASL()).auth(mode, types, address.getParameter("guid"), out, in, us)) {
+      SASL sasl = new SASL();
+      if (null != uc)
+         sasl.setPeerUser(uc.getPeerUser());
+      // shared memory channels only use the socket for auth and the doorbell
+      boolean unixfds = !"shm".equals(address.getType());
+      if (!sasl.auth(mode, types, address.getParameter("guid"), out, in, us, unixfds)) {
          out.close();
          throw new IOException(_("Failed to auth"));
       }
-      if (null != us) {
+      if ("shm".equals(address.getType())) {
+         // the socket only rings the doorbell from now on
+         shm = SASL.MODE_SERVER == mode ? ShmChannel.accept(us, ShmChannel.DEFAULT_CAPACITY) : ShmChannel.connect(us);
+         logger.debug("Passing messages through shared memory");
+         in = shm.getInputStream();
+         out = shm.getOutputStream();
+      } else if (sasl.isUnixFdAgreed()) {
+         logger.debug("Passing file descriptors over unix socket");
+         ((USInputStream) in).setPassFileDescriptors(true);
+         unixfd = true;
+      }
+      if (null != us && null == shm) {
          logger.debug("Setting unix socket timeout to {}",timeout);
          if (timeout == 1)
             us.setBlocking(false);
          else
             us.setSoTimeout(timeout);
       }
+      if (null != uc) {
+         logger.debug("Setting unix socket channel timeout to {}",timeout);
+         if (timeout == 1)
+            uc.setBlocking(false);
+         else
+            uc.setSoTimeout(timeout);
+      }
       if (null != s) {
          logger.trace("Setting socket timeout to {}",timeout);
          s.setSoTimeout(timeout);
@@ -814,6 +1045,10 @@ public final class Transport
       mout = new MessageWriter(out);
       min = new MessageReader(in);
    }
+   /**
+    * Returns true if file descriptors can be passed over this transport.
+    */
+   public boolean isFileDescriptorSupported() { return unixfd; }
    public void disconnect() throws IOException
    {
       logger.info("Disconnecting Transport");
@@ -0,0 +1,641 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.freedesktop.dbus.Message.ArgumentType;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.freedesktop.dbus.exceptions.UnknownTypeCodeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A D-Bus type compiled from its signature.
+ * A signature is parsed once into a tree of codecs, one per complete type,
+ * which marshall and demarshall values without looking at the signature
+ * again. Compiled signatures are cached.
+ */
+abstract class TypeCodec
+{
+   private static final Logger logger = LoggerFactory.getLogger(TypeCodec.class);
+
+   /** Upper bound on the number of cached signatures, as variants can carry any signature. */
+   static final int CACHE_SIZE = 1024;
+   /** The compiled signatures, emptied when it is full so that looking one up takes no lock. */
+   static final ConcurrentHashMap<String, TypeCodec[]> cache = new ConcurrentHashMap<String, TypeCodec[]>();
+
+   /** The type code this codec starts with. */
+   final byte type;
+   /** The alignment of values of this type. */
+   final int alignment;
+   /** The signature of this type. */
+   final String sig;
+   private volatile Type javatype;
+
+   TypeCodec(byte type, String sig)
+   {
+      this.type = type;
+      this.alignment = Message.getAlignment(type);
+      this.sig = sig;
+   }
+
+   /**
+    * Compile a signature into one codec per complete type.
+    * @param sig The D-Bus signature.
+    * @return The codecs. Callers must not modify this array.
+    * @throws DBusException If the signature is not valid.
+    */
+   static TypeCodec[] compile(String sig) throws DBusException
+   {
+      TypeCodec[] rv = cache.get(sig);
+      if (null != rv) return rv;
+      List<TypeCodec> codecs = new ArrayList<TypeCodec>();
+      try {
+         int[] i = new int[] { 0 };
+         while (i[0] < sig.length())
+            codecs.add(parse(sig, i));
+      } catch (IndexOutOfBoundsException IOOBe) {
+         logger.debug("exception", IOOBe);
+         throw new DBusException(_("Failed to parse DBus type signature: ")+sig,IOOBe);
+      }
+      rv = codecs.toArray(new TypeCodec[codecs.size()]);
+      if (cache.size() >= CACHE_SIZE) cache.clear();
+      cache.put(sig, rv);
+      return rv;
+   }
+   /**
+    * Compile the first complete type in a signature.
+    */
+   static TypeCodec compileOne(String sig) throws DBusException
+   {
+      TypeCodec[] codecs = compile(sig);
+      if (0 == codecs.length)
+         throw new DBusException(_("Failed to parse DBus type signature: ")+sig);
+      return codecs[0];
+   }
+   /**
+    * Returns the Java types corresponding to a signature, as Marshalling.getJavaType does.
+    */
+   static Type[] getJavaTypes(String sig) throws DBusException
+   {
+      TypeCodec[] codecs = compile(sig);
+      Type[] rv = new Type[codecs.length];
+      for (int i = 0; i < codecs.length; i++)
+         rv[i] = codecs[i].getJavaType();
+      return rv;
+   }
+   /**
+    * Returns true if each value is of a basic type which can't be changed,
+    * and is the same class demarshalling it from a signature would give.
+    */
+   static boolean isImmutable(String sig, Object[] values) throws DBusException
+   {
+      TypeCodec[] codecs = compile(sig);
+      if (codecs.length != values.length) return false;
+      for (int i = 0; i < codecs.length; i++) {
+         Class<?> c = null == values[i] ? null : values[i].getClass();
+         Class<?> want;
+         switch (codecs[i].type) {
+            case ArgumentType.BYTE: want = Byte.class; break;
+            case ArgumentType.BOOLEAN: want = Boolean.class; break;
+            case ArgumentType.INT16: want = Short.class; break;
+            case ArgumentType.UINT16: want = UInt16.class; break;
+            case ArgumentType.INT32: want = Integer.class; break;
+            case ArgumentType.UINT32: want = UInt32.class; break;
+            case ArgumentType.INT64: want = Long.class; break;
+            case ArgumentType.UINT64: want = UInt64.class; break;
+            case ArgumentType.DOUBLE: want = Double.class; break;
+            case ArgumentType.FLOAT: want = Float.class; break;
+            case ArgumentType.STRING:
+            case ArgumentType.SIGNATURE: want = String.class; break;
+            default: return false;
+         }
+         if (want != c) return false;
+      }
+      return true;
+   }
+   private static TypeCodec parse(String sig, int[] i) throws DBusException
+   {
+      int start = i[0];
+      byte t = (byte) sig.charAt(i[0]++);
+      switch (t) {
+         case ArgumentType.BYTE: return BYTE;
+         case ArgumentType.BOOLEAN: return BOOLEAN;
+         case ArgumentType.INT16: return INT16;
+         case ArgumentType.UINT16: return UINT16;
+         case ArgumentType.INT32: return INT32;
+         case ArgumentType.UINT32: return UINT32;
+         case ArgumentType.INT64: return INT64;
+         case ArgumentType.UINT64: return UINT64;
+         case ArgumentType.DOUBLE: return DOUBLE;
+         case ArgumentType.FLOAT: return FLOAT;
+         case ArgumentType.STRING: return STRING;
+         case ArgumentType.OBJECT_PATH: return OBJECT_PATH;
+         case ArgumentType.SIGNATURE: return SIGNATURE;
+         case ArgumentType.VARIANT: return VARIANT;
+         case ArgumentType.UNIX_FD: return UNIX_FD;
+         case ArgumentType.ARRAY:
+            TypeCodec element = parse(sig, i);
+            return new ArrayCodec(sig.substring(start, i[0]), element);
+         case ArgumentType.STRUCT1:
+            List<TypeCodec> members = new ArrayList<TypeCodec>();
+            while (ArgumentType.STRUCT2 != sig.charAt(i[0]))
+               members.add(parse(sig, i));
+            i[0]++;
+            return new StructCodec(sig.substring(start, i[0]), members.toArray(new TypeCodec[members.size()]));
+         case ArgumentType.DICT_ENTRY1:
+            TypeCodec key = parse(sig, i);
+            TypeCodec value = parse(sig, i);
+            if (ArgumentType.DICT_ENTRY2 != sig.charAt(i[0]++))
+               throw new DBusException(_("Failed to parse DBus type signature: ")+sig);
+            return new DictEntryCodec(sig.substring(start, i[0]), key, value);
+         default:
+            throw new UnknownTypeCodeException(t);
+      }
+   }
+
+   /**
+    * Returns the Java type values of this type are demarshalled to.
+    */
+   Type getJavaType() throws DBusException
+   {
+      Type rv = javatype;
+      if (null == rv) {
+         Vector<Type> ts = new Vector<Type>();
+         Marshalling.getJavaType(sig, ts, 1);
+         javatype = rv = ts.get(0);
+      }
+      return rv;
+   }
+   /**
+    * Align a buffer offset to this type.
+    */
+   int align(int current)
+   {
+      int r = current % alignment;
+      return 0 == r ? current : current + alignment - r;
+   }
+   /**
+    * Appends a value of this type to a message.
+    * @param m The message.
+    * @param data The value to marshall.
+    */
+   final void append(Message m, Object data) throws DBusException
+   {
+      try {
+         m.pad(type);
+         write(m, data);
+      } catch (ClassCastException CCe) {
+         logger.debug("Class exception: ",CCe);
+         throw new MarshallingException(MessageFormat.format(_("Trying to marshall to unconvertable type (from {0} to {1})."), new Object[] { data.getClass().getName(), type }));
+      }
+   }
+   /**
+    * Demarshall one value of this type from a buffer.
+    * @param m The message the buffer belongs to.
+    * @param buf The buffer to demarshall from.
+    * @param ofs ofs[1] is the offset into the buffer, and is updated to the end of the value.
+    * @param end The offset of the end of the values in the buffer, which may be longer.
+    * @param contained converts nested arrays to Lists
+    * @return The demarshalled value.
+    * @throws MarshallingException If the value runs past the end.
+    */
+   final Object extract(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+   {
+      ofs[1] = align(ofs[1]);
+      return read(m, buf, ofs, end, contained);
+   }
+   /**
+    * Checks that n bytes from ofs[1] are before the end of the values.
+    */
+   static void need(int[] ofs, long n, int end) throws MarshallingException
+   {
+      if (n < 0 || ofs[1]+n > end)
+         throw new MarshallingException(_("Message body is shorter than the values in it."));
+   }
+   /**
+    * Marshall a value once the message is aligned.
+    */
+   abstract void write(Message m, Object data) throws DBusException;
+   /**
+    * Demarshall a value once the offset is aligned.
+    */
+   abstract Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException;
+
+   static final TypeCodec BYTE = new TypeCodec(ArgumentType.BYTE, ArgumentType.BYTE_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendByte(((Number) data).byteValue());
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 1, end);
+         return buf[ofs[1]++];
+      }
+   };
+   static final TypeCodec BOOLEAN = new TypeCodec(ArgumentType.BOOLEAN, ArgumentType.BOOLEAN_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Boolean) data).booleanValue() ? 1 : 0, 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         int rf = (int) m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         return (1==rf)?Boolean.TRUE:Boolean.FALSE;
+      }
+   };
+   static final TypeCodec INT16 = new TypeCodec(ArgumentType.INT16, ArgumentType.INT16_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Number) data).shortValue(), 2);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 2, end);
+         short rv = (short) m.demarshallint(buf, ofs[1], 2);
+         ofs[1] += 2;
+         return rv;
+      }
+   };
+   static final TypeCodec UINT16 = new TypeCodec(ArgumentType.UINT16, ArgumentType.UINT16_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Number) data).intValue(), 2);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 2, end);
+         UInt16 rv = new UInt16((int) m.demarshallint(buf, ofs[1], 2));
+         ofs[1] += 2;
+         return rv;
+      }
+   };
+   static final TypeCodec INT32 = new TypeCodec(ArgumentType.INT32, ArgumentType.INT32_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Number) data).intValue(), 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         int rv = (int) m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         return rv;
+      }
+   };
+   static final TypeCodec UINT32 = new TypeCodec(ArgumentType.UINT32, ArgumentType.UINT32_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Number) data).longValue(), 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         UInt32 rv = new UInt32(m.demarshallint(buf, ofs[1], 4));
+         ofs[1] += 4;
+         return rv;
+      }
+   };
+   static final TypeCodec INT64 = new TypeCodec(ArgumentType.INT64, ArgumentType.INT64_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(((Number) data).longValue(), 8);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 8, end);
+         long rv = m.demarshallint(buf, ofs[1], 8);
+         ofs[1] += 8;
+         return rv;
+      }
+   };
+   static final TypeCodec UINT64 = new TypeCodec(ArgumentType.UINT64, ArgumentType.UINT64_STRING) {
+      // the top and bottom halves in message byte order are the same
+      // as the whole value as a 64 bit integer in message byte order.
+      void write(Message m, Object data)
+      {
+         m.appendint((((UInt64) data).top() << 32) | ((UInt64) data).bottom(), 8);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 8, end);
+         long l = m.demarshallint(buf, ofs[1], 8);
+         ofs[1] += 8;
+         return new UInt64(l >>> 32, l & 0xFFFFFFFFL);
+      }
+   };
+   static final TypeCodec DOUBLE = new TypeCodec(ArgumentType.DOUBLE, ArgumentType.DOUBLE_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(Double.doubleToLongBits(((Number) data).doubleValue()), 8);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 8, end);
+         long l = m.demarshallint(buf, ofs[1], 8);
+         ofs[1] += 8;
+         return Double.longBitsToDouble(l);
+      }
+   };
+   static final TypeCodec FLOAT = new TypeCodec(ArgumentType.FLOAT, ArgumentType.FLOAT_STRING) {
+      void write(Message m, Object data)
+      {
+         m.appendint(Float.floatToIntBits(((Number) data).floatValue()), 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         int rf = (int) m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         return Float.intBitsToFloat(rf);
+      }
+   };
+   static final TypeCodec UNIX_FD = new TypeCodec(ArgumentType.UNIX_FD, ArgumentType.UNIX_FD_STRING) {
+      // the body holds an index into the descriptors passed with the message
+      void write(Message m, Object data)
+      {
+         m.appendint(m.addFileDescriptor(((FileDescriptor) data).getIntFileDescriptor()), 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         int index = (int) m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         return m.getFileDescriptor(index);
+      }
+   };
+   static final TypeCodec STRING = new StringCodec(ArgumentType.STRING, ArgumentType.STRING_STRING);
+   static final TypeCodec OBJECT_PATH = new StringCodec(ArgumentType.OBJECT_PATH, ArgumentType.OBJECT_PATH_STRING);
+   static final TypeCodec SIGNATURE = new TypeCodec(ArgumentType.SIGNATURE, ArgumentType.SIGNATURE_STRING) {
+      // Signatures are marshalled as a byte with the length,
+      // followed by the String, followed by a null byte.
+      void write(Message m, Object data) throws DBusException
+      {
+         String payload;
+         if (data instanceof Type[])
+            payload = Marshalling.getDBusType((Type[]) data);
+         else
+            payload = (String) data;
+         m.appendString(payload, 1);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 1, end);
+         int length = (buf[ofs[1]++] & 0xFF);
+         need(ofs, length + 1, end);
+         String rv = StringCache.get(buf, ofs[1], length);
+         ofs[1] += length + 1;
+         return rv;
+      }
+   };
+   static final TypeCodec VARIANT = new TypeCodec(ArgumentType.VARIANT, ArgumentType.VARIANT_STRING) {
+      // Variants are marshalled as a signature
+      // followed by the value.
+      void write(Message m, Object data) throws DBusException
+      {
+         String vsig;
+         Object value;
+         if (data instanceof Variant) {
+            vsig = ((Variant) data).getSig();
+            value = ((Variant) data).getValue();
+         } else if (data instanceof Object[]) {
+            vsig = (String) ((Object[]) data)[0];
+            value = ((Object[]) data)[1];
+         } else {
+            vsig = Marshalling.getDBusType(data.getClass())[0];
+            value = data;
+         }
+         SIGNATURE.append(m, vsig);
+         compileOne(vsig).append(m, value);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         String vsig = (String) SIGNATURE.extract(m, buf, ofs, end, false);
+         return new Variant<Object>(compileOne(vsig).extract(m, buf, ofs, end, false), vsig);
+      }
+   };
+
+   /**
+    * Strings and object paths are marshalled as a UInt32 with the length,
+    * followed by the String, followed by a null byte.
+    */
+   static final class StringCodec extends TypeCodec
+   {
+      StringCodec(byte type, String sig)
+      {
+         super(type, sig);
+      }
+      void write(Message m, Object data) throws DBusException
+      {
+         m.appendString(data.toString(), 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         int length = (int) m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         need(ofs, length + 1L, end);
+         Object rv;
+         if (ArgumentType.OBJECT_PATH == type)
+            rv = new ObjectPath(m.getSource(), StringCache.get(buf, ofs[1], length));
+         else
+            rv = Utf8.decode(buf, ofs[1], length);
+         ofs[1] += length + 1;
+         return rv;
+      }
+   }
+
+   /**
+    * Arrays are given as a UInt32 for the length in bytes,
+    * padding to the element alignment, then elements in
+    * order. The length is the length from the end of the
+    * initial padding to the end of the last element.
+    */
+   static final class ArrayCodec extends TypeCodec
+   {
+      final TypeCodec element;
+      /** Whether arrays of this type are demarshalled to Java primitive arrays. */
+      private final boolean primitive;
+
+      ArrayCodec(String sig, TypeCodec element)
+      {
+         super(ArgumentType.ARRAY, sig);
+         this.element = element;
+         switch (element.type) {
+            case ArgumentType.BYTE:
+            case ArgumentType.INT16:
+            case ArgumentType.INT32:
+            case ArgumentType.INT64:
+            case ArgumentType.BOOLEAN:
+            case ArgumentType.FLOAT:
+            case ArgumentType.DOUBLE:
+               primitive = true;
+               break;
+            default:
+               primitive = false;
+         }
+      }
+      @SuppressWarnings("unchecked")
+      void write(Message m, Object data) throws DBusException
+      {
+         int alen = m.reserveint(4);
+         m.pad(element.type);
+         long c = m.bytecounter;
+
+         if (data.getClass().isArray() &&
+               data.getClass().getComponentType().isPrimitive())
+            m.appendPrimitives(element.type, data);
+         else if (data instanceof ByteBuffer && ArgumentType.BYTE == element.type)
+            m.appendBytes((ByteBuffer) data);
+         else if (data instanceof List)
+            for (Object o: (List<Object>) data)
+               element.append(m, o);
+         else if (data instanceof Map)
+            for (Map.Entry<Object,Object> o: ((Map<Object,Object>) data).entrySet())
+               element.append(m, o);
+         else
+            for (Object o: (Object[]) data)
+               element.append(m, o);
+
+         m.marshallint(m.bytecounter - c, alen, 4);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         need(ofs, 4, end);
+         long size = m.demarshallint(buf, ofs[1], 4);
+         ofs[1] = element.align(ofs[1] + 4);
+         int length = (int) (size / element.alignment);
+         if (length > DBusConnection.MAX_ARRAY_LENGTH)
+            throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
+         need(ofs, size, end);
+         // the elements are bounded by the end of the array
+         int aend = ofs[1] + (int) size;
+         Object rv;
+         if (primitive) {
+            rv = m.extractPrimitives(element.type, buf, ofs, length);
+         } else if (ArgumentType.DICT_ENTRY1 == element.type) {
+            List<Object[]> entries = new ArrayList<Object[]>();
+            while (ofs[1] < aend)
+               entries.add((Object[]) element.extract(m, buf, ofs, aend, true));
+            rv = new DBusMap<Object, Object>(entries.toArray(new Object[entries.size()][]));
+         } else {
+            Vector<Object> contents = new Vector<Object>();
+            while (ofs[1] < aend)
+               contents.add(element.extract(m, buf, ofs, aend, true));
+            rv = contents;
+         }
+         if (contained && !(rv instanceof List) && !(rv instanceof Map))
+            rv = ArrayFrob.listify(rv);
+         return rv;
+      }
+      /**
+       * Demarshall a byte array as a slice of the buffer rather than a copy.
+       * The message is pinned so that the buffer is never recycled.
+       * @param end The offset of the end of the values in the buffer.
+       * @throws MarshallingException If the array runs past the end.
+       */
+      ByteBuffer slice(Message m, byte[] buf, int[] ofs, int end) throws DBusException
+      {
+         ofs[1] = align(ofs[1]);
+         need(ofs, 4, end);
+         long size = m.demarshallint(buf, ofs[1], 4);
+         ofs[1] += 4;
+         if (size > DBusConnection.MAX_ARRAY_LENGTH)
+            throw new MarshallingException(_("Arrays must not exceed ")+DBusConnection.MAX_ARRAY_LENGTH);
+         // checked before pinning, and so that the slice never shows what is after the body
+         need(ofs, size, end);
+         m.pin();
+         ByteBuffer rv = ByteBuffer.wrap(buf, ofs[1], (int) size).slice();
+         ofs[1] += size;
+         return rv;
+      }
+   }
+
+   /**
+    * Structs are aligned to 8 bytes
+    * and simply contain each element marshalled in order.
+    */
+   static final class StructCodec extends TypeCodec
+   {
+      final TypeCodec[] members;
+
+      StructCodec(String sig, TypeCodec[] members)
+      {
+         super(ArgumentType.STRUCT1, sig);
+         this.members = members;
+      }
+      void write(Message m, Object data) throws DBusException
+      {
+         Object[] contents;
+         if (data instanceof Container)
+            contents = ((Container) data).getParameters();
+         else
+            contents = (Object[]) data;
+         for (int j = 0; j < members.length; j++)
+            members[j].append(m, contents[j]);
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         Object[] rv = new Object[members.length];
+         for (int j = 0; j < members.length; j++)
+            rv[j] = members[j].extract(m, buf, ofs, end, true);
+         return rv;
+      }
+   }
+
+   /**
+    * Dict entries are the same as structs.
+    */
+   static final class DictEntryCodec extends TypeCodec
+   {
+      final TypeCodec key;
+      final TypeCodec value;
+
+      DictEntryCodec(String sig, TypeCodec key, TypeCodec value)
+      {
+         super(ArgumentType.DICT_ENTRY1, sig);
+         this.key = key;
+         this.value = value;
+      }
+      @SuppressWarnings("unchecked")
+      void write(Message m, Object data) throws DBusException
+      {
+         if (data instanceof Map.Entry) {
+            key.append(m, ((Map.Entry<Object,Object>) data).getKey());
+            value.append(m, ((Map.Entry<Object,Object>) data).getValue());
+         } else {
+            Object[] contents = (Object[]) data;
+            key.append(m, contents[0]);
+            value.append(m, contents[1]);
+         }
+      }
+      Object read(Message m, byte[] buf, int[] ofs, int end, boolean contained) throws DBusException
+      {
+         Object[] rv = new Object[2];
+         rv[0] = key.extract(m, buf, ofs, end, true);
+         rv[1] = value.extract(m, buf, ofs, end, true);
+         return rv;
+      }
+   }
+}
@@ -0,0 +1,276 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.attribute.UserPrincipal;
+
+import static org.freedesktop.dbus.Gettext._;
+
+/**
+ * A unix socket connection made with the Unix-domain socket channels of
+ * the JDK (16 or later) rather than libunix-java, so no native library is
+ * needed. The JDK classes are found by reflection as this library is built
+ * for older JDKs.
+ * <p>
+ * The channel is always non-blocking and its streams read and write through
+ * direct buffers, waiting on a selector when the socket is not ready. Reads
+ * time out like those of a UnixSocket, returning 0 bytes, or with no timeout
+ * wait until data arrives or the channel is closed. File descriptors
+ * and abstract addresses are not supported by the JDK, and there is no
+ * credentials byte: the peer is identified by SO_PEERCRED instead.
+ * <p>
+ * Bus addresses select this transport with the parameter nio=true, or all
+ * unix addresses do if the system property {@value #NIO_PROPERTY} is true.
+ */
+final class UnixChannel
+{
+   private static final Logger logger = LoggerFactory.getLogger(UnixChannel.class);
+
+   /** The system property which makes this the transport for all unix addresses. */
+   static final String NIO_PROPERTY = "org.freedesktop.dbus.unix.nio";
+   /** The bus address parameter which selects this transport for one address. */
+   static final String NIO_PARAMETER = "nio";
+
+   private static final int BUFFER_SIZE = 16384;
+
+   private static final ProtocolFamily UNIX;
+   private static final Method ADDRESS_OF;
+   private static final Method OPEN;
+   private static final Method OPEN_SERVER;
+   private static final SocketOption<?> PEERCRED;
+   private static final Method PEER_USER;
+   static {
+      ProtocolFamily unix = null;
+      Method of = null, open = null, openServer = null, user = null;
+      SocketOption<?> peercred = null;
+      try {
+         unix = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+         of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+         open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+         openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+         peercred = (SocketOption<?>) Class.forName("jdk.net.ExtendedSocketOptions").getField("SO_PEERCRED").get(null);
+         user = Class.forName("jdk.net.UnixDomainPrincipal").getMethod("user");
+      } catch (Exception e) {
+         logger.debug("Unix domain socket channels are not available: {}", e.toString());
+      }
+      UNIX = unix;
+      ADDRESS_OF = of;
+      OPEN = open;
+      OPEN_SERVER = openServer;
+      PEERCRED = peercred;
+      PEER_USER = user;
+   }
+
+   /**
+    * Returns true if connections to the address should be made with this transport.
+    */
+   static boolean isSelected(BusAddress address)
+   {
+      String nio = address.getParameter(NIO_PARAMETER);
+      if (null != nio) return "true".equals(nio);
+      return Boolean.getBoolean(NIO_PROPERTY);
+   }
+
+   /**
+    * Connect to the socket at a path.
+    */
+   static UnixChannel connect(String path) throws IOException
+   {
+      SocketChannel channel = (SocketChannel) invoke(OPEN, null, UNIX);
+      try {
+         channel.connect(address(path));
+      } catch (IOException IOe) {
+         channel.close();
+         throw IOe;
+      }
+      return new UnixChannel(channel);
+   }
+   /**
+    * Listen on a path and accept one connection.
+    */
+   static UnixChannel accept(String path) throws IOException
+   {
+      ServerSocketChannel server = (ServerSocketChannel) invoke(OPEN_SERVER, null, UNIX);
+      try {
+         server.bind(address(path));
+         return new UnixChannel(server.accept());
+      } finally {
+         server.close();
+      }
+   }
+   private static SocketAddress address(String path) throws IOException
+   {
+      return (SocketAddress) invoke(ADDRESS_OF, null, path);
+   }
+   private static Object invoke(Method m, Object o, Object arg) throws IOException
+   {
+      if (null == m)
+         throw new IOException(_("Unix domain socket channels need Java 16 or later"));
+      try {
+         return m.invoke(o, arg);
+      } catch (InvocationTargetException ITe) {
+         if (ITe.getCause() instanceof IOException) throw (IOException) ITe.getCause();
+         throw new IOException(ITe.getCause());
+      } catch (IllegalAccessException IAe) {
+         throw new IOException(IAe);
+      }
+   }
+
+   private final SocketChannel channel;
+   private final Selector readable;
+   private final Selector writable;
+   private final ByteBuffer rbuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private final ByteBuffer wbuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private final InputStream in = new Input();
+   private final OutputStream out = new Output();
+   /** How long reads wait for data in microseconds, or 0 to wait forever. */
+   private volatile int timeout = 0;
+   private volatile boolean blocking = true;
+
+   private UnixChannel(SocketChannel channel) throws IOException
+   {
+      this.channel = channel;
+      channel.configureBlocking(false);
+      readable = Selector.open();
+      writable = Selector.open();
+      channel.register(readable, SelectionKey.OP_READ);
+      channel.register(writable, SelectionKey.OP_WRITE);
+      rbuf.flip();
+   }
+
+   /**
+    * Returns the user at the other end of the socket, or null if it can't be found.
+    */
+   UserPrincipal getPeerUser()
+   {
+      if (null == PEERCRED || null == PEER_USER) return null;
+      try {
+         Object creds = channel.getOption(PEERCRED);
+         return (UserPrincipal) PEER_USER.invoke(creds);
+      } catch (Exception e) {
+         logger.debug("Could not get peer credentials: {}", e.toString());
+         return null;
+      }
+   }
+   InputStream getInputStream() { return in; }
+   OutputStream getOutputStream() { return out; }
+   /**
+    * Set whether reads wait for data at all.
+    */
+   void setBlocking(boolean enable) { blocking = enable; }
+   /**
+    * Set how long reads wait for data.
+    * @param timeout The timeout in microseconds, or 0 to wait forever.
+    */
+   void setSoTimeout(int timeout) { this.timeout = timeout; }
+
+   /**
+    * Close the socket, waking up any reads or writes waiting on it.
+    */
+   void close() throws IOException
+   {
+      channel.close();
+      readable.close();
+      writable.close();
+   }
+
+   private class Input extends InputStream
+   {
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+         int rv;
+         do rv = read(b, 0, 1);
+         while (0 == rv);
+         return -1 == rv ? -1 : b[0] & 0xFF;
+      }
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (0 == len) return 0;
+         synchronized (rbuf) {
+            if (!rbuf.hasRemaining()) {
+               rbuf.clear();
+               int rv = channel.read(rbuf);
+               if (0 == rv && blocking) {
+                  int t = timeout;
+                  try {
+                     readable.select(0 == t ? 0 : Math.max(1, t/1000));
+                     readable.selectedKeys().clear();
+                  } catch (ClosedSelectorException CSe) {
+                     throw new ClosedChannelException();
+                  }
+                  rv = channel.read(rbuf);
+               }
+               rbuf.flip();
+               if (-1 == rv) return -1;
+               if (0 == rv) return 0;
+            }
+            int n = Math.min(len, rbuf.remaining());
+            rbuf.get(b, off, n);
+            return n;
+         }
+      }
+      public int available()
+      {
+         synchronized (rbuf) { return rbuf.remaining(); }
+      }
+      public void close() throws IOException { UnixChannel.this.close(); }
+   }
+
+   private class Output extends OutputStream
+   {
+      public void write(int b) throws IOException
+      {
+         write(new byte[] { (byte) b }, 0, 1);
+      }
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         synchronized (wbuf) {
+            while (len > 0) {
+               int n = Math.min(len, wbuf.capacity());
+               wbuf.clear();
+               wbuf.put(b, off, n);
+               wbuf.flip();
+               while (wbuf.hasRemaining()) {
+                  if (0 == channel.write(wbuf)) try {
+                     writable.select();
+                     writable.selectedKeys().clear();
+                  } catch (ClosedSelectorException CSe) {
+                     throw new ClosedChannelException();
+                  }
+               }
+               off += n;
+               len -= n;
+            }
+         }
+      }
+      public void close() throws IOException { UnixChannel.this.close(); }
+   }
+}
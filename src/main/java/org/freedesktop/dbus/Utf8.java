@@ -0,0 +1,146 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus;
+
+import static org.freedesktop.dbus.Gettext._;
+
+import java.nio.charset.Charset;
+
+import org.freedesktop.dbus.exceptions.MarshallingException;
+
+/**
+ * Converts strings to and from UTF-8 without going through a Charset
+ * encoder or intermediate arrays. Almost every string on the bus is
+ * ASCII, which takes a fast path in both directions.
+ * Strings must be valid UTF-8 without nul characters, so strings
+ * containing nul characters or unpaired surrogates are rejected when
+ * sending, and invalid UTF-8 is rejected when receiving.
+ */
+final class Utf8
+{
+   /** ASCII text decodes the same as ISO-8859-1, which needs no decoding. */
+   private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+   private Utf8() {}
+
+   /**
+    * Decode and validate UTF-8 bytes.
+    * @throws MarshallingException If the bytes are not valid UTF-8 or contain a nul.
+    */
+   static String decode(byte[] buf, int ofs, int len) throws MarshallingException
+   {
+      int end = ofs+len;
+      int i = ofs;
+      while (i < end && buf[i] > 0) i++;
+      if (i == end) return new String(buf, ofs, len, LATIN1);
+      // at most one char per byte
+      char[] cs = new char[len];
+      int n = 0;
+      for (int j = ofs; j < i; j++)
+         cs[n++] = (char) buf[j];
+      while (i < end) {
+         int b = buf[i++];
+         if (b > 0) {
+            cs[n++] = (char) b;
+            continue;
+         }
+         int cp, more, min;
+         if ((b & 0xE0) == 0xC0) {
+            cp = b & 0x1F;
+            more = 1;
+            min = 0x80;
+         } else if ((b & 0xF0) == 0xE0) {
+            cp = b & 0x0F;
+            more = 2;
+            min = 0x800;
+         } else if ((b & 0xF8) == 0xF0) {
+            cp = b & 0x07;
+            more = 3;
+            min = 0x10000;
+         } else
+            throw invalid();
+         if (i+more > end) throw invalid();
+         for (; more > 0; more--) {
+            int c = buf[i++];
+            if ((c & 0xC0) != 0x80) throw invalid();
+            cp = (cp << 6) | (c & 0x3F);
+         }
+         // overlong forms, surrogates and values past the last code point are invalid
+         if (cp < min || cp > Character.MAX_CODE_POINT || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE))
+            throw invalid();
+         if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            cs[n++] = Character.highSurrogate(cp);
+            cs[n++] = Character.lowSurrogate(cp);
+         } else
+            cs[n++] = (char) cp;
+      }
+      return new String(cs, 0, n);
+   }
+   private static MarshallingException invalid()
+   {
+      return new MarshallingException(_("Strings must be valid UTF-8 without nul characters."));
+   }
+   /**
+    * Returns the number of bytes needed to encode a string from index i on.
+    * @throws MarshallingException If the string contains a nul or an unpaired surrogate.
+    */
+   static int encodedLength(String s, int i) throws MarshallingException
+   {
+      int n = 0;
+      int len = s.length();
+      for (; i < len; i++) {
+         char c = s.charAt(i);
+         if (c < 0x80) {
+            if (0 == c) throw new MarshallingException(_("Strings may not contain nul characters."));
+            n++;
+         } else if (c < 0x800)
+            n += 2;
+         else if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+            n += 4;
+            i++;
+         } else if (Character.isSurrogate(c))
+            throw new MarshallingException(_("Strings may not contain unpaired surrogates."));
+         else
+            n += 3;
+      }
+      return n;
+   }
+   /**
+    * Encode a string from index i on, which encodedLength has checked.
+    * @param buf The buffer, with room for encodedLength(s, i) bytes from p.
+    * @param p The offset to start writing at.
+    * @return The offset after the last byte written.
+    */
+   static int encode(String s, int i, byte[] buf, int p)
+   {
+      int len = s.length();
+      for (; i < len; i++) {
+         char c = s.charAt(i);
+         if (c < 0x80)
+            buf[p++] = (byte) c;
+         else if (c < 0x800) {
+            buf[p++] = (byte) (0xC0 | (c >> 6));
+            buf[p++] = (byte) (0x80 | (c & 0x3F));
+         } else if (Character.isHighSurrogate(c)) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            buf[p++] = (byte) (0xF0 | (cp >> 18));
+            buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[p++] = (byte) (0x80 | (cp & 0x3F));
+         } else {
+            buf[p++] = (byte) (0xE0 | (c >> 12));
+            buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[p++] = (byte) (0x80 | (c & 0x3F));
+         }
+      }
+      return p;
+   }
+}
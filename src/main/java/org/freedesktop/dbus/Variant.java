@@ -17,7 +17,6 @@ import org.slf4j.LoggerFactory;
 import java.lang.reflect.Type;
 import java.text.MessageFormat;
 import java.util.Objects;
-import java.util.Vector;
 
 import static org.freedesktop.dbus.Gettext._;
 
@@ -29,7 +28,7 @@ import static org.freedesktop.dbus.Gettext._;
  */
 public final class Variant<T>
 {
-   private final Logger logger= LoggerFactory.getLogger(Variant.class);
+   private static final Logger logger= LoggerFactory.getLogger(Variant.class);
    private final T o;
    private final Type type;
    private final String sig;
@@ -85,11 +84,10 @@ public final class Variant<T>
       if (null == o) throw new IllegalArgumentException(_("Can't wrap Null in a Variant"));
       this.sig = sig;
       try {
-         Vector<Type> ts = new Vector<Type>();
-         Marshalling.getJavaType(sig, ts,1);
-         if (ts.size() != 1)
+         TypeCodec[] ts = TypeCodec.compile(sig);
+         if (ts.length != 1)
             throw new IllegalArgumentException(_("Can't wrap multiple or no types in a Variant: ")+sig);
-         this.type = ts.get(0);
+         this.type = ts[0].getJavaType();
       } catch (DBusException DBe) {
          logger.debug("exception: ", DBe);
          throw new IllegalArgumentException(MessageFormat.format(_("Can't wrap {0} in an unqualified Variant ({1})."), new Object[] { sig, DBe.getMessage() }),DBe);
@@ -48,6 +48,7 @@ public class DBusDaemon extends Thread
    {
       public UnixSocket usock;
       public Socket tsock;
+      public InprocChannel inproc;
       public MessageReader min;
       public MessageWriter mout;
       public String unique;
@@ -63,6 +64,12 @@ public class DBusDaemon extends Thread
          min = new MessageReader(sock.getInputStream());
          mout = new MessageWriter(sock.getOutputStream());
       }
+      public Connstruct(InprocChannel channel)
+      {
+         this.inproc = channel;
+         min = new MessageReader(channel);
+         mout = new MessageWriter(channel);
+      }
       public String toString()
       {
          return null == unique ? ":?-?" : unique;
@@ -674,6 +681,7 @@ public class DBusDaemon extends Thread
          try {
             if (null != c.usock) c.usock.close();
             if (null != c.tsock) c.tsock.close();
+            if (null != c.inproc) c.inproc.close();
          } catch (IOException IOe) {}
          synchronized(names) {
             List<String> toRemove = new Vector<String>();
@@ -713,6 +721,16 @@ public class DBusDaemon extends Thread
       }
       r.start();
    }
+   public void addSock(InprocChannel ic)
+   {
+      logger.info("New Client: {}",ic);
+      Connstruct c = new Connstruct(ic);
+      Reader r = new Reader(c);
+      synchronized (conns) {
+         conns.put(c, r);
+      }
+      r.start();
+   }
    public static void syntax()
    {
       System.out.println("Syntax: DBusDaemon [--version] [-v] [--help] [-h] [--listen address] [-l address] [--print-address] [-r] [--pidfile file] [-p file] [--addressfile file] [-a file] [--unix] [-u] [--tcp] [-t] ");
@@ -789,6 +807,8 @@ public class DBusDaemon extends Thread
          doUnix(address);
       else if ("tcp".equals(address.getType()))
          doTCP(address);
+      else if ("inproc".equals(address.getType()))
+         doInproc(address);
       else throw new Exception("Unknown address type: "+address.getType());
        logger.info("exit");
    }
@@ -808,7 +828,8 @@ public class DBusDaemon extends Thread
       // accept new connections
       while (d._run) {
          UnixSocket s = uss.accept();
-         if ((new Transport.SASL()).auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, address.getParameter("guid"), s.getOutputStream(), s.getInputStream(), s)) {
+         // messages are forwarded without their file descriptors, so don't agree to pass them
+         if ((new Transport.SASL()).auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, address.getParameter("guid"), s.getOutputStream(), s.getInputStream(), s, false)) {
          //   s.setBlocking(false);
             d.addSock(s);
          } else
@@ -816,6 +837,26 @@ public class DBusDaemon extends Thread
       }
       logger.debug("exit");
    }
+   private static void doInproc(BusAddress address) throws IOException
+   {
+      logger.info("start in-process server: {}",address);
+      if (null == address.getParameter("name"))
+         throw new IOException("In-process addresses must have a name");
+      InprocChannel.Listener l = InprocChannel.listen(address.getParameter("name"));
+      DBusDaemon d = new DBusDaemon();
+      d.start();
+      d.sender.start();
+      d.dbus_server.start();
+
+      // accept new connections, which need no authentication from within this JVM
+      try {
+         while (d._run)
+            d.addSock(l.accept());
+      } finally {
+         l.close();
+      }
+      logger.debug("exit");
+   }
    private static void doTCP(BusAddress address) throws IOException
    {
       logger.info("start TCP server: {}",address);
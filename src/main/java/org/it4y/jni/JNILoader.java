@@ -13,19 +13,40 @@ package org.it4y.jni;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Created by luc on 12/28/13.
  * Use this class as for loading of .so files from any class implementing native methods
  *
  * The loader will first look into /usr/lib . if not found it will look into jar which include this class.
- * If found , it will copy the .so file to /tmp directory and load from there.
+ * If found , it will copy the .so file to a directory of the user's own under /tmp and load from there.
  *
- * We will remove any file retrieved from JAR on exist, just to make sure we have the latest version
+ * The copy is named by a hash of its content and kept, so later runs of the same version
+ * load it without extracting it again, while a new version gets a file of its own.
+ * Copies of other versions which no run has used for a day are deleted.
+ * The directory must belong to the user and be closed to everyone else, so nobody
+ * else can change a copy between its check and its loading; if it is not, the
+ * library is extracted to a new directory which is deleted on exit.
  *
  *
  */
@@ -33,6 +54,14 @@ public class JNILoader {
     public  static final String customPathKEY="JNILoader.tmpPath";
     private static final String tmpPath = "/tmp/jni";
 
+    //Extracted copies of other versions which have not been used for this long are deleted.
+    private static final long STALE_AGE = 24L * 60 * 60 * 1000;
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE);
+
+    //Libraries already loaded by this class loader.
+    private static final Set<String> loaded = new HashSet<String>();
+
     //Predefined location of librabry path.
     private static final String[] libpath = new String[]{"/usr/lib","/usr/lib/jni","target/classes"};
 
@@ -45,6 +74,17 @@ public class JNILoader {
      * @param lib the library (filename only !!!)
      */
     public static void loadLibrary(final String lib) {
+        //every class with native methods asks for its library, only the first has to find it
+        synchronized (loaded) {
+            if (loaded.contains(lib)) {
+                return;
+            }
+            load(lib);
+            loaded.add(lib);
+        }
+    }
+
+    private static void load(final String lib) {
         final String libfname=libraryArchFileName(lib);
         final Logger log = LoggerFactory.getLogger(JNILoader.class);
         log.info("load {}",libfname);
@@ -66,49 +106,40 @@ public class JNILoader {
         }
 
         //try loading from JAR resource stream
-        final String targetFolder = getTargetFolder();
-        final File targetFile = new File(targetFolder, libfname);
-        //cleanup any old file
-        if (targetFile.exists()) {
-            log.info("cleanup old {}", targetFile);
-            if(!targetFile.delete()) {
-                //should never happen but you never know
-                log.warn("Could not delete old {}",targetFile);
-            }
-        }
-        targetFile.deleteOnExit();
-
-        // extract file into the current directory
-        final InputStream reader = JNILoader.class.getResourceAsStream('/' + libfname);
-        FileOutputStream writer=null;
-        if (reader != null) {
+        final byte[] data = readResource(libfname);
+        if (data != null) {
             try {
-                writer = new FileOutputStream(targetFile);
-                final byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = reader.read(buffer)) != -1) {
-                    writer.write(buffer, 0, bytesRead);
+                //the extracted copy is named by its content, so later runs can load it again
+                final byte[] digest = digest(data);
+                File folder = privateFolder(getTargetFolder());
+                final boolean kept = folder != null;
+                if (!kept) {
+                    folder = Files.createTempDirectory("jni").toFile();
+                    folder.deleteOnExit();
+                }
+                final File targetFile = new File(folder, hashedFileName(lib, digest));
+                if (kept && targetFile.exists() && targetFile.length() == data.length
+                        && Arrays.equals(digest, digest(readFile(targetFile)))) {
+                    log.info("reusing extracted {}", targetFile);
+                    //marks it as in use for removeStale
+                    if (!targetFile.setLastModified(System.currentTimeMillis())) {
+                        log.debug("could not touch {}", targetFile);
+                    }
+                } else {
+                    extract(data, targetFile);
+                }
+                if (!kept) {
+                    targetFile.deleteOnExit();
                 }
                 //load native lib
                 System.load(targetFile.getAbsolutePath());
                 log.info("native lib loaded: {}", targetFile);
+                if (kept) {
+                    removeStale(folder, lib, targetFile);
+                }
                 return;
-                //
             } catch (final IOException io) {
                 log.error("Fatal IO error : {}", io.getMessage());
-            } finally {
-                    try {
-                        reader.close();
-                    } catch (final IOException ignore) {
-                        log.warn("could not close resource {}",lib);
-                    }
-                if (writer != null ) {
-                    try {
-                        writer.close();
-                    } catch (final IOException ignore) {
-                        log.warn("could not close {}",targetFile);
-                    }
-                }
             }
         } else {
             log.warn("lib {} ({}) not found in jar", lib,libfname);
@@ -120,11 +151,157 @@ public class JNILoader {
         throw new RuntimeException("No library loaded: " + libfname);
     }
 
+    /**
+     * @return the name of the extracted library for this content, e.g. lib-amd64-0123456789abcdef.so
+     */
+    static String hashedFileName(final String lib, final byte[] digest) {
+        final StringBuilder sb = new StringBuilder(lib).append('-').append(System.getProperty("os.arch")).append('-');
+        for (int i = 0; i < 8; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return sb.append(".so").toString();
+    }
+
+    private static byte[] digest(final byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (final NoSuchAlgorithmException nsae) {
+            throw new IOException(nsae);
+        }
+    }
+
+    /**
+     * @return the content of a resource next to this class, or null if there is none
+     */
+    private static byte[] readResource(final String name) {
+        final InputStream reader = JNILoader.class.getResourceAsStream('/' + name);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return readFully(reader);
+        } catch (final IOException io) {
+            LoggerFactory.getLogger(JNILoader.class).error("Fatal IO error : {}", io.getMessage());
+            return null;
+        } finally {
+            try {
+                reader.close();
+            } catch (final IOException ignore) {
+                LoggerFactory.getLogger(JNILoader.class).warn("could not close resource {}", name);
+            }
+        }
+    }
+
+    private static byte[] readFile(final File f) throws IOException {
+        final InputStream reader = new FileInputStream(f);
+        try {
+            return readFully(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] readFully(final InputStream reader) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = reader.read(buffer)) != -1) {
+            bytes.write(buffer, 0, bytesRead);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the library to a temporary file and move it into place, so a
+     * concurrent start never loads a half written copy.
+     */
+    private static void extract(final byte[] data, final File targetFile) throws IOException {
+        final File temp = File.createTempFile(targetFile.getName(), ".tmp", targetFile.getParentFile());
+        final FileOutputStream writer = new FileOutputStream(temp);
+        try {
+            writer.write(data);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(targetFile)) {
+            //another JVM may have won the race
+            if (!temp.delete()) {
+                temp.deleteOnExit();
+            }
+            if (!targetFile.exists()) {
+                throw new IOException("Could not create " + targetFile);
+            }
+        }
+        LoggerFactory.getLogger(JNILoader.class).info("extracted {}", targetFile);
+    }
+
+    /**
+     * Delete the copies of other versions of the library, and any left half
+     * written, which have not been used for STALE_AGE. A copy another run is
+     * just about to load has been used since, so it is left alone.
+     */
+    static void removeStale(final File folder, final String lib, final File current) {
+        final String prefix = lib + '-' + System.getProperty("os.arch") + '-';
+        final File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long before = System.currentTimeMillis() - STALE_AGE;
+        for (final File f : files) {
+            if (!f.getName().startsWith(prefix) || f.equals(current) || f.lastModified() > before) {
+                continue;
+            }
+            if (f.delete()) {
+                LoggerFactory.getLogger(JNILoader.class).info("removed stale {}", f);
+            }
+        }
+    }
+
+    /**
+     * Create the directory, readable by its owner only, unless it exists.
+     * @return the directory, or null if it is not a directory which belongs to
+     * this user and which nobody else can read or write
+     */
+    static File privateFolder(final File dir) {
+        final Logger log = LoggerFactory.getLogger(JNILoader.class);
+        final Path p = dir.toPath();
+        try {
+            if (!Files.exists(p, LinkOption.NOFOLLOW_LINKS)) {
+                if (p.getParent() != null) {
+                    Files.createDirectories(p.getParent());
+                }
+                try {
+                    Files.createDirectory(p, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                } catch (final FileAlreadyExistsException faee) {
+                    //someone else made it first, which is checked below
+                }
+            }
+            final PosixFileAttributes attrs = Files.readAttributes(p, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            final UserPrincipal user = p.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!attrs.isDirectory()) {
+                log.warn("{} is not a directory", dir);
+            } else if (!user.equals(attrs.owner())) {
+                log.warn("{} belongs to {} rather than {}", dir, attrs.owner(), user);
+            } else if (!OWNER_ONLY.containsAll(attrs.permissions())) {
+                log.warn("{} can be used by others: {}", dir, PosixFilePermissions.toString(attrs.permissions()));
+            } else {
+                return dir;
+            }
+        } catch (final IOException io) {
+            log.warn("{} can not be used: {}", dir, io.getMessage());
+        } catch (final UnsupportedOperationException uoe) {
+            log.warn("{} can not be checked: {}", dir, uoe.getMessage());
+        }
+        return null;
+    }
+
     /**
      *
      * @return Directory of tmp file for .so loading
      */
-    private static String getTargetFolder() {
+    private static File getTargetFolder() {
         final Logger log = LoggerFactory.getLogger(JNILoader.class);
         final File tmpDir;
         if (System.getProperty(customPathKEY) != null) {
@@ -132,17 +309,12 @@ public class JNILoader {
             log.info("using custom tmp {}",tmpDir);
 
         } else if (System.getProperty("java.io.tmpdir") != null) {
-            tmpDir=new File(System.getProperty("java.io.tmpdir")+"/jni");
+            tmpDir=new File(System.getProperty("java.io.tmpdir")+"/jni-"+System.getProperty("user.name"));
             log.info("using java tmp {}",tmpDir);
         } else {
-            tmpDir = new File("/tmp/jni");
+            tmpDir = new File(tmpPath+'-'+System.getProperty("user.name"));
             log.info("using tmp {}",tmpDir);
         }
-        if (!tmpDir.exists()) {
-            if (!tmpDir.mkdirs()) {
-                log.error("unable to create {}", tmpDir);
-            }
-        }
-        return tmpDir.getAbsolutePath();
+        return tmpDir.getAbsoluteFile();
     }
 }
@@ -37,14 +37,58 @@
 #include <sys/time.h>
 #include <sys/socket.h>
 #include <sys/select.h>
+#include <poll.h>
 #include <errno.h>
 #include <string.h>
 #include <sys/un.h>
+#include <sys/stat.h>
+#include <sys/mman.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <stdint.h>
+#include <sched.h>
+#include <time.h>
+#ifdef __linux__
+#include <sys/syscall.h>
+#include <sys/epoll.h>
+#include <sys/eventfd.h>
+#include <linux/futex.h>
+#endif
 
 #ifndef IOV_MAX
 #define IOV_MAX 1024
 #endif
 
+/* the most file descriptors which can be passed in one message (SCM_MAX_FD on linux) */
+#define UNIX_FDS_MAX 253
+
+#ifndef MSG_NOSIGNAL
+#define MSG_NOSIGNAL 0
+#endif
+
+/* the most buffers pinned for one sendmsg */
+#define SEND_BATCH 64
+
+#ifndef MSG_CMSG_CLOEXEC
+#define MSG_CMSG_CLOEXEC 0
+#endif
+
+/* memfd and file sealing, for C libraries which predate them */
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC 0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING 0x0002U
+#endif
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS (1024 + 9)
+#define F_GET_SEALS (1024 + 10)
+#define F_SEAL_SEAL 0x0001
+#define F_SEAL_SHRINK 0x0002
+#define F_SEAL_GROW 0x0004
+#define F_SEAL_WRITE 0x0008
+#endif
+
 
 #ifdef __cplusplus
 extern "C" {
@@ -70,6 +114,133 @@ void handleerrno(JNIEnv *env)
    const char* msg = strerror(err);
    throw(env, err, msg);
 }
+
+/*
+ * Waits up to timeout microseconds for the socket to be readable, if timeout
+ * is positive. Returns 0 if it timed out or was interrupted, so there is
+ * nothing to receive yet, otherwise 1.
+ * poll is used rather than select as the socket may be above FD_SETSIZE.
+ */
+static int wait_readable(jint sock, jint timeout)
+{
+   struct pollfd pfd;
+   if (timeout <= 0) return 1;
+   pfd.fd = sock;
+   pfd.events = POLLIN;
+   pfd.revents = 0;
+   /* an error is left for the recv to report */
+   return 0 != poll(&pfd, 1, (timeout+999)/1000);
+}
+
+/*
+ * Receives up to len bytes straight into the Java array, with msg giving
+ * anything else to receive. The array is pinned rather than copied, so the
+ * receive must not block while it is: if nothing has arrived the socket is
+ * polled with the array released, unless the caller does not want to wait
+ * or has already waited for its timeout. Returns as recvmsg does, or -1
+ * with an exception thrown if the array can't be pinned.
+ */
+static int recv_pinned(JNIEnv *env, jint sock, jbyteArray buf, jint offs, jint len, jint flags, jint timeout, struct msghdr *msg)
+{
+   struct iovec iov;
+   struct pollfd pfd;
+   size_t controllen = msg->msg_controllen;
+   int rv, err;
+   pfd.fd = sock;
+   pfd.events = POLLIN;
+   msg->msg_iov = &iov;
+   msg->msg_iovlen = 1;
+   while (1) {
+      jbyte* cbuf = (*env)->GetPrimitiveArrayCritical(env, buf, NULL);
+      if (NULL == cbuf) { throw(env, ENOMEM, "Could not pin buffer"); return -1; }
+      iov.iov_base = cbuf + offs;
+      iov.iov_len = len;
+      msg->msg_controllen = controllen;
+      rv = recvmsg(sock, msg, flags | MSG_DONTWAIT);
+      err = errno;
+      (*env)->ReleasePrimitiveArrayCritical(env, buf, cbuf, 0);
+      if (-1 != rv) return rv;
+      if (EINTR == err) continue;
+      if ((EAGAIN != err && EWOULDBLOCK != err) || (flags & MSG_DONTWAIT) || timeout > 0) break;
+      if (-1 == poll(&pfd, 1, -1) && EINTR != errno) { err = errno; break; }
+   }
+   errno = err;
+   return -1;
+}
+
+/*
+ * Stores the file descriptors received with a message in jfds, after their count.
+ */
+static void received_fds(JNIEnv *env, struct msghdr *msg, jintArray jfds)
+{
+   struct cmsghdr *cmsg;
+   jint fds[UNIX_FDS_MAX+1];
+   int nfds = 0;
+   for (cmsg = CMSG_FIRSTHDR(msg);
+         cmsg != NULL;
+         cmsg = CMSG_NXTHDR(msg,cmsg)) {
+      if (cmsg->cmsg_level == SOL_SOCKET
+            && cmsg->cmsg_type == SCM_RIGHTS) {
+         int count = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+         if (count > UNIX_FDS_MAX - nfds) count = UNIX_FDS_MAX - nfds;
+         memcpy(&fds[1+nfds], CMSG_DATA(cmsg), count * sizeof(int));
+         nfds += count;
+      }
+   }
+   fds[0] = nfds;
+   (*env)->SetIntArrayRegion(env, jfds, 0, nfds+1, fds);
+   if (msg->msg_flags & MSG_CTRUNC)
+      throw(env, EMSGSIZE, "File descriptors were discarded");
+}
+
+/*
+ * Sets up msg to pass the file descriptors in jfds, if it is not NULL, using control.
+ * Returns -1 with an exception thrown if there are too many.
+ */
+static int pass_fds(JNIEnv *env, struct msghdr *msg, char *control, jintArray jfds)
+{
+   struct cmsghdr *cmsg;
+   int nfds;
+   msg->msg_control = NULL;
+   msg->msg_controllen = 0;
+   if (NULL == jfds) return 0;
+   nfds = (*env)->GetArrayLength(env, jfds);
+   if (nfds > UNIX_FDS_MAX) {
+      throw(env, EINVAL, "Too many file descriptors");
+      return -1;
+   }
+   if (0 == nfds) return 0;
+   msg->msg_control = control;
+   msg->msg_controllen = CMSG_SPACE(nfds * sizeof(int));
+   cmsg = CMSG_FIRSTHDR(msg);
+   cmsg->cmsg_level = SOL_SOCKET;
+   cmsg->cmsg_type = SCM_RIGHTS;
+   cmsg->cmsg_len = CMSG_LEN(nfds * sizeof(int));
+   (*env)->GetIntArrayRegion(env, jfds, 0, nfds, (jint*) CMSG_DATA(cmsg));
+   return 0;
+}
+
+/*
+ * Fills in iov[i] from the direct buffer b[start+i] for i in [0, n), starting
+ * at off[i] and len[i] bytes long. Returns -1 with an exception thrown if a
+ * buffer is not direct.
+ */
+static int direct_iov(JNIEnv *env, jobjectArray b, int start, jint* off, jint* len, int n, struct iovec *iov)
+{
+   int i;
+   for (i = 0; i < n; i++) {
+      jobject buf = (*env)->GetObjectArrayElement(env, b, start+i);
+      char* base = NULL == buf ? NULL : (*env)->GetDirectBufferAddress(env, buf);
+      (*env)->DeleteLocalRef(env, buf);
+      if (NULL == base) {
+         throw(env, EINVAL, "Buffers must be direct");
+         return -1;
+      }
+      iov[i].iov_base = base + off[i];
+      iov[i].iov_len = len[i];
+   }
+   return 0;
+}
    
 /*
  * Class:     cx_ath_matthew_unix_UnixServerSocket
@@ -95,7 +266,7 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixServerSocket_native_1bind
    int rv = bind(sock, (const  struct  sockaddr*) sad, sizeof(sa_family_t)+slen);
    free(sad);
    if (-1 == rv) { handleerrno(env); return -1; }
-   rv = listen(sock, 10);
+   rv = listen(sock, SOMAXCONN);
    if (-1 == rv) { handleerrno(env); return -1; }
    return sock;
 }
@@ -197,28 +368,15 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1close
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv
   (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len, jint flags, jint timeout)
 {
-   fd_set rfds;
-   struct timeval tv;
-   jbyte* cbuf = (*env)->GetByteArrayElements(env, buf, NULL);
-   void* recvb = cbuf + offs;
+   struct msghdr msg;
    int rv;
 
-   if (timeout > 0) {
-      FD_ZERO(&rfds);
-      FD_SET(sock, &rfds);
-      tv.tv_sec = 0;
-      tv.tv_usec = timeout;
-      rv = select(sock+1, &rfds, NULL, NULL, &tv);
-      rv = recv(sock, recvb, len, flags);
-      if (-1 == rv) { handleerrno(env); rv = -1; }
-      (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
-      return rv;
-   } else  {
-      rv = recv(sock, recvb, len, flags);
-      (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
-      if (-1 == rv) { handleerrno(env); return -1; }
-      return rv;
-   }
+   if (!wait_readable(sock, timeout)) return -1;
+
+   memset(&msg, 0, sizeof(msg));
+   rv = recv_pinned(env, sock, buf, offs, len, flags, timeout, &msg);
+   if (-1 == rv && !(*env)->ExceptionCheck(env)) handleerrno(env);
+   return rv;
 }
 
 /*
@@ -229,12 +387,121 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3BII
   (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len)
 {
-   jbyte* cbuf = (*env)->GetByteArrayElements(env, buf, NULL);
-   void* sendb = cbuf + offs;
-   int rv = send(sock, sendb, len, 0);
-   (*env)->ReleaseByteArrayElements(env, buf, cbuf, 0);
-   if (-1 == rv) { handleerrno(env); return -1; }
-   return rv;
+   /* the array is pinned rather than copied, so the send must not block while it is */
+   struct pollfd pfd;
+   int rv, err;
+   pfd.fd = sock;
+   pfd.events = POLLOUT;
+   while (1) {
+      jbyte* cbuf = (*env)->GetPrimitiveArrayCritical(env, buf, NULL);
+      if (NULL == cbuf) { throw(env, ENOMEM, "Could not pin buffer"); return -1; }
+      rv = send(sock, cbuf + offs, len, MSG_DONTWAIT | MSG_NOSIGNAL);
+      err = errno;
+      (*env)->ReleasePrimitiveArrayCritical(env, buf, cbuf, JNI_ABORT);
+      if (-1 != rv) return rv;
+      if (EAGAIN == err || EWOULDBLOCK == err) {
+         if (-1 == poll(&pfd, 1, -1) && EINTR != errno) { err = errno; break; }
+      } else if (EINTR != err) break;
+   }
+   errno = err;
+   handleerrno(env);
+   return -1;
+}
+
+/*
+ * Sends the first n buffers, up to the first null one, with one sendmsg for
+ * every SEND_BATCH buffers unless the socket takes less. If lens is not NULL
+ * only the first lens[i] bytes of each buffer are sent. If jfds is not NULL
+ * the file descriptors in it are passed with the first byte.
+ * The buffers are not copied: they are pinned for each sendmsg, which does
+ * not block while they are, and the socket is polled for space after.
+ * If partial is true and the socket fails after some bytes were sent, the
+ * number sent is returned and the error is left for the next send to report.
+ */
+static jint send_buffers(JNIEnv *env, jint sock, jobjectArray bufs, jintArray lens, jint n, jintArray jfds, jboolean partial)
+{
+   jbyteArray b[SEND_BATCH];
+   jint blen[SEND_BATCH];
+   jbyte *base[SEND_BATCH];
+   struct iovec iov[SEND_BATCH];
+   struct msghdr msg;
+   struct pollfd pfd;
+   char control[CMSG_SPACE(UNIX_FDS_MAX * sizeof(int))];
+   jint total = 0;
+   jint i = 0;
+   int err = 0;
+
+   memset(&msg, 0, sizeof(msg));
+   if (-1 == pass_fds(env, &msg, control, jfds)) return -1;
+   /* up to SEND_BATCH buffers are held at once */
+   if (0 != (*env)->EnsureLocalCapacity(env, SEND_BATCH)) return -1;
+   pfd.fd = sock;
+   pfd.events = POLLOUT;
+
+   while (i < n && 0 == err) {
+      int cnt = 0, first = 0, k;
+      size_t skip = 0;
+      for (; cnt < SEND_BATCH && i+cnt < n; cnt++) {
+         b[cnt] = (*env)->GetObjectArrayElement(env, bufs, i+cnt);
+         if (NULL == b[cnt]) {
+            n = i+cnt;
+            break;
+         }
+         blen[cnt] = (*env)->GetArrayLength(env, b[cnt]);
+      }
+      if (NULL != lens && cnt > 0)
+         (*env)->GetIntArrayRegion(env, lens, i, cnt, blen);
+
+      while (first < cnt) {
+         ssize_t rv;
+         for (k = first; k < cnt; k++) {
+            base[k] = (*env)->GetPrimitiveArrayCritical(env, b[k], NULL);
+            if (NULL == base[k]) break;
+            iov[k].iov_base = base[k];
+            iov[k].iov_len = blen[k];
+         }
+         if (k < cnt) {
+            while (--k >= first)
+               (*env)->ReleasePrimitiveArrayCritical(env, b[k], base[k], JNI_ABORT);
+            err = ENOMEM;
+            break;
+         }
+         iov[first].iov_base = (char*) iov[first].iov_base + skip;
+         iov[first].iov_len -= skip;
+         msg.msg_iov = iov + first;
+         msg.msg_iovlen = cnt-first;
+         rv = sendmsg(sock, &msg, MSG_DONTWAIT | MSG_NOSIGNAL);
+         if (-1 == rv) err = errno;
+         for (k = cnt-1; k >= first; k--)
+            (*env)->ReleasePrimitiveArrayCritical(env, b[k], base[k], JNI_ABORT);
+         if (-1 == rv) {
+            if (EINTR == err) err = 0;
+            else if (EAGAIN == err || EWOULDBLOCK == err) {
+               err = 0;
+               if (-1 == poll(&pfd, 1, -1) && EINTR != errno) err = errno;
+            }
+            if (0 != err) break;
+            continue;
+         }
+         /* the descriptors go with the first byte, the rest is sent without them */
+         msg.msg_control = NULL;
+         msg.msg_controllen = 0;
+         total += rv;
+         rv += skip;
+         while (first < cnt && rv >= blen[first]) {
+            rv -= blen[first];
+            first++;
+         }
+         skip = rv;
+      }
+
+      for (k = 0; k < cnt; k++)
+         (*env)->DeleteLocalRef(env, b[k]);
+      i += cnt;
+   }
+
+   if (0 != err && (!partial || 0 == total)) { errno = err; handleerrno(env); return -1; }
+   return total;
 }
 
 /*
@@ -245,61 +512,152 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3_3B
   (JNIEnv *env, jobject o, jint sock, jobjectArray bufs)
 {
-   size_t sblen = 1;
-   socklen_t sblen_size = sizeof(sblen);
-   getsockopt(sock, SOL_SOCKET, SO_SNDBUF, &sblen, &sblen_size);
+   return send_buffers(env, sock, bufs, NULL, (*env)->GetArrayLength(env, bufs), NULL, JNI_FALSE);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send
+ * Signature: (I[[B[II)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3_3B_3II
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray lens, jint n)
+{
+   return send_buffers(env, sock, bufs, lens, n, NULL, JNI_TRUE);
+}
 
+/*
+ * Class:     cx_ath_matthew_unix_USInputStream
+ * Method:    native_recv_fds
+ * Signature: (I[BIIII[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv_1fds
+  (JNIEnv *env, jobject o, jint sock, jbyteArray buf, jint offs, jint len, jint flags, jint timeout, jintArray jfds)
+{
    struct msghdr msg;
-   struct iovec *iov;
-   msg.msg_name = NULL;
-   msg.msg_namelen = 0;
-   msg.msg_control = NULL;
-   msg.msg_controllen = 0;
-   msg.msg_flags = 0;
-   size_t els = (*env)->GetArrayLength(env, bufs);
-   iov = (struct iovec*) malloc((els<IOV_MAX?els:IOV_MAX) * sizeof(struct iovec));
+   char control[CMSG_SPACE(UNIX_FDS_MAX * sizeof(int))];
+   int rv;
+
+   if (!wait_readable(sock, timeout)) return -1;
+
+   memset(&msg, 0, sizeof(msg));
+   msg.msg_control = control;
+   msg.msg_controllen = sizeof control;
+
+   rv = recv_pinned(env, sock, buf, offs, len, flags | MSG_CMSG_CLOEXEC, timeout, &msg);
+   if (-1 == rv) {
+      if (!(*env)->ExceptionCheck(env)) handleerrno(env);
+      return -1;
+   }
+
+   received_fds(env, &msg, jfds);
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_USInputStream
+ * Method:    native_recv_direct
+ * Signature: (I[Ljava/nio/ByteBuffer;[I[IIII[I)I
+ *
+ * Receives straight into up to SEND_BATCH direct buffers. If jfds is not
+ * NULL any file descriptors received are stored in it after their count.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv_1direct
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray joffs, jintArray jlens, jint n, jint flags, jint timeout, jintArray jfds)
+{
+   struct iovec iov[SEND_BATCH];
+   jint offs[SEND_BATCH];
+   jint lens[SEND_BATCH];
+   struct msghdr msg;
+   char control[CMSG_SPACE(UNIX_FDS_MAX * sizeof(int))];
+   int rv;
+
+   if (n > SEND_BATCH) n = SEND_BATCH;
+   (*env)->GetIntArrayRegion(env, joffs, 0, n, offs);
+   (*env)->GetIntArrayRegion(env, jlens, 0, n, lens);
+   if (-1 == direct_iov(env, bufs, 0, offs, lens, n, iov)) return -1;
+
+   if (!wait_readable(sock, timeout)) return -1;
+
+   memset(&msg, 0, sizeof(msg));
    msg.msg_iov = iov;
-   jbyteArray *b = (jbyteArray*) malloc(els * sizeof(jbyteArray));
-   int rv = 0;
-   
-   for (int i = 0, j = 0, s = 0; i <= els; i++, j++) {
-      if (i == els) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         if (-1 == rv) { handleerrno(env); return -1; }
-         break;
-      }
-      b[i] = (*env)->GetObjectArrayElement(env, bufs, i);
-      if (NULL == b[i]) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         if (-1 == rv) { handleerrno(env); return -1; }
-         break;
-      }
-      size_t l = (*env)->GetArrayLength(env, b[i]);
-      if (s+l > sblen || j == IOV_MAX) {
-         msg.msg_iovlen = j;
-         rv = sendmsg(sock, &msg, 0);
-         s = 0;
-         for (int k = i-1, l = j-1; l >= 0; k--, l--)
-            (*env)->ReleaseByteArrayElements(env, b[k], iov[l].iov_base, 0);
-         j = 0;
-         if (-1 == rv) { handleerrno(env); return -1; }
-      }
-      iov[j].iov_base = (*env)->GetByteArrayElements(env, b[i], NULL);
-      iov[j].iov_len = l;
-      s += l;
+   msg.msg_iovlen = n;
+   if (NULL != jfds) {
+      msg.msg_control = control;
+      msg.msg_controllen = sizeof control;
    }
-   
-   free(iov);
-   free(b);
+   rv = recvmsg(sock, &msg, flags | MSG_CMSG_CLOEXEC);
+   if (-1 == rv) { handleerrno(env); return -1; }
+   if (NULL != jfds) received_fds(env, &msg, jfds);
    return rv;
 }
 
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send_fds
+ * Signature: (I[[B[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send_1fds
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray jfds)
+{
+   return send_buffers(env, sock, bufs, NULL, (*env)->GetArrayLength(env, bufs), jfds, JNI_FALSE);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send_direct
+ * Signature: (I[Ljava/nio/ByteBuffer;[I[II[I)I
+ *
+ * Sends straight from direct buffers, so nothing is pinned or copied
+ * and the sendmsg can block.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send_1direct
+  (JNIEnv *env, jobject o, jint sock, jobjectArray bufs, jintArray joffs, jintArray jlens, jint n, jintArray jfds)
+{
+   struct iovec iov[SEND_BATCH];
+   jint offs[SEND_BATCH];
+   jint lens[SEND_BATCH];
+   struct msghdr msg;
+   char control[CMSG_SPACE(UNIX_FDS_MAX * sizeof(int))];
+   jint total = 0;
+   jint i = 0;
+
+   memset(&msg, 0, sizeof(msg));
+   if (-1 == pass_fds(env, &msg, control, jfds)) return -1;
+
+   while (i < n) {
+      int cnt = n-i < SEND_BATCH ? n-i : SEND_BATCH;
+      int first = 0;
+      (*env)->GetIntArrayRegion(env, joffs, i, cnt, offs);
+      (*env)->GetIntArrayRegion(env, jlens, i, cnt, lens);
+      if (-1 == direct_iov(env, bufs, i, offs, lens, cnt, iov)) return -1;
+      while (first < cnt) {
+         ssize_t rv;
+         msg.msg_iov = iov + first;
+         msg.msg_iovlen = cnt-first;
+         rv = sendmsg(sock, &msg, MSG_NOSIGNAL);
+         if (-1 == rv) {
+            if (EINTR == errno) continue;
+            handleerrno(env);
+            return -1;
+         }
+         msg.msg_control = NULL;
+         msg.msg_controllen = 0;
+         total += rv;
+         while (first < cnt && (size_t) rv >= iov[first].iov_len) {
+            rv -= iov[first].iov_len;
+            first++;
+         }
+         if (first < cnt) {
+            iov[first].iov_base = (char*) iov[first].iov_base + rv;
+            iov[first].iov_len -= rv;
+         }
+      }
+      i += cnt;
+   }
+   return total;
+}
+
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
  * Method:    native_getPID
@@ -366,13 +724,18 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getGID
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
  * Method:    native_send_creds
- * Signature: (B)V
+ * Signature: (I[B)V
  */
 JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1creds
-  (JNIEnv * env, jobject o, jint sock, jbyte data)
+  (JNIEnv * env, jobject o, jint sock, jbyteArray array)
 {
    struct msghdr msg;
    struct iovec iov;
+   size_t len = (*env)->GetArrayLength(env, array);
+   size_t sent = 0;
+   jbyte* data = malloc(len);
+   if (NULL == data) { throw(env, ENOMEM, "Could not allocate buffer"); return; }
+   (*env)->GetByteArrayRegion(env, array, 0, len, data);
    msg.msg_name = NULL;
    msg.msg_namelen = 0;
    msg.msg_flags = 0;
@@ -380,8 +743,8 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1creds
    msg.msg_iovlen = 1;
    msg.msg_control = NULL;
    msg.msg_controllen = 0;
-   iov.iov_base = &data;
-   iov.iov_len = 1;
+   iov.iov_base = data;
+   iov.iov_len = len;
 
 #ifdef SCM_CREDENTIALS
    char buf[CMSG_SPACE(sizeof(struct ucred))];
@@ -401,8 +764,22 @@ JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1creds
    creds->gid = getgid();
 #endif
 
-   int rv = sendmsg(sock, &msg, 0);
-   if (-1 == rv) { handleerrno(env); }
+   /* the credentials go with the first sendmsg, the rest of the data follows it if that was short */
+   while (sent < len) {
+      int rv = sendmsg(sock, &msg, MSG_NOSIGNAL);
+      if (-1 == rv) {
+         if (EINTR == errno) continue;
+         free(data);
+         handleerrno(env);
+         return;
+      }
+      sent += rv;
+      iov.iov_base = data + sent;
+      iov.iov_len = len - sent;
+      msg.msg_control = NULL;
+      msg.msg_controllen = 0;
+   }
+   free(data);
 }
 
 /*
@@ -459,6 +836,593 @@ JNIEXPORT jbyte JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1recv_1creds
 }
 
 
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_create
+ * Signature: (Ljava/lang/String;[BII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_MemFD_native_1create
+  (JNIEnv *env, jclass c, jstring name, jbyteArray buf, jint offs, jint len)
+{
+#ifdef SYS_memfd_create
+   const char* cname = (*env)->GetStringUTFChars(env, name, 0);
+   int fd = syscall(SYS_memfd_create, cname, MFD_CLOEXEC | MFD_ALLOW_SEALING);
+   (*env)->ReleaseStringUTFChars(env, name, cname);
+   if (-1 == fd) { handleerrno(env); return -1; }
+   if (-1 == ftruncate(fd, len)) goto fail;
+   if (len > 0) {
+      /* copy straight from the java array into the file's pages */
+      void* map = mmap(NULL, len, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+      if (MAP_FAILED == map) goto fail;
+      (*env)->GetByteArrayRegion(env, buf, offs, len, map);
+      munmap(map, len);
+      if ((*env)->ExceptionCheck(env)) { close(fd); return -1; }
+   }
+   if (-1 == fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_WRITE | F_SEAL_SEAL)) goto fail;
+   return fd;
+fail:
+   {
+      int err = errno;
+      close(fd);
+      errno = err;
+      handleerrno(env);
+      return -1;
+   }
+#else
+   throw(env, ENOSYS, "memfd_create is not supported on this platform");
+   return -1;
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_read
+ * Signature: (I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_cx_ath_matthew_unix_MemFD_native_1read
+  (JNIEnv *env, jclass c, jint fd)
+{
+   struct stat st;
+   int seals = fcntl(fd, F_GET_SEALS);
+   if (-1 == seals) { handleerrno(env); return NULL; }
+   /* an unsealed file could change or shrink under us while it is read */
+   if ((F_SEAL_SHRINK | F_SEAL_WRITE) != (seals & (F_SEAL_SHRINK | F_SEAL_WRITE))) {
+      throw(env, EPERM, "File descriptor is not sealed");
+      return NULL;
+   }
+   if (-1 == fstat(fd, &st)) { handleerrno(env); return NULL; }
+   if (st.st_size > INT_MAX) {
+      throw(env, EFBIG, "File is too large to read into an array");
+      return NULL;
+   }
+   jsize len = st.st_size;
+   jbyteArray rv = (*env)->NewByteArray(env, len);
+   if (NULL == rv || 0 == len) return rv;
+   void* map = mmap(NULL, len, PROT_READ, MAP_SHARED, fd, 0);
+   if (MAP_FAILED == map) { handleerrno(env); return NULL; }
+   (*env)->SetByteArrayRegion(env, rv, 0, len, map);
+   munmap(map, len);
+   return rv;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_close
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_MemFD_native_1close
+  (JNIEnv *env, jclass c, jint fd)
+{
+   if (-1 == close(fd)) handleerrno(env);
+}
+
+
+/* UnixSelector interest and readiness, as in java.nio.channels.SelectionKey */
+#define SELECT_READ 1
+#define SELECT_WRITE 4
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_create
+ * Signature: ([I)V
+ *
+ * Creates an epoll instance and an eventfd registered with it for wakeups,
+ * storing them in fds[0] and fds[1].
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1create
+  (JNIEnv *env, jobject o, jintArray jfds)
+{
+#ifdef __linux__
+   struct epoll_event ev;
+   jint fds[2];
+   fds[0] = epoll_create1(EPOLL_CLOEXEC);
+   if (-1 == fds[0]) { handleerrno(env); return; }
+   fds[1] = eventfd(0, EFD_CLOEXEC | EFD_NONBLOCK);
+   if (-1 == fds[1]) {
+      int err = errno;
+      close(fds[0]);
+      errno = err;
+      handleerrno(env);
+      return;
+   }
+   memset(&ev, 0, sizeof(ev));
+   ev.events = EPOLLIN;
+   ev.data.fd = -1;
+   if (-1 == epoll_ctl(fds[0], EPOLL_CTL_ADD, fds[1], &ev)) {
+      int err = errno;
+      close(fds[0]);
+      close(fds[1]);
+      errno = err;
+      handleerrno(env);
+      return;
+   }
+   (*env)->SetIntArrayRegion(env, jfds, 0, 2, fds);
+#else
+   throw(env, ENOSYS, "epoll is not supported on this platform");
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_ctl
+ * Signature: (IIII)V
+ *
+ * Adds (op 0), changes (op 1) or removes (op 2) a socket.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1ctl
+  (JNIEnv *env, jobject o, jint epfd, jint op, jint fd, jint ops)
+{
+#ifdef __linux__
+   static const int ctl[] = { EPOLL_CTL_ADD, EPOLL_CTL_MOD, EPOLL_CTL_DEL };
+   struct epoll_event ev;
+   memset(&ev, 0, sizeof(ev));
+   if (ops & SELECT_READ) ev.events |= EPOLLIN | EPOLLRDHUP;
+   if (ops & SELECT_WRITE) ev.events |= EPOLLOUT;
+   ev.data.fd = fd;
+   if (op < 0 || op > 2) { throw(env, EINVAL, "Invalid operation"); return; }
+   if (-1 == epoll_ctl(epfd, ctl[op], fd, &ev)) handleerrno(env);
+#else
+   throw(env, ENOSYS, "epoll is not supported on this platform");
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wait
+ * Signature: (II[III)I
+ *
+ * Waits for up to max sockets to be ready, storing the descriptor and
+ * readiness of each in pairs in events. A wakeup is consumed and not
+ * reported. Returns the number of sockets, or 0 if interrupted by a signal.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wait
+  (JNIEnv *env, jobject o, jint epfd, jint wakefd, jintArray jevents, jint max, jint timeout)
+{
+#ifdef __linux__
+   struct epoll_event ev[256];
+   jint out[2*256];
+   int i, n, count = 0;
+   if (max > 256) max = 256;
+   n = epoll_wait(epfd, ev, max, timeout);
+   if (-1 == n) {
+      if (EINTR == errno) return 0;
+      handleerrno(env);
+      return -1;
+   }
+   for (i = 0; i < n; i++) {
+      int ready = 0;
+      if (-1 == ev[i].data.fd) {
+         uint64_t v;
+         if (-1 == read(wakefd, &v, sizeof(v))) { /* already drained */ }
+         continue;
+      }
+      if (ev[i].events & (EPOLLIN | EPOLLRDHUP | EPOLLHUP | EPOLLERR)) ready |= SELECT_READ;
+      if (ev[i].events & EPOLLOUT) ready |= SELECT_WRITE;
+      out[2*count] = ev[i].data.fd;
+      out[2*count+1] = ready;
+      count++;
+   }
+   if (count > 0) (*env)->SetIntArrayRegion(env, jevents, 0, 2*count, out);
+   return count;
+#else
+   throw(env, ENOSYS, "epoll is not supported on this platform");
+   return -1;
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wakeup
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wakeup
+  (JNIEnv *env, jobject o, jint wakefd)
+{
+#ifdef __linux__
+   uint64_t v = 1;
+   /* EAGAIN means the counter is full, so a wakeup is pending anyway */
+   if (-1 == write(wakefd, &v, sizeof(v)) && EAGAIN != errno) handleerrno(env);
+#else
+   throw(env, ENOSYS, "epoll is not supported on this platform");
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_close
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1close
+  (JNIEnv *env, jobject o, jint epfd, jint wakefd)
+{
+#ifdef __linux__
+   close(wakefd);
+   if (-1 == close(epfd)) handleerrno(env);
+#else
+   throw(env, ENOSYS, "epoll is not supported on this platform");
+#endif
+}
+
+/*
+ * ShmChannel: two rings in a shared memory file, one for each direction.
+ * The file starts with a page holding the header and the positions of the
+ * rings, followed by the data of ring 0 and then ring 1. Positions count
+ * bytes ever written and read, wrapping at 2^32, so capacities are powers
+ * of two. The writer of a ring owns head and the reader owns tail, each on
+ * its own cache line.
+ *
+ * The other end can write anything to the file, so the capacity and size
+ * of the mapping are only read from it when it is mapped and are passed in
+ * after that, positions are masked to the ring, and a ring holding more
+ * than its capacity fails the channel.
+ */
+#define SHM_MAGIC 0x4a53484dU
+#define SHM_DATA 4096
+#define SHM_LINE 64
+/* how long a writer waiting for space sleeps before checking the other end is still there, in ms */
+#define SHM_WRITE_WAIT 100
+
+struct shm_ring {
+   uint32_t head;
+   char pad0[SHM_LINE - sizeof(uint32_t)];
+   uint32_t tail;
+   char pad1[SHM_LINE - sizeof(uint32_t)];
+   /* set by a reader about to sleep, cleared by the writer which wakes it */
+   int32_t waiting;
+   /* set once either end has closed, or found the other end gone */
+   int32_t closed;
+   /* set by a writer about to sleep on tail, cleared by the reader which wakes it */
+   int32_t writing;
+   char pad2[SHM_LINE - 3*sizeof(int32_t)];
+};
+
+struct shm_header {
+   uint32_t magic;
+   uint32_t capacity;
+   char pad[SHM_LINE - 2*sizeof(uint32_t)];
+   struct shm_ring ring[2];
+};
+
+static struct shm_header *shm_header(jlong base)
+{
+   return (struct shm_header *) (intptr_t) base;
+}
+
+static char *shm_data(jlong base, jint capacity, int ring)
+{
+   return (char *) (intptr_t) base + SHM_DATA + (size_t) ring * (uint32_t) capacity;
+}
+
+static int shm_capacity_ok(uint32_t capacity)
+{
+   return capacity >= 4096 && capacity <= (1U << 30) && 0 == (capacity & (capacity - 1));
+}
+
+/*
+ * Marks a ring closed and throws, when the other end has left it holding
+ * more than it can.
+ */
+static void shm_corrupt(JNIEnv *env, struct shm_ring *r)
+{
+   __atomic_store_n(&r->closed, 1, __ATOMIC_SEQ_CST);
+   throw(env, EPROTO, "Shared memory channel is corrupt");
+}
+
+#ifdef __linux__
+/*
+ * Sleeps while a position in the shared memory still has a value, for up to
+ * timeout milliseconds. Returns -1 if the wait timed out.
+ */
+static int shm_futex_wait(uint32_t *addr, uint32_t val, int timeout)
+{
+   struct timespec ts;
+   ts.tv_sec = timeout / 1000;
+   ts.tv_nsec = (timeout % 1000) * 1000000L;
+   if (-1 == syscall(SYS_futex, addr, FUTEX_WAIT, val, &ts, NULL, 0) && ETIMEDOUT == errno) return -1;
+   return 0;
+}
+
+static void shm_futex_wake(uint32_t *addr)
+{
+   syscall(SYS_futex, addr, FUTEX_WAKE, INT_MAX, NULL, NULL, 0);
+}
+#endif
+
+/*
+ * Called each time a ring is found empty or full. Returns 1 while the
+ * caller should keep trying, for up to spin microseconds, yielding the
+ * processor now and then in case the other end is waiting for it.
+ */
+static int shm_spin(struct timespec *start, int *spun, jint spin)
+{
+   struct timespec now;
+   if (*spun < 0 || spin <= 0) return 0;
+   if (0 == (*spun)++) {
+      clock_gettime(CLOCK_MONOTONIC, start);
+      return 1;
+   }
+   if (0 != (*spun & 63)) return 1;
+   sched_yield();
+   clock_gettime(CLOCK_MONOTONIC, &now);
+   if ((now.tv_sec - start->tv_sec) * 1000000L + (now.tv_nsec - start->tv_nsec) / 1000 < spin)
+      return 1;
+   *spun = -1;
+   return 0;
+}
+
+/*
+ * Sleeps on the doorbell socket, for up to timeout milliseconds or forever
+ * if it is negative, and drains any doorbells. Returns 0 when woken or timed
+ * out, or -1 if the socket has been shut down or the other end has gone.
+ */
+static int shm_doorbell(jint sock, short events, int timeout)
+{
+   struct pollfd pfd;
+   char buf[64];
+   pfd.fd = sock;
+   pfd.events = events;
+   pfd.revents = 0;
+   if (-1 == poll(&pfd, 1, timeout)) return EINTR == errno ? 0 : -1;
+   if (pfd.revents & (POLLHUP | POLLERR | POLLNVAL)) return -1;
+   if (pfd.revents & POLLIN) {
+      ssize_t rv = recv(sock, buf, sizeof(buf), MSG_DONTWAIT);
+      if (0 == rv) return -1;
+      if (-1 == rv && EAGAIN != errno && EWOULDBLOCK != errno && EINTR != errno) return -1;
+   }
+   return 0;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_create
+ * Signature: (I)I
+ *
+ * Creates an anonymous file big enough for rings of the given capacity.
+ * Returns its file descriptor.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1create
+  (JNIEnv *env, jclass c, jint capacity)
+{
+#ifdef SYS_memfd_create
+   int fd = syscall(SYS_memfd_create, "unix-java-shm", MFD_CLOEXEC | MFD_ALLOW_SEALING);
+   if (-1 == fd) { handleerrno(env); return -1; }
+   /* sealed at its size, so neither end can make the other fault by shrinking it */
+   if (-1 == ftruncate(fd, SHM_DATA + 2 * (off_t) capacity)
+         || -1 == fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_SEAL)) {
+      int err = errno;
+      close(fd);
+      errno = err;
+      handleerrno(env);
+      return -1;
+   }
+   return fd;
+#else
+   throw(env, ENOSYS, "Shared memory channels are not supported on this platform");
+   return -1;
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_map
+ * Signature: (IIZ[I)J
+ *
+ * Maps the file of new rings with the given capacity and sets them up, or
+ * maps the rings the other end made, checking them and storing their
+ * capacity in mapped[0]. Returns the address of the mapping.
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1map
+  (JNIEnv *env, jclass c, jint fd, jint capacity, jboolean create, jintArray mapped)
+{
+#ifdef __linux__
+   struct shm_header *h;
+   struct stat st;
+   size_t size;
+   void *base;
+   jint cap;
+   int seals = fcntl(fd, F_GET_SEALS);
+   if (-1 == fstat(fd, &st)) { handleerrno(env); return 0; }
+   if (!S_ISREG(st.st_mode) || -1 == seals || (F_SEAL_SHRINK | F_SEAL_SEAL) != (seals & (F_SEAL_SHRINK | F_SEAL_SEAL))
+         || st.st_size < SHM_DATA + 2 * 4096 || st.st_size > SHM_DATA + 2 * (off_t) (1U << 30)) {
+      throw(env, EINVAL, "Not a shared memory channel");
+      return 0;
+   }
+   size = st.st_size;
+   base = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+   if (MAP_FAILED == base) { handleerrno(env); return 0; }
+   h = (struct shm_header *) base;
+   if (create) {
+      h->capacity = capacity;
+      __atomic_store_n(&h->magic, SHM_MAGIC, __ATOMIC_RELEASE);
+      cap = capacity;
+   } else {
+      /* read once, and trust only what was checked against the size of the mapping */
+      cap = (jint) __atomic_load_n(&h->capacity, __ATOMIC_ACQUIRE);
+      if (SHM_MAGIC != __atomic_load_n(&h->magic, __ATOMIC_ACQUIRE)
+            || !shm_capacity_ok((uint32_t) cap)
+            || size != SHM_DATA + 2 * (size_t) (uint32_t) cap) {
+         munmap(base, size);
+         throw(env, EINVAL, "Not a shared memory channel");
+         return 0;
+      }
+   }
+   (*env)->SetIntArrayRegion(env, mapped, 0, 1, &cap);
+   return (jlong) (intptr_t) base;
+#else
+   throw(env, ENOSYS, "Shared memory channels are not supported on this platform");
+   return 0;
+#endif
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_read
+ * Signature: (JIII[BIII)I
+ *
+ * Reads up to len bytes, waiting until there are some, and wakes the writer
+ * if it is waiting for space. Returns -1 at the end of the stream, once the
+ * ring is empty and closed.
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1read
+  (JNIEnv *env, jclass c, jlong base, jint capacity, jint ring, jint sock, jbyteArray buf, jint off, jint len, jint spin)
+{
+   struct shm_ring *r = &shm_header(base)->ring[ring];
+   char *data = shm_data(base, capacity, ring);
+   uint32_t mask = (uint32_t) capacity - 1;
+   uint32_t tail = __atomic_load_n(&r->tail, __ATOMIC_RELAXED), head, n, pos, first;
+   struct timespec start;
+   int spun = 0;
+   for (;;) {
+      head = __atomic_load_n(&r->head, __ATOMIC_ACQUIRE);
+      if (head != tail) break;
+      if (__atomic_load_n(&r->closed, __ATOMIC_ACQUIRE)) return -1;
+      if (shm_spin(&start, &spun, spin)) continue;
+      /* ask to be woken, then look again in case the writer missed it */
+      __atomic_store_n(&r->waiting, 1, __ATOMIC_SEQ_CST);
+      head = __atomic_load_n(&r->head, __ATOMIC_SEQ_CST);
+      if (head != tail) {
+         __atomic_store_n(&r->waiting, 0, __ATOMIC_RELAXED);
+         break;
+      }
+      if (-1 == shm_doorbell(sock, POLLIN, -1))
+         __atomic_store_n(&r->closed, 1, __ATOMIC_RELEASE);
+   }
+   n = head - tail;
+   if (n > (uint32_t) capacity) {
+      shm_corrupt(env, r);
+      return -1;
+   }
+   if (n > (uint32_t) len) n = len;
+   pos = tail & mask;
+   first = (uint32_t) capacity - pos;
+   if (first > n) first = n;
+   (*env)->SetByteArrayRegion(env, buf, off, first, (jbyte *) data + pos);
+   if (n > first)
+      (*env)->SetByteArrayRegion(env, buf, off + first, n - first, (jbyte *) data);
+   __atomic_store_n(&r->tail, tail + n, __ATOMIC_SEQ_CST);
+#ifdef __linux__
+   if (__atomic_load_n(&r->writing, __ATOMIC_SEQ_CST)
+         && __atomic_exchange_n(&r->writing, 0, __ATOMIC_SEQ_CST))
+      shm_futex_wake(&r->tail);
+#endif
+   return n;
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_write
+ * Signature: (JIII[BIII)V
+ *
+ * Writes all len bytes, sleeping on the ring while it is full, and wakes
+ * the reader if it is asleep.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1write
+  (JNIEnv *env, jclass c, jlong base, jint capacity, jint ring, jint sock, jbyteArray buf, jint off, jint len, jint spin)
+{
+   struct shm_ring *r = &shm_header(base)->ring[ring];
+   char *data = shm_data(base, capacity, ring);
+   uint32_t mask = (uint32_t) capacity - 1;
+   uint32_t head = __atomic_load_n(&r->head, __ATOMIC_RELAXED), tail, n, pos, first;
+   struct timespec start;
+   int spun = 0;
+   while (len > 0) {
+      if (__atomic_load_n(&r->closed, __ATOMIC_ACQUIRE)) {
+         throw(env, EPIPE, "Shared memory channel closed");
+         return;
+      }
+      tail = __atomic_load_n(&r->tail, __ATOMIC_ACQUIRE);
+      if (head - tail > (uint32_t) capacity) {
+         shm_corrupt(env, r);
+         return;
+      }
+      n = (uint32_t) capacity - (head - tail);
+      if (0 == n) {
+         if (shm_spin(&start, &spun, spin)) continue;
+#ifdef __linux__
+         /* ask to be woken, then sleep unless the reader has made space meanwhile */
+         __atomic_store_n(&r->writing, 1, __ATOMIC_SEQ_CST);
+         if (tail == __atomic_load_n(&r->tail, __ATOMIC_SEQ_CST)
+               && -1 == shm_futex_wait(&r->tail, tail, SHM_WRITE_WAIT)
+               && -1 == shm_doorbell(sock, 0, 0))
+            __atomic_store_n(&r->closed, 1, __ATOMIC_RELEASE);
+#else
+         if (-1 == shm_doorbell(sock, 0, 1))
+            __atomic_store_n(&r->closed, 1, __ATOMIC_RELEASE);
+#endif
+         continue;
+      }
+      if (n > (uint32_t) len) n = len;
+      pos = head & mask;
+      first = (uint32_t) capacity - pos;
+      if (first > n) first = n;
+      (*env)->GetByteArrayRegion(env, buf, off, first, (jbyte *) data + pos);
+      if (n > first)
+         (*env)->GetByteArrayRegion(env, buf, off + first, n - first, (jbyte *) data);
+      head += n;
+      __atomic_store_n(&r->head, head, __ATOMIC_SEQ_CST);
+      if (__atomic_load_n(&r->waiting, __ATOMIC_SEQ_CST)
+            && __atomic_exchange_n(&r->waiting, 0, __ATOMIC_SEQ_CST)) {
+         /* a full socket buffer means a doorbell is already waiting */
+         send(sock, "", 1, MSG_DONTWAIT | MSG_NOSIGNAL);
+      }
+      off += n;
+      len -= n;
+   }
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_close
+ * Signature: (JI)V
+ *
+ * Marks both rings closed and shuts the doorbell down, which wakes any
+ * reads or writes at either end.
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1close
+  (JNIEnv *env, jclass c, jlong base, jint sock)
+{
+   struct shm_header *h = shm_header(base);
+   __atomic_store_n(&h->ring[0].closed, 1, __ATOMIC_SEQ_CST);
+   __atomic_store_n(&h->ring[1].closed, 1, __ATOMIC_SEQ_CST);
+#ifdef __linux__
+   shm_futex_wake(&h->ring[0].tail);
+   shm_futex_wake(&h->ring[1].tail);
+#endif
+   shutdown(sock, SHUT_RDWR);
+}
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_unmap
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1unmap
+  (JNIEnv *env, jclass c, jlong base, jint capacity)
+{
+   size_t size = SHM_DATA + 2 * (size_t) (uint32_t) capacity;
+   if (-1 == munmap((void *) (intptr_t) base, size)) handleerrno(env);
+}
+
 #ifdef __cplusplus
 }
 #endif
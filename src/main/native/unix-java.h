@@ -93,10 +93,10 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1getGID
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
  * Method:    native_send_creds
- * Signature: (IB)V
+ * Signature: (I[B)V
  */
 JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSocket_native_1send_1creds
-  (JNIEnv *, jobject, jint, jbyte);
+  (JNIEnv *, jobject, jint, jbyteArray);
 
 /*
  * Class:     cx_ath_matthew_unix_UnixSocket
@@ -121,6 +121,8 @@ extern "C" {
 #define cx_ath_matthew_unix_USInputStream_MAX_SKIP_BUFFER_SIZE 2048L
 #undef cx_ath_matthew_unix_USInputStream_MSG_DONTWAIT
 #define cx_ath_matthew_unix_USInputStream_MSG_DONTWAIT 64L
+#undef cx_ath_matthew_unix_USInputStream_MAX_FDS
+#define cx_ath_matthew_unix_USInputStream_MAX_FDS 253L
 /*
  * Class:     cx_ath_matthew_unix_USInputStream
  * Method:    native_recv
@@ -129,6 +131,22 @@ extern "C" {
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv
   (JNIEnv *, jobject, jint, jbyteArray, jint, jint, jint, jint);
 
+/*
+ * Class:     cx_ath_matthew_unix_USInputStream
+ * Method:    native_recv_fds
+ * Signature: (I[BIIII[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv_1fds
+  (JNIEnv *, jobject, jint, jbyteArray, jint, jint, jint, jint, jintArray);
+
+/*
+ * Class:     cx_ath_matthew_unix_USInputStream
+ * Method:    native_recv_direct
+ * Signature: (I[Ljava/nio/ByteBuffer;[I[IIII[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USInputStream_native_1recv_1direct
+  (JNIEnv *, jobject, jint, jobjectArray, jintArray, jintArray, jint, jint, jint, jintArray);
+
 #ifdef __cplusplus
 }
 #endif
@@ -156,6 +174,193 @@ JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3
 JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3_3B
   (JNIEnv *, jobject, jint, jobjectArray);
 
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send
+ * Signature: (I[[B[II)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send__I_3_3B_3II
+  (JNIEnv *, jobject, jint, jobjectArray, jintArray, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send_fds
+ * Signature: (I[[B[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send_1fds
+  (JNIEnv *, jobject, jint, jobjectArray, jintArray);
+
+/*
+ * Class:     cx_ath_matthew_unix_USOutputStream
+ * Method:    native_send_direct
+ * Signature: (I[Ljava/nio/ByteBuffer;[I[II[I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_USOutputStream_native_1send_1direct
+  (JNIEnv *, jobject, jint, jobjectArray, jintArray, jintArray, jint, jintArray);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
+/* Header for class cx_ath_matthew_unix_MemFD */
+
+#ifndef _Included_cx_ath_matthew_unix_MemFD
+#define _Included_cx_ath_matthew_unix_MemFD
+#ifdef __cplusplus
+extern "C" {
+#endif
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_create
+ * Signature: (Ljava/lang/String;[BII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_MemFD_native_1create
+  (JNIEnv *, jclass, jstring, jbyteArray, jint, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_read
+ * Signature: (I)[B
+ */
+JNIEXPORT jbyteArray JNICALL Java_cx_ath_matthew_unix_MemFD_native_1read
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_MemFD
+ * Method:    native_close
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_MemFD_native_1close
+  (JNIEnv *, jclass, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
+/* Header for class cx_ath_matthew_unix_UnixSelector */
+
+#ifndef _Included_cx_ath_matthew_unix_UnixSelector
+#define _Included_cx_ath_matthew_unix_UnixSelector
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef cx_ath_matthew_unix_UnixSelector_OP_READ
+#define cx_ath_matthew_unix_UnixSelector_OP_READ 1L
+#undef cx_ath_matthew_unix_UnixSelector_OP_WRITE
+#define cx_ath_matthew_unix_UnixSelector_OP_WRITE 4L
+#undef cx_ath_matthew_unix_UnixSelector_MAX_EVENTS
+#define cx_ath_matthew_unix_UnixSelector_MAX_EVENTS 256L
+#undef cx_ath_matthew_unix_UnixSelector_CTL_ADD
+#define cx_ath_matthew_unix_UnixSelector_CTL_ADD 0L
+#undef cx_ath_matthew_unix_UnixSelector_CTL_MOD
+#define cx_ath_matthew_unix_UnixSelector_CTL_MOD 1L
+#undef cx_ath_matthew_unix_UnixSelector_CTL_DEL
+#define cx_ath_matthew_unix_UnixSelector_CTL_DEL 2L
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_create
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1create
+  (JNIEnv *, jobject, jintArray);
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_ctl
+ * Signature: (IIII)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1ctl
+  (JNIEnv *, jobject, jint, jint, jint, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wait
+ * Signature: (II[III)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wait
+  (JNIEnv *, jobject, jint, jint, jintArray, jint, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_wakeup
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1wakeup
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_UnixSelector
+ * Method:    native_close
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_UnixSelector_native_1close
+  (JNIEnv *, jobject, jint, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
+/* Header for class cx_ath_matthew_unix_ShmChannel */
+
+#ifndef _Included_cx_ath_matthew_unix_ShmChannel
+#define _Included_cx_ath_matthew_unix_ShmChannel
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef cx_ath_matthew_unix_ShmChannel_DEFAULT_CAPACITY
+#define cx_ath_matthew_unix_ShmChannel_DEFAULT_CAPACITY 1048576L
+#undef cx_ath_matthew_unix_ShmChannel_RINGS
+#define cx_ath_matthew_unix_ShmChannel_RINGS 83L
+#undef cx_ath_matthew_unix_ShmChannel_ACK
+#define cx_ath_matthew_unix_ShmChannel_ACK 10L
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_create
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1create
+  (JNIEnv *, jclass, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_map
+ * Signature: (IIZ[I)J
+ */
+JNIEXPORT jlong JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1map
+  (JNIEnv *, jclass, jint, jint, jboolean, jintArray);
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_read
+ * Signature: (JIII[BIII)I
+ */
+JNIEXPORT jint JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1read
+  (JNIEnv *, jclass, jlong, jint, jint, jint, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_write
+ * Signature: (JIII[BIII)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1write
+  (JNIEnv *, jclass, jlong, jint, jint, jint, jbyteArray, jint, jint, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_close
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1close
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     cx_ath_matthew_unix_ShmChannel
+ * Method:    native_unmap
+ * Signature: (JI)V
+ */
+JNIEXPORT void JNICALL Java_cx_ath_matthew_unix_ShmChannel_native_1unmap
+  (JNIEnv *, jclass, jlong, jint);
+
 #ifdef __cplusplus
 }
 #endif
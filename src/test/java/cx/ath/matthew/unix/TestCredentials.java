@@ -0,0 +1,65 @@
+package cx.ath.matthew.unix;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCredentials {
+
+    private UnixSocket server;
+    private UnixSocket client;
+
+    @Before
+    public void connect() throws Exception {
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	final UnixSocket[] accepted = new UnixSocket[1];
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    accepted[0] = uss.accept();
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	client = new UnixSocket(uss.getAddress());
+	t.join();
+	uss.close();
+	assertNotNull(accepted[0]);
+	server = accepted[0];
+	server.setPassCred(true);
+    }
+
+    @After
+    public void close() throws Exception {
+	server.close();
+	client.close();
+    }
+
+    @Test
+    public void dataFollowsCredentialByte() throws Exception {
+	byte[] lines = "\0AUTH EXTERNAL 31303030\r\nBEGIN\r\n".getBytes("ASCII");
+	client.sendWithCredentials(lines);
+
+	assertEquals(0, server.recvCredentialByte());
+	assertTrue(server.getPeerUID() >= 0);
+	byte[] rest = new byte[lines.length - 1];
+	new DataInputStream(server.getInputStream()).readFully(rest);
+	assertEquals("AUTH EXTERNAL 31303030\r\nBEGIN\r\n", new String(rest, "ASCII"));
+    }
+
+    @Test
+    public void singleCredentialByte() throws Exception {
+	client.sendCredentialByte((byte) 7);
+	assertEquals(7, server.recvCredentialByte());
+	assertTrue(server.getPeerUID() >= 0);
+    }
+
+}
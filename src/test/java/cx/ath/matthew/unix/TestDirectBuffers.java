@@ -0,0 +1,172 @@
+package cx.ath.matthew.unix;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectBuffers {
+
+    private UnixSocket[] s;
+    private USInputStream in;
+    private USOutputStream out;
+
+    @Before
+    public void connect() throws Exception {
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	final UnixSocket[] accepted = new UnixSocket[1];
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    accepted[0] = uss.accept();
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	UnixSocket us = new UnixSocket(uss.getAddress());
+	t.join();
+	uss.close();
+	assertNotNull(accepted[0]);
+	s = new UnixSocket[] { accepted[0], us };
+	in = (USInputStream) s[0].getInputStream();
+	out = (USOutputStream) s[1].getOutputStream();
+    }
+
+    @After
+    public void close() throws Exception {
+	s[0].close();
+	if (!s[1].isClosed()) s[1].close();
+    }
+
+    private static ByteBuffer data(int len, int seed) {
+	ByteBuffer b = ByteBuffer.allocateDirect(len);
+	for (int i = 0; i < len; i++)
+	    b.put((byte) (i * 31 + seed));
+	b.flip();
+	return b;
+    }
+
+    /** Reads into b until it is full. */
+    private void readFully(ByteBuffer b) throws IOException {
+	while (b.hasRemaining())
+	    if (-1 == in.read(b)) throw new IOException("EOF with " + b.remaining() + " bytes left");
+    }
+
+    @Test
+    public void singleBuffer() throws Exception {
+	ByteBuffer sent = data(100, 1);
+	// only the bytes from the position to the limit are sent
+	sent.position(10).limit(90);
+	out.write(sent);
+	assertEquals(90, sent.position());
+
+	ByteBuffer got = ByteBuffer.allocateDirect(100);
+	got.position(5).limit(85);
+	readFully(got);
+	assertEquals(85, got.position());
+	for (int i = 0; i < 80; i++)
+	    assertEquals(sent.get(10 + i), got.get(5 + i));
+    }
+
+    @Test
+    public void moreBuffersThanOneCall() throws Exception {
+	// more buffers than go in one system call, some of them empty
+	ByteBuffer[] sent = new ByteBuffer[150];
+	int total = 0;
+	for (int i = 0; i < sent.length; i++) {
+	    sent[i] = data(i % 7 * 13, i);
+	    total += sent[i].remaining();
+	}
+	out.write(sent);
+	for (ByteBuffer b : sent)
+	    assertFalse(b.hasRemaining());
+
+	ByteBuffer[] got = new ByteBuffer[sent.length];
+	for (int i = 0; i < got.length; i++)
+	    got[i] = ByteBuffer.allocateDirect(sent[i].limit());
+	int read = 0;
+	while (read < total) {
+	    long r = in.read(got);
+	    assertTrue(r > 0);
+	    read += r;
+	}
+	for (int i = 0; i < got.length; i++) {
+	    assertFalse(got[i].hasRemaining());
+	    got[i].flip();
+	    sent[i].flip();
+	    assertEquals(sent[i], got[i]);
+	}
+    }
+
+    @Test
+    public void moreThanTheSocketHolds() throws Exception {
+	final ByteBuffer sent = data(4 << 20, 3);
+	final AtomicReference<IOException> error = new AtomicReference<IOException>();
+	Thread writer = new Thread() {
+	    public void run() {
+		try {
+		    out.write(sent.duplicate());
+		} catch (IOException IOe) {
+		    error.set(IOe);
+		}
+	    }
+	};
+	writer.start();
+	ByteBuffer got = ByteBuffer.allocateDirect(sent.limit());
+	readFully(got);
+	writer.join();
+	assertNull(error.get());
+	got.flip();
+	assertEquals(sent, got);
+    }
+
+    @Test
+    public void fileDescriptors() throws Exception {
+	byte[] contents = "passed with direct buffers".getBytes("UTF-8");
+	int fd = MemFD.create("test", contents);
+	try {
+	    in.setPassFileDescriptors(true);
+	    out.write(new ByteBuffer[] { data(10, 0), data(20, 1) }, new int[] { fd });
+	    readFully(ByteBuffer.allocateDirect(30));
+	    assertEquals(1, in.availableFileDescriptors());
+	    int received = in.takeFileDescriptors(1)[0];
+	    try {
+		assertArrayEquals(contents, MemFD.read(received));
+	    } finally {
+		MemFD.close(received);
+	    }
+	} finally {
+	    MemFD.close(fd);
+	}
+    }
+
+    @Test
+    public void endOfStream() throws Exception {
+	out.write(data(3, 0));
+	s[1].close();
+	ByteBuffer got = ByteBuffer.allocateDirect(10);
+	assertEquals(3, in.read(got));
+	assertEquals(-1, in.read(got));
+    }
+
+    @Test
+    public void heapBuffersAreRejected() throws Exception {
+	try {
+	    out.write(ByteBuffer.allocate(10));
+	    fail("wrote a heap buffer");
+	} catch (IllegalArgumentException IAe) {}
+	try {
+	    in.read(ByteBuffer.allocate(10));
+	    fail("read into a heap buffer");
+	} catch (IllegalArgumentException IAe) {}
+    }
+
+}
@@ -0,0 +1,170 @@
+package cx.ath.matthew.unix;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestShmChannel {
+
+    private static final int CAPACITY = 4096;
+    /** Where the head of each ring is in the shared memory, after the magic and capacity line. */
+    private static final int[] HEAD = { 64, 64 + 192 };
+
+    /** Two ends of a connected socket. */
+    private static UnixSocket[] pair() throws Exception {
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	final UnixSocket[] accepted = new UnixSocket[1];
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    accepted[0] = uss.accept();
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	UnixSocket us = new UnixSocket(uss.getAddress());
+	t.join();
+	uss.close();
+	assertNotNull(accepted[0]);
+	return new UnixSocket[] { accepted[0], us };
+    }
+
+    /** A connected pair of channels with small rings. */
+    private static ShmChannel[] channels() throws Exception {
+	final UnixSocket[] s = pair();
+	final ShmChannel[] c = new ShmChannel[2];
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    c[0] = ShmChannel.accept(s[0], CAPACITY);
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	c[1] = ShmChannel.connect(s[1]);
+	t.join();
+	assertNotNull(c[0]);
+	return c;
+    }
+
+    private static byte[] data(int len) {
+	byte[] b = new byte[len];
+	for (int i = 0; i < len; i++)
+	    b[i] = (byte) (i * 7 + (i >> 8));
+	return b;
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+	for (int n = 0; n < b.length;) {
+	    int r = in.read(b, n, b.length - n);
+	    if (-1 == r) throw new IOException("EOF after " + n);
+	    n += r;
+	}
+    }
+
+    @Test
+    public void passesMoreThanTheRingHolds() throws Exception {
+	final ShmChannel[] c = channels();
+	try {
+	    final byte[] sent = data(1 << 20);
+	    final Exception[] failed = new Exception[1];
+	    Thread writer = new Thread() {
+		public void run() {
+		    try {
+			OutputStream out = c[1].getOutputStream();
+			for (int i = 0; i < sent.length; i += 10000)
+			    out.write(sent, i, Math.min(10000, sent.length - i));
+		    } catch (Exception e) {
+			failed[0] = e;
+		    }
+		}
+	    };
+	    writer.start();
+	    byte[] got = new byte[sent.length];
+	    readFully(c[0].getInputStream(), got);
+	    writer.join();
+	    assertNull(failed[0]);
+	    assertTrue(Arrays.equals(sent, got));
+	} finally {
+	    c[0].close();
+	    c[1].close();
+	}
+    }
+
+    @Test
+    public void closeWakesWriterOnFullRing() throws Exception {
+	final ShmChannel[] c = channels();
+	final Exception[] failed = new Exception[1];
+	Thread writer = new Thread() {
+	    public void run() {
+		try {
+		    c[1].getOutputStream().write(new byte[CAPACITY * 4]);
+		} catch (Exception e) {
+		    failed[0] = e;
+		}
+	    }
+	};
+	writer.start();
+	Thread.sleep(200);
+	assertTrue(writer.isAlive());
+	c[0].close();
+	writer.join(5000);
+	assertFalse(writer.isAlive());
+	assertTrue(failed[0] instanceof IOException);
+	c[1].close();
+    }
+
+    @Test
+    public void inconsistentPositionsFailTheChannel() throws Exception {
+	ShmChannel[] c = channels();
+	try {
+	    Field f = ShmChannel.class.getDeclaredField("base");
+	    f.setAccessible(true);
+	    long base = f.getLong(c[0]);
+	    Field uf = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+	    uf.setAccessible(true);
+	    Object unsafe = uf.get(null);
+	    // a writer claiming more than the ring holds
+	    unsafe.getClass().getMethod("putInt", long.class, int.class).invoke(unsafe, base + HEAD[1], CAPACITY + 1);
+	    try {
+		c[0].getInputStream().read(new byte[16]);
+		fail("read from a corrupt ring");
+	    } catch (IOException IOe) {
+	    }
+	} finally {
+	    c[0].close();
+	    c[1].close();
+	}
+    }
+
+    @Test
+    public void connectRejectsUnusableFile() throws Exception {
+	UnixSocket[] s = pair();
+	// sealed against writing, so it can't be mapped as rings
+	int fd = MemFD.create("not-rings", new byte[4096 + 2 * CAPACITY]);
+	try {
+	    ((USOutputStream) s[0].getOutputStream()).write(new byte[][] { { 'S' } }, new int[] { fd });
+	    try {
+		ShmChannel.connect(s[1]);
+		fail("mapped a file which is not rings");
+	    } catch (IOException IOe) {
+	    }
+	} finally {
+	    MemFD.close(fd);
+	    s[0].close();
+	    s[1].close();
+	}
+    }
+
+}
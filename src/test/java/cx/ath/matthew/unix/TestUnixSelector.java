@@ -0,0 +1,198 @@
+package cx.ath.matthew.unix;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestUnixSelector {
+
+    private final List<Object> sockets = new ArrayList<Object>();
+    private UnixSelector selector;
+
+    /** Two ends of a connected socket, closed after the test. */
+    private UnixSocket[] pair() throws Exception {
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	final UnixSocket[] accepted = new UnixSocket[1];
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    accepted[0] = uss.accept();
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	UnixSocket us = new UnixSocket(uss.getAddress());
+	t.join();
+	uss.close();
+	assertNotNull(accepted[0]);
+	sockets.add(accepted[0]);
+	sockets.add(us);
+	return new UnixSocket[] { accepted[0], us };
+    }
+
+    @Before
+    public void open() throws Exception {
+	selector = new UnixSelector();
+    }
+
+    @After
+    public void close() throws Exception {
+	for (Object s : sockets)
+	    if (s instanceof UnixSocket) ((UnixSocket) s).close();
+	    else ((UnixServerSocket) s).close();
+	selector.close();
+    }
+
+    @Test
+    public void readable() throws Exception {
+	UnixSocket[] s = pair();
+	UnixSelector.Key k = selector.register(s[0], UnixSelector.OP_READ, "attached");
+	assertEquals(0, selector.selectNow());
+	s[1].getOutputStream().write(1);
+	assertEquals(1, selector.select(1000));
+	assertSame(k, selector.selectedKeys().get(0));
+	assertTrue(k.isReadable());
+	assertFalse(k.isWritable());
+	assertSame(s[0], k.socket());
+	assertEquals("attached", k.attachment());
+
+	// level-triggered until it is read
+	assertEquals(1, selector.selectNow());
+	assertEquals(1, s[0].getInputStream().read());
+	assertEquals(0, selector.selectNow());
+    }
+
+    @Test
+    public void writable() throws Exception {
+	UnixSocket[] s = pair();
+	UnixSelector.Key k = selector.register(s[0], 0, null);
+	assertEquals(0, selector.selectNow());
+	k.interestOps(UnixSelector.OP_WRITE);
+	assertEquals(1, selector.selectNow());
+	assertTrue(k.isWritable());
+    }
+
+    @Test
+    public void acceptable() throws Exception {
+	UnixServerSocket uss = new UnixServerSocket();
+	sockets.add(uss);
+	uss.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	UnixSelector.Key k = selector.register(uss, null);
+	assertEquals(0, selector.selectNow());
+	UnixSocket us = new UnixSocket(uss.getAddress());
+	sockets.add(us);
+	assertEquals(1, selector.select(1000));
+	assertTrue(k.isReadable());
+	sockets.add(uss.accept());
+    }
+
+    @Test
+    public void registerTwice() throws Exception {
+	UnixSocket[] s = pair();
+	selector.register(s[0], UnixSelector.OP_READ, null);
+	try {
+	    selector.register(s[0], UnixSelector.OP_READ, null);
+	    fail("registered a socket twice");
+	} catch (UnixIOException UIOe) {}
+	assertEquals(1, s[0].selectorKeys.size());
+    }
+
+    @Test
+    public void cancelAndRegisterAgain() throws Exception {
+	UnixSocket[] s = pair();
+	UnixSelector.Key k = selector.register(s[0], UnixSelector.OP_READ, null);
+	k.cancel();
+	assertFalse(k.isValid());
+	assertTrue(s[0].selectorKeys.isEmpty());
+	s[1].getOutputStream().write(1);
+	assertEquals(0, selector.selectNow());
+	try {
+	    k.interestOps(UnixSelector.OP_READ);
+	    fail("changed a cancelled key");
+	} catch (NotConnectedException NCe) {}
+	UnixSelector.Key again = selector.register(s[0], UnixSelector.OP_READ, null);
+	assertEquals(1, selector.selectNow());
+	assertSame(again, selector.selectedKeys().get(0));
+    }
+
+    @Test
+    public void closingCancels() throws Exception {
+	UnixSocket[] s = pair();
+	int fd = s[0].getFD();
+	UnixSelector.Key k = selector.register(s[0], UnixSelector.OP_READ, null);
+	s[0].close();
+	assertFalse(k.isValid());
+	assertTrue(s[0].selectorKeys.isEmpty());
+
+	// sockets are given the lowest free descriptor, so one of the next few gets the one just closed
+	UnixServerSocket reused = null;
+	for (int i = 0; i < 64 && (null == reused || fd != reused.getFD()); i++) {
+	    reused = new UnixServerSocket();
+	    sockets.add(reused);
+	    reused.bind(new UnixSocketAddress("/tmp/unix-java-test-" + System.nanoTime(), true));
+	}
+	assertEquals(fd, reused.getFD());
+	UnixSelector.Key k2 = selector.register(reused, null);
+	UnixSocket us = new UnixSocket(reused.getAddress());
+	sockets.add(us);
+	assertEquals(1, selector.select(1000));
+	assertSame(k2, selector.selectedKeys().get(0));
+	assertSame(reused, k2.socket());
+
+	// cancelling the stale key again leaves the new one alone
+	k.cancel();
+	assertTrue(k2.isValid());
+	assertEquals(1, selector.selectNow());
+	sockets.add(reused.accept());
+    }
+
+    @Test
+    public void wakeup() throws Exception {
+	final AtomicInteger n = new AtomicInteger(-1);
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    n.set(selector.select());
+		} catch (IOException IOe) {
+		    IOe.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	Thread.sleep(50);
+	selector.wakeup();
+	t.join(5000);
+	assertFalse(t.isAlive());
+	assertEquals(0, n.get());
+    }
+
+    @Test
+    public void closingTheSelector() throws Exception {
+	UnixSocket[] s = pair();
+	UnixSelector.Key k = selector.register(s[0], UnixSelector.OP_READ, null);
+	selector.close();
+	assertTrue(selector.isClosed());
+	assertFalse(k.isValid());
+	assertTrue(s[0].selectorKeys.isEmpty());
+	k.cancel();
+	try {
+	    selector.selectNow();
+	    fail("selected on a closed selector");
+	} catch (NotConnectedException NCe) {}
+	try {
+	    selector.register(s[0], UnixSelector.OP_READ, null);
+	    fail("registered with a closed selector");
+	} catch (NotConnectedException NCe) {}
+    }
+
+}
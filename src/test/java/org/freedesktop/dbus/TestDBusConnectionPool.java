@@ -0,0 +1,128 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.freedesktop.dbus.bin.DBusDaemon;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.test.TestCallerInterface;
+import org.freedesktop.dbus.test.TestSignalInterface;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDBusConnectionPool {
+
+    private static final String SERVICE = "org.freedesktop.dbus.test.pool";
+
+    private static class CallerServer implements TestCallerInterface {
+	public boolean isRemote() { return false; }
+	public String getObjectPath() { return "/Caller"; }
+	public String caller() { return DBusConnection.getCallInfo().getSource(); }
+    }
+
+    private String address;
+    private DBusConnection server;
+    private DBusConnectionPool pool;
+
+    @Before
+    public void connect() throws Exception {
+	address = "inproc:name=pool-test-" + System.nanoTime();
+	Thread daemon = new Thread() {
+	    public void run() {
+		try {
+		    DBusDaemon.main(new String[] { "--listen", address });
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	daemon.setDaemon(true);
+	daemon.start();
+	for (int i = 0; null == server && i < 100; i++) {
+	    try {
+		server = DBusConnection.getConnection(address);
+	    } catch (Exception e) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(server);
+	server.requestBusName(SERVICE);
+	server.exportObject("/Caller", new CallerServer());
+    }
+
+    @After
+    public void disconnect() {
+	if (null != pool) pool.disconnect();
+	if (null != server) server.disconnect();
+    }
+
+    private Set<String> members() {
+	Set<String> names = new HashSet<String>();
+	for (int i = 0; i < pool.size(); i++)
+	    names.add(pool.getConnection().getUniqueName());
+	return names;
+    }
+
+    private void assertIdle() throws InterruptedException {
+	// the sender takes a moment to count out the last reply it wrote
+	for (int i = 0; i < 100; i++) {
+	    boolean idle = true;
+	    for (int j = 0; j < pool.size(); j++)
+		idle &= 0 == pool.getConnection().load.get();
+	    if (idle) return;
+	    Thread.sleep(10);
+	}
+	fail("the pool still has messages in flight");
+    }
+
+    @Test
+    public void roundRobinUsesEveryMember() throws Exception {
+	pool = new DBusConnectionPool(address, 3, DBusConnectionPool.Balance.ROUND_ROBIN);
+	assertEquals(3, members().size());
+	TestCallerInterface remote = pool.getRemoteObject(SERVICE, "/Caller", TestCallerInterface.class);
+	Set<String> callers = new HashSet<String>();
+	for (int i = 0; i < 6; i++)
+	    callers.add(remote.caller());
+	assertEquals(3, callers.size());
+	assertTrue(remote.equals(remote));
+	assertEquals(System.identityHashCode(remote), remote.hashCode());
+    }
+
+    @Test
+    public void leastLoadedCountsEveryKindOfCall() throws Exception {
+	pool = new DBusConnectionPool(address, 2, DBusConnectionPool.Balance.LEAST_LOADED);
+	TestCallerInterface remote = pool.getRemoteObject(SERVICE, "/Caller", TestCallerInterface.class);
+	for (int i = 0; i < 4; i++)
+	    assertNotNull(remote.caller());
+	assertIdle();
+
+	DBusAsyncReply<?> reply = pool.callMethodAsync(remote, "caller");
+	for (int i = 0; i < 100 && !reply.hasReply(); i++)
+	    Thread.sleep(10);
+	assertNotNull(reply.getReply());
+
+	final CountDownLatch done = new CountDownLatch(1);
+	pool.callWithCallback(remote, "caller", new CallbackHandler<String>() {
+	    public void handle(String r) { done.countDown(); }
+	    public void handleError(DBusExecutionException e) {}
+	});
+	assertTrue(done.await(10, TimeUnit.SECONDS));
+
+	pool.sendSignal(new TestSignalInterface.TestSignal("/Test", "hello", new UInt32(42)));
+	assertIdle();
+    }
+
+    @Test
+    public void rejectsEmptyPool() throws Exception {
+	try {
+	    new DBusConnectionPool(address, 0, null);
+	    fail("a pool with no connections was made");
+	} catch (org.freedesktop.dbus.exceptions.DBusException DBe) {}
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestEfficientCollections {
+
+    private static MethodCall[] calls(int n) throws Exception {
+	MethodCall[] ms = new MethodCall[n];
+	for (int i = 0; i < n; i++)
+	    ms[i] = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Profiler",
+		    "bytes", (byte) 0, "i", i);
+	return ms;
+    }
+
+    @Test
+    public void queueGrowsWhenWrapped() throws Exception {
+	MethodCall[] ms = calls(40);
+	EfficientQueue q = new EfficientQueue(4);
+	int in = 0, out = 0;
+	// move the head along so the contents wrap round the end of the array before it grows
+	q.add(ms[in++]);
+	q.add(ms[in++]);
+	q.add(ms[in++]);
+	assertSame(ms[out++], q.remove());
+	assertSame(ms[out++], q.remove());
+	while (in < ms.length)
+	    q.add(ms[in++]);
+	assertEquals(ms.length - out, q.size());
+	Message[] batch = new Message[8];
+	int n = q.remove(batch, 0, 5);
+	assertEquals(5, n);
+	for (int i = 0; i < n; i++)
+	    assertSame(ms[out++], batch[i]);
+	while (out < ms.length)
+	    assertSame(ms[out++], q.remove());
+	assertTrue(q.isEmpty());
+	assertNull(q.remove());
+	assertEquals(0, q.remove(batch, 0, batch.length));
+    }
+
+    @Test
+    public void mapGrowsWhenWrapped() throws Exception {
+	MethodCall[] ms = calls(40);
+	EfficientMap m = new EfficientMap(4);
+	m.put(0, ms[0]);
+	m.put(1, ms[1]);
+	m.put(2, ms[2]);
+	assertSame(ms[0], m.remove(0));
+	assertSame(ms[1], m.remove(1));
+	for (int i = 3; i < ms.length; i++)
+	    m.put(i, ms[i]);
+	for (int i = 2; i < ms.length; i++)
+	    assertTrue(m.contains(i));
+	assertFalse(m.contains(0));
+	assertEquals(ms.length - 2, m.getKeys().length);
+	// out of order, as replies arrive
+	for (int i = ms.length - 2; i >= 2; i -= 2)
+	    assertSame(ms[i], m.remove(i));
+	for (int i = 2; i < ms.length; i++)
+	    assertEquals(1 == (i % 2), m.contains(i));
+	for (int i = 3; i < ms.length; i += 2)
+	    assertSame(ms[i], m.remove(i));
+	assertNull(m.remove(3));
+	assertFalse(m.contains(2));
+    }
+
+}
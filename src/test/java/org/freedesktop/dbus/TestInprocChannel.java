@@ -0,0 +1,149 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.test.TestEchoInterface;
+import org.freedesktop.dbus.test.TestSignalInterface;
+import org.junit.Test;
+
+public class TestInprocChannel {
+
+    private static class EchoServer implements TestEchoInterface {
+	volatile String recorded = "";
+	public boolean isRemote() { return false; }
+	public String getObjectPath() { return null; }
+	public String echo(String s) { return s; }
+	public int add(int a, int b) { return a + b; }
+	public void record(String s) { recorded = s; }
+	public String recorded() { return recorded; }
+    }
+
+    private static String name() {
+	return "inproc-test-" + System.nanoTime();
+    }
+
+    @Test
+    public void callsBetweenConnections() throws Exception {
+	final String address = "inproc:name=" + name();
+	final AtomicReference<DirectConnection> server = new AtomicReference<DirectConnection>();
+	final LinkedBlockingQueue<TestSignalInterface.TestSignal> signals = new LinkedBlockingQueue<TestSignalInterface.TestSignal>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    DirectConnection dc = new DirectConnection(address + ",listen=true");
+		    dc.exportObject("/Echo", new EchoServer());
+		    dc.addSigHandler(TestSignalInterface.TestSignal.class, new DBusSigHandler<TestSignalInterface.TestSignal>() {
+			public void handle(TestSignalInterface.TestSignal s) {
+			    signals.add(s);
+			}
+		    });
+		    server.set(dc);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	DirectConnection client = null;
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (DBusException DBe) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	assertNotNull(server.get());
+
+	TestEchoInterface echo = (TestEchoInterface) client.getRemoteObject("/Echo", TestEchoInterface.class);
+	for (int i = 0; i < 10; i++) {
+	    assertEquals("call " + i, echo.echo("call " + i));
+	    assertEquals(i + 1, echo.add(i, 1));
+	}
+	client.sendSignal(new TestSignalInterface.TestSignal("/Test", "signal", new UInt32(5)));
+	TestSignalInterface.TestSignal s = signals.poll(10, TimeUnit.SECONDS);
+	assertNotNull(s);
+	assertEquals("signal", s.value);
+	assertEquals(new UInt32(5), s.number);
+
+	// once the server is gone the client's calls fail rather than hang
+	server.get().disconnect();
+	try {
+	    for (int i = 0; i < 100; i++) {
+		echo.echo("gone");
+		Thread.sleep(10);
+	    }
+	    fail("called a disconnected server");
+	} catch (DBusExecutionException DBEe) {
+	} finally {
+	    client.disconnect();
+	}
+    }
+
+    @Test
+    public void nothingListening() throws Exception {
+	try {
+	    new DirectConnection("inproc:name=" + name());
+	    fail("connected to a name nothing listens on");
+	} catch (DBusException DBe) {}
+    }
+
+    @Test
+    public void nameInUse() throws Exception {
+	String name = name();
+	InprocChannel.Listener l = InprocChannel.listen(name);
+	try {
+	    InprocChannel.listen(name);
+	    fail("listened twice on one name");
+	} catch (IOException IOe) {
+	} finally {
+	    l.close();
+	}
+	// the name can be used again once it is closed
+	InprocChannel.listen(name).close();
+    }
+
+    @Test
+    public void messagesAreCopied() throws Exception {
+	String name = name();
+	InprocChannel.Listener l = InprocChannel.listen(name);
+	InprocChannel client = InprocChannel.connect(name);
+	InprocChannel server = l.accept();
+	l.close();
+
+	MethodCall sent = new MethodCall(null, null, "/Test", "org.freedesktop.dbus.test.Inproc", "call", (byte) 0,
+		"sai", "text", new int[] { 1, 2, 3 });
+	client.send(sent);
+	Message got = server.receive();
+	assertNotSame(sent, got);
+	assertEquals(sent.getSerial(), got.getSerial());
+	assertEquals("call", got.getName());
+	assertEquals("sai", got.getSig());
+	Object[] args = got.getParameters();
+	assertEquals("text", args[0]);
+	assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) args[1]);
+
+	// what was sent before closing can still be received, then the end of the stream
+	server.send(new MethodCall(null, null, "/Test", null, "last", (byte) 0, null));
+	server.close();
+	assertEquals("last", client.receive().getName());
+	try {
+	    client.receive();
+	    fail("received from a closed channel");
+	} catch (EOFException EOFe) {}
+	try {
+	    client.send(sent);
+	    fail("sent to a closed channel");
+	} catch (EOFException EOFe) {}
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+public class TestMessageAllocation {
+
+    /**
+     * Upper bound on the bytes allocated to build, write and release one
+     * MethodCall. This is about 230 bytes with compressed oops; building the
+     * header through a HashMap and a Vector of boxed tuples took about 1000.
+     */
+    private static final long MAX_BYTES_PER_CALL = 512;
+    private static final int WARMUP = 20000;
+    private static final int CALLS = 10000;
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+	public void write(int b) {}
+	public void write(byte[] b, int off, int len) {}
+    };
+
+    private static void send(MessageWriter out) throws Exception {
+	MethodCall m = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Profiler",
+		"bytes", (byte) 0, "si", "hello", 42);
+	out.writeMessage(m);
+	m.release();
+    }
+
+    @Test
+    public void test() throws Exception {
+	Object bean = ManagementFactory.getThreadMXBean();
+	assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+	assumeTrue(threads.isThreadAllocatedMemorySupported());
+	threads.setThreadAllocatedMemoryEnabled(true);
+
+	MessageWriter out = new MessageWriter(NULL_STREAM);
+	for (int i = 0; i < WARMUP; i++)
+	    send(out);
+
+	long id = Thread.currentThread().getId();
+	long before = threads.getThreadAllocatedBytes(id);
+	for (int i = 0; i < CALLS; i++)
+	    send(out);
+	long perCall = (threads.getThreadAllocatedBytes(id) - before) / CALLS;
+
+	assertTrue("MethodCall allocated " + perCall + " bytes, expected at most " + MAX_BYTES_PER_CALL,
+		perCall <= MAX_BYTES_PER_CALL);
+    }
+
+}
@@ -0,0 +1,189 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.junit.Test;
+
+public class TestMessageBodyReader {
+
+    private static final String SIG = "ybnqiuxtdsoga{sv}(is)aiv";
+
+    private static Object[] values() {
+	Map<String, Variant<?>> props = new HashMap<String, Variant<?>>();
+	props.put("name", new Variant<String>("value"));
+	return new Object[] {
+	    (byte) 3, true, (short) -2, new UInt16(40000), -5, new UInt32(3000000000L), 1L << 40,
+	    new UInt64(12345), 0.25, "héllo", new ObjectPath(null, "/Path"), "a(ii)", props,
+	    new Object[] { 7, "struct" }, new int[] { 1, 2, 3 }, new Variant<Integer>(9)
+	};
+    }
+
+    /** Builds a method call and returns its header and body as they would be received. */
+    private static byte[][] marshall(String sig, Object... args) throws Exception {
+	MethodCall m = new MethodCall(null, null, "/Test", null, "call", (byte) 0, sig, args);
+	byte[] buf = m.getWireBuffer();
+	int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	return new byte[][] { Arrays.copyOf(buf, headerlen), Arrays.copyOfRange(buf, headerlen, m.getWireLength()) };
+    }
+
+    private static MessageBodyReader reader(byte[][] hb) throws Exception {
+	return MessageReader.create(hb[0], hb[1]).getBodyReader();
+    }
+
+    @Test
+    public void typedValuesRoundTrip() throws Exception {
+	MessageBodyReader r = reader(marshall(SIG, values()));
+	assertEquals(0, r.getDepth());
+	assertEquals(3, r.nextByte());
+	assertTrue(r.nextBoolean());
+	assertEquals(-2, r.nextInt16());
+	assertEquals(40000, r.nextUInt16());
+	assertEquals(-5, r.nextInt());
+	assertEquals(3000000000L, r.nextUInt32());
+	assertEquals(1L << 40, r.nextLong());
+	assertEquals(new UInt64(12345), r.nextUInt64());
+	assertEquals(0.25, r.nextDouble(), 0);
+	assertEquals("héllo", r.nextString());
+	assertEquals(Message.ArgumentType.OBJECT_PATH, r.getType());
+	assertEquals("/Path", r.nextString());
+	assertEquals("a(ii)", r.nextSignature());
+
+	assertEquals("a{sv}", r.getSignature());
+	r.enterArray();
+	assertEquals(1, r.getDepth());
+	r.enterDictEntry();
+	assertEquals("name", r.nextString());
+	r.enterVariant();
+	assertEquals("s", r.getSignature());
+	assertEquals("value", r.nextString());
+	assertFalse(r.hasNext());
+	r.exit();
+	r.exit();
+	assertFalse(r.hasNext());
+	r.exit();
+
+	r.enterStruct();
+	assertEquals(7, r.nextInt());
+	assertEquals("struct", r.nextString());
+	r.exit();
+
+	r.enterArray();
+	int sum = 0;
+	while (r.hasNext())
+	    sum += r.nextInt();
+	assertEquals(6, sum);
+	r.exit();
+
+	assertEquals(new Variant<Integer>(9), r.next());
+	assertFalse(r.hasNext());
+	assertEquals(0, r.getType());
+	assertNull(r.getSignature());
+    }
+
+    @Test
+    public void nextMatchesGetParameters() throws Exception {
+	byte[][] hb = marshall(SIG, values());
+	Object[] expected = MessageReader.create(hb[0], hb[1]).getParameters();
+	MessageBodyReader r = reader(hb);
+	for (int i = 0; i < expected.length; i++) {
+	    Object o = r.next();
+	    if (expected[i] instanceof Object[])
+		assertArrayEquals((Object[]) expected[i], (Object[]) o);
+	    else if (expected[i] instanceof int[])
+		assertArrayEquals((int[]) expected[i], (int[]) o);
+	    else if (expected[i] instanceof ObjectPath)
+		assertEquals(((ObjectPath) expected[i]).getPath(), ((ObjectPath) o).getPath());
+	    else
+		assertEquals(expected[i], o);
+	}
+	assertFalse(r.hasNext());
+    }
+
+    @Test
+    public void skipAndExitLeaveTheRest() throws Exception {
+	MessageBodyReader r = reader(marshall(SIG, values()));
+	for (int i = 0; i < 12; i++)
+	    r.skip();
+	// leave the dict part read
+	r.enterArray();
+	r.enterDictEntry();
+	r.exit();
+	r.exit();
+	r.skip();
+	r.enterArray();
+	assertEquals(1, r.nextInt());
+	r.exit();
+	assertEquals(new Variant<Integer>(9), r.next());
+	assertFalse(r.hasNext());
+	try {
+	    r.skip();
+	    fail("skipped past the last value");
+	} catch (MarshallingException Me) {}
+	try {
+	    r.exit();
+	    fail("left the top level");
+	} catch (MarshallingException Me) {}
+    }
+
+    @Test
+    public void wrongTypeIsRejected() throws Exception {
+	MessageBodyReader r = reader(marshall("is", 1, "x"));
+	try {
+	    r.nextString();
+	    fail("read an int as a string");
+	} catch (MarshallingException Me) {}
+	assertEquals(1, r.nextInt());
+	assertEquals("x", r.nextString());
+    }
+
+    @Test
+    public void lengthsPastTheBodyAreRejected() throws Exception {
+	for (String sig : new String[] { "s", "ai", "as", "g" }) {
+	    Object value = "s".equals(sig) ? "hello" : "g".equals(sig) ? "ii" : "ai".equals(sig) ? new int[] { 1 } : new String[] { "a" };
+	    byte[][] hb = marshall(sig, value);
+	    if ("g".equals(sig))
+		hb[1][0] = (byte) 200;
+	    else
+		Message.marshallintBig(1000, hb[1], 0, 4);
+	    try {
+		MessageBodyReader r = reader(hb);
+		if ("s".equals(sig)) r.nextString();
+		else if ("g".equals(sig)) r.nextSignature();
+		else r.enterArray();
+		fail("read a value of type " + sig + " running off the body");
+	    } catch (MarshallingException Me) {}
+	    try {
+		reader(hb).skip();
+		fail("skipped a value of type " + sig + " running off the body");
+	    } catch (MarshallingException Me) {}
+	    try {
+		reader(hb).next();
+		fail("demarshalled a value of type " + sig + " running off the body");
+	    } catch (MarshallingException Me) {}
+	}
+    }
+
+    @Test
+    public void invalidStringsAreRejected() throws Exception {
+	byte[][] hb = marshall("s", "ab");
+	// an overlong encoding of '/'
+	hb[1][4] = (byte) 0xC0;
+	hb[1][5] = (byte) 0xAF;
+	try {
+	    reader(hb).nextString();
+	    fail("decoded an overlong character");
+	} catch (MarshallingException Me) {}
+    }
+
+    @Test
+    public void listsOfStrings() throws Exception {
+	MessageBodyReader r = reader(marshall("as", (Object) new String[] { "one", "two", "three" }));
+	assertEquals(Arrays.asList("one", "two", "three"), r.next());
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.junit.Test;
+
+public class TestMessageHeaders {
+
+    private static MethodCall call() throws Exception {
+	return new MethodCall(":1.5", "org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Headers",
+		"call", (byte) 0, "s", "x");
+    }
+
+    private static byte[][] split(Message m) {
+	byte[] buf = m.getWireBuffer();
+	int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	return new byte[][] { Arrays.copyOf(buf, headerlen), Arrays.copyOfRange(buf, headerlen, m.getWireLength()) };
+    }
+
+    private static void setInt(byte[] b, int ofs, long v) {
+	if (Message.Endian.LITTLE == b[0])
+	    Message.marshallintLittle(v, b, ofs, 4);
+	else
+	    Message.marshallintBig(v, b, ofs, 4);
+    }
+
+    @Test
+    public void objectPathsHaveTheirSource() throws Exception {
+	byte[][] hb = split(call());
+	Message m = MessageReader.create(hb[0], hb[1]);
+	// collect all the fields, then read the path from them
+	assertNotNull(m.toString());
+	ObjectPath path = (ObjectPath) m.getHeader(Message.HeaderField.PATH);
+	assertEquals("/Test", path.getPath());
+	assertEquals(":1.5", path.source);
+    }
+
+    @Test
+    public void arrayLongerThanHeader() throws Exception {
+	byte[][] hb = split(call());
+	setInt(hb[0], 12, hb[0].length);
+	try {
+	    MessageReader.create(hb[0], hb[1]);
+	    fail("made a message with a truncated header");
+	} catch (MarshallingException Me) {
+	}
+    }
+
+    @Test
+    public void stringLongerThanHeader() throws Exception {
+	for (long len : new long[] { 1000, 0x7FFFFFF0L, 0xFFFFFFFFL }) {
+	    byte[][] hb = split(call());
+	    // the first field is the path, its length after the code, signature and padding
+	    assertEquals(Message.HeaderField.PATH, hb[0][16]);
+	    setInt(hb[0], 20, len);
+	    try {
+		MessageReader.create(hb[0], hb[1]);
+		fail("made a message with a string running off the header");
+	    } catch (MarshallingException Me) {
+	    }
+	}
+    }
+
+    @Test
+    public void unknownFieldRunningOffHeader() throws Exception {
+	byte[][] hb = split(call());
+	// make the path an unknown field of type array of bytes, with a huge length
+	hb[0][16] = 100;
+	hb[0][18] = 'a';
+	hb[0][19] = 'y';
+	hb[0][17] = 2;
+	try {
+	    MessageReader.create(hb[0], hb[1]);
+	    fail("made a message with a field running off the header");
+	} catch (MarshallingException Me) {
+	}
+    }
+
+}
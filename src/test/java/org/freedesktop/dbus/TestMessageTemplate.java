@@ -0,0 +1,101 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.freedesktop.dbus.exceptions.MessageFormatException;
+import org.freedesktop.dbus.test.TestSignalInterface;
+import org.junit.Test;
+
+public class TestMessageTemplate {
+
+    /** Returns the marshalled message with its serial, which differs between any two messages, cleared. */
+    private static byte[] wire(Message m) {
+	byte[] b = Arrays.copyOf(m.getWireBuffer(), m.getWireLength());
+	Arrays.fill(b, 8, 12, (byte) 0);
+	return b;
+    }
+
+    @Test
+    public void callMatchesConstructor() throws Exception {
+	MessageTemplate t = MessageTemplate.methodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Template", "call", "sias");
+	for (Object[] args : new Object[][] {
+		{ "x", 1, new String[0] },
+		{ "a longer string", -7, new String[] { "one", "two" } } }) {
+	    MethodCall expected = new MethodCall(null, "org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Template",
+		    "call", Message.Flags.NO_AUTO_START, "sias", args);
+	    MethodCall actual = t.newMethodCall(Message.Flags.NO_AUTO_START, args);
+	    assertArrayEquals(wire(expected), wire(actual));
+	    assertEquals("call", actual.getName());
+	    assertEquals("sias", actual.getSig());
+	    assertEquals(Message.Flags.NO_AUTO_START, actual.getFlags());
+	    // the next message from the template starts with a buffer big enough
+	    assertEquals(actual.getWireLength(), t.getBufferSize());
+	}
+    }
+
+    @Test
+    public void callWithoutParameters() throws Exception {
+	MessageTemplate t = MessageTemplate.methodCall(null, "/Test", null, "call", null);
+	MethodCall expected = new MethodCall(null, null, "/Test", null, "call", (byte) 0, null);
+	MethodCall actual = t.newMethodCall((byte) 0);
+	assertArrayEquals(wire(expected), wire(actual));
+	assertNull(actual.getSig());
+    }
+
+    @Test
+    public void signalMatchesConstructor() throws Exception {
+	DBusSignal expected = new TestSignalInterface.TestSignal("/Test", "hello", new UInt32(42));
+	expected.appendbody(null);
+	MessageTemplate t = MessageTemplate.signal("/Test", expected.getInterface(), expected.getName(), expected.getSig());
+	DBusSignal actual = t.newSignal("hello", new UInt32(42));
+	assertArrayEquals(wire(expected), wire(actual));
+	assertEquals("/Test", actual.getPath());
+    }
+
+    @Test
+    public void templatesAreForOneKind() throws Exception {
+	try {
+	    MessageTemplate.signal("/Test", "org.freedesktop.dbus.test.Template", "signal", null).newMethodCall((byte) 0);
+	    fail("made a method call from a signal template");
+	} catch (MessageFormatException MFe) {}
+	try {
+	    MessageTemplate.methodCall(null, "/Test", null, "call", null).newSignal();
+	    fail("made a signal from a method call template");
+	} catch (MessageFormatException MFe) {}
+	try {
+	    MessageTemplate.methodCall(null, null, null, "call", null);
+	    fail("made a method call template without a path");
+	} catch (MessageFormatException MFe) {}
+	try {
+	    MessageTemplate.signal("/Test", null, "signal", null);
+	    fail("made a signal template without an interface");
+	} catch (MessageFormatException MFe) {}
+    }
+
+    @Test
+    public void signalsFromManyPaths() throws Exception {
+	// alternating paths each keep their own header
+	for (int i = 0; i < 4; i++)
+	    for (String path : new String[] { "/A", "/B" }) {
+		TestSignalInterface.TestSignal s = new TestSignalInterface.TestSignal(path, "x", new UInt32(i));
+		assertEquals(path, s.getPath());
+		assertEquals("TestSignal", s.getName());
+	    }
+	int n = 0;
+	for (java.util.Map.Entry<Class<? extends DBusSignal>, String> k : DBusSignal.templates.keySet())
+	    if (TestSignalInterface.TestSignal.class == k.getKey()
+		    && ("/A".equals(k.getValue()) || "/B".equals(k.getValue())))
+		n++;
+	assertEquals(2, n);
+
+	// but only so many are kept
+	for (int i = 0; i < DBusSignal.TEMPLATE_CACHE_SIZE + 10; i++) {
+	    TestSignalInterface.TestSignal s = new TestSignalInterface.TestSignal("/Path" + i, "x", new UInt32(i));
+	    assertEquals("/Path" + i, s.getPath());
+	    assertTrue(DBusSignal.templates.size() <= DBusSignal.TEMPLATE_CACHE_SIZE);
+	}
+    }
+
+}
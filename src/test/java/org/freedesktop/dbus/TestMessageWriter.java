@@ -0,0 +1,65 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import cx.ath.matthew.unix.UnixServerSocket;
+import cx.ath.matthew.unix.UnixSocket;
+import cx.ath.matthew.unix.UnixSocketAddress;
+
+public class TestMessageWriter {
+
+    private static final int MESSAGES = 20;
+    private static final int READ = 3;
+
+    @Test
+    public void countsMessagesWrittenBeforeFailing() throws Exception {
+	String path = "/tmp/dbus-java-test-" + System.nanoTime();
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress(path, true));
+	final Exception[] failed = new Exception[1];
+	// reads a few messages and hangs up with the rest of the batch still being written
+	Thread reader = new Thread() {
+	    public void run() {
+		try {
+		    UnixSocket s = uss.accept();
+		    MessageReader in = new MessageReader(s.getInputStream());
+		    for (int i = 0; i < READ; i++) {
+			Message m = null;
+			while (null == m)
+			    m = in.readMessage();
+			assertEquals(i, ((Integer) m.getParameters()[0]).intValue());
+		    }
+		    s.close();
+		} catch (Exception e) {
+		    failed[0] = e;
+		}
+	    }
+	};
+	reader.start();
+	UnixSocket us = new UnixSocket();
+	try {
+	    us.connect(new UnixSocketAddress(path, true));
+	    MessageWriter out = new MessageWriter(us.getOutputStream());
+	    Message[] ms = new Message[MESSAGES];
+	    for (int i = 0; i < MESSAGES; i++)
+		ms[i] = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Profiler",
+			"bytes", (byte) 0, "iay", i, new byte[65536]);
+	    try {
+		out.writeMessages(ms, MESSAGES);
+		fail("the whole batch was written to a socket which was closed");
+	    } catch (IOException IOe) {}
+	    assertTrue("only " + out.written + " messages were written", out.written >= READ);
+	    assertTrue(out.written < MESSAGES);
+	    reader.join();
+	    assertNull(failed[0]);
+	} finally {
+	    us.close();
+	    uss.close();
+	}
+    }
+
+}
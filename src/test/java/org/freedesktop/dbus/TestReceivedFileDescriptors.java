@@ -0,0 +1,88 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestReceivedFileDescriptors {
+
+    private static boolean isOpen(int fd) {
+	return new File("/proc/self/fd/" + fd).exists();
+    }
+
+    private static Message received(Message sent) throws Exception {
+	byte[] buf = sent.getWireBuffer();
+	int len = sent.getWireLength();
+	int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	byte[] header = Arrays.copyOf(buf, headerlen);
+	byte[] body = Arrays.copyOfRange(buf, headerlen, len);
+	return MessageReader.create(header, body);
+    }
+
+    @Test
+    public void countInHeader() throws Exception {
+	FileDescriptor a = FileDescriptor.fromBytes(new byte[] { 1 });
+	FileDescriptor b = FileDescriptor.fromBytes(new byte[] { 2 });
+	try {
+	    MethodCall m = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Fd",
+		    "two", (byte) 0, "shh", "x", a, b);
+	    byte[] buf = m.getWireBuffer();
+	    int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	    assertEquals(2, MessageReader.countFileDescriptors(Arrays.copyOf(buf, headerlen)));
+
+	    m = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Fd",
+		    "none", (byte) 0, "s", "x");
+	    buf = m.getWireBuffer();
+	    headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	    assertEquals(0, MessageReader.countFileDescriptors(Arrays.copyOf(buf, headerlen)));
+
+	    // a string longer than the header
+	    byte[] h = Arrays.copyOf(buf, headerlen);
+	    if (Message.Endian.LITTLE == h[0])
+		Message.marshallintLittle(0x7FFFFFF0L, h, 20, 4);
+	    else
+		Message.marshallintBig(0x7FFFFFF0L, h, 20, 4);
+	    assertEquals(-1, MessageReader.countFileDescriptors(h));
+	} finally {
+	    a.close();
+	    b.close();
+	}
+    }
+
+    @Test
+    public void closedWhenNotHandedOut() throws Exception {
+	FileDescriptor fd = FileDescriptor.fromBytes(new byte[] { 1, 2, 3 });
+	// stands in for the copy the kernel gives the receiver
+	int copy = FileDescriptor.fromBytes(new byte[] { 1, 2, 3 }).getIntFileDescriptor();
+	MethodCall sent = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Fd",
+		"take", (byte) 0, "h", fd);
+	Message m = received(sent);
+	m.setFileDescriptors(new int[] { copy });
+	assertTrue(isOpen(copy));
+	m.release();
+	assertFalse(isOpen(copy));
+	fd.close();
+    }
+
+    @Test
+    public void keptOnceHandedOut() throws Exception {
+	FileDescriptor fd = FileDescriptor.fromBytes(new byte[] { 1, 2, 3 });
+	// stands in for the copy the kernel gives the receiver
+	int copy = FileDescriptor.fromBytes(new byte[] { 1, 2, 3 }).getIntFileDescriptor();
+	MethodCall sent = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Fd",
+		"take", (byte) 0, "h", fd);
+	Message m = received(sent);
+	m.setFileDescriptors(new int[] { copy });
+	FileDescriptor got = (FileDescriptor) m.getParameters()[0];
+	assertEquals(copy, got.getIntFileDescriptor());
+	m.release();
+	assertTrue(isOpen(copy));
+	assertArrayEquals(new byte[] { 1, 2, 3 }, got.toBytes());
+	got.close();
+	fd.close();
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.dbus.exceptions.DBusExecutionException;
+import org.freedesktop.dbus.test.TestEchoInterface;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRemoteInvocationHandler {
+
+    private static class EchoServer implements TestEchoInterface {
+	volatile String recorded = "";
+	public boolean isRemote() { return false; }
+	public String getObjectPath() { return null; }
+	public String echo(String s) { return s; }
+	public int add(int a, int b) { return a + b; }
+	public void record(String s) { recorded = s; }
+	public String recorded() { return recorded; }
+    }
+
+    private DirectConnection server;
+    private DirectConnection client;
+
+    @Before
+    public void connect() throws Exception {
+	final String address = DirectConnection.createDynamicSession();
+	final AtomicReference<DirectConnection> s = new AtomicReference<DirectConnection>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    DirectConnection dc = new DirectConnection(address + ",listen=true");
+		    dc.exportObject("/Echo", new EchoServer());
+		    dc.exportObject("/Other", new EchoServer());
+		    s.set(dc);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (Exception e) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	server = s.get();
+	assertNotNull(server);
+    }
+
+    @After
+    public void disconnect() {
+	if (null != client) client.disconnect();
+	if (null != server) server.disconnect();
+    }
+
+    /** Waits for a call without a reply to have been run. */
+    private static void assertRecorded(String expected, TestEchoInterface echo) throws InterruptedException {
+	for (int i = 0; i < 100 && !expected.equals(echo.recorded()); i++)
+	    Thread.sleep(10);
+	assertEquals(expected, echo.recorded());
+    }
+
+    private static RemoteObject remoteObject(DBusInterface proxy) {
+	return ((RemoteInvocationHandler) Proxy.getInvocationHandler(proxy)).remote;
+    }
+
+    @Test
+    public void templatePerMethod() throws Exception {
+	TestEchoInterface echo = (TestEchoInterface) client.getRemoteObject("/Echo", TestEchoInterface.class);
+	assertTrue(remoteObject(echo).templates.isEmpty());
+	for (int i = 0; i < 5; i++) {
+	    // each call marshals different parameters into the same header
+	    assertEquals("value" + i, echo.echo("value" + i));
+	    assertEquals(2 * i + 1, echo.add(i, i + 1));
+	}
+	assertEquals(2, remoteObject(echo).templates.size());
+
+	echo.record("kept");
+	assertRecorded("kept", echo);
+	assertEquals(4, remoteObject(echo).templates.size());
+    }
+
+    @Test
+    public void proxiesKeepTheirOwnPath() throws Exception {
+	TestEchoInterface echo = (TestEchoInterface) client.getRemoteObject("/Echo", TestEchoInterface.class);
+	TestEchoInterface other = (TestEchoInterface) client.getRemoteObject("/Other", TestEchoInterface.class);
+	echo.record("echo");
+	other.record("other");
+	assertRecorded("echo", echo);
+	assertRecorded("other", other);
+	assertNotSame(remoteObject(echo).templates, remoteObject(other).templates);
+    }
+
+    @Test
+    public void asyncAndCallbackCalls() throws Exception {
+	TestEchoInterface echo = (TestEchoInterface) client.getRemoteObject("/Echo", TestEchoInterface.class);
+	assertEquals("sync", echo.echo("sync"));
+	DBusAsyncReply<?> reply = client.callMethodAsync(echo, "echo", "async");
+	for (int i = 0; i < 100 && !reply.hasReply(); i++)
+	    Thread.sleep(10);
+	assertEquals("async", reply.getReply());
+
+	final CountDownLatch done = new CountDownLatch(1);
+	final AtomicReference<String> result = new AtomicReference<String>();
+	client.callWithCallback(echo, "echo", new CallbackHandler<String>() {
+	    public void handle(String r) { result.set(r); done.countDown(); }
+	    public void handleError(DBusExecutionException e) { done.countDown(); }
+	}, "callback");
+	assertTrue(done.await(10, TimeUnit.SECONDS));
+	assertEquals("callback", result.get());
+	// all three kinds of call share the one header
+	assertEquals(1, remoteObject(echo).templates.size());
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.NotConnected;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSendWithoutTransport {
+
+    private DirectConnection server;
+    private DirectConnection client;
+    private Transport transport;
+
+    @Before
+    public void connect() throws Exception {
+	final String address = "inproc:name=send-test-" + System.nanoTime();
+	final AtomicReference<DirectConnection> s = new AtomicReference<DirectConnection>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    s.set(new DirectConnection(address + ",listen=true"));
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (DBusException DBe) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	server = s.get();
+	assertNotNull(server);
+	// as disconnect leaves it while the sender thread is still sending
+	transport = client.transport;
+	client.transport = null;
+    }
+
+    @After
+    public void disconnect() {
+	client.transport = transport;
+	client.disconnect();
+	server.disconnect();
+    }
+
+    private static MethodCall call() throws DBusException {
+	return new MethodCall(null, "/Test", "org.freedesktop.dbus.test.Echo", "echo", (byte) 0, "s", "hello");
+    }
+
+    private static void assertDisconnected(MethodCall m) {
+	Message reply = m.getReply();
+	assertTrue(reply instanceof Error);
+	// answered as not connected rather than left to time out
+	assertEquals(NotConnected.class.getName(), reply.getName());
+    }
+
+    @Test
+    public void singleCallIsAnswered() throws Exception {
+	MethodCall m = call();
+	client.sendMessage(m);
+	assertDisconnected(m);
+	assertEquals(0, client.load.get());
+    }
+
+    @Test
+    public void batchIsAnswered() throws Exception {
+	Method send = AbstractConnection.class.getDeclaredMethod("sendMessages", Message[].class, int.class);
+	send.setAccessible(true);
+	MethodCall[] ms = new MethodCall[] { call(), call(), call() };
+	send.invoke(client, ms, ms.length);
+	for (MethodCall m : ms)
+	    assertDisconnected(m);
+	assertEquals(0, client.load.get());
+    }
+
+}
@@ -0,0 +1,214 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.freedesktop.dbus.test.TestStruct;
+import org.junit.Test;
+
+public class TestTypeCodec {
+
+    /** Only here for the generic types of its parameters. */
+    @SuppressWarnings("unused")
+    private static void parameters(byte y, boolean b, short n, UInt16 q, int i, UInt32 u, long x, UInt64 t, double d,
+	    String s, Type[] g, Variant<?> v, List<String> as, Map<String, Integer> aesi,
+	    TestStruct r, byte[] ay, int[] ai, List<Map<String, List<Integer>>> aaesai) {}
+
+    private static Type[] types() throws Exception {
+	for (java.lang.reflect.Method m : TestTypeCodec.class.getDeclaredMethods())
+	    if ("parameters".equals(m.getName()))
+		return m.getGenericParameterTypes();
+	throw new AssertionError();
+    }
+
+    private static String sig(TypeCodec[] codecs) {
+	StringBuilder sb = new StringBuilder();
+	for (TypeCodec c : codecs)
+	    sb.append(c.sig);
+	return sb.toString();
+    }
+
+    @Test
+    public void signaturesMatchMarshalling() throws Exception {
+	Type[] types = types();
+	String sig = Marshalling.getDBusType(types);
+	TypeCodec[] codecs = TypeCodec.compile(sig);
+	assertEquals(types.length, codecs.length);
+	assertEquals(sig, sig(codecs));
+	for (int i = 0; i < types.length; i++)
+	    assertEquals(Marshalling.getDBusType(types[i])[0], codecs[i].sig);
+
+	// the Java type each codec gives is the one Marshalling gives for its signature
+	Type[] actual = TypeCodec.getJavaTypes(sig);
+	assertEquals(types.length, actual.length);
+	for (int i = 0; i < actual.length; i++) {
+	    List<Type> expected = new ArrayList<Type>();
+	    Marshalling.getJavaType(codecs[i].sig, expected, 1);
+	    assertSameType(expected.get(0), actual[i]);
+	}
+    }
+
+    private static void assertSameType(Type expected, Type actual) {
+	if (expected instanceof ParameterizedType) {
+	    assertTrue(actual instanceof ParameterizedType);
+	    assertEquals(((ParameterizedType) expected).getRawType(), ((ParameterizedType) actual).getRawType());
+	    Type[] e = ((ParameterizedType) expected).getActualTypeArguments();
+	    Type[] a = ((ParameterizedType) actual).getActualTypeArguments();
+	    assertEquals(e.length, a.length);
+	    for (int i = 0; i < e.length; i++)
+		assertSameType(e[i], a[i]);
+	} else
+	    assertEquals(expected, actual);
+    }
+
+    @Test
+    public void valuesRoundTrip() throws Exception {
+	Type[] types = types();
+	String sig = Marshalling.getDBusType(types);
+	Map<String, Integer> aesi = new HashMap<String, Integer>();
+	aesi.put("one", 1);
+	aesi.put("two", 2);
+	Map<String, List<Integer>> esai = new HashMap<String, List<Integer>>();
+	esai.put("list", Arrays.asList(1, 2, 3));
+	Object[] values = new Object[] {
+	    (byte) 7, true, (short) -3, new UInt16(65535), -100000, new UInt32(4000000000L), Long.MIN_VALUE,
+	    new UInt64(Long.MAX_VALUE), 2.5, "string é中",
+	    new Type[] { String.class }, new Variant<String>("variant"), Arrays.asList("a", "b", ""), aesi,
+	    new TestStruct("struct", new UInt32(1), new Variant<Integer>(5)),
+	    new byte[] { 1, 2, 3 }, new int[] { -1, 0, 1 },
+	    Arrays.asList(esai, new HashMap<String, List<Integer>>())
+	};
+	Object[] args = Marshalling.convertParameters(values.clone(), types, null);
+	MethodCall m = new MethodCall(null, null, "/Test", null, "call", (byte) 0, sig, args);
+	byte[] buf = m.getWireBuffer();
+	int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	Message r = MessageReader.create(Arrays.copyOf(buf, headerlen), Arrays.copyOfRange(buf, headerlen, m.getWireLength()));
+	Object[] got = Marshalling.deSerializeParameters(r.getParameters(), types, null);
+
+	assertEquals(values.length, got.length);
+	for (int i = 0; i < values.length; i++) {
+	    if (values[i] instanceof byte[])
+		assertArrayEquals((byte[]) values[i], (byte[]) got[i]);
+	    else if (values[i] instanceof int[])
+		assertArrayEquals((int[]) values[i], (int[]) got[i]);
+	    else if (values[i] instanceof Type[])
+		assertEquals("s", Marshalling.getDBusType((Type[]) got[i]));
+	    else
+		assertEquals("parameter " + i, values[i], got[i]);
+	}
+    }
+
+    @Test
+    public void invalidSignatures() throws Exception {
+	for (String sig : new String[] { "a", "(i", "a{s", "z", "a{si" }) {
+	    try {
+		TypeCodec.compile(sig);
+		fail("compiled " + sig);
+	    } catch (DBusException DBe) {}
+	}
+	try {
+	    TypeCodec.compileOne("");
+	    fail("compiled an empty signature to a type");
+	} catch (DBusException DBe) {}
+    }
+
+    @Test
+    public void cacheIsBounded() throws Exception {
+	TypeCodec[] first = TypeCodec.compile("a{s(iu)}");
+	assertSame(first, TypeCodec.compile("a{s(iu)}"));
+	StringBuilder sb = new StringBuilder("(");
+	for (int i = 0; i <= TypeCodec.CACHE_SIZE; i++) {
+	    sb.append(0 == i % 2 ? 'i' : 's');
+	    TypeCodec.compile(sb + ")");
+	    assertTrue(TypeCodec.cache.size() <= TypeCodec.CACHE_SIZE);
+	}
+	// a signature compiled again once it has been dropped gives the same types
+	TypeCodec[] again = TypeCodec.compile("a{s(iu)}");
+	assertEquals(sig(first), sig(again));
+	assertSame(again, TypeCodec.compile("a{s(iu)}"));
+    }
+
+    /**
+     * Returns a message received into a pooled buffer which is longer than its body
+     * and full of bytes left by an earlier message, with the uint32 at lenofs in the
+     * body replaced by len.
+     */
+    private static Message pooled(String sig, int lenofs, int len, Object... args) throws Exception {
+	MethodCall m = new MethodCall(null, null, "/Test", null, "call", (byte) 0, sig, args);
+	byte[] buf = m.getWireBuffer();
+	int headerlen = 16 + (int) ((Message.demarshallint(buf, 12, buf[0], 4) + 7) & ~7);
+	int bodylen = m.getWireLength() - headerlen;
+	byte[] body = BufferPool.take(bodylen);
+	assertTrue(body.length > bodylen);
+	Arrays.fill(body, (byte) 90);
+	System.arraycopy(buf, headerlen, body, 0, bodylen);
+	if (lenofs >= 0)
+	    for (int i = 0; i < 4; i++)
+		body[lenofs + i] = (byte) (len >> (Message.Endian.BIG == buf[0] ? 8 * (3 - i) : 8 * i));
+	return MessageReader.create(Arrays.copyOf(buf, headerlen), body);
+    }
+
+    @Test
+    public void valuesStopAtBodyEnd() throws Exception {
+	// the whole body decodes from a buffer longer than it
+	Object[] got = pooled("ays", -1, 0, new byte[] { 1, 2, 3, 4 }, "end").getParameters();
+	assertArrayEquals(new byte[] { 1, 2, 3, 4 }, (byte[]) got[0]);
+	assertEquals("end", got[1]);
+
+	// lengths running past the end of the body are not filled from what is after it
+	Object[][] claims = new Object[][] {
+	    { "ay", new byte[] { 1, 2, 3, 4 } },
+	    { "s", "four" },
+	    { "a(ii)", new Object[] { new Object[] { 1, 2 } } },
+	    { "ai", new int[] { 1 } },
+	};
+	for (Object[] c : claims) {
+	    Message r = pooled((String) c[0], 0, 40, c[1]);
+	    try {
+		r.getParameters();
+		fail("decoded " + c[0] + " past the end of the body");
+	    } catch (MarshallingException Me) {}
+	    try {
+		r.getBodyReader().next();
+		fail("read " + c[0] + " past the end of the body");
+	    } catch (MarshallingException Me) {}
+	}
+    }
+
+    private static boolean pinned(Message m) throws Exception {
+	Field f = Message.class.getDeclaredField("pinned");
+	f.setAccessible(true);
+	return f.getBoolean(m);
+    }
+
+    @Test
+    public void slicesStopAtBodyEnd() throws Exception {
+	Type[] types = new Type[] { ByteBuffer.class };
+	Message r = pooled("ay", -1, 0, new byte[] { 1, 2, 3, 4 });
+	ByteBuffer got = (ByteBuffer) r.getParameters(types)[0];
+	assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), got);
+	assertTrue(pinned(r));
+
+	// past the end of the body, and past the end of the buffer
+	for (int len : new int[] { 40, 1 << 20 }) {
+	    r = pooled("ay", 0, len, new byte[] { 1, 2, 3, 4 });
+	    try {
+		r.getParameters(types);
+		fail("sliced " + len + " bytes from a body of 8");
+	    } catch (MarshallingException Me) {}
+	    assertFalse(pinned(r));
+	}
+    }
+
+}
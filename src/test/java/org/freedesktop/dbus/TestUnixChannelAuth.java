@@ -0,0 +1,100 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestUnixChannelAuth {
+
+    /** Accepts one connection and runs the server side of auth on it. */
+    private static class Server extends Thread {
+	private final String path;
+	private final boolean creds;
+	volatile boolean ok = false;
+	volatile UnixChannel uc;
+	Server(String path, boolean creds) {
+	    this.path = path;
+	    this.creds = creds;
+	}
+	public void run() {
+	    try {
+		uc = UnixChannel.accept(path);
+		Transport.SASL sasl = new Transport.SASL();
+		if (creds)
+		    sasl.setPeerUser(uc.getPeerUser());
+		ok = sasl.auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, Transport.genGUID(),
+			uc.getOutputStream(), uc.getInputStream(), null);
+	    } catch (IOException IOe) {
+		IOe.printStackTrace();
+	    }
+	}
+    }
+
+    private static boolean hasUnixChannels() {
+	try {
+	    Class.forName("java.net.UnixDomainSocketAddress");
+	    return true;
+	} catch (ClassNotFoundException CNFe) {
+	    return false;
+	}
+    }
+
+    private static boolean[] auth(boolean creds) throws Exception {
+	assumeTrue(hasUnixChannels());
+	String path = System.getProperty("java.io.tmpdir") + "/dbus-java-test-" + System.nanoTime();
+	Server server = new Server(path, creds);
+	server.start();
+	UnixChannel uc = null;
+	try {
+	    for (int i = 0; null == uc && i < 100; i++) {
+		try {
+		    uc = UnixChannel.connect(path);
+		} catch (IOException IOe) {
+		    Thread.sleep(20);
+		}
+	    }
+	    assertNotNull(uc);
+	    boolean client = new Transport.SASL().auth(Transport.SASL.MODE_CLIENT, Transport.SASL.AUTH_EXTERNAL, null,
+		    uc.getOutputStream(), uc.getInputStream(), null);
+	    server.join();
+	    return new boolean[] { server.ok, client };
+	} finally {
+	    if (null != uc) uc.close();
+	    if (null != server.uc) server.uc.close();
+	    new File(path).delete();
+	}
+    }
+
+    @Test
+    public void acceptsSameUser() throws Exception {
+	boolean[] ok = auth(true);
+	assertTrue(ok[0]);
+	assertTrue(ok[1]);
+    }
+
+    @Test
+    public void rejectsWithoutKernelCredentials() throws Exception {
+	boolean[] ok = auth(false);
+	assertFalse(ok[0]);
+	assertFalse(ok[1]);
+    }
+
+    @Test
+    public void rejectsExternalOnPlainStreams() throws Exception {
+	// a client claiming the uid of the server over a stream with no credentials
+	ByteArrayOutputStream claim = new ByteArrayOutputStream();
+	new Transport.SASL().auth(Transport.SASL.MODE_CLIENT, Transport.SASL.AUTH_EXTERNAL, null, claim,
+		new ByteArrayInputStream("REJECTED EXTERNAL\r\n".getBytes("ASCII")), null);
+	ByteArrayOutputStream reply = new ByteArrayOutputStream();
+	assertFalse(new Transport.SASL().auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, Transport.genGUID(),
+		reply, new ByteArrayInputStream(claim.toByteArray()), null));
+	assertTrue(reply.toString("ASCII").startsWith("REJECTED"));
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.freedesktop.dbus;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.junit.Test;
+
+public class TestUtf8 {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static byte[] encode(String s) throws Exception {
+	byte[] b = new byte[Utf8.encodedLength(s, 0)];
+	assertEquals(b.length, Utf8.encode(s, 0, b, 0));
+	return b;
+    }
+
+    private static void assertRoundTrip(String s) throws Exception {
+	byte[] b = encode(s);
+	assertArrayEquals(s.getBytes(UTF8), b);
+	assertEquals(s, Utf8.decode(b, 0, b.length));
+    }
+
+    private static byte[] bytes(int... bs) {
+	byte[] b = new byte[bs.length];
+	for (int i = 0; i < bs.length; i++)
+	    b[i] = (byte) bs[i];
+	return b;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+	for (String s : new String[] { "", "ascii", "\u007f", "\u0080", "café", "߿", "ࠀ",
+		"中文", "￿", "𐀀", "emoji 😀!", "􏿿", "mixed é中😀 text" })
+	    assertRoundTrip(s);
+    }
+
+    @Test
+    public void everyCodePoint() throws Exception {
+	StringBuilder sb = new StringBuilder();
+	for (int cp = 1; cp <= Character.MAX_CODE_POINT; cp++)
+	    if (cp < Character.MIN_SURROGATE || cp > Character.MAX_SURROGATE)
+		sb.appendCodePoint(cp);
+	assertRoundTrip(sb.toString());
+    }
+
+    @Test
+    public void offsets() throws Exception {
+	String s = "skipé中";
+	assertEquals(5, Utf8.encodedLength(s, 4));
+	byte[] b = new byte[8];
+	assertEquals(7, Utf8.encode(s, 4, b, 2));
+	assertEquals("é中", Utf8.decode(b, 2, 5));
+	assertEquals("中", Utf8.decode(b, 4, 3));
+    }
+
+    @Test
+    public void malformedInput() throws Exception {
+	byte[][] bad = new byte[][] {
+	    // overlong forms
+	    bytes(0xC0, 0x80), bytes(0xC1, 0xBF), bytes(0xE0, 0x80, 0x80), bytes(0xE0, 0x9F, 0xBF),
+	    bytes(0xF0, 0x80, 0x80, 0x80), bytes(0xF0, 0x8F, 0xBF, 0xBF),
+	    // surrogates, alone and as a pair
+	    bytes(0xED, 0xA0, 0x80), bytes(0xED, 0xBF, 0xBF), bytes(0xED, 0xA0, 0xBD, 0xED, 0xB8, 0x80),
+	    // past the last code point, and lead bytes which are never valid
+	    bytes(0xF4, 0x90, 0x80, 0x80), bytes(0xF8, 0x88, 0x80, 0x80, 0x80), bytes(0xFF),
+	    // continuation bytes out of place or missing
+	    bytes(0x80), bytes('a', 0xBF), bytes(0xC3, 0x28), bytes(0xE2, 0x82), bytes(0xF0, 0x9F, 0x98),
+	    // nul characters
+	    bytes(0), bytes('a', 0, 'b'), bytes(0xC3, 0xA9, 0)
+	};
+	for (byte[] b : bad)
+	    try {
+		Utf8.decode(b, 0, b.length);
+		fail("decoded " + Arrays.toString(b));
+	    } catch (MarshallingException Me) {}
+
+	// a valid character cut short by the length given
+	byte[] b = "中".getBytes(UTF8);
+	try {
+	    Utf8.decode(b, 0, 2);
+	    fail("decoded a truncated character");
+	} catch (MarshallingException Me) {}
+    }
+
+    @Test
+    public void unencodableStrings() throws Exception {
+	for (String s : new String[] { "a\u0000b", "\ud800", "x\udc00", "\udc00\ud800", "end\ud83d" })
+	    try {
+		Utf8.encodedLength(s, 0);
+		fail("encoded " + s);
+	    } catch (MarshallingException Me) {}
+    }
+
+    @Test
+    public void messagesRejectInvalidStrings() throws Exception {
+	try {
+	    new MethodCall(null, null, "/Test", null, "call", (byte) 0, "s", "bad\ud800");
+	    fail("sent an unpaired surrogate");
+	} catch (MarshallingException Me) {}
+    }
+
+}
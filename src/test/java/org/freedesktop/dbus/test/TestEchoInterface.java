@@ -0,0 +1,27 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.test;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.DBusInterface;
+
+public interface TestEchoInterface extends DBusInterface
+{
+   /** Returns its parameter. */
+   public String echo(String s);
+   /** Returns the sum of its parameters. */
+   public int add(int a, int b);
+   /** Records its parameter, without a reply. */
+   @DBus.Method.NoReply
+   public void record(String s);
+   /** Returns the last parameter given to record. */
+   public String recorded();
+}
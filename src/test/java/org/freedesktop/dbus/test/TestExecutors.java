@@ -0,0 +1,149 @@
+package org.freedesktop.dbus.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.DispatchExecutors;
+import org.freedesktop.dbus.exceptions.DBusException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutors {
+
+    private static class ThreadServer implements TestExecutorInterface {
+	public boolean isRemote() { return false; }
+	public String getObjectPath() { return "/Executor"; }
+	public String threadName() { return Thread.currentThread().getName(); }
+    }
+
+    /** Runs each task on a new thread with a known name. */
+    private static class NamedExecutor implements Executor {
+	final AtomicInteger tasks = new AtomicInteger();
+	public void execute(Runnable r) {
+	    tasks.incrementAndGet();
+	    new Thread(r, "named-executor").start();
+	}
+    }
+
+    private DirectConnection server;
+    private DirectConnection client;
+    private TestExecutorInterface remote;
+
+    @Before
+    public void connect() throws Exception {
+	final String address = DirectConnection.createDynamicSession();
+	final AtomicReference<DirectConnection> s = new AtomicReference<DirectConnection>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    DirectConnection dc = new DirectConnection(address + ",listen=true");
+		    dc.exportObject("/Executor", new ThreadServer());
+		    s.set(dc);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (Exception e) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	server = s.get();
+	assertNotNull(server);
+	remote = (TestExecutorInterface) client.getRemoteObject("/Executor", TestExecutorInterface.class);
+    }
+
+    @After
+    public void disconnect() {
+	if (null != client) client.disconnect();
+	if (null != server) server.disconnect();
+    }
+
+    @Test
+    public void callsRunOnTheExecutor() throws Exception {
+	String worker = remote.threadName();
+	assertNull(server.getExecutor());
+
+	NamedExecutor executor = new NamedExecutor();
+	server.setExecutor(executor);
+	assertSame(executor, server.getExecutor());
+	assertEquals("named-executor", remote.threadName());
+	assertEquals("named-executor", remote.threadName());
+	assertEquals(2, executor.tasks.get());
+
+	// back to the worker threads
+	server.setExecutor(null);
+	assertNull(server.getExecutor());
+	assertFalse("named-executor".equals(remote.threadName()));
+	assertEquals(2, executor.tasks.get());
+	assertNotNull(worker);
+    }
+
+    @Test
+    public void rejectedCallIsAnswered() throws Exception {
+	server.setExecutor(new Executor() {
+	    public void execute(Runnable r) {
+		throw new RejectedExecutionException("full");
+	    }
+	});
+	try {
+	    remote.threadName();
+	    fail("the call was answered although nothing ran it");
+	} catch (DBus.Error.LimitsExceeded LEe) {
+	    assertTrue(LEe.getMessage().contains("threadName"));
+	}
+	// the connection is still usable once the executor takes work again
+	server.setExecutor(new NamedExecutor());
+	assertEquals("named-executor", remote.threadName());
+    }
+
+    @Test
+    public void workStealingPool() throws Exception {
+	ExecutorService pool = DispatchExecutors.newWorkStealingPool(2);
+	try {
+	    server.setExecutor(pool);
+	    client.setExecutor(pool);
+	    for (int i = 0; i < 10; i++)
+		assertTrue(remote.threadName().startsWith("ForkJoinPool"));
+	} finally {
+	    server.setExecutor(null);
+	    client.setExecutor(null);
+	    pool.shutdown();
+	}
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+	if (!DispatchExecutors.isVirtualThreadSupported()) {
+	    try {
+		DispatchExecutors.newVirtualThreadExecutor();
+		fail("virtual threads were made without support for them");
+	    } catch (DBusException DBe) {}
+	    return;
+	}
+	ExecutorService executor = DispatchExecutors.newVirtualThreadExecutor();
+	try {
+	    server.setExecutor(executor);
+	    // virtual threads have no name unless given one
+	    assertEquals("", remote.threadName());
+	} finally {
+	    server.setExecutor(null);
+	    executor.shutdown();
+	}
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.freedesktop.dbus.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.FileDescriptor;
+import org.freedesktop.dbus.Transport;
+import org.junit.Test;
+
+import cx.ath.matthew.unix.UnixServerSocket;
+import cx.ath.matthew.unix.UnixSocket;
+import cx.ath.matthew.unix.UnixSocketAddress;
+
+public class TestFileDescriptorPassing {
+
+    private static class FdServer implements TestFdInterface {
+	public boolean isRemote() { return false; }
+	public String getObjectPath() { return "/Fd"; }
+	public byte[] readFile(FileDescriptor fd) {
+	    try {
+		return fd.toBytes();
+	    } catch (IOException IOe) {
+		throw new RuntimeException(IOe);
+	    } finally {
+		try { fd.close(); } catch (IOException IOe) {}
+	    }
+	}
+    }
+
+    private static byte[] data(int len) {
+	byte[] b = new byte[len];
+	for (int i = 0; i < len; i++)
+	    b[i] = (byte) (i * 31);
+	return b;
+    }
+
+    @Test
+    public void memfdRoundTrip() throws Exception {
+	for (int len : new int[] { 0, 1, 4096, 1 << 20 }) {
+	    byte[] b = data(len);
+	    FileDescriptor fd = FileDescriptor.fromBytes(b);
+	    try {
+		assertTrue(fd.getIntFileDescriptor() >= 0);
+		assertArrayEquals(b, fd.toBytes());
+		// reading does not move a shared offset
+		assertArrayEquals(b, fd.toBytes());
+	    } finally {
+		fd.close();
+	    }
+	}
+    }
+
+    @Test
+    public void passOverDirectConnection() throws Exception {
+	final String address = DirectConnection.createDynamicSession();
+	final AtomicReference<DirectConnection> server = new AtomicReference<DirectConnection>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    DirectConnection dc = new DirectConnection(address + ",listen=true");
+		    dc.exportObject("/Fd", new FdServer());
+		    server.set(dc);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	DirectConnection client = null;
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (Exception e) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	try {
+	    TestFdInterface remote = (TestFdInterface) client.getRemoteObject("/Fd", TestFdInterface.class);
+	    for (int len : new int[] { 10, 100000 }) {
+		byte[] b = data(len);
+		FileDescriptor fd = FileDescriptor.fromBytes(b);
+		try {
+		    assertArrayEquals(b, remote.readFile(fd));
+		} finally {
+		    fd.close();
+		}
+	    }
+	} finally {
+	    client.disconnect();
+	    if (null != server.get()) server.get().disconnect();
+	}
+    }
+
+    /** Runs the server side of auth on an accepted socket. */
+    private static class AuthServer extends Thread {
+	private final UnixServerSocket uss;
+	private final boolean unixfds;
+	Transport.SASL sasl = new Transport.SASL();
+	volatile boolean ok = false;
+	UnixSocket s;
+	AuthServer(UnixServerSocket uss, boolean unixfds) {
+	    this.uss = uss;
+	    this.unixfds = unixfds;
+	}
+	public void run() {
+	    try {
+		s = uss.accept();
+		s.setPassCred(true);
+		ok = sasl.auth(Transport.SASL.MODE_SERVER, Transport.SASL.AUTH_EXTERNAL, Transport.genGUID(),
+			s.getOutputStream(), s.getInputStream(), s, unixfds);
+	    } catch (IOException IOe) {
+		IOe.printStackTrace();
+	    }
+	}
+    }
+
+    private static boolean[] negotiate(boolean serverfds, boolean clientfds) throws Exception {
+	String path = "/tmp/dbus-java-test-" + System.nanoTime();
+	UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress(path, true));
+	AuthServer as = new AuthServer(uss, serverfds);
+	as.start();
+	UnixSocket us = new UnixSocket();
+	try {
+	    us.connect(new UnixSocketAddress(path, true));
+	    us.setPassCred(true);
+	    Transport.SASL sasl = new Transport.SASL();
+	    assertTrue(sasl.auth(Transport.SASL.MODE_CLIENT, Transport.SASL.AUTH_EXTERNAL, null,
+		    us.getOutputStream(), us.getInputStream(), us, clientfds));
+	    as.join();
+	    assertTrue(as.ok);
+	    return new boolean[] { as.sasl.isUnixFdAgreed(), sasl.isUnixFdAgreed() };
+	} finally {
+	    us.close();
+	    if (null != as.s) as.s.close();
+	    uss.close();
+	}
+    }
+
+    @Test
+    public void agreeOnlyWhenBothPass() throws Exception {
+	assertTrue(Arrays.equals(new boolean[] { true, true }, negotiate(true, true)));
+	// a server such as the daemon which doesn't forward them must not agree
+	assertTrue(Arrays.equals(new boolean[] { false, false }, negotiate(false, true)));
+	assertTrue(Arrays.equals(new boolean[] { false, false }, negotiate(true, false)));
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.freedesktop.dbus.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.freedesktop.dbus.Message;
+import org.freedesktop.dbus.MessageReader;
+import org.freedesktop.dbus.MessageWriter;
+import org.freedesktop.dbus.MethodCall;
+import org.freedesktop.dbus.exceptions.MarshallingException;
+import org.junit.Test;
+
+import cx.ath.matthew.unix.UnixServerSocket;
+import cx.ath.matthew.unix.UnixSocket;
+import cx.ath.matthew.unix.UnixSocketAddress;
+
+public class TestMessageReader {
+
+    private static final int MESSAGES = 50;
+
+    /** Counts the reads made on a stream, handing out at most chunk bytes each time. */
+    private static class ChunkedStream extends InputStream {
+	private final InputStream in;
+	private final int chunk;
+	int reads = 0;
+	ChunkedStream(byte[] data, int chunk) {
+	    this.in = new ByteArrayInputStream(data);
+	    this.chunk = chunk;
+	}
+	public int read() throws IOException {
+	    reads++;
+	    return in.read();
+	}
+	public int read(byte[] b, int off, int len) throws IOException {
+	    reads++;
+	    return in.read(b, off, Math.min(len, chunk));
+	}
+    }
+
+    private static byte[] messages() throws Exception {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	MessageWriter out = new MessageWriter(bytes);
+	for (int i = 0; i < MESSAGES; i++) {
+	    MethodCall m = new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Profiler",
+		    "bytes", (byte) 0, "si", "hello", i);
+	    out.writeMessage(m);
+	}
+	return bytes.toByteArray();
+    }
+
+    private static void readAll(ChunkedStream s) throws Exception {
+	MessageReader in = new MessageReader(s);
+	for (int i = 0; i < MESSAGES; i++) {
+	    Message m = null;
+	    while (null == m)
+		m = in.readMessage();
+	    assertEquals("bytes", m.getName());
+	    assertEquals(i, ((Integer) m.getParameters()[1]).intValue());
+	}
+    }
+
+    @Test
+    public void partialReads() throws Exception {
+	byte[] data = messages();
+	for (int chunk : new int[] { 1, 3, 7, 100 })
+	    readAll(new ChunkedStream(data, chunk));
+    }
+
+    @Test
+    public void oneReadPerBurst() throws Exception {
+	byte[] data = messages();
+	assertTrue(data.length < 16384);
+	ChunkedStream s = new ChunkedStream(data, data.length);
+	readAll(s);
+	assertEquals(1, s.reads);
+    }
+
+    @Test
+    public void unknownByteOrder() throws Exception {
+	byte[] data = messages();
+	data[0] = 'x';
+	MessageReader in = new MessageReader(new ByteArrayInputStream(data));
+	try {
+	    in.readMessage();
+	    fail("a message with an unknown byte order was read");
+	} catch (MarshallingException Me) {}
+    }
+
+    /** Bodies both smaller and much bigger than the receive buffer, over a socket. */
+    private static void readOverSocket(int timeout) throws Exception {
+	final int[] sizes = { 10, 8000, 20000, 1 << 20 };
+	String path = "/tmp/dbus-java-test-" + System.nanoTime();
+	final UnixServerSocket uss = new UnixServerSocket();
+	uss.bind(new UnixSocketAddress(path, true));
+	final Exception[] failed = new Exception[1];
+	Thread writer = new Thread() {
+	    public void run() {
+		try {
+		    UnixSocket s = uss.accept();
+		    MessageWriter out = new MessageWriter(s.getOutputStream());
+		    for (int size : sizes) {
+			byte[] b = new byte[size];
+			for (int i = 0; i < size; i++)
+			    b[i] = (byte) i;
+			out.writeMessage(new MethodCall("org.freedesktop.dbus.test", "/Test", "org.freedesktop.dbus.test.Profiler",
+				"bytes", (byte) 0, "ay", b));
+		    }
+		    s.close();
+		} catch (Exception e) {
+		    failed[0] = e;
+		}
+	    }
+	};
+	writer.start();
+	UnixSocket us = new UnixSocket();
+	try {
+	    us.connect(new UnixSocketAddress(path, true));
+	    if (timeout > 0) us.setSoTimeout(timeout);
+	    MessageReader in = new MessageReader(us.getInputStream());
+	    for (int size : sizes) {
+		Message m = null;
+		while (null == m)
+		    m = in.readMessage();
+		byte[] b = (byte[]) m.getParameters()[0];
+		assertEquals(size, b.length);
+		for (int i = 0; i < size; i++)
+		    assertEquals((byte) i, b[i]);
+	    }
+	    writer.join();
+	    assertNull(failed[0]);
+	} finally {
+	    us.close();
+	    uss.close();
+	}
+    }
+
+    @Test
+    public void blockingSocket() throws Exception {
+	readOverSocket(0);
+    }
+
+    @Test
+    public void socketWithTimeout() throws Exception {
+	readOverSocket(1000);
+    }
+
+}
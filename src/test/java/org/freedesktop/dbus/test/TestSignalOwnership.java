@@ -0,0 +1,77 @@
+package org.freedesktop.dbus.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freedesktop.dbus.DBusSigHandler;
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.UInt32;
+import org.junit.Test;
+
+public class TestSignalOwnership {
+
+    @Test
+    public void signalsStayReadable() throws Exception {
+	final String address = DirectConnection.createDynamicSession();
+	final AtomicReference<DirectConnection> server = new AtomicReference<DirectConnection>();
+	final LinkedBlockingQueue<TestSignalInterface.TestSignal> received = new LinkedBlockingQueue<TestSignalInterface.TestSignal>();
+	Thread t = new Thread() {
+	    public void run() {
+		try {
+		    DirectConnection dc = new DirectConnection(address + ",listen=true");
+		    dc.addSigHandler(TestSignalInterface.TestSignal.class, new DBusSigHandler<TestSignalInterface.TestSignal>() {
+			public void handle(TestSignalInterface.TestSignal s) {
+			    // kept after the handler returns
+			    received.add(s);
+			}
+		    });
+		    server.set(dc);
+		} catch (Exception e) {
+		    e.printStackTrace();
+		}
+	    }
+	};
+	t.start();
+	DirectConnection client = null;
+	for (int i = 0; null == client && i < 100; i++) {
+	    try {
+		client = new DirectConnection(address);
+	    } catch (Exception e) {
+		Thread.sleep(50);
+	    }
+	}
+	assertNotNull(client);
+	t.join();
+	assertNotNull(server.get());
+	try {
+	    TestSignalInterface.TestSignal sent = new TestSignalInterface.TestSignal("/Test", "hello", new UInt32(42));
+	    client.sendSignal(sent);
+	    TestSignalInterface.TestSignal first = received.poll(10, TimeUnit.SECONDS);
+	    assertNotNull(first);
+	    // the serial a message is built with is the one it is sent with
+	    assertEquals(sent.getSerial(), first.getSerial());
+
+	    // the signal sent is not used up, so it can be read and sent again
+	    assertEquals("hello", sent.getParameters()[0]);
+	    client.sendSignal(sent);
+	    TestSignalInterface.TestSignal second = received.poll(10, TimeUnit.SECONDS);
+	    assertNotNull(second);
+
+	    for (TestSignalInterface.TestSignal s : new TestSignalInterface.TestSignal[] { first, second }) {
+		assertEquals("hello", s.value);
+		assertEquals(new UInt32(42), s.number);
+		Object[] args = s.getParameters();
+		assertEquals("hello", args[0]);
+		assertEquals(new UInt32(42), args[1]);
+		assertEquals("/Test", s.getPath());
+	    }
+	} finally {
+	    client.disconnect();
+	    server.get().disconnect();
+	}
+    }
+
+}
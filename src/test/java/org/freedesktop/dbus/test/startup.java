@@ -0,0 +1,110 @@
+/*
+   D-Bus Java Implementation
+   Copyright (c) 2005-2006 Matthew Johnson
+
+   This program is free software; you can redistribute it and/or modify it
+   under the terms of either the GNU Lesser General Public License Version 2 or the
+   Academic Free Licence Version 2.1.
+
+   Full licence texts are included in the COPYING file with this program.
+*/
+package org.freedesktop.dbus.test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+
+import org.freedesktop.DBus;
+import org.freedesktop.dbus.DBusConnection;
+import org.freedesktop.dbus.DirectConnection;
+import org.freedesktop.dbus.bin.DBusDaemon;
+
+/**
+ * Startup benchmark: how long a new JVM takes to make its first call on the bus.
+ * <p>
+ * With no arguments, starts a DBusDaemon on a new address and runs itself in
+ * fresh JVMs against it. With an address, connects to it, calls ListNames and
+ * prints the milliseconds from the start of the JVM to the reply.
+ */
+public class startup
+{
+   public static final int RUNS = 10;
+   private static final String PREFIX = "first call (ms): ";
+
+   public static void main(String[] args)
+   {
+      try {
+         if (0 < args.length) {
+            firstCall(args[0]);
+            System.exit(0);
+         }
+         final String address = DirectConnection.createDynamicSession();
+         Thread daemon = new Thread() {
+            public void run()
+            {
+               try {
+                  DBusDaemon.main(new String[] { "--listen", address });
+               } catch (Exception e) {
+                  e.printStackTrace();
+               }
+            }
+         };
+         daemon.setDaemon(true);
+         daemon.start();
+         waitForDaemon(address);
+
+         String java = System.getProperty("java.home")+"/bin/java";
+         long min = Long.MAX_VALUE, max = 0, sum = 0;
+         System.out.print("Starting "+RUNS+" JVMs...");
+         for (int i = 0; i < RUNS; i++) {
+            Process p = new ProcessBuilder(java,
+                  "-cp", System.getProperty("java.class.path"),
+                  "-Djava.library.path="+System.getProperty("java.library.path"),
+                  startup.class.getName(), address)
+               .redirectErrorStream(true).start();
+            BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            long t = -1;
+            String l;
+            while (null != (l = r.readLine()))
+               if (l.startsWith(PREFIX)) t = Long.parseLong(l.substring(PREFIX.length()));
+            if (0 != p.waitFor() || t < 0) {
+               System.out.println(" failed.");
+               System.exit(1);
+            }
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+            sum += t;
+            System.out.print(".");
+         }
+         System.out.println(" done.");
+         System.out.println("time to first call min/max/avg (ms): "+min+"/"+max+"/"+((double) sum/RUNS));
+         System.exit(0);
+      } catch (Exception e) {
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+
+   private static void firstCall(String address) throws Exception
+   {
+      long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+      DBusConnection conn = DBusConnection.getConnection(address);
+      DBus dbus = conn.getRemoteObject("org.freedesktop.DBus", "/org/freedesktop/DBus", DBus.class);
+      dbus.ListNames();
+      System.out.println(PREFIX+(System.currentTimeMillis()-start));
+      conn.disconnect();
+   }
+
+   private static void waitForDaemon(String address) throws Exception
+   {
+      for (int i = 0; ; i++) {
+         try {
+            DBusConnection.getConnection(address).disconnect();
+            return;
+         } catch (Exception e) {
+            if (i > 100) throw e;
+            Thread.sleep(50);
+         }
+      }
+   }
+}
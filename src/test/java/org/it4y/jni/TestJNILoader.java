@@ -0,0 +1,86 @@
+package org.it4y.jni;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestJNILoader {
+
+    private Path root;
+
+    @Before
+    public void createRoot() throws Exception {
+	root = Files.createTempDirectory("jni-test");
+    }
+
+    @After
+    public void deleteRoot() throws Exception {
+	delete(root.toFile());
+    }
+
+    private static void delete(File f) {
+	File[] files = f.listFiles();
+	if (null != files)
+	    for (File c : files)
+		delete(c);
+	f.delete();
+    }
+
+    @Test
+    public void createsPrivateFolder() throws Exception {
+	File dir = new File(root.toFile(), "a/jni");
+	assertEquals(dir, JNILoader.privateFolder(dir));
+	assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.toPath())));
+	// and takes it again once made
+	assertEquals(dir, JNILoader.privateFolder(dir));
+    }
+
+    @Test
+    public void rejectsFolderOthersCanUse() throws Exception {
+	Path dir = Files.createDirectory(root.resolve("shared"));
+	Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxrwxrwx"));
+	assertNull(JNILoader.privateFolder(dir.toFile()));
+	Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxr-x---"));
+	assertNull(JNILoader.privateFolder(dir.toFile()));
+    }
+
+    @Test
+    public void rejectsLinksAndFiles() throws Exception {
+	Path target = Files.createDirectory(root.resolve("target"), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+	Path link = Files.createSymbolicLink(root.resolve("link"), target);
+	assertNull(JNILoader.privateFolder(link.toFile()));
+	Path file = Files.createFile(root.resolve("file"));
+	assertNull(JNILoader.privateFolder(file.toFile()));
+    }
+
+    @Test
+    public void removesOnlyStaleCopies() throws Exception {
+	String arch = System.getProperty("os.arch");
+	File dir = root.toFile();
+	File current = new File(dir, "unix-java-" + arch + "-0000000000000000.so");
+	File stale = new File(dir, "unix-java-" + arch + "-1111111111111111.so");
+	File recent = new File(dir, "unix-java-" + arch + "-2222222222222222.so");
+	File partial = new File(dir, "unix-java-" + arch + "-3333333333333333.so123.tmp");
+	File other = new File(dir, "other-" + arch + "-1111111111111111.so");
+	long old = System.currentTimeMillis() - 2L * 24 * 60 * 60 * 1000;
+	for (File f : new File[] { current, stale, recent, partial, other }) {
+	    assertTrue(f.createNewFile());
+	    if (f != recent)
+		assertTrue(f.setLastModified(old));
+	}
+	JNILoader.removeStale(dir, "unix-java", current);
+	assertTrue(current.exists());
+	assertFalse(stale.exists());
+	assertTrue(recent.exists());
+	assertFalse(partial.exists());
+	assertTrue(other.exists());
+    }
+
+}